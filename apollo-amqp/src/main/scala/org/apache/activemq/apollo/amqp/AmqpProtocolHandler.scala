@@ -115,6 +115,7 @@ class AmqpProtocolHandler extends ProtocolHandler {
   def broker = connection.connector.broker
 
   def queue = connection.dispatch_queue
+  lazy val ack_batcher = new DeliveryAckBatcher(queue)
 
   def die_delay = {
     OptionSupport(config.die_delay).getOrElse(DEFAULT_DIE_DELAY)
@@ -835,6 +836,9 @@ class AmqpProtocolHandler extends ProtocolHandler {
         if (decoded.getHeader.getDeliveryCount != null) {
           d.redeliveries = decoded.getHeader.getDeliveryCount.shortValue()
         }
+        if (decoded.getHeader.getPriority != null) {
+          d.priority = Delivery.priority(decoded.getHeader.getPriority.intValue())
+        }
       }
 
       if (!delivery.remotelySettled()) {
@@ -1169,7 +1173,9 @@ class AmqpProtocolHandler extends ProtocolHandler {
         delivery.settle()
       } else {
         if( apollo_delivery.ack != null ) {
-          apollo_delivery.ack(ackType, uow)
+          // Proton settles the deliveries of a disposition range one at
+          // a time, the batcher acks them together.
+          ack_batcher.ack(apollo_delivery.ack, ackType, uow)
         }
         delivery.settle()
       }
@@ -32,6 +32,12 @@ import org.apache.activemq.apollo.broker.store.bdb.HelperTrait.to_database_entry
 object BDBClient extends Log {
   final val STORE_SCHEMA_PREFIX = "bdb_store:"
   final val STORE_SCHEMA_VERSION = 2
+
+  /**
+   * How far ahead, in message keys, a batched load steps its cursor
+   * forward instead of searching for the next message.
+   */
+  final val LOAD_READ_AHEAD = 64
 }
 /**
  *
@@ -357,7 +363,7 @@ class BDBClient(store: BDBStore) {
           }
 
           uow.actions.foreach {
-            case (msg, action) =>
+            action =>
 
               val message_record = action.message_record
               if (message_record != null) {
@@ -420,17 +426,28 @@ class BDBClient(store: BDBStore) {
     var rc = ListBuffer[QueueEntryRange]()
     with_ctx() { ctx=>
       import ctx._
+      val now = System.currentTimeMillis
       var group:QueueEntryRange = null
 
       entries_db.cursor_from(tx, (queue_key, 0L)) { (key, value) =>
         val current_key:(Long,Long)= key
         if( current_key._1 == queue_key ) {
+          val entry:QueueEntryRecord = value
+          val deliver_at = if( entry.deliver_at > now ) entry.deliver_at else 0L
+
+          // Ranges only hold entries of a single priority which are
+          // either all scheduled or all ready for delivery.
+          if( group != null && (group.priority != entry.priority || (group.deliver_at == 0) != (deliver_at == 0)) ) {
+            rc += group
+            group = null
+          }
           if( group == null ) {
             group = new QueueEntryRange
             group.first_entry_seq = current_key._2
+            group.priority = entry.priority
+            group.deliver_at = deliver_at
           }
-
-          val entry:QueueEntryRecord = value
+          group.deliver_at = deliver_at.min(group.deliver_at)
 
           group.last_entry_seq = current_key._2
           group.count += 1
@@ -443,6 +460,11 @@ class BDBClient(store: BDBStore) {
               group.expiration = entry.expiration.min(group.expiration)
             }
           }
+          if( group.count == 1 ) {
+            group.latest_expiration = entry.expiration
+          } else if( group.latest_expiration != 0 ) {
+            group.latest_expiration = if( entry.expiration == 0 ) 0 else entry.expiration.max(group.latest_expiration)
+          }
 
           if( group.count == limit) {
             rc += group
@@ -490,28 +512,11 @@ class BDBClient(store: BDBStore) {
 
   def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord])=>Unit)]):Unit = {
 
+    // Sorting the batch lets a single cursor sweep the messages in key order.
+    val sorted = requests.sortBy(_._1)
     val missing = with_ctx() { ctx=>
       import ctx._
-      requests.flatMap { x =>
-        val (message_key, callback) = x
-        val record = metric_load_from_index_counter.time {
-          messages_db.get(tx, to_database_entry(message_key)).map{ data=>
-            import PBSupport._
-            val pb:MessagePB.Buffer = data
-            val rc = from_pb(pb)
-            if( pb.hasDirectSize ) {
-              rc.direct_buffer = direct_buffer_allocator.slice(pb.getDirectOffset, pb.getDirectSize)
-            }
-            rc
-          }
-        }
-        if( record.isDefined ) {
-          callback(record)
-          None
-        } else {
-          Some(x)
-        }
-      }
+      load_sorted(tx, sorted)
     }
 
     if (missing.isEmpty)
@@ -521,22 +526,80 @@ class BDBClient(store: BDBStore) {
     // write tx completed.  Lets try again..
     with_ctx() { ctx=>
       import ctx._
-      missing.foreach { x =>
+      load_sorted(tx, missing).foreach { x =>
+        val (_, callback) = x
+        callback(None)
+      }
+    }
+  }
+
+  /**
+   * Loads the messages of a batch of requests sorted by message key using
+   * a single cursor.  Keys a little ahead of the cursor are reached by
+   * stepping it forward, which reads ahead along the B-tree's leaves
+   * instead of searching the tree again.  Only the keys are read while
+   * stepping, the data is only read for the requested messages.
+   *
+   * @return the requests of the messages which were not found.
+   */
+  private def load_sorted(tx:Transaction, requests: Seq[(Long, (Option[MessageRecord])=>Unit)]) = {
+    val missing = ListBuffer[(Long, (Option[MessageRecord])=>Unit)]()
+    messages_db.with_cursor(tx) { cursor=>
+      val key = new DatabaseEntry()
+      val data = new DatabaseEntry()
+      // Only the keys get read while stepping over the messages in between.
+      val skipped = new DatabaseEntry()
+      skipped.setPartial(0, 0, true)
+      var positioned = false
+      var loaded = false
+      var cursor_key = 0L
+
+      requests.foreach { x =>
         val (message_key, callback) = x
         val record = metric_load_from_index_counter.time {
-          messages_db.get(tx, to_database_entry(message_key)).map{ data=>
-            import PBSupport._
-            val pb:MessagePB.Buffer = data
-            val rc = from_pb(pb)
-            if( pb.hasDirectSize ) {
-              rc.direct_buffer = direct_buffer_allocator.slice(pb.getDirectOffset, pb.getDirectSize)
+          if( positioned && message_key > cursor_key && message_key - cursor_key <= LOAD_READ_AHEAD ) {
+            while( positioned && cursor_key < message_key ) {
+              positioned = cursor.getNext(key, skipped, LockMode.DEFAULT) == OperationStatus.SUCCESS
+              loaded = false
+              if( positioned ) {
+                cursor_key = to_long(key)
+              }
             }
-            rc
+          } else if( !positioned || message_key != cursor_key ) {
+            key.setData(to_bytes(message_key))
+            positioned = cursor.getSearchKeyRange(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS
+            loaded = positioned
+            if( positioned ) {
+              cursor_key = to_long(key)
+            }
+          }
+          if( positioned && cursor_key == message_key ) {
+            if( !loaded ) {
+              loaded = cursor.getCurrent(key, data, LockMode.DEFAULT) == OperationStatus.SUCCESS
+            }
+            if( loaded ) Some(decode_message(data)) else None
+          } else {
+            None
           }
         }
-        callback(record)
+        if( record.isDefined ) {
+          callback(record)
+        } else {
+          missing += x
+        }
       }
     }
+    missing
+  }
+
+  private def decode_message(data:DatabaseEntry) = {
+    import PBSupport._
+    val pb:MessagePB.Buffer = data
+    val rc = from_pb(pb)
+    if( pb.hasDirectSize ) {
+      rc.direct_buffer = direct_buffer_allocator.slice(pb.getDirectOffset, pb.getDirectSize)
+    }
+    rc
   }
 
 
@@ -624,6 +687,9 @@ class BDBClient(store: BDBStore) {
       if(manager.version!=1) {
         return Some("Cannot import from an export file of version: "+manager.version)
       }
+      if(manager.increment_base.isDefined) {
+        return Some("Cannot import an incremental export")
+      }
 
       purge
 
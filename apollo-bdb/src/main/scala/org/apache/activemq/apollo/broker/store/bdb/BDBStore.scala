@@ -53,6 +53,8 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
   override def toString = "bdb store at "+config.directory
 
   def flush_delay = config.flush_delay.getOrElse(500)
+
+  protected def store_config = config
   
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
@@ -184,11 +186,32 @@ class BDBStore(var config:BDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  /**
+   * Once all the read threads are busy, the load requests from all the
+   * queues are held back so that they get merged into one batch which the
+   * next free read thread sweeps in message key order.
+   */
+  def max_loads_in_flight = config.read_threads.getOrElse(10)
+  var loads_in_flight = 0
+
   def drain_loads = {
     var data = load_source.getData
     message_load_batch_size_counter += data.size
+    loads_in_flight += 1
+    if( loads_in_flight == max_loads_in_flight ) {
+      load_source.suspend
+    }
     read_executor ^{
-      client.loadMessages(data)
+      try {
+        client.loadMessages(data)
+      } finally {
+        dispatch_queue {
+          if( loads_in_flight == max_loads_in_flight ) {
+            load_source.resume
+          }
+          loads_in_flight -= 1
+        }
+      }
     }
   }
 
@@ -0,0 +1,77 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.bdb
+
+import dto.BDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+
+/**
+ * <p>
+ * Measures how fast the BDB store swaps in the messages of several queues
+ * at the same time.  The queues get populated round robin so that the
+ * message keys of each queue are spread out across the messages database
+ * like they are on a busy broker.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class BDBSwapInBenchmark extends StoreFunSuiteSupport {
+
+  // Keep the timings free of other test classes.
+  override def is_parallel_test_class = false
+
+  def create_store(flushDelay:Long):Store = {
+    val rc = new BDBStore({
+      val rc = new BDBStoreDTO
+      rc.directory = data_directory
+      rc
+    })
+    rc.config.flush_delay = flushDelay
+    rc
+  }
+
+  test("swap in messages of several queues") {
+    val queue_count = 8
+    val batches = 50
+    val batch_size = 100
+    val queues = (0 until queue_count).map(i => add_queue("queue-" + i))
+
+    val messages = queues.map(x => (x, collection.mutable.ListBuffer[(Long, java.util.concurrent.atomic.AtomicReference[Object])]())).toMap
+    for (batch <- 0 until batches; queue <- queues) {
+      val content = (0 until batch_size).map(i => "message " + batch + ":" + i + " " + ("x" * 1000)).toList
+      messages(queue) ++= populate(queue, content, batch * batch_size + 1).map(x => (x._1, x._2))
+    }
+
+    val total = queue_count * batches * batch_size
+    val loaded = new CountDownLatch(total)
+    val start = System.nanoTime()
+    // Each queue swaps in its own range like a SwappedRange would.
+    queues.foreach { queue =>
+      messages(queue).foreach { case (key, locator) =>
+        store.load_message(key, locator) { record =>
+          assert(record.isDefined)
+          loaded.countDown()
+        }
+      }
+    }
+    assert(loaded.await(5, TimeUnit.MINUTES))
+    val elapsed = System.nanoTime() - start
+    println("swapped in %,d msg/s".format(total * 1000000000L / elapsed))
+  }
+
+}
@@ -151,6 +151,62 @@ class QueueDomainQueueBinding(val binding_data:Buffer, val address:DestinationAd
   def config(host:VirtualHost):QueueDTO = queue_config(host, address.path)
 }
 
+object QueuePartitionBinding extends BindingFactory {
+
+  val PARTITION_KIND = new AsciiBuffer("ptp-partition")
+
+  def apply(binding_kind:AsciiBuffer, binding_data:Buffer):QueuePartitionBinding = {
+    if( binding_kind == PARTITION_KIND ) {
+      val dto = JsonCodec.decode(binding_data, classOf[QueuePartitionDestinationDTO])
+      var path: Path = DestinationAddress.decode_path(dto.name)
+      new QueuePartitionBinding(binding_data, SimpleAddress("queue", path), dto.partition)
+    } else {
+      null
+    }
+  }
+
+  def apply(address:DestinationAddress, partition:Int):QueuePartitionBinding = {
+    val dto = new QueuePartitionDestinationDTO(address.id, partition)
+    new QueuePartitionBinding(JsonCodec.encode(dto), address, partition)
+  }
+
+}
+
+/**
+ * <p>
+ * Binds the internal partitions of a partitioned queue.  Partitions are
+ * not registered in the queue domain, they get attached to the queue that
+ * they partition instead.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueuePartitionBinding(val binding_data:Buffer, val address:DestinationAddress, val partition:Int) extends Binding {
+
+  import QueuePartitionBinding._
+  def dto_class = classOf[QueuePartitionDestinationDTO]
+  def binding_kind = PARTITION_KIND
+
+  def unbind(node: LocalRouter, queue: Queue) = {
+    node.local_queue_domain.unbind_partition(queue, partition)
+  }
+
+  def bind(node: LocalRouter, queue: Queue) = {
+    node.local_queue_domain.bind_partition(queue, partition)
+  }
+
+  override def hashCode = binding_kind.hashCode ^ binding_data.hashCode
+
+  override def equals(o:Any):Boolean = o match {
+    case x: QueuePartitionBinding => x.binding_data == binding_data
+    case _ => false
+  }
+
+  def config(host:VirtualHost):QueueDTO = QueueDomainQueueBinding.queue_config(host, address.path)
+
+  override def toString = address.toString+"#"+partition
+}
+
 
 object DurableSubscriptionQueueBinding extends BindingFactory {
 
@@ -165,6 +165,7 @@ class BrokerConnection(var connector: Connector, val id:Long) extends Connection
     result.remote_address = Option(transport.getRemoteAddress).map(_.toString).getOrElse(null)
     result.local_address = Option(transport.getLocalAddress).map(_.toString).getOrElse(null)
     result.protocol_session_id = protocol_handler.session_id
+    result.dispatch_thread = Option(dispatch_queue.getTargetQueue).map(_.getLabel).getOrElse(null)
     val wf = transport.getProtocolCodec
     if( wf!=null ) {
       result.write_counter = wf.getWriteCounter
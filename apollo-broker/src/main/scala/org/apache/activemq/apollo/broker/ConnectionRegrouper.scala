@@ -0,0 +1,280 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util._
+import collection.mutable.{HashMap, ListBuffer}
+
+object ConnectionRegrouper extends Log {
+
+  /** flows slower than this many bytes per second are ignored */
+  val MIN_FLOW_RATE = 1024L
+
+  /** how much cheaper a new placement has to be before it's applied */
+  val HYSTERESIS = 0.25
+
+  /** how long a dispatch queue stays on a thread after it gets moved */
+  val MIN_DWELL = 10*1000L
+
+  case class Flow(from:DispatchQueue, to:DispatchQueue, rate:Long)
+
+  /**
+   * Works out where the dispatch queues the flows connect should go.  The
+   * current map gives the thread each dispatch queue is on, -1 if it is not
+   * on one of the threads.  Returns the groups of dispatch queues with the
+   * thread each group should move to, or None if the new placement is not
+   * enough of an improvement over the current one.
+   */
+  def plan(flows:List[Flow], current:collection.Map[DispatchQueue, Int], thread_count:Int):Option[List[(Seq[DispatchQueue], Int)]] = {
+    if( flows.isEmpty || thread_count < 2 ) {
+      return None
+    }
+
+    // Every flow costs work on both its ends.
+    val loads = HashMap[DispatchQueue, Long]()
+    for( flow <- flows ) {
+      loads.put(flow.from, loads.getOrElse(flow.from, 0L) + flow.rate)
+      loads.put(flow.to, loads.getOrElse(flow.to, 0L) + flow.rate)
+    }
+    val total = loads.values.sum
+    val fair = total / thread_count
+    val capacity = fair max loads.values.max
+
+    // Merge the heaviest flows into groups without letting a group grow
+    // past the fair share of a thread.
+    val vertices = loads.keys.toArray
+    val index = HashMap[DispatchQueue, Int]()
+    vertices.zipWithIndex.foreach(x=> index.put(x._1, x._2))
+    val parent = Array.tabulate(vertices.length)(i=>i)
+    val group_loads = vertices.map(loads(_))
+    def find(i:Int):Int = {
+      if( parent(i) != i ) {
+        parent(i) = find(parent(i))
+      }
+      parent(i)
+    }
+    for( flow <- flows.sortBy(- _.rate) ) {
+      val a = find(index(flow.from))
+      val b = find(index(flow.to))
+      if( a != b && group_loads(a) + group_loads(b) <= capacity ) {
+        parent(b) = a
+        group_loads(a) += group_loads(b)
+      }
+    }
+
+    // Spread the groups over the threads, largest first.
+    val groups = (0 until vertices.length).groupBy(find(_)).values.toList.sortBy(x=> -group_loads(find(x.head)))
+    val thread_loads = new Array[Long](thread_count)
+    val placement = HashMap[DispatchQueue, Int]()
+    val rc = ListBuffer[(Seq[DispatchQueue], Int)]()
+    for( group <- groups ) {
+      val load = group_loads(find(group.head))
+      val by_thread = new Array[Long](thread_count)
+      for( i <- group ) {
+        val t = current.getOrElse(vertices(i), -1)
+        if( t >= 0 ) {
+          by_thread(t) += loads(vertices(i))
+        }
+      }
+      val home = by_thread.indexOf(by_thread.max)
+      val least = thread_loads.indexOf(thread_loads.min)
+      val target = if( by_thread(home) > 0 && thread_loads(home) + load <= fair + (fair * HYSTERESIS).toLong ) {
+        home
+      } else {
+        least
+      }
+      thread_loads(target) += load
+      group.foreach(i=> placement.put(vertices(i), target))
+      rc += ((group.map(vertices(_)), target))
+    }
+
+    // Only move things around when it's worth it.
+    val current_placement = HashMap[DispatchQueue, Int]()
+    vertices.foreach(x=> current_placement.put(x, current.getOrElse(x, -1)))
+    val current_cost = cost(flows, current_placement, thread_count)
+    val proposed_cost = cost(flows, placement, thread_count)
+    if( proposed_cost < current_cost * (1 - HYSTERESIS) ) {
+      Some(rc.toList)
+    } else {
+      None
+    }
+  }
+
+  /**
+   * The rate of the flows which cross threads plus how far the busiest
+   * thread is over its fair share.
+   */
+  def cost(flows:List[Flow], placement:collection.Map[DispatchQueue, Int], thread_count:Int) = {
+    val thread_loads = new Array[Long](thread_count)
+    var cut = 0L
+    for( flow <- flows ) {
+      val from = placement(flow.from)
+      val to = placement(flow.to)
+      if( from < 0 || from != to ) {
+        cut += flow.rate
+      }
+      if( from >= 0 ) thread_loads(from) += flow.rate
+      if( to >= 0 ) thread_loads(to) += flow.rate
+    }
+    cut + (thread_loads.max - thread_loads.sum / thread_count)
+  }
+
+  /**
+   * Picks the moves of a plan which can be applied now.  A group moves as
+   * a whole or not at all, so it is skipped while any of its dispatch
+   * queues that would move was moved less than MIN_DWELL ago.
+   */
+  def moves(plan:List[(Seq[DispatchQueue], Int)], current:collection.Map[DispatchQueue, Int], moved_at:collection.Map[DispatchQueue, Long], now:Long) = {
+    val rc = ListBuffer[(DispatchQueue, Int)]()
+    for( (group, target) <- plan ) {
+      val moving = group.filter(x=> current.getOrElse(x, -1) != target)
+      if( !moving.exists(x=> moved_at.get(x).exists(now - _ < MIN_DWELL)) ) {
+        moving.foreach(x=> rc += ((x, target)))
+      }
+    }
+    rc.toList
+  }
+}
+import ConnectionRegrouper._
+
+/**
+ * <p>
+ * Places the dispatch queues of the connections and queues of a virtual host
+ * onto the dispatch threads based on the rate messages flow between them.
+ * </p>
+ *
+ * <p>
+ * Every sample builds a producer -> destination -> consumer flow graph from
+ * the enqueue counters of the delivery sessions.  The heaviest flows get
+ * merged into groups which are kept under the average thread load, and the
+ * groups are then spread over the threads, largest first.  Groups stay
+ * on the thread most of their load is already on when that thread is not
+ * overloaded.  The new placement is only applied when it is a good deal
+ * cheaper than the current one, and recently moved dispatch queues are
+ * left alone, so that connections don't bounce between threads.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ConnectionRegrouper(val router:LocalRouter) {
+
+  def dispatch_queue = router.dispatch_queue
+
+  /** the enqueue size counter of each session the last time it was sampled */
+  var last_counters = HashMap[AnyRef, Long]()
+  var last_sample_at = 0L
+
+  /** when dispatch queues were last moved */
+  var moved_at = HashMap[DispatchQueue, Long]()
+
+  var sampling = false
+
+  def regroup:Unit = {
+    dispatch_queue.assertExecuting()
+    if( !sampling ) {
+      sampling = true
+      sample { samples =>
+        sampling = false
+        place(rates(samples))
+      }
+    }
+  }
+
+  /**
+   * Collects (session, from, to, enqueue size counter) samples.  Topics are
+   * sampled on the router's thread, queues on their own threads.
+   */
+  def sample(on_complete:(Seq[(AnyRef, DispatchQueue, DispatchQueue, Long)])=>Unit) = {
+    val samples = ListBuffer[(AnyRef, DispatchQueue, DispatchQueue, Long)]()
+
+    for( topic <- router.local_topic_domain.destinations; session <- topic.proxy_sessions ) {
+      session match {
+        case session:topic.ProxyConsumerSession =>
+          samples += ((session, session.producer.dispatch_queue, session.consumer.dispatch_queue, session.enqueue_size_counter))
+        case _ =>
+      }
+    }
+
+    val queues = router.local_queue_domain.destinations.toList :::
+      router.local_queue_domain.partitions.values.flatMap(_.values).toList
+
+    var remaining = queues.size
+    if( remaining == 0 ) {
+      on_complete(samples)
+    }
+    queues.foreach { queue =>
+      queue.dispatch_queue {
+        val rc = ListBuffer[(AnyRef, DispatchQueue, DispatchQueue, Long)]()
+        for( session <- queue.inbound_sessions ) {
+          rc += ((session, session.producer.dispatch_queue, queue.dispatch_queue, session.enqueue_size_counter))
+        }
+        for( (consumer, sub) <- queue.all_subscriptions if sub.session!=null ) {
+          rc += ((sub.session, queue.dispatch_queue, consumer.dispatch_queue, sub.session.enqueue_size_counter))
+        }
+        dispatch_queue {
+          samples ++= rc
+          remaining -= 1
+          if( remaining == 0 ) {
+            on_complete(samples)
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Converts the counter samples to the flow rates since the last sample.
+   */
+  def rates(samples:Seq[(AnyRef, DispatchQueue, DispatchQueue, Long)]) = {
+    val now = Broker.now
+    val elapsed = now - last_sample_at
+    val counters = HashMap[AnyRef, Long]()
+    val flows = ListBuffer[Flow]()
+    for( (session, from, to, counter) <- samples ) {
+      counters.put(session, counter)
+      for( last <- last_counters.get(session) if elapsed > 0 ) {
+        val rate = (counter - last) * 1000 / elapsed
+        if( rate >= MIN_FLOW_RATE && from!=null && to!=null && (from ne to) &&
+            (from ne dispatch_queue) && (to ne dispatch_queue) ) {
+          flows += Flow(from, to, rate)
+        }
+      }
+    }
+    last_counters = counters
+    last_sample_at = now
+    flows.toList
+  }
+
+  def place(flows:List[Flow]):Unit = {
+    val threads = Dispatch.getThreadQueues(DispatchPriority.DEFAULT)
+    val current = HashMap[DispatchQueue, Int]()
+    for( flow <- flows; queue <- List(flow.from, flow.to) ) {
+      current.put(queue, threads.indexWhere(_ eq queue.getTargetQueue))
+    }
+    for( groups <- plan(flows, current, threads.length) ) {
+      val now = Broker.now
+      moved_at = moved_at.filter(x=> current.contains(x._1) && now - x._2 < MIN_DWELL)
+      for( (queue, target) <- moves(groups, current, moved_at, now) ) {
+        debug("moving %s to %s", queue.getLabel, threads(target).getLabel)
+        queue.setTargetQueue(threads(target))
+        moved_at.put(queue, now)
+      }
+    }
+  }
+
+}
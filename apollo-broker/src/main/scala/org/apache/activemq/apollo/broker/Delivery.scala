@@ -142,6 +142,18 @@ trait Message extends Filterable with Retained {
  */
 object Delivery extends Sizer[Delivery] {
   def size(value:Delivery):Int = value.size
+
+  /**
+   * The priority assigned to deliveries that don't specify one.
+   */
+  final val DEFAULT_PRIORITY:Byte = 4
+
+  /**
+   * Priorities are bounded to the JMS range of 0 to 9.
+   */
+  final val MAX_PRIORITY:Byte = 9
+
+  def priority(value:Int):Byte = value.max(0).min(MAX_PRIORITY).toByte
 }
 
 sealed trait DeliveryResult
@@ -197,11 +209,22 @@ class Delivery {
    */
   var expiration:Long = 0
 
+  /**
+   * When the message should be delivered to consumers or 0 if
+   * it can be delivered right away.
+   */
+  var deliver_at:Long = 0
+
   /**
    * Is the delivery persistent?
    */
   var persistent:Boolean = false
 
+  /**
+   * The priority of the delivery, from 0 (lowest) to 9 (highest).
+   */
+  var priority:Byte = Delivery.DEFAULT_PRIORITY
+
   /**
    *  the message being delivered
    */
@@ -252,6 +275,8 @@ class Delivery {
     size = other.size
     persistent = other.persistent
     expiration = other.expiration
+    deliver_at = other.deliver_at
+    priority = other.priority
     size = other.size
     seq = other.seq
     message = other.message
@@ -276,7 +301,9 @@ class Delivery {
       "size:"+size+", "+
       "message codec:"+message.codec.id+", "+
       "expiration:"+expiration+", "+
+      "deliver_at:"+deliver_at+", "+
       "persistent:"+persistent+", "+
+      "priority:"+priority+", "+
       "redeliveries:"+redeliveries+", "+
       "seq:"+seq+", "+
       "storeKey:"+storeKey+", "+
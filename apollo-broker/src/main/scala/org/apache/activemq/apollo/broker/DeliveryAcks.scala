@@ -0,0 +1,116 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.broker.store.StoreUOW
+import collection.mutable.{LinkedHashMap, ListBuffer}
+
+/**
+ * The ack callback of a delivery acquired from a queue.  It exposes the
+ * acquired entry so that acks can be batched up.
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueueAck(val queue:Queue, val entry:Subscription#AcquiredQueueEntry) extends ((DeliveryResult, StoreUOW)=>Unit) {
+  def apply(consumed:DeliveryResult, uow:StoreUOW):Unit = {
+    if( uow!=null ) {
+      uow.retain
+    }
+    queue.process_ack(entry, consumed, uow)
+  }
+}
+
+object DeliveryAcks {
+
+  /**
+   * Acks a set of deliveries with the same result.  The deliveries acquired
+   * from the same queue get processed by the queue in one pass and share a
+   * single store unit of work.
+   */
+  def ack_all(acks:Iterable[(DeliveryResult, StoreUOW)=>Unit], consumed:DeliveryResult, uow:StoreUOW):Unit = {
+    val batches = LinkedHashMap[Queue, ListBuffer[Subscription#AcquiredQueueEntry]]()
+    acks.foreach {
+      case null =>
+      case ack:QueueAck =>
+        batches.getOrElseUpdate(ack.queue, ListBuffer()) += ack.entry
+      case ack =>
+        ack(consumed, uow)
+    }
+    for( (queue, entries) <- batches ) {
+      if( uow!=null ) {
+        uow.retain
+      }
+      if( entries.size == 1 ) {
+        queue.process_ack(entries.head, consumed, uow)
+      } else {
+        queue.process_acks(entries, consumed, uow)
+      }
+    }
+  }
+}
+
+/**
+ * <p>
+ * Collects the acks performed on a dispatch queue and hands them to
+ * DeliveryAcks.ack_all once the dispatch queue is done with its current
+ * work.  Lets protocols which settle deliveries one at a time while
+ * processing a frame still ack them in batches.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class DeliveryAckBatcher(val dispatch_queue:DispatchQueue) {
+
+  val ack_source = createSource(new ListEventAggregator[((DeliveryResult, StoreUOW)=>Unit, DeliveryResult, StoreUOW)](), dispatch_queue)
+  ack_source.setEventHandler(^{ drain_acks });
+  ack_source.resume
+
+  def ack(ack:(DeliveryResult, StoreUOW)=>Unit, consumed:DeliveryResult, uow:StoreUOW):Unit = {
+    if( uow!=null ) {
+      uow.retain
+    }
+    ack_source.merge((ack, consumed, uow))
+  }
+
+  def drain_acks = {
+    val acks = ack_source.getData
+    // Consecutive acks with the same result and uow get batched together.
+    var batch = ListBuffer[(DeliveryResult, StoreUOW)=>Unit]()
+    var batch_consumed:DeliveryResult = null
+    var batch_uow:StoreUOW = null
+    def flush = if( !batch.isEmpty ) {
+      DeliveryAcks.ack_all(batch, batch_consumed, batch_uow)
+      batch = ListBuffer()
+    }
+    acks.foreach { case (ack, consumed, uow) =>
+      if( (consumed ne batch_consumed) || (uow ne batch_uow) ) {
+        flush
+        batch_consumed = consumed
+        batch_uow = uow
+      }
+      batch += ack
+    }
+    flush
+    acks.foreach { case (_, _, uow) =>
+      if( uow!=null ) {
+        uow.release
+      }
+    }
+  }
+
+}
@@ -43,6 +43,7 @@ object DestinationMetricsSupport {
     metrics.swapping_in_size = 0
     metrics.swapping_out_size = 0;
     metrics.swapping_out_size = 0;
+    metrics.priorities.clear()
   }
 
   def add_destination_metrics(to:DestMetricsDTO, from:DestMetricsDTO) = {
@@ -81,6 +82,18 @@ object DestinationMetricsSupport {
     to.swapped_in_items += from.swapped_in_items
     to.swapped_in_size += from.swapped_in_size
     to.swapped_in_size_max += from.swapped_in_size_max
+
+    import collection.JavaConversions._
+    for( from_priority <- from.priorities ) {
+      val to_priority = to.priorities.find(_.priority == from_priority.priority).getOrElse {
+        val rc = new PriorityMetricsDTO
+        rc.priority = from_priority.priority
+        to.priorities.add(rc)
+        rc
+      }
+      to_priority.queue_items += from_priority.queue_items
+      to_priority.queue_size += from_priority.queue_size
+    }
   }
 
 }
@@ -763,6 +776,61 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
       }
     }
 
+    // The internal partitions of the partitioned queues.
+    val partitions = HashMap[Path, HashMap[Int, Queue]]()
+
+    def bind_partition(queue:Queue, partition:Int) = {
+      val path = queue.address.path
+      partitions.getOrElseUpdate(path, HashMap[Int, Queue]()).put(partition, queue)
+      destination_by_id.get(queue.id).foreach { leader =>
+        if( leader.partitioner!=null ) {
+          leader.partitioner.add(partition, queue)
+        }
+      }
+    }
+
+    def unbind_partition(queue:Queue, partition:Int) = {
+      val path = queue.address.path
+      partitions.get(path).foreach { x =>
+        x.remove(partition)
+        if( x.isEmpty ) {
+          partitions.remove(path)
+        }
+      }
+      destination_by_id.get(queue.id).foreach { leader =>
+        if( leader.partitioner!=null && partition < leader.partitioner.partitions.length ) {
+          leader.partitioner.partitions(partition) = null
+        }
+      }
+    }
+
+    /**
+     * Gets the partitioner of a partitioned queue, creating the
+     * partitions that don't exist yet.  Returns null if the queue
+     * is not partitioned.
+     */
+    def partitioner(leader:Queue):QueuePartitioner = {
+      dispatch_queue.assertExecuting()
+      val path = leader.address.path
+      val existing = partitions.get(path).map(_.keySet.max + 1).getOrElse(1)
+      val count = leader.tune_partitions max existing
+      if( count > 1 && leader.partitioner==null ) {
+        leader.partitioner = new QueuePartitioner(leader)
+        partitions.get(path).foreach { x =>
+          x.foreach { case (partition, queue) => leader.partitioner.add(partition, queue) }
+        }
+        leader.partitioner.schedule_refresh
+      }
+      if( leader.partitioner!=null ) {
+        for( partition <- 1 until count ) {
+          if( partition >= leader.partitioner.partitions.length || leader.partitioner.partitions(partition)==null ) {
+            _create_queue(QueuePartitionBinding(leader.address, partition))
+          }
+        }
+      }
+      leader.partitioner
+    }
+
     def unbind(queue:Queue) = {
       val path = queue.address.path
       remove_destination(path, queue)
@@ -971,44 +1039,9 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
     }
   }
 
-  def connection_regroup = {
-    // this should really be much more fancy.  It should look at the messaging
-    // rates between producers and consumers, look for natural data flow partitions
-    // and then try to equally divide the load over the available processing
-    // threads/cores.
-
-
-
-    // For the topics, just collocate the producers onto the first consumer's thread.
-    local_topic_domain.destinations.foreach { node =>
-
-      node.consumers.keys.headOption.foreach{ consumer =>
-        node.producers.keys.foreach { r=>
-          r.collocate(consumer.dispatch_queue)
-        }
-      }
-    }
-
-
-    local_queue_domain.destinations.foreach { queue=>
-      queue.dispatch_queue {
-
-        // Collocate the queue's with the first consumer
-        // TODO: change this so it collocates with the fastest consumer.
-
-        queue.all_subscriptions.headOption.map( _._1 ).foreach { consumer=>
-          queue.collocate( consumer.dispatch_queue )
-        }
-
-        // Collocate all the producers with the queue..
+  val connection_regrouper = new ConnectionRegrouper(this)
 
-        queue.inbound_sessions.foreach { session =>
-          session.producer.collocate( queue.dispatch_queue )
-        }
-      }
-
-    }
-  }
+  def connection_regroup = connection_regrouper.regroup
 
   /////////////////////////////////////////////////////////////////////////////
   //
@@ -1336,6 +1369,13 @@ class LocalRouter(val virtual_host:VirtualHost) extends BaseService with Router
 
   def _destroy_queue(queue: Queue) {
     assert(service_state.is_starting_or_started, "Can't destroy.. allready stopped")
+    if( queue.binding.isInstanceOf[QueueDomainQueueBinding] ) {
+      // The partitions go away with the queue they partition.
+      queue.partitioner = null
+      for( partitions <- local_queue_domain.partitions.get(queue.address.path); partition <- partitions.values.toList ) {
+        _destroy_queue(partition)
+      }
+    }
     on_queue_destroy_start
     queue.stop(^{
       var metrics = queue.get_queue_metrics
@@ -36,6 +36,13 @@ import org.apache.activemq.apollo.broker.{DeliveryResult, Subscription}
 object Queue extends Log {
   val subscription_counter = new AtomicInteger(0)
 
+  val PRIORITY_LANES = Delivery.MAX_PRIORITY + 1
+  // The slot of lane_subscriptions for the subscriptions waiting at the tail.
+  val TAIL_LANE = PRIORITY_LANES
+
+  // The most message groups listed in the consumer links of the queue status.
+  val MESSAGE_GROUP_SAMPLE = 1000
+
   class MemorySpace {
     var items = 0
     var size = 0
@@ -72,6 +79,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   val resource_kind = binding match {
     case x:DurableSubscriptionQueueBinding=> DurableSubKind
     case x:QueueDomainQueueBinding=> QueueKind
+    case x:QueuePartitionBinding=> QueueKind
     case x:TempQueueBinding => TopicQueueKind
     case _ => OtherKind
   }
@@ -80,6 +88,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var inbound_sessions = Set[DeliverySession]()
   var all_subscriptions = Map[DeliveryConsumer, Subscription]()
   var exclusive_subscriptions = ListBuffer[Subscription]()
+  val selector_index = new SelectorIndex
 
   var _message_group_buckets: HashRing[GroupBucket, String] = _
 
@@ -89,8 +98,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     if( _message_group_buckets == null )  {
       _message_group_buckets = new HashRing[GroupBucket, String]()
       // Create a bucket for each subscription
-      for( sub <- all_subscriptions.values if !sub.browser) {
-        _message_group_buckets.add(GroupBucket(sub), 10)
+      for( sub <- all_subscriptions.values if sub.owns_message_groups) {
+        _message_group_buckets.add(GroupBucket(sub), sub.message_group_weight)
       }
     }
     _message_group_buckets
@@ -116,6 +125,352 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   var tail_entry = new QueueEntry(this, next_message_seq)
   entries.addFirst(head_entry)
 
+  //
+  // The entries list is split into priority lanes.  Each lane is a
+  // contiguous run of entries with the same priority and the lanes are
+  // ordered from the highest priority to the lowest, so subscriptions
+  // walking the list always reach the higher priority entries first.
+  // Within a lane, entries stay in sequence order so swapping and
+  // range combining work as usual.
+  //
+
+  // The last entry in each lane, or null if the lane is empty.
+  val lane_tails = new Array[QueueEntry](PRIORITY_LANES)
+  val lane_items = new Array[Long](PRIORITY_LANES)
+  val lane_size = new Array[Long](PRIORITY_LANES)
+  // The subscriptions positioned in each lane, and at the tail.
+  val lane_subscriptions = Array.fill(PRIORITY_LANES + 1)(new java.util.HashSet[Subscription]())
+
+  /**
+   * Returns the entry after which a new entry in the priority lane should
+   * get linked, or null if it can be appended to the end of the entries list.
+   */
+  def lane_insertion_point(priority:Int):QueueEntry = {
+    var lower = priority - 1
+    while( lower >= 0 && lane_tails(lower)==null ) {
+      lower -= 1
+    }
+    if( lower < 0 ) {
+      // Nothing with a lower priority is queued.
+      null
+    } else {
+      var lane = priority
+      while( lane < PRIORITY_LANES && lane_tails(lane)==null ) {
+        lane += 1
+      }
+      if( lane < PRIORITY_LANES ) {
+        lane_tails(lane)
+      } else {
+        head_entry
+      }
+    }
+  }
+
+  def link_entry(entry:QueueEntry, insertion_point:QueueEntry) = {
+    if( insertion_point == null ) {
+      entries.addLast(entry)
+    } else {
+      insertion_point.linkAfter(entry)
+    }
+    lane_tails(entry.priority) = entry
+    lane_items(entry.priority) += entry.count
+    lane_size(entry.priority) += entry.size
+    schedule(entry)
+    index_expiration(entry)
+  }
+
+  /**
+   * Must be called before an entry is unlinked from the entries list.
+   */
+  def lane_unlinking(entry:QueueEntry, replacement:QueueEntry) = {
+    if( lane_tails(entry.priority) eq entry ) {
+      lane_tails(entry.priority) = if( replacement!=null ) {
+        replacement
+      } else {
+        val prev = entry.getPrevious
+        if( prev!=null && !prev.is_head && prev.priority == entry.priority ) {
+          prev
+        } else {
+          null
+        }
+      }
+    }
+  }
+
+  /**
+   * Called when an entry got linked in ahead of lower priority entries.
+   * Subscriptions which had moved past it are rewound so it gets
+   * dispatched before the lower priority entries.
+   */
+  def rewind_to_priority_entry(entry:QueueEntry) = {
+    // The tail's seq was allocated before the entry's seq.  Replace the
+    // tail so that sequences keep increasing within each lane.
+    val prev_tail = tail_entry
+    tail_entry = new QueueEntry(Queue.this, next_message_seq)
+    // Only the subscriptions in the lower lanes or at the tail can be past it.
+    val passed = ListBuffer[Subscription]()
+    for( lane <- (0 until entry.priority) :+ TAIL_LANE ) {
+      val i = lane_subscriptions(lane).iterator
+      while( i.hasNext ) {
+        passed += i.next
+      }
+    }
+    passed.foreach { sub =>
+      if( sub.pos!=null ) {
+        if( !sub.browser && entry.precedes(sub.pos) ) {
+          sub.rewind(entry)
+        } else if( sub.pos eq prev_tail ) {
+          // Browsers don't go back, they just wait at the new tail.
+          prev_tail -= sub
+          tail_entry ::= sub
+          sub.advance(tail_entry)
+        }
+      }
+    }
+  }
+
+  //
+  // Entries with a deliver_at time in the future stay in the entries
+  // list so they swap out and get stored like any other entry, but they
+  // are hidden from the subscriptions until their timer fires.  Swapped
+  // ranges of scheduled entries only need a single timer for the
+  // earliest entry in the range.
+  //
+  val scheduled_entries = new EntryTimers {
+    protected def slot(entry:QueueEntry) = entry.schedule_slot
+    protected def slot(entry:QueueEntry, value:Int) = entry.schedule_slot = value
+    protected def execute(entry:QueueEntry) = {
+      if( entry.isLinked ) {
+        // Subscriptions that skipped over the entry need to come back for it.
+        all_subscriptions.valuesIterator.foreach { sub =>
+          if( !sub.browser && sub.pos!=null && entry.precedes(sub.pos) ) {
+            sub.rewind(entry)
+          }
+        }
+        dispatch_queue << entry.task
+      }
+    }
+  }
+
+  /**
+   * Hides the entry from the subscriptions if it's not due for delivery yet.
+   */
+  def schedule(entry:QueueEntry):Unit = {
+    if( !entry.scheduled && entry.deliver_at!=0 && entry.deliver_at > now ) {
+      scheduled_entries.add(entry, entry.deliver_at)
+      scheduled_entries.arm
+    }
+  }
+
+  def unschedule(entry:QueueEntry):Unit = {
+    scheduled_entries.remove(entry)
+  }
+
+  /**
+   * Moves the timer of a scheduled entry whose deliver_at time changed.
+   */
+  def reschedule(entry:QueueEntry):Unit = {
+    if( entry.scheduled ) {
+      scheduled_entries.remove(entry)
+      scheduled_entries.add(entry, entry.deliver_at)
+      scheduled_entries.arm
+    }
+  }
+
+  //
+  // Entries that can expire are indexed by their expiration time so
+  // that expiring them only costs as much as the number of expired
+  // entries.  A swapped range is indexed by its earliest expiration.
+  // Acquired entries leave the index when they expire and only get
+  // indexed again if the subscription gives them back.
+  //
+  val expiration_index = new EntryTimers {
+    protected def slot(entry:QueueEntry) = entry.expiration_slot
+    protected def slot(entry:QueueEntry, value:Int) = entry.expiration_slot = value
+    protected def execute(entry:QueueEntry) = {
+      if( entry.isLinked ) {
+        expire(entry)
+      }
+    }
+  }
+
+  def index_expiration(entry:QueueEntry):Unit = {
+    if( !entry.expiration_indexed && entry.expiration != 0 ) {
+      expiration_index.add(entry, entry.expiration)
+      expiration_index.arm
+    }
+  }
+
+  def unindex_expiration(entry:QueueEntry):Unit = {
+    expiration_index.remove(entry)
+  }
+
+  /**
+   * Moves the index entry of an entry whose expiration changed.
+   */
+  def reindex_expiration(entry:QueueEntry):Unit = {
+    unindex_expiration(entry)
+    index_expiration(entry)
+  }
+
+  def expire(entry:QueueEntry):Unit = {
+    entry.state match {
+      case state:QueueEntry#SwappedRange =>
+        state.expire
+      case state if state.is_acquired =>
+        // Subscription.AcquiredQueueEntry.nack indexes it again.
+      case state:QueueEntry#Swapped =>
+        expire_entry(entry)
+      case state:QueueEntry#Loaded =>
+        expire_entry(entry)
+      case _ =>
+    }
+  }
+
+  def expire_entry(entry:QueueEntry) = {
+    val uow = create_uow
+    entry.dequeue(uow)
+    expired(uow, entry) {
+      if( entry.isLinked ) {
+        entry.remove
+      }
+    }
+    if( uow!=null ) {
+      uow.release
+    }
+  }
+
+  /**
+   * The entries waiting on a timer, kept in a binary heap ordered by when
+   * they are due.  Each entry remembers its slot in the heap, so removing
+   * it does not need a search and adding it does not allocate anything.
+   * Fires the timers on the queue's dispatch queue.
+   */
+  abstract class EntryTimers {
+
+    private var entries = new Array[QueueEntry](16)
+    private var dues = new Array[Long](16)
+    var size = 0
+
+    // When the outstanding timer is due.
+    var due = Long.MaxValue
+
+    /** the slot of the entry in the heap, -1 if it's not in the heap */
+    protected def slot(entry:QueueEntry):Int
+    protected def slot(entry:QueueEntry, value:Int):Unit
+    protected def execute(entry:QueueEntry):Unit
+
+    /**
+     * Adds an entry which is due at the given time in milliseconds.
+     */
+    def add(entry:QueueEntry, at:Long):Unit = {
+      assert(slot(entry) < 0)
+      if( size == entries.length ) {
+        resize(size * 2)
+      }
+      place(size, entry, at)
+      size += 1
+      sift_up(size - 1)
+    }
+
+    def remove(entry:QueueEntry):Unit = {
+      val i = slot(entry)
+      if( i >= 0 ) {
+        slot(entry, -1)
+        size -= 1
+        if( i != size ) {
+          place(i, entries(size), dues(size))
+          sift_down(i)
+          sift_up(i)
+        }
+        entries(size) = null
+        if( entries.length > 16 && size < entries.length / 4 ) {
+          resize(entries.length / 2)
+        }
+      }
+    }
+
+    private def resize(capacity:Int) = {
+      val new_entries = new Array[QueueEntry](capacity)
+      val new_dues = new Array[Long](capacity)
+      System.arraycopy(entries, 0, new_entries, 0, size)
+      System.arraycopy(dues, 0, new_dues, 0, size)
+      entries = new_entries
+      dues = new_dues
+    }
+
+    private def place(i:Int, entry:QueueEntry, at:Long) = {
+      entries(i) = entry
+      dues(i) = at
+      slot(entry, i)
+    }
+
+    private def swap(a:Int, b:Int) = {
+      val entry = entries(a)
+      val at = dues(a)
+      place(a, entries(b), dues(b))
+      place(b, entry, at)
+    }
+
+    private def sift_up(start:Int) = {
+      var i = start
+      while( i > 0 && dues((i - 1) / 2) > dues(i) ) {
+        swap(i, (i - 1) / 2)
+        i = (i - 1) / 2
+      }
+    }
+
+    private def sift_down(start:Int) = {
+      var i = start
+      var done = false
+      while( !done ) {
+        val left = 2 * i + 1
+        var smallest = i
+        if( left < size && dues(left) < dues(smallest) ) {
+          smallest = left
+        }
+        if( left + 1 < size && dues(left + 1) < dues(smallest) ) {
+          smallest = left + 1
+        }
+        if( smallest == i ) {
+          done = true
+        } else {
+          swap(i, smallest)
+          i = smallest
+        }
+      }
+    }
+
+    /**
+     * Executes the entries which are due.
+     */
+    def fire:Unit = {
+      val now = System.currentTimeMillis
+      while( size > 0 && dues(0) <= now ) {
+        val entry = entries(0)
+        remove(entry)
+        execute(entry)
+      }
+    }
+
+    def arm:Unit = {
+      if( size > 0 ) {
+        val at = dues(0)
+        // Only keep one timer outstanding for the earliest entry.
+        if( at < due ) {
+          due = at
+          dispatch_queue.after((at - System.currentTimeMillis).max(0), TimeUnit.MILLISECONDS) {
+            if( due == at ) {
+              due = Long.MaxValue
+            }
+            fire
+            arm
+          }
+        }
+      }
+    }
+  }
+
   //
   // Frequently accessed tuning configuration.
   //
@@ -144,6 +499,25 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
    */
   var tune_swap_range_size = 0
 
+  /**
+   * Should swapped ranges keep the metadata of their entries
+   * so that they can be loaded without querying the store?
+   */
+  var tune_compact_swap = false
+
+  /**
+   * The number of partitions the queue is spread across.
+   */
+  var tune_partitions = 1
+
+  /**
+   * Spreads producers and consumers across the partitions when
+   * the queue is partitioned.  Only accessed from the router's thread
+   * except for reading metrics.
+   */
+  @volatile
+  var partitioner:QueuePartitioner = null
+
   /**
    *  The max memory to allow this queue to grow to.
    */
@@ -210,6 +584,23 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   var individual_swapped_items = 0
 
+  //
+  // The swap policy only looks at the entries tracked here instead of
+  // walking the whole entries list, so its cost depends on how much is
+  // loaded and prefetched and not on the depth of the queue.  The sets
+  // are kept in dispatch order as the entries change state so a swap
+  // pass does not have to sort them.
+  //
+
+  // The entries in the Loaded state.
+  val loaded_entries = new java.util.TreeSet[QueueEntry](QueueEntry.dispatch_order)
+  // The entries individually in the Swapped state.
+  val swapped_entries = new java.util.TreeSet[QueueEntry](QueueEntry.dispatch_order)
+  // The entries subscriptions flagged as prefetched since the last swap.
+  val prefetched_entries = ListBuffer[QueueEntry]()
+  // How many entries the swap passes visited.
+  var swap_visits = 0L
+
   var swap_triggered = false
   def trigger_swap = {
     dispatch_queue.assertExecuting()
@@ -238,6 +629,12 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   def dlq_expired = OptionSupport(config.dlq_expired).getOrElse(false)
 
   def message_group_graceful_handoff = OptionSupport(config.message_group_graceful_handoff).getOrElse(true)
+  def message_group_rebalance = OptionSupport(config.message_group_rebalance).getOrElse(false)
+
+  /** how many message group buckets have been moved between subscriptions */
+  var message_group_moves = 0L
+  /** message group handoffs waiting for the previous owner to drain */
+  var message_group_handoffs = 0
 
   def configure(update:QueueSettingsDTO) = {
     def mem_size(value:String, default:String) = MemoryPropertyEditor.parse(Option(value).getOrElse(default)).toInt
@@ -254,6 +651,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     tune_round_robin = update.round_robin.getOrElse(true)
     tune_swap = tune_persistent && update.swap.getOrElse(true)
     tune_swap_range_size = update.swap_range_size.getOrElse(10000)
+    tune_compact_swap = update.compact_swap.getOrElse(false)
     tune_fast_delivery_rate = mem_size(update.fast_delivery_rate,"512k")
     tune_catchup_enqueue_rate = mem_size(update.catchup_enqueue_rate,"-1")
     tune_max_enqueue_rate = mem_size(update.max_enqueue_rate,"-1")
@@ -269,6 +667,13 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         Block
     }
 
+    // Only plain queues can be partitioned.
+    tune_partitions = update match {
+      case update:QueueDTO if update.mirrored.getOrElse(false) => 1
+      case _ if !binding.isInstanceOf[QueueDomainQueueBinding] => 1
+      case _ => update.partitions.getOrElse(1).intValue.max(1)
+    }
+
     update match {
       case update:QueueDTO =>
         auto_delete_after = update.auto_delete_after.getOrElse(30)
@@ -293,71 +698,98 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   def get_queue_metrics:DestMetricsDTO = {
     dispatch_queue.assertExecuting()
-    val rc = new DestMetricsDTO
+    val rc = partition_metrics
+
+    rc.producer_counter = this.producer_counter
+    rc.consumer_counter = this.consumer_counter
 
+    rc.producer_count = this.inbound_sessions.size
+    rc.consumer_count = this.all_subscriptions.size
+
+    val partitioner = this.partitioner
+    if( partitioner!=null ) {
+      // Show the partitions as one queue.  The partitioner refreshes the
+      // totals of the other partitions every second.
+      val totals = partitioner.partition_totals
+      if( totals!=null ) {
+        DestinationMetricsSupport.add_destination_metrics(rc, totals)
+      }
+      rc.consumer_count = partitioner.consumer_count
+    }
+    rc
+  }
+
+  /**
+   * The metrics that don't depend on the producers and consumers of the queue.
+   * The partitioner of a partitioned queue collects these from each partition.
+   */
+  def partition_metrics = {
+    val rc = new DestMetricsDTO
     rc.enqueue_item_counter = this.enqueue_item_counter
     rc.enqueue_size_counter = this.enqueue_size_counter
     rc.enqueue_ts = this.enqueue_ts
-
     rc.dequeue_item_counter = this.dequeue_item_counter
     rc.dequeue_size_counter = this.dequeue_size_counter
     rc.dequeue_ts = this.dequeue_ts
-
     rc.nack_item_counter = this.nack_item_counter
     rc.nack_size_counter = this.nack_size_counter
     rc.nack_ts = this.nack_ts
-
     rc.expired_item_counter = this.expired_item_counter
     rc.expired_size_counter = this.expired_size_counter
     rc.expired_ts = this.expired_ts
-
     rc.queue_size = this.queue_size
     rc.queue_items = this.queue_items
-
     rc.swap_out_item_counter = this.swap_out_item_counter
     rc.swap_out_size_counter = this.swap_out_size_counter
     rc.swap_in_item_counter = this.swap_in_item_counter
     rc.swap_in_size_counter = this.swap_in_size_counter
-
     rc.swapping_in_size = this.swapping_in_size
     rc.swapping_out_size = this.swapping_out_size
-
     rc.swapped_in_items = this.loaded_items
     rc.swapped_in_size = this.loaded_size
     rc.swapped_in_size_max = swapped_in_size_max
 
-    rc.producer_counter = this.producer_counter
-    rc.consumer_counter = this.consumer_counter
-
-    rc.producer_count = this.inbound_sessions.size
-    rc.consumer_count = this.all_subscriptions.size
+    var lane = PRIORITY_LANES-1
+    while( lane >= 0 ) {
+      if( lane_items(lane) > 0 ) {
+        val priority = new PriorityMetricsDTO
+        priority.priority = lane
+        priority.queue_items = lane_items(lane)
+        priority.queue_size = lane_size(lane)
+        rc.priorities.add(priority)
+      }
+      lane -= 1
+    }
     rc
   }
 
   def browse(from_seq:Long, to:Option[Long], max:Long)(func: (BrowseResult)=>Unit):Unit = {
     var result = ListBuffer[(EntryStatusDTO, Delivery)]()
-    def load_from(start:Long):Unit = {
+    def load_from(skip:(QueueEntry)=>Boolean):Unit = {
       assert_executing
       var cur = head_entry.getNext
       while(true) {
-        if( cur == null || result.size >= max || ( to.isDefined && cur.seq > to.get) ) {
+        if( cur == null || result.size >= max ) {
           func(BrowseResult(head_entry.seq, head_entry.getPreviousCircular.seq, enqueue_item_counter, result.toArray))
           return
         }
         val next = cur.getNext
-        if ( cur.seq >= start ) {
+        // seqs are only ordered within a priority lane, so keep scanning past the 'to' seq.
+        if ( !skip(cur) && (!to.isDefined || cur.seq <= to.get) ) {
+          val priority = cur.priority
+          val seq = cur.seq
           cur.state match {
             case state:QueueEntry#Loaded =>
               result.append((create_entry_status(cur), state.delivery))
             case state:QueueEntry#Swapped =>
               state.swapped_in_watchers ::=(()=>{
-                load_from(cur.seq) // resume loading
+                load_from(_.precedes(priority, seq)) // resume loading
               })
               cur.load(consumer_swapped_in)
               return
             case state:QueueEntry#SwappedRange =>
               state.swapped_in_watchers ::=(()=>{
-                load_from(cur.seq)
+                load_from(_.precedes(priority, seq))
               })
               cur.load(consumer_swapped_in)
               return
@@ -366,7 +798,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         cur = next
       }
     }
-    load_from(from_seq)
+    load_from(_.seq < from_seq)
   }
 
   def status(entries:Boolean=false, include_producers:Boolean=false, include_consumers:Boolean=false) = {
@@ -386,6 +818,8 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
     rc.metrics = this.get_queue_metrics
     rc.metrics.current_time = now
+    rc.dispatch_thread = Option(dispatch_queue.getTargetQueue).map(_.getLabel).getOrElse(null)
+    rc.message_group_moves = message_group_moves
 
     if( entries ) {
       var cur = this.head_entry
@@ -423,8 +857,11 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
 
     if( include_consumers ) {
+      val groups = message_group_assignments
       for( sub <- this.all_subscriptions.values ) {
-        rc.consumers.add(sub.create_link_dto())
+        val link = sub.create_link_dto()
+        groups.get(sub).foreach(x=> link.message_groups = new java.util.ArrayList[String](x))
+        rc.consumers.add(link)
       }
     } else {
       rc.consumers = null
@@ -433,9 +870,39 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
   }
 
 
+  /**
+   * Maps a sample of the message groups to the subscriptions their buckets
+   * are assigned to.  The sample is the first MESSAGE_GROUP_SAMPLE distinct
+   * groups of the loaded entries in dispatch order, so it shows where the
+   * messages about to be dispatched go.  Groups of swapped out messages and
+   * groups past the sample are not listed.
+   */
+  def message_group_assignments = {
+    val rc = collection.mutable.HashMap[Subscription, java.util.ArrayList[String]]()
+    val ring = _message_group_buckets
+    if( ring!=null ) {
+      val seen = collection.mutable.HashSet[String]()
+      val loaded_iterator = loaded_entries.iterator
+      while( loaded_iterator.hasNext && seen.size < MESSAGE_GROUP_SAMPLE ) {
+        val loaded = loaded_iterator.next.as_loaded
+        if( loaded!=null && loaded.delivery.message!=null ) {
+          val group = loaded.delivery.message.message_group
+          if( group!=null && seen.add(group) ) {
+            val bucket = ring.get(group)
+            if( bucket!=null ) {
+              rc.getOrElseUpdate(bucket.sub, new java.util.ArrayList[String]()).add(group)
+            }
+          }
+        }
+      }
+    }
+    rc
+  }
+
   def create_entry_status(cur: QueueEntry): EntryStatusDTO = {
     val rc = new EntryStatusDTO
     rc.seq = cur.seq
+    rc.priority = cur.priority
     rc.count = cur.count
     rc.size = cur.size
     rc.consumer_count = cur.parked.size
@@ -461,8 +928,13 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
   }
 
+  def partitions_idle = {
+    val partitioner = this.partitioner
+    partitioner==null || (partitioner.consumer_count==0 && (partitioner.partition_totals==null || partitioner.partition_totals.queue_items==0))
+  }
+
   def check_idle {
-    if (inbound_sessions.isEmpty && all_subscriptions.isEmpty && queue_items==0 ) {
+    if (inbound_sessions.isEmpty && all_subscriptions.isEmpty && queue_items==0 && partitions_idle ) {
       if (idled_at==0 && auto_delete_after!=0) {
         idled_at = now
         val idled_at_start = idled_at
@@ -492,7 +964,7 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
             ranges.foreach {
               range =>
                 val entry = new QueueEntry(Queue.this, range.first_entry_seq).init(range)
-                entries.addLast(entry)
+                link_entry(entry, lane_insertion_point(entry.priority))
 
                 message_seq_counter = range.last_entry_seq + 1
                 enqueue_item_counter += range.count
@@ -698,13 +1170,25 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           return true
         }
 
-        val entry = tail_entry
-        tail_entry = new QueueEntry(Queue.this, next_message_seq)
+        val insertion_point = lane_insertion_point(delivery.priority)
+        val entry = if( insertion_point == null ) {
+          val entry = tail_entry
+          tail_entry = new QueueEntry(Queue.this, next_message_seq)
+          entry
+        } else {
+          new QueueEntry(Queue.this, next_message_seq)
+        }
         val queue_delivery = delivery.copy
         queue_delivery.seq = entry.seq
         entry.init(queue_delivery)
         
-        entries.addLast(entry)
+        link_entry(entry, insertion_point)
+        if( insertion_point != null ) {
+          rewind_to_priority_entry(entry)
+        } else {
+          // The subscriptions at the old tail are now in the entry's lane.
+          entry.parked.foreach(_.update_lane)
+        }
         enqueue_item_counter += 1
         enqueue_size_counter += entry.size
         enqueue_ts = now;
@@ -834,62 +1318,16 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     if( !service_state.is_started )
       return
 
-    var cur = entries.getHead
-    while( cur!=null ) {
-
-      // reset the prefetch flags and handle expiration...
-      cur.prefetched = false
-      val next = cur.getNext
-
-      // handle expiration...
-      if( !cur.expiring && cur.expiration != 0 && cur.expiration <= now ) {
-        val entry = cur
-        cur.state match {
-          case x:QueueEntry#SwappedRange =>
-            // load the range to expire the messages in it.
-            cur.load(null)
-          case state:QueueEntry#Swapped =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !state.is_acquired ) {
-              val uow = create_uow
-              entry.dequeue(uow)
-              expired(uow, entry) {
-                if( entry.isLinked ) {
-                  entry.remove
-                }
-              }
-            }
-          case state:QueueEntry#Loaded =>
-            // remove the expired message if it has not been
-            // acquired.
-            if( !state.is_acquired ) {
-              val uow = create_uow
-              entry.dequeue(uow)
-              expired(uow, entry) {
-                if( entry.isLinked ) {
-                  entry.remove
-                }
-              }
-            }
-          case _ =>
-        }
-      }
-      cur = next
-    }
+    // reset the prefetch flags..
+    prefetched_entries.foreach(_.prefetched = false)
+    prefetched_entries.clear
 
-    // Set the prefetch flags
-    all_subscriptions.valuesIterator.foreach{ x=>
-      x.refill_prefetch
-    }
-
-    // swap out messages.
-    cur = entries.getHead.getNext
-    var dropping_head_entries = is_topic_queue
-    var distance_from_last_prefetch = 0L
-    while( cur!=null ) {
-      val next = cur.getNext
-      if ( dropping_head_entries ) {
+    // Topic queues drop the entries at the head that no one is waiting on.
+    if( is_topic_queue ) {
+      var cur = entries.getHead.getNext
+      var dropping_head_entries = true
+      while( dropping_head_entries && cur!=null ) {
+        val next = cur.getNext
         if( cur.parked.isEmpty ) {
           if( cur.is_swapped_range ) {
             cur.load(producer_swapped_in)
@@ -902,10 +1340,25 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           cur.load(consumer_swapped_in)
           dropping_head_entries = false
         }
-      } else {
+        cur = next
+      }
+    }
+
+    // Set the prefetch flags
+    all_subscriptions.valuesIterator.foreach{ x=>
+      x.refill_prefetch
+    }
+
+    // Only the loaded entries can need swapping out.  We visit them
+    // along with the prefetched entries in dispatch order so we can tell
+    // how far each one is from where the consumers are.
+    var last:QueueEntry = head_entry
+    var distance_from_last_prefetch = 0L
+    visit_in_dispatch_order(loaded_entries, prefetched_entries.filter(x=> !x.is_loaded && x.isLinked)) { cur=>
+      if( cur.isLinked ) {
+        distance_from_last_prefetch += distance_between(last, cur)
+        last = cur
         if( cur.prefetched ) {
-          // Prefteched entries need to get loaded..
-          cur.load(consumer_swapped_in)
           distance_from_last_prefetch = 0
         } else {
 
@@ -914,8 +1367,9 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           val loaded = cur.as_loaded
           if( loaded!=null ) {
             // It's in memory.. perhaps we need to swap it out..
-            if(!consumers_keeping_up_historically) {
-              // Swap out ASAP if consumers are not keeping up..
+            if(!consumers_keeping_up_historically || cur.scheduled) {
+              // Swap out ASAP if consumers are not keeping up or
+              // the entry is not due yet..
               cur.swap(true)
             } else {
               // Consumers seem to be keeping up.. so we have to be more selective
@@ -948,48 +1402,108 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
           distance_from_last_prefetch += cur.size
         }
       }
-      cur = next
-    }                               
-
+    }
 
     // Combine swapped items into swapped ranges
-    if( individual_swapped_items > tune_swap_range_size*2 ) {
+    if( individual_swapped_items > (if( tune_compact_swap ) tune_swap_range_size else tune_swap_range_size*2) ) {
+      combine_swapped_entries
+    }
+    
+    if(!messages.full) {
+      messages.stall_check
+      messages.refiller.run
+    }
 
-      var distance_from_sub = tune_swap_range_size;
-      var cur = entries.getHead
-      var combine_counter = 0;
+  }
 
-      while( cur!=null ) {
+  /**
+   * Visits the tracked entries merged with the given prefetched entries
+   * in dispatch order.  The tracked set is walked by lookups rather than
+   * an iterator so the visitor can change the state of the entries.
+   */
+  def visit_in_dispatch_order(tracked:java.util.TreeSet[QueueEntry], prefetched:Seq[QueueEntry])(func: QueueEntry=>Unit) = {
+    val others = prefetched.toArray
+    java.util.Arrays.sort(others, QueueEntry.dispatch_order)
+    var next = if( tracked.isEmpty ) null else tracked.first
+    var i = 0
+    while( next!=null || i < others.length ) {
+      val order = if( next==null ) -1 else if ( i == others.length ) 1 else QueueEntry.dispatch_order.compare(others(i), next)
+      val cur = if( order < 0 ) {
+        others(i)
+      } else {
+        next
+      }
+      if( order <= 0 ) {
+        i += 1
+      }
+      if( order >= 0 ) {
+        next = tracked.higher(next)
+      }
+      swap_visits += 1
+      func(cur)
+    }
+  }
 
-        // get the next now.. since cur may get combined and unlinked
-        // from the entry list.
-        val next = cur.getNext
+  /**
+   * Estimates how many bytes of entries are linked between the two
+   * entries without walking the entries list.  Only the entries
+   * we track are walked by the swap policy so any gap between them
+   * is sized using the average message size of the queue.
+   */
+  def distance_between(from:QueueEntry, to:QueueEntry):Long = {
+    if( to.getPrevious eq from ) {
+      0L
+    } else if( from.is_head || from.priority != to.priority || queue_items == 0 ) {
+      // Too far to tell.
+      Int.MaxValue
+    } else {
+      ((to.seq - from.seq - 1) * (queue_size / queue_items)).min(Int.MaxValue)
+    }
+  }
 
+  /**
+   * Combines the individually swapped entries which are not close to
+   * a subscription into swapped ranges.
+   */
+  def combine_swapped_entries = {
+    var last_prefetched:QueueEntry = null
+    var combine_counter = 0;
+    visit_in_dispatch_order(swapped_entries, prefetched_entries.filter(x=> !x.is_swapped && x.isLinked)) { cur=>
+      if( cur.isLinked ) {
         if( cur.prefetched ) {
-          distance_from_sub = 0
+          last_prefetched = cur
         } else {
-          distance_from_sub += 1
+          // How many entries we are past the last prefetched entry.
+          val distance_from_sub = if( last_prefetched==null || last_prefetched.priority != cur.priority ) {
+            Long.MaxValue
+          } else {
+            cur.seq - last_prefetched.seq
+          }
+          val prev = cur.getPrevious
           if( cur.can_combine_with_prev ) {
             cur.getPrevious.as_swapped_range.combineNext
             combine_counter += 1
           } else {
-            if( cur.is_swapped && !cur.is_acquired && distance_from_sub > tune_swap_range_size ) {
+            // Compact ranges are cheap to load so entries get packed as soon as they leave the prefetch.
+            if( cur.is_swapped && !cur.is_acquired && (tune_compact_swap || distance_from_sub > tune_swap_range_size) ) {
               cur.swapped_range
               combine_counter += 1
             }
           }
 
+          // The range we combined into may now be able to absorb the range that follows.
+          val range = if( cur.isLinked ) cur else prev
+          if( range!=null && range.is_swapped_range ) {
+            val next = range.getNext
+            if( next!=null && next.is_swapped_range && next.can_combine_with_prev ) {
+              range.as_swapped_range.combineNext
+              combine_counter += 1
+            }
+          }
         }
-        cur = next
       }
-      trace("combined %d entries", combine_counter)
-    }
-    
-    if(!messages.full) {
-      messages.stall_check
-      messages.refiller.run
     }
-
+    trace("combined %d entries", combine_counter)
   }
 
   def swapped_out_size = queue_size - (producer_swapped_in.size + consumer_swapped_in.size)
@@ -1002,10 +1516,13 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     delivery_rate = 0
     var avg_browser_delivery_rate = 0
     var avg_sub_stall_ms = 0L
+    val sub_stall_ms = collection.mutable.HashMap[Subscription, Long]()
 
     all_subscriptions.values.foreach{ sub=>
       sub.adjust_prefetch_size
-      avg_sub_stall_ms += sub.reset_stall_timer
+      val stall_ms = sub.reset_stall_timer
+      sub_stall_ms.put(sub, stall_ms)
+      avg_sub_stall_ms += stall_ms
       if(sub.browser) {
         avg_browser_delivery_rate += sub.avg_enqueue_size_per_interval
       } else {
@@ -1060,9 +1577,53 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
       }
     }
 
+    if( message_group_rebalance ) {
+      rebalance_message_groups(elapsed, sub_stall_ms)
+    }
+
     swap_messages
     check_idle
   }
+
+  /**
+   * Moves message group buckets away from a subscription which has been
+   * stalled for most of the last few intervals while another one had
+   * capacity to spare.  Buckets are given back one at a time once the
+   * subscription has been keeping up for a while.  Only one move is done
+   * at a time so that the handoffs can settle.
+   */
+  def rebalance_message_groups(elapsed:Long, stall_ms:collection.Map[Subscription, Long]):Unit = {
+    if( _message_group_buckets==null || message_group_handoffs > 0 ) {
+      return
+    }
+    val subs = all_subscriptions.values.filter(_.owns_message_groups).toList
+    if( subs.size < 2 ) {
+      return
+    }
+
+    def lagging(sub:Subscription) = stall_ms.getOrElse(sub, 0L) > elapsed / 2
+    def keeping_up(sub:Subscription) = stall_ms.getOrElse(sub, 0L) < elapsed / 10
+
+    subs.foreach { sub =>
+      sub.lagging_intervals = if( lagging(sub) ) sub.lagging_intervals + 1 else 0
+      sub.steady_intervals = if( keeping_up(sub) ) sub.steady_intervals + 1 else 0
+    }
+
+    val laggards = subs.filter(x=> x.lagging_intervals >= 3 && x.message_group_weight > 1)
+    if( !laggards.isEmpty ) {
+      if( subs.exists(keeping_up) ) {
+        val slowest = laggards.minBy(_.avg_enqueue_size_per_interval)
+        debug("moving message groups away from lagging subscription %s", slowest.id)
+        slowest.reweight_message_groups(slowest.message_group_weight / 2)
+        slowest.lagging_intervals = 0
+      }
+    } else {
+      subs.find(x=> x.steady_intervals >= 30 && x.message_group_weight < Subscription.MESSAGE_GROUP_WEIGHT).foreach { sub =>
+        sub.reweight_message_groups(sub.message_group_weight + 1)
+        sub.steady_intervals = 0
+      }
+    }
+  }
     
   var max_enqueue_rate = Int.MaxValue
   var enqueues_remaining:LongCounter = _
@@ -1165,32 +1726,27 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   def process_ack(entry:Subscription#AcquiredQueueEntry, consumed:DeliveryResult, uow:StoreUOW) = defer {
     might_unfill {
-      consumed match {
-        case Consumed =>
-          entry.ack(uow)
-        case Expired=>
-          val actual = create_uow(uow)
-          expired(actual, entry.entry) {
-            entry.ack(actual)
-          }
-          actual.release
-        case Delivered =>
-          entry.increment_nack
-          entry.entry.redelivered
-          entry.nack
-        case Undelivered =>
-          entry.nack
-        case Poisoned =>
-          entry.increment_nack
-          entry.entry.redelivered
-          var limit = dlq_nak_limit
-          if( limit>0 && entry.entry.redelivery_count >= limit ) {
-            dead_letter(uow, entry.entry) { uow =>
-              entry.remove(uow)
-            }
-          } else {
-            entry.nack
-          }
+      _process_ack(entry, consumed, uow)
+      if( uow!=null ) {
+        uow.release
+      }
+    }
+  }
+
+  /**
+   * Processes a batch of acks which share the same result in one pass.  The
+   * dequeues of consumed entries all go into one store unit of work, in
+   * dispatch order, so that the store can log runs of contiguous entries
+   * as one range removal.
+   */
+  def process_acks(entries:Seq[Subscription#AcquiredQueueEntry], consumed:DeliveryResult, uow:StoreUOW) = defer {
+    might_unfill {
+      val actual = if( consumed == Consumed ) create_uow(uow) else uow
+      entries.sortWith((a, b) => QueueEntry.dispatch_order.compare(a.entry, b.entry) < 0).foreach { entry =>
+        _process_ack(entry, consumed, actual)
+      }
+      if( consumed == Consumed && actual!=null ) {
+        actual.release
       }
       if( uow!=null ) {
         uow.release
@@ -1198,6 +1754,36 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
   }
 
+  private def _process_ack(entry:Subscription#AcquiredQueueEntry, consumed:DeliveryResult, uow:StoreUOW) = {
+    consumed match {
+      case Consumed =>
+        entry.ack(uow)
+      case Expired=>
+        val actual = create_uow(uow)
+        expired(actual, entry.entry) {
+          entry.ack(actual)
+        }
+        actual.release
+      case Delivered =>
+        entry.increment_nack
+        entry.entry.redelivered
+        entry.nack
+      case Undelivered =>
+        entry.nack
+      case Poisoned =>
+        entry.increment_nack
+        entry.entry.redelivered
+        var limit = dlq_nak_limit
+        if( limit>0 && entry.entry.redelivery_count >= limit ) {
+          dead_letter(uow, entry.entry) { uow =>
+            entry.remove(uow)
+          }
+        } else {
+          entry.nack
+        }
+    }
+  }
+
   /////////////////////////////////////////////////////////////////////
   //
   // Implementation of the DeliveryConsumer trait.  Allows this queue
@@ -1298,6 +1884,21 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
     }
   }
 
+  /**
+   * Binds a consumer of another partition which helps drain this one
+   * until its own partition has messages again.
+   */
+  def bind_helper(consumer:DeliveryConsumer, on_bind:()=>Unit) = {
+    consumer.retain
+    dispatch_queue {
+      val sub = new Subscription(this, consumer)
+      sub.helper = true
+      sub.open
+      consumer.release()
+      on_bind()
+    }
+  }
+
   def unbind(values: List[DeliveryConsumer]):Unit = dispatch_queue {
     for (consumer <- values) {
       all_subscriptions.get(consumer) match {
@@ -1310,11 +1911,25 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
 
   def disconnected() = throw new RuntimeException("unsupported")
 
+  def partitioned = binding match {
+    case x:QueueDomainQueueBinding => router.local_queue_domain.partitioner(this)
+    case _ => null
+  }
+
   def bind(bind_address:BindAddress, consumer: DeliveryConsumer, on_bind:()=>Unit) = {
-    bind(consumer::Nil, on_bind)
+    val partitioner = partitioned
+    if( partitioner!=null ) {
+      partitioner.bind(consumer, on_bind)
+    } else {
+      bind(consumer::Nil, on_bind)
+    }
   }
   def unbind(consumer: DeliveryConsumer, persistent:Boolean):Unit = {
-    unbind(consumer::Nil)
+    if( partitioner!=null ) {
+      partitioner.unbind(consumer, persistent)
+    } else {
+      unbind(consumer::Nil)
+    }
   }
 
   def connect (connect_address:ConnectAddress, producer:BindableDeliveryProducer) = {
@@ -1328,7 +1943,12 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         producers += producer
         check_idle
       }
-      producer.bind(this::Nil, ()=>{})
+      val partitioner = partitioned
+      if( partitioner!=null ) {
+        partitioner.connect(producer)
+      } else {
+        producer.bind(this::Nil, ()=>{})
+      }
     }
   }
 
@@ -1342,6 +1962,9 @@ class Queue(val router: LocalRouter, val store_id:Long, var binding:Binding) ext
         producers -= producer
         check_idle
       }
+      if( partitioner!=null ) {
+        partitioner.disconnect(producer)
+      }
       producer.unbind(this::Nil)
     }
   }
@@ -33,6 +33,24 @@ import Queue._
 
 object QueueEntry extends Sizer[QueueEntry] with Log {
   def size(value: QueueEntry): Int = value.size
+
+  /**
+   * Orders entries the way they are linked in the queue: highest
+   * priority lane first and then by seq.
+   */
+  val dispatch_order = new java.util.Comparator[QueueEntry] {
+    def compare(a: QueueEntry, b: QueueEntry) = {
+      if( a.priority != b.priority ) {
+        b.priority - a.priority
+      } else if( a.seq < b.seq ) {
+        -1
+      } else if( a.seq > b.seq ) {
+        1
+      } else {
+        0
+      }
+    }
+  }
 }
 
 class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] with Comparable[QueueEntry] {
@@ -50,6 +68,18 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   // The current state of the entry: Head | Tail | Loaded | Swapped | SwappedRange
   var state:EntryState = new Tail
 
+  // The priority lane the entry is linked into.
+  var priority:Byte = Delivery.DEFAULT_PRIORITY
+
+  // The slot of the entry in the queue's scheduled_entries while it's
+  // hidden from the subscriptions because it's not due for delivery yet.
+  var schedule_slot = -1
+  def scheduled = schedule_slot >= 0
+
+  // The slot of the entry in the queue's expiration index.
+  var expiration_slot = -1
+  def expiration_indexed = expiration_slot >= 0
+
   def <(value:QueueEntry) = this.seq < value.seq
   def <=(value:QueueEntry) = this.seq <= value.seq
 
@@ -64,12 +94,13 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   }
 
   def init(delivery:Delivery):QueueEntry = {
+    priority = delivery.priority
     if( delivery.message == null ) {
       // This must be a swapped out message which has been previously persisted in
       // another queue.  We need to enqueue it to this queue..
       queue.swap_out_size_counter += delivery.size
       queue.swap_out_item_counter += 1
-      state = new Swapped(delivery.storeKey, delivery.storeLocator, delivery.size, delivery.expiration, 0, null, delivery.sender)
+      state = new Swapped(delivery.storeKey, delivery.storeLocator, delivery.size, delivery.expiration, delivery.deliver_at, 0, null, delivery.sender)
     } else {
       queue.producer_swapped_in += delivery
       state = new Loaded(delivery, false, queue.producer_swapped_in)
@@ -79,12 +110,20 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
   def init(qer:QueueEntryRecord):QueueEntry = {
     val sender = qer.sender.map(x=> SimpleAddress(x.utf8().toString))
-    state = new Swapped(qer.message_key, qer.message_locator, qer.size, qer.expiration, qer.redeliveries, null, sender)
+    priority = qer.priority
+    state = new Swapped(qer.message_key, qer.message_locator, qer.size, qer.expiration, qer.deliver_at, qer.redeliveries, null, sender)
+    this
+  }
+
+  def init(table:SwappedEntryTable, i:Int, priority:Byte):QueueEntry = {
+    this.priority = priority
+    state = new Swapped(table.message_keys(i), table.locator(i), table.sizes(i), table.expirations(i), table.deliver_ats(i), table.redeliveries(i), null, table.sender(i))
     this
   }
 
   def init(range:QueueEntryRange):QueueEntry = {
-    state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration)
+    priority = range.priority
+    state = new SwappedRange(range.last_entry_seq, range.count, range.size, range.expiration, range.latest_expiration, range.deliver_at)
     this
   }
 
@@ -135,6 +174,33 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     (seq - o.seq).toInt
   }
 
+  /**
+   * Entries are dispatched highest priority lane first and then in
+   * sequence order within a lane.  Returns true if this entry gets
+   * dispatched before the position identified by the priority and seq.
+   */
+  def precedes(priority:Int, seq:Long):Boolean = {
+    if( is_head ) {
+      true
+    } else if( is_tail ) {
+      false
+    } else if( this.priority != priority ) {
+      this.priority > priority
+    } else {
+      this.seq < seq
+    }
+  }
+
+  def precedes(other:QueueEntry):Boolean = {
+    if( other.is_head ) {
+      false
+    } else if( other.is_tail ) {
+      !is_tail
+    } else {
+      precedes(other.priority, other.seq)
+    }
+  }
+
   def toQueueEntryRecord = {
     val qer = new QueueEntryRecord
     qer.queue_key = queue.store_id
@@ -144,6 +210,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     qer.message_locator = state.message_locator
     qer.size = state.size
     qer.expiration = expiration
+    qer.deliver_at = deliver_at
+    qer.priority = priority
     qer.sender = state.sender.map(x=> new UTF8Buffer(x.toString))
     qer
   }
@@ -184,6 +252,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
   def count = state.count
   def size = state.size
   def expiration = state.expiration
+  def deliver_at = state.deliver_at
   def redelivery_count = state.redelivery_count
   def redelivered = state.redelivered
   def messageKey = state.message_key
@@ -212,6 +281,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       queue.dequeue_item_counter += 1
       queue.dequeue_size_counter += size
       queue.dequeue_ts = queue.now
+      queue.lane_items(priority) -= 1
+      queue.lane_size(priority) -= size
       queued = false
     }
   }
@@ -230,6 +301,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       } else {
         (!prev_range.loading) &&
         (!is_loading) &&
+        (prev.priority == priority) &&
+        (prev.scheduled == scheduled) &&
         ( (is_swapped && !is_acquired) || is_swapped_range ) &&
         (prev.count + count  < queue.tune_swap_range_size)
       }
@@ -256,6 +329,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
      */
     def expiration = 0L
 
+    /**
+     * When the entry is due for delivery or 0 if it was not scheduled.
+     */
+    def deliver_at = 0L
+
     /**
      * When the entry expires or 0 if it does not expire.
      */
@@ -327,10 +405,27 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       parked = Nil
 
       // take the entry of the entries list..
+      queue.unschedule(entry)
+      queue.unindex_expiration(entry)
+      queue.lane_unlinking(entry, null)
       unlink
       //TODO: perhaps refill subscriptions.
     }
 
+    /**
+     * Scheduled entries are hidden from subscriptions until they are due,
+     * so the parked subscriptions just move on to the next entry.
+     */
+    def skip_scheduled():Boolean = {
+      if( parked.isEmpty ) {
+        false
+      } else {
+        advance(parked)
+        parked = Nil
+        true
+      }
+    }
+
     /**
      * Advances the specified subscriptions to the next entry in
      * the linked list
@@ -408,6 +503,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     queue.loaded_items += 1
     queue.loaded_size += size
+    queue.loaded_entries.add(entry)
 
     def label = {
       var rc = "loaded"
@@ -425,6 +521,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     override def count = 1
     override def size = delivery.size
     override def expiration = delivery.expiration
+    override def deliver_at = delivery.deliver_at
     override def message_key = delivery.storeKey
     override def message_locator = delivery.storeLocator
     override def redelivery_count = delivery.redeliveries
@@ -528,7 +625,8 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
     def switch_to_swapped = {
       space -= delivery
-      state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration, redelivery_count, acquirer, sender)
+      queue.loaded_entries.remove(entry)
+      state = new Swapped(delivery.storeKey, delivery.storeLocator, size, expiration, deliver_at, redelivery_count, acquirer, sender)
       if( remove_pending ) {
         remove_pending = false
         state.remove
@@ -555,6 +653,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       if( !remove_pending ) {
         queue.loaded_items -= 1
         queue.loaded_size -= size
+        queue.loaded_entries.remove(entry)
       }
       if( storing_enqueue | remove_pending ) {
         remove_pending = true
@@ -581,6 +680,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         return true
       }
 
+      if( scheduled ) {
+        return skip_scheduled
+      }
+
       // Nothing to dispatch if we don't have subs..
       if( parked.isEmpty ) {
         return false
@@ -604,24 +707,37 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
       var acquiringSub: Subscription = null
 
+      // Only evaluates the selectors of the subs that could match.
+      val matcher = queue.selector_index.matcher(delivery)
+
       // Find the the first exclusive target of the message
-      var exclusive_target = queue.exclusive_subscriptions.find( _.matches(delivery) )
+      var exclusive_target = queue.exclusive_subscriptions.find( matcher.matches(_) )
 
       // Should we looks for the message group bucket?
       if ( exclusive_target.isEmpty && delivery.message.message_group != null ) {
         var iterator = queue.message_group_buckets.iterator(delivery.message.message_group)
         while (exclusive_target==None && iterator.hasNext) {
           val bucket = iterator.next();
-          if( bucket.sub.matches(delivery) ) {
+          if( matcher.matches(bucket.sub) ) {
             exclusive_target = Some(bucket.sub)
           }
         }
       }
 
-      parked.foreach{ sub=>
+      // The subs the index rules out move along without being looked at.
+      val candidates = matcher.candidates
+      val interested = if( candidates==null ) {
+        parked
+      } else {
+        val (rc, others) = parked.partition(candidates.contains(_))
+        advancing ++= others
+        rc
+      }
+
+      interested.foreach{ sub=>
 
         if( sub.browser ) {
-          if (!sub.matches(delivery)) {
+          if (!matcher.matches(sub)) {
             // advance: not interested.
             advancing += sub
           } else {
@@ -642,7 +758,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
 
             // Is the current sub not the exclusive target?
             if( (exclusive_target.isDefined && (exclusive_target.get != sub))
-                || !sub.matches(delivery)
+                || !matcher.matches(sub)
                 || (exclusive_target.isEmpty && delivery.message.message_group!=null) ) {
               // advance: not interested.
               advancing += sub
@@ -667,12 +783,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
                   acquiredDelivery.sender ::= queue.address
                 }
 
-                acquiredDelivery.ack = (consumed, uow)=> {
-                  if( uow!=null ) {
-                    uow.retain
-                  }
-                  queue.process_ack(acquiredQueueEntry, consumed, uow)
-                }
+                acquiredDelivery.ack = new QueueAck(queue, acquiredQueueEntry)
 
                 val accepted = sub.offer(acquiredDelivery)
                 assert(accepted, "sub should have accepted, it had reported not full earlier.")
@@ -715,11 +826,12 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
    * entry is persisted, it can move into this state.  This state only holds onto the
    * the massage key so that it can reload the message from the store quickly when needed.
    */
-  class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Object], override val size:Int, override val expiration:Long, var _redeliveries:Short, var acquirer:Acquirer, override  val sender:List[DestinationAddress]) extends EntryState {
+  class Swapped(override val message_key:Long, override val message_locator:AtomicReference[Object], override val size:Int, override val expiration:Long, override val deliver_at:Long, var _redeliveries:Short, var acquirer:Acquirer, override  val sender:List[DestinationAddress]) extends EntryState {
 
     assert( message_key!= -1 )
 
     queue.individual_swapped_items += 1
+    queue.swapped_entries.add(entry)
 
     var space:MemorySpace = _
 
@@ -786,9 +898,11 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
       delivery.size = size
       delivery.persistent = true
       delivery.expiration = expiration
+      delivery.deliver_at = deliver_at
       delivery.storeKey = message_key
       delivery.storeLocator = message_locator
       delivery.redeliveries = redelivery_count
+      delivery.priority = priority
       delivery.sender = sender
       delivery
     }
@@ -814,6 +928,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swap_in_item_counter += 1
 
         queue.individual_swapped_items -= 1
+        queue.swapped_entries.remove(entry)
         state = new Loaded(delivery, true, space)
         space = null
       }
@@ -827,6 +942,7 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swapping_in_size -= size
       }
       queue.individual_swapped_items -= 1
+      queue.swapped_entries.remove(entry)
       super.remove
     }
 
@@ -838,7 +954,13 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         queue.swapping_in_size -= size
       }
       queue.individual_swapped_items -= 1
-      state = new SwappedRange(seq, 1, size, expiration)
+      queue.swapped_entries.remove(entry)
+      val range = new SwappedRange(seq, 1, size, expiration, expiration, deliver_at)
+      if( queue.tune_compact_swap ) {
+        range.entries = new SwappedEntryTable(16)
+        range.entries.add(entry)
+      }
+      state = range
     }
 
     override def dispatch():Boolean = {
@@ -856,6 +978,10 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         return true
       }
 
+      if( scheduled ) {
+        return skip_scheduled
+      }
+
       // Nothing to dispatch if we don't have subs..
       if( parked.isEmpty ) {
         return false
@@ -909,6 +1035,9 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
    * the first, and last sequnce ids of the range.  When the entry needs to be loaded from the range
    * it replaces the swapped range entry with all the swapped entries by querying the store of all the
    * message keys for the entries in the range.
+   *
+   * When the queue uses compact swapping, the range also keeps the metadata of it's entries in
+   * a SwappedEntryTable so that it can be loaded without querying the store.
    */
   class SwappedRange(
     /** the last seq id in the range */
@@ -917,15 +1046,23 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     var _count:Int,
     /** size in bytes of the range */
     var _size:Int,
-    var _expiration:Long) extends EntryState {
+    var _expiration:Long,
+    /** when the last entry in the range expires or 0 if some entries never expire */
+    var _latest_expiration:Long,
+    /** when the earliest scheduled entry in the range is due */
+    var _deliver_at:Long) extends EntryState {
 
 
     override def count = _count
     override def size = _size
     override def expiration = _expiration
+    override def deliver_at = _deliver_at
 
     var loading = false
 
+    /** the entries of the range when the queue uses compact swapping, null otherwise */
+    var entries:SwappedEntryTable = null
+
     override def as_swapped_range = this
 
     override def is_swapped_or_swapping_out = true
@@ -940,6 +1077,15 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
     }
     override def toString = { "swapped_range:{ swapping_in: "+loading+", count: "+count+", size: "+size+"}" }
 
+    override def dispatch():Boolean = {
+      queue.assert_executing
+      if( scheduled ) {
+        skip_scheduled
+      } else {
+        false
+      }
+    }
+
     var swapped_in_watchers = List[()=>Unit]()
     def fire_swapped_in_watchers = {
       val watchers = swapped_in_watchers
@@ -958,11 +1104,25 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           var size_count=0
 
           val tmpList = new LinkedNodeList[QueueEntry]()
-          records.foreach { record =>
-            val entry = new QueueEntry(queue, record.entry_seq).init(record)
-            tmpList.addLast(entry)
-            item_count += 1
-            size_count += record.size
+          if( records==null ) {
+            var i = 0
+            while( i < entries.length ) {
+              tmpList.addLast(new QueueEntry(queue, entries.seqs(i)).init(entries, i, priority))
+              item_count += 1
+              size_count += entries.sizes(i)
+              i += 1
+            }
+            entries = null
+          } else {
+            records.foreach { record =>
+              // The seq range can span the entries of other priority lanes.
+              if( record.priority == priority ) {
+                val entry = new QueueEntry(queue, record.entry_seq).init(record)
+                tmpList.addLast(entry)
+                item_count += 1
+                size_count += record.size
+              }
+            }
           }
 
           // we may need to adjust the enqueue count if entries
@@ -979,14 +1139,29 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
               warn("Queue '%s' detected store change in range [%d:%d]. %d message(s) and %d bytes", queue.id, seq, last, item_delta, size_delta)
               queue.enqueue_item_counter += item_delta
               queue.enqueue_size_counter += size_delta
+              queue.lane_items(priority) -= item_delta
+              queue.lane_size(priority) -= size_delta
             }
           } else if( attempt_counter > 1 ) {
             warn("Recoved!!!! @ "+attempt_counter)
           }
 
+          // Entries which are still not due stay hidden.
+          var cur = tmpList.getHead
+          while( cur!=null ) {
+            queue.schedule(cur)
+            queue.index_expiration(cur)
+            cur = cur.getNext
+          }
+
           loading  = false
-          linkAfter(tmpList)
-          val next = getNext
+          queue.unschedule(entry)
+          queue.unindex_expiration(entry)
+          queue.lane_unlinking(entry, tmpList.getTail)
+          if( !tmpList.isEmpty ) {
+            linkAfter(tmpList)
+          }
+          val next = nextOrTail
 
           // move the subs to the first entry that we just loaded.
           parked.foreach(_.advance(next))
@@ -1003,7 +1178,15 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
             }
           }
         }
-        attempt_load(1)
+        if( entries!=null ) {
+          // No need to query the store, but finish the load async like the
+          // store does since the caller may be iterating the entries.
+          queue.dispatch_queue {
+            complete_load(1, null)
+          }
+        } else {
+          attempt_load(1)
+        }
       }
     }
 
@@ -1020,11 +1203,24 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
         assert(last < value.seq )
         last = value.seq
         _count += 1
+        if( entries!=null ) {
+          entries.add(value)
+        }
       } else if( value.is_swapped_range ) {
         assert(last < value.seq )
         last = value.as_swapped_range.last
         _count += value.as_swapped_range.count
+        if( entries!=null ) {
+          if( value.as_swapped_range.entries!=null ) {
+            entries.add_all(value.as_swapped_range.entries)
+          } else {
+            // The other range was restored from the store, so we have
+            // to go back to the store to load the combined range.
+            entries = null
+          }
+        }
       }
+      val prev_expiration = _expiration
       if(_expiration == 0){
         _expiration = value.expiration
       } else {
@@ -1032,8 +1228,68 @@ class QueueEntry(val queue:Queue, val seq:Long) extends LinkedNode[QueueEntry] w
           _expiration = value.expiration.min(_expiration)
         }
       }
+      val value_latest_expiration = value.state match {
+        case x:SwappedRange => x._latest_expiration
+        case x => x.expiration
+      }
+      if( _latest_expiration != 0 ) {
+        _latest_expiration = if( value_latest_expiration == 0 ) 0 else value_latest_expiration.max(_latest_expiration)
+      }
+      _deliver_at = _deliver_at.min(value.deliver_at)
       _size += value.size
       value.remove
+      queue.reschedule(entry)
+      if( _expiration != prev_expiration ) {
+        queue.reindex_expiration(entry)
+      }
+    }
+
+    /**
+     * Called when the earliest entry in the range expires.  If all the entries
+     * in the range have expired, they are dropped without loading the range.
+     */
+    def expire:Unit = {
+      if( loading ) {
+        return
+      }
+      if( _latest_expiration == 0 || _latest_expiration > System.currentTimeMillis || queue.dlq_expired ) {
+        // load the range to expire the messages in it.
+        swap_in(null)
+      } else {
+        loading = true
+        def drop(records:Seq[QueueEntryRecord]):Unit = {
+          queue.dispatch_queue {
+            loading = false
+            if( isLinked && !expiring ) {
+              val uow = queue.create_uow
+              records.foreach { record =>
+                // The seq range can span the entries of other priority lanes.
+                if( record.priority == priority ) {
+                  uow.dequeue(record)
+                }
+              }
+              expiring = true
+              queue.expired_ts = queue.now
+              queue.expired_item_counter += count
+              queue.expired_size_counter += size
+              queue.dequeue_item_counter += count
+              queue.dequeue_size_counter += size
+              queue.dequeue_ts = queue.now
+              queue.lane_items(priority) -= count
+              queue.lane_size(priority) -= size
+              queued = false
+              uow.release
+              remove
+              fire_swapped_in_watchers
+            }
+          }
+        }
+        if( entries!=null ) {
+          drop((0 until entries.length).map(i=> entries.to_queue_entry_record(queue.store_id, priority, i)))
+        } else {
+          queue.virtual_host.store.list_queue_entries(queue.store_id, seq, last)(drop)
+        }
+      }
     }
 
   }
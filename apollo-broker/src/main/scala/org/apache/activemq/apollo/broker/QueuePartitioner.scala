@@ -0,0 +1,325 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.dto.DestMetricsDTO
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * <p>
+ * Spreads the producers and consumers of a partitioned queue across the
+ * queue's partitions.  The queue itself is partition 0, the other partitions
+ * are internal queues which each dispatch on their own thread.
+ * </p>
+ *
+ * <p>
+ * Producers hash messages to a partition by message group, falling back to
+ * round robin.  Consumers get a home partition.  When the home partition of a
+ * consumer is drained, it also helps drain the deepest partition until its
+ * home partition has messages again.  Browsers and exclusive consumers get
+ * bound to all the partitions.  Runs on the router's dispatch queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class QueuePartitioner(val leader:Queue) {
+
+  def dispatch_queue = leader.router.dispatch_queue
+
+  var partitions = Array[Queue](leader)
+
+  /** the partition each consumer is bound to */
+  var homes = Map[DeliveryConsumer, Int]()
+
+  /** the partition a consumer is helping to drain */
+  var helping = Map[DeliveryConsumer, Int]()
+
+  /** consumers that are bound to all the partitions, with what got bound to each partition */
+  var broadcast = Map[DeliveryConsumer, Map[Queue, DeliveryConsumer]]()
+
+  /**
+   * The metrics of the partitions other than the leader, as of the last
+   * refresh.  Only accessed from the leader's dispatch queue.
+   */
+  var partition_totals:DestMetricsDTO = null
+
+  def add(partition:Int, queue:Queue) = {
+    dispatch_queue.assertExecuting()
+    if( partition >= partitions.length ) {
+      val rc = new Array[Queue](partition+1)
+      System.arraycopy(partitions, 0, rc, 0, partitions.length)
+      partitions = rc
+    }
+    partitions(partition) = queue
+    // Exclusive consumers have to see the new partition too.
+    for( (consumer, bound) <- broadcast if !consumer.browser ) {
+      broadcast += consumer -> (bound + (queue -> consumer))
+      queue.bind(consumer::Nil, ()=>{})
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Producer side.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def connect(producer:BindableDeliveryProducer) = {
+    producer.bind(distributor::Nil, ()=>{})
+  }
+
+  def disconnect(producer:BindableDeliveryProducer) = {
+    producer.unbind(distributor::Nil)
+  }
+
+  /**
+   * The consumer that producers of the partitioned queue get bound to.
+   */
+  object distributor extends AbstractRetainedDeliveryConsumer {
+    def dispatch_queue = leader.dispatch_queue
+    def matches(delivery:Delivery) = leader.matches(delivery)
+    def is_persistent = leader.is_persistent
+    def connect(producer:DeliveryProducer) = new PartitionedDeliverySession(producer, partitions.filter(_!=null))
+    override def toString = "partitions of "+leader
+  }
+
+  class PartitionedDeliverySession(val producer:DeliveryProducer, targets:Array[Queue]) extends DeliverySession {
+
+    val sessions = targets.map(_.connect(producer))
+    var next = 0
+
+    /** the delivery a full partition refused, it gets offered to that partition again */
+    var pending:Delivery = null
+    var pending_partition = 0
+
+    def consumer = distributor
+
+    def close = sessions.foreach(_.close)
+
+    def refiller = sessions(0).refiller
+    def refiller_=(value:Task) = sessions.foreach(_.refiller = value)
+
+    // Only a refused delivery ties us to one partition, otherwise a
+    // delivery can go to any partition which has room.
+    def full = if( pending!=null ) {
+      sessions(pending_partition).full
+    } else {
+      sessions.forall(_.full)
+    }
+
+    def offer(delivery:Delivery) = {
+      val partition = if( delivery eq pending ) {
+        pending_partition
+      } else {
+        val group = if( delivery.message!=null ) delivery.message.message_group else null
+        if( group!=null ) {
+          (group.hashCode & Int.MaxValue) % sessions.length
+        } else {
+          // Round robin over the partitions which are not full.
+          var i = 0
+          do {
+            next = (next + 1) % sessions.length
+            i += 1
+          } while( i < sessions.length && sessions(next).full )
+          next
+        }
+      }
+      if( sessions(partition).offer(delivery) ) {
+        pending = null
+        true
+      } else {
+        pending = delivery
+        pending_partition = partition
+        false
+      }
+    }
+
+    def enqueue_item_counter = sessions.map(_.enqueue_item_counter).sum
+    def enqueue_size_counter = sessions.map(_.enqueue_size_counter).sum
+    def enqueue_ts = sessions.map(_.enqueue_ts).max
+    def remaining_capacity = sessions.map(_.remaining_capacity).min
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Consumer side.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /**
+   * What a browser gets bound to each partition as.  The browse only ends
+   * once every partition has been drained, the partition that drains last
+   * closes its subscription.
+   */
+  class PartitionBrowser(next:DeliveryConsumer, browsing:AtomicInteger) extends DeliveryConsumerFilter(next) {
+    var drained = false
+    override def close_on_drain = next.close_on_drain && {
+      if( !drained ) {
+        drained = true
+        browsing.decrementAndGet() == 0
+      } else {
+        browsing.get() == 0
+      }
+    }
+    override def toString = next.toString
+  }
+
+  def bind(consumer:DeliveryConsumer, on_bind:()=>Unit) = {
+    dispatch_queue.assertExecuting()
+    if( consumer.browser || consumer.exclusive ) {
+      val targets = partitions.filter(_!=null)
+      val browsing = new AtomicInteger(targets.length)
+      val bound = targets.map { partition =>
+        partition -> (if( consumer.browser ) new PartitionBrowser(consumer, browsing) else consumer)
+      }.toMap
+      broadcast += consumer -> bound
+      var remaining = targets.length
+      for( (partition, target) <- bound ) {
+        partition.bind(target::Nil, ()=> dispatch_queue {
+          remaining -= 1
+          if( remaining == 0 ) {
+            on_bind()
+          }
+        })
+      }
+    } else {
+      // Pick the partition with the fewest consumers.
+      val counts = new Array[Int](partitions.length)
+      homes.values.foreach(i=> counts(i) += 1)
+      var home = 0
+      for( i <- 0 until partitions.length if partitions(i)!=null && counts(i) < counts(home) ) {
+        home = i
+      }
+      homes += consumer -> home
+      partitions(home).bind(consumer::Nil, on_bind)
+    }
+  }
+
+  def unbind(consumer:DeliveryConsumer, persistent:Boolean) = {
+    dispatch_queue.assertExecuting()
+    if( !broadcast.contains(consumer) && !homes.contains(consumer) ) {
+      // It was bound before the queue got partitioned.
+      leader.unbind(consumer::Nil)
+    }
+    broadcast.get(consumer).foreach { bound =>
+      broadcast -= consumer
+      for( (partition, target) <- bound ) {
+        partition.unbind(target::Nil)
+      }
+    }
+    homes.get(consumer).foreach { home =>
+      homes -= consumer
+      partitions(home).unbind(consumer::Nil)
+    }
+    helping.get(consumer).foreach { other =>
+      helping -= consumer
+      partitions(other).unbind(consumer::Nil)
+    }
+  }
+
+  def consumer_count = homes.size + broadcast.size
+
+  var refresh_scheduled = false
+
+  def schedule_refresh:Unit = {
+    if( !refresh_scheduled ) {
+      refresh_scheduled = true
+      dispatch_queue.after(1, TimeUnit.SECONDS) {
+        refresh_scheduled = false
+        // Stop once the queue is destroyed.
+        if( leader.partitioner eq this ) {
+          refresh
+        }
+      }
+    }
+  }
+
+  /**
+   * Collects the metrics of every partition on the partition's own dispatch
+   * queue, then hands the totals to the leader and balances the consumers
+   * once they are all in.
+   */
+  def refresh = {
+    dispatch_queue.assertExecuting()
+    val futures = for( i <- (0 until partitions.length).toList if partitions(i)!=null ) yield {
+      val partition = partitions(i)
+      val future = Future[(Int, DestMetricsDTO)]()
+      partition.dispatch_queue {
+        future.set((i, partition.partition_metrics))
+      }
+      future
+    }
+    Future.all(futures).onComplete { results => dispatch_queue {
+      val items = new Array[Long](partitions.length)
+      val others = new DestMetricsDTO
+      for( (i, metrics) <- results ) {
+        if( i < items.length ) {
+          items(i) = metrics.queue_items
+        }
+        if( i != 0 ) {
+          DestinationMetricsSupport.add_destination_metrics(others, metrics)
+        }
+      }
+      leader.dispatch_queue {
+        partition_totals = others
+        leader.check_idle
+      }
+      balance(items)
+      schedule_refresh
+    }}
+  }
+
+  /**
+   * Binds the consumers of drained partitions to the deepest partition and
+   * unbinds them once their home partition has messages again.  A consumer
+   * helping a partition that has consumers of its own stays off that
+   * partition's message group ring, so its message groups don't move.
+   */
+  def balance(items:Array[Long]) = {
+    dispatch_queue.assertExecuting()
+    def items_of(i:Int) = if( i < items.length ) items(i) else 0L
+    var deepest = -1
+    var deepest_items = 0L
+    for( i <- 0 until partitions.length if partitions(i)!=null ) {
+      if( items_of(i) > deepest_items ) {
+        deepest = i
+        deepest_items = items_of(i)
+      }
+    }
+    for( (consumer, home) <- homes ) {
+      val home_items = items_of(home)
+      helping.get(consumer).foreach { other =>
+        if( home_items > 0 || (items_of(other) == 0 && deepest != other) ) {
+          helping -= consumer
+          partitions(other).unbind(consumer::Nil)
+        }
+      }
+      if( !helping.contains(consumer) && home_items == 0 && deepest >= 0 && deepest != home ) {
+        helping += consumer -> deepest
+        if( homes.values.exists(_ == deepest) ) {
+          partitions(deepest).bind_helper(consumer, ()=>{})
+        } else {
+          partitions(deepest).bind(consumer::Nil, ()=>{})
+        }
+      }
+    }
+  }
+
+}
@@ -0,0 +1,179 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.filter._
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.apache.activemq.apollo.util.Log
+import java.util.{HashMap, HashSet}
+import collection.JavaConversions._
+
+object SelectorIndex extends Log {
+
+  val NO_CANDIDATES = new HashSet[Subscription]()
+
+  /**
+   * Finds a property that the selector requires to be equal to one of
+   * a set of string values.  Returns None if the selector cannot be
+   * indexed that way.
+   */
+  def index_key(expression:Expression):Option[(String, Set[String])] = expression match {
+    case x:LogicExpression if x.getExpressionSymbol == "AND" =>
+      index_key(x.getLeft).orElse(index_key(x.getRight))
+    case x:ComparisonExpression if x.getExpressionSymbol == "=" =>
+      (x.getLeft, x.getRight) match {
+        case (p:PropertyExpression, c:ConstantExpression) => string_key(p, Seq(c.getValue))
+        case (c:ConstantExpression, p:PropertyExpression) => string_key(p, Seq(c.getValue))
+        case _ => None
+      }
+    case x:UnaryExpression.InExpression if !x.isNot && x.getInList!=null =>
+      x.getRight match {
+        case p:PropertyExpression => string_key(p, x.getInList.toSeq)
+        case _ => None
+      }
+    case _ => None
+  }
+
+  private def string_key(property:PropertyExpression, values:Seq[AnyRef]) = {
+    if( values.forall(_.isInstanceOf[String]) ) {
+      Some((property.getName, values.map(_.asInstanceOf[String]).toSet))
+    } else {
+      None
+    }
+  }
+
+  def index_key(selector:String):Option[(String, Set[String])] = {
+    if( selector==null ) {
+      None
+    } else {
+      try {
+        index_key(SelectorParser.parse(selector))
+      } catch {
+        case e:FilterException =>
+          debug(e, "Not indexing invalid selector: %s", selector)
+          None
+      }
+    }
+  }
+}
+import SelectorIndex._
+
+/**
+ * <p>
+ * Indexes the subscriptions of a queue by the property values their
+ * selectors require, so that dispatching a message looks up the
+ * subscriptions that could match it once, and only evaluates the selectors
+ * of those.  Subscriptions whose selectors cannot be indexed are always
+ * candidates.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SelectorIndex {
+
+  /** the property and values each indexed subscription requires */
+  val keys = new HashMap[Subscription, (String, Set[String])]()
+
+  /** property name -> property value -> subscriptions */
+  val postings = new HashMap[String, HashMap[String, HashSet[Subscription]]]()
+
+  /** the subscriptions that could match any message */
+  val unindexed = new HashSet[Subscription]()
+
+  def add(sub:Subscription):Unit = {
+    index_key(sub.consumer.jms_selector) match {
+      case Some(key) =>
+        val (property, values) = key
+        keys.put(sub, key)
+        var by_value = postings.get(property)
+        if( by_value == null ) {
+          by_value = new HashMap[String, HashSet[Subscription]]()
+          postings.put(property, by_value)
+        }
+        values.foreach { value =>
+          var subs = by_value.get(value)
+          if( subs == null ) {
+            subs = new HashSet[Subscription]()
+            by_value.put(value, subs)
+          }
+          subs.add(sub)
+        }
+      case None =>
+        unindexed.add(sub)
+    }
+  }
+
+  def remove(sub:Subscription):Unit = {
+    val key = keys.remove(sub)
+    if( key!=null ) {
+      val (property, values) = key
+      val by_value = postings.get(property)
+      values.foreach { value =>
+        val subs = by_value.get(value)
+        subs.remove(sub)
+        if( subs.isEmpty ) {
+          by_value.remove(value)
+        }
+      }
+      if( by_value.isEmpty ) {
+        postings.remove(property)
+      }
+    } else {
+      unindexed.remove(sub)
+    }
+  }
+
+  /**
+   * Creates a matcher used while dispatching a single delivery.
+   */
+  def matcher(delivery:Delivery) = new Matcher(delivery)
+
+  class Matcher(val delivery:Delivery) {
+
+    /**
+     * The subscriptions that could match the delivery, null if all of
+     * them could.  Looked up once per delivery.
+     */
+    lazy val candidates:java.util.Set[Subscription] = {
+      if( keys.isEmpty ) {
+        null
+      } else {
+        val rc = new HashSet[Subscription](unindexed)
+        for( (property, by_value) <- postings ) {
+          delivery.message.getProperty(property) match {
+            case value:String =>
+              val subs = by_value.get(value)
+              if( subs!=null ) {
+                rc.addAll(subs)
+              }
+            case null =>
+              // An equality or IN on a missing property never matches.
+            case _ =>
+              // Selectors may convert non string values, let them decide.
+              by_value.values.foreach(rc.addAll(_))
+          }
+        }
+        rc
+      }
+    }
+
+    def could_match(sub:Subscription) = candidates==null || candidates.contains(sub)
+
+    def matches(sub:Subscription):Boolean = could_match(sub) && sub.matches(delivery)
+  }
+
+}
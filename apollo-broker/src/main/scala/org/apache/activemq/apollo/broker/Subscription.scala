@@ -29,7 +29,9 @@ object DeadLetterHandler extends Acquirer
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
-object Subscription extends Log
+object Subscription extends Log {
+  val MESSAGE_GROUP_WEIGHT = 10
+}
 
 /**
  * Interfaces a DispatchConsumer with a Queue.  Tracks current position of the consumer
@@ -47,12 +49,21 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
   var acquired = new LinkedNodeList[AcquiredQueueEntry]
   var session: DeliverySession = null
   var pos:QueueEntry = null
+  // The lane of the queue pos is in, see Queue.lane_subscriptions.
+  var pos_lane = -1
 
   var acquired_size = 0L
   def acquired_count = acquired.size()
 
   var enqueue_size_per_interval = new CircularBuffer[Int](15)
 
+  /** the number of buckets the subscription has on the message group ring */
+  var message_group_weight = MESSAGE_GROUP_WEIGHT
+  /** maintenance intervals in a row the subscription was lagging */
+  var lagging_intervals = 0
+  /** maintenance intervals in a row the subscription was keeping up */
+  var steady_intervals = 0
+
   def create_link_dto(include_metrics:Boolean=true) = {
     val link = new QueueConsumerLinkDTO
     consumer.connection match {
@@ -79,6 +90,9 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
           link.ack_size_rate = size_per_sec
         case _ =>
       }
+      if( owns_message_groups && queue._message_group_buckets != null ) {
+        link.message_group_weight = message_group_weight
+      }
       link.waiting_on = if( full ) {
         "consumer"
       } else if( pos.is_tail ) {
@@ -138,6 +152,15 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
   def browser = consumer.browser
   def exclusive = consumer.exclusive
 
+  /**
+   * A consumer of another partition which is helping to drain this one.
+   * Helpers stay off the message group ring, so they only take the
+   * messages without a message group.
+   */
+  var helper = false
+
+  def owns_message_groups = !browser && !helper
+
   val consumer_buffer = consumer.receive_buffer_size
 
   // This opens up the consumer
@@ -149,6 +172,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
       pos = queue.head_entry;
     }
     assert(pos!=null)
+    update_lane
     consumer.set_starting_seq(pos.seq)
 
     session = consumer.connect(this)
@@ -163,9 +187,10 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     pos ::= this
 
     queue.all_subscriptions += consumer -> this
-    if( !consumer.browser && queue._message_group_buckets != null ) {
+    queue.selector_index.add(this)
+    if( owns_message_groups && queue._message_group_buckets != null ) {
 
-      var iterators = queue._message_group_buckets.add(GroupBucket(this), 10)
+      var iterators = queue._message_group_buckets.add(GroupBucket(this), message_group_weight)
 
       // If we are doing graceful handoffs of message groups...
       if( queue.message_group_graceful_handoff ) {
@@ -215,6 +240,59 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     queue.check_idle
   }
 
+  /**
+   * Changes how many buckets of the message group ring the subscription
+   * owns.  With graceful handoffs, both owners of every moved bucket get
+   * suspended until the previous owner drains.
+   */
+  def reweight_message_groups(weight:Int):Unit = {
+    val ring = queue._message_group_buckets
+    if( !owns_message_groups || ring==null || weight == message_group_weight ) {
+      return
+    }
+    val lowering = weight < message_group_weight
+    message_group_weight = weight
+    val iterators = ring.setWeight(GroupBucket(this), weight)
+    if( iterators!=null ) {
+      import collection.JavaConversions._
+      for ( iterator <- iterators ) {
+
+        // A dropped bucket goes to the next bucket on the ring, an added
+        // bucket is taken from the next bucket which is not ours.
+        var other:Subscription = null
+        if( lowering ) {
+          if( iterator.hasNext ) {
+            other = iterator.next().sub
+          }
+        } else {
+          while ( iterator.hasNext && (other==null || other==this) ) {
+            other = iterator.next().sub
+          }
+        }
+
+        if( other!=null && other!=this ) {
+          queue.message_group_moves += 1
+          if( queue.message_group_graceful_handoff ) {
+            val (from, to) = if( lowering ) (this, other) else (other, this)
+            from.suspend
+            to.suspend
+            queue.message_group_handoffs += 1
+            from.on_drain {
+              queue.message_group_handoffs -= 1
+              // Either side may have been closed in the mean time.
+              if( to.pos!=null ) {
+                to.resume
+              }
+              if( from.pos!=null ) {
+                from.resume
+              }
+            }
+          }
+        }
+      }
+    }
+  }
+
   var suspend_count = 0;
 
   def suspend = suspend_count+=1
@@ -248,10 +326,12 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     if(pos!=null) {
       pos -= this
       pos = null
+      update_lane
 
       queue.exclusive_subscriptions = queue.exclusive_subscriptions.filterNot( _ == this )
       queue.all_subscriptions -= consumer
-      if( !consumer.browser && queue._message_group_buckets != null ) {
+      queue.selector_index.remove(this)
+      if( owns_message_groups && queue._message_group_buckets != null ) {
         queue._message_group_buckets.remove(GroupBucket(this))
         if( queue._message_group_buckets.getNodes.isEmpty ) {
           queue._message_group_buckets = null
@@ -287,6 +367,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
   def advance(value:QueueEntry):Unit = {
     assert(value!=null)
     pos = value
+    update_lane
     if( tail_parked ) {
         if(consumer.close_on_drain) {
           close
@@ -303,11 +384,35 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
     pos -= this
     value ::= this
     pos = value
+    update_lane
     queue.dispatch_queue << value.task // queue up the entry to get dispatched..
   }
 
   def tail_parked = pos eq queue.tail_entry
 
+  /**
+   * Files the subscription under the lane its position is in so that an
+   * out of order enqueue only has to look at the subscriptions it passes.
+   */
+  def update_lane = {
+    val lane = if( pos==null || pos.is_head ) {
+      -1
+    } else if( pos.is_tail ) {
+      Queue.TAIL_LANE
+    } else {
+      pos.priority.toInt
+    }
+    if( lane != pos_lane ) {
+      if( pos_lane >= 0 ) {
+        queue.lane_subscriptions(pos_lane).remove(this)
+      }
+      if( lane >= 0 ) {
+        queue.lane_subscriptions(lane).add(this)
+      }
+      pos_lane = lane
+    }
+  }
+
   def matches(entry:Delivery) = consumer.matches(entry)
   def full = suspend_count > 0 || session.full
 
@@ -347,9 +452,11 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
       val next = cursor.getNext
       // Browsers prefetch all messages..
       // Non-Browsers prefetch non-acquired messages.
-      if( !cursor.prefetched && (browser || !cursor.is_acquired) ) {
+      // Scheduled entries are skipped since they are not due yet.
+      if( !cursor.prefetched && !cursor.scheduled && (browser || !cursor.is_acquired) ) {
         remaining -= cursor.size
         cursor.prefetched = true
+        queue.prefetched_entries += cursor
         cursor.load(queue.consumer_swapped_in)
       }
       cursor = next
@@ -415,6 +522,8 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
         case x:entry.Swapped=> x.acquirer = null
       }
       acquired_size -= entry.size
+      // It left the expiration index if it expired while acquired.
+      queue.index_expiration(entry)
 
       // track for stats
       queue.nack_item_counter += 1
@@ -434,7 +543,7 @@ class Subscription(val queue:Queue, val consumer:DeliveryConsumer) extends Acqui
           } else {
             true // if message was not loaded lets just assume it was.
           }
-          if( !sub.browser && entry.seq < sub.pos.seq && matches) {
+          if( !sub.browser && entry.precedes(sub.pos) && matches) {
             sub.rewind(entry)
           }
 
@@ -0,0 +1,142 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import java.util.concurrent.atomic.AtomicReference
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord
+import org.fusesource.hawtbuf.UTF8Buffer
+
+/**
+ * <p>
+ * Holds the metadata of a run of swapped queue entries in parallel
+ * primitive arrays so that a swapped range can be turned back into
+ * swapped entries without querying the store.  The sender lists are
+ * interned since most entries in a run share the same sender.  The
+ * locators are the same references the store updates when it moves
+ * a message.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SwappedEntryTable(initial_capacity:Int) {
+
+  var length = 0
+
+  var seqs = new Array[Long](initial_capacity)
+  var message_keys = new Array[Long](initial_capacity)
+  var locators = new Array[AtomicReference[Object]](initial_capacity)
+  var sizes = new Array[Int](initial_capacity)
+  var expirations = new Array[Long](initial_capacity)
+  var deliver_ats = new Array[Long](initial_capacity)
+  var redeliveries = new Array[Short](initial_capacity)
+  var sender_ids = new Array[Int](initial_capacity)
+
+  var senders = new Array[List[DestinationAddress]](1)
+  var sender_count = 0
+
+  private def ensure_capacity(needed:Int) = {
+    if( needed > seqs.length ) {
+      val capacity = needed.max(seqs.length + (seqs.length >> 1))
+      def grow[T:Manifest](values:Array[T]) = {
+        val rc = new Array[T](capacity)
+        System.arraycopy(values, 0, rc, 0, length)
+        rc
+      }
+      seqs = grow(seqs)
+      message_keys = grow(message_keys)
+      locators = grow(locators)
+      sizes = grow(sizes)
+      expirations = grow(expirations)
+      deliver_ats = grow(deliver_ats)
+      redeliveries = grow(redeliveries)
+      sender_ids = grow(sender_ids)
+    }
+  }
+
+  private def intern(sender:List[DestinationAddress]):Int = {
+    // Most of the time the sender is the same as the last one added.
+    if( length > 0 && (senders(sender_ids(length-1)) eq sender) ) {
+      return sender_ids(length-1)
+    }
+    var i = 0
+    while( i < sender_count ) {
+      if( senders(i) == sender ) {
+        return i
+      }
+      i += 1
+    }
+    if( sender_count == senders.length ) {
+      val rc = new Array[List[DestinationAddress]](sender_count*2)
+      System.arraycopy(senders, 0, rc, 0, sender_count)
+      senders = rc
+    }
+    senders(sender_count) = sender
+    sender_count += 1
+    sender_count - 1
+  }
+
+  private def append(seq:Long, message_key:Long, locator:AtomicReference[Object], size:Int, expiration:Long, deliver_at:Long, redelivery_count:Short, sender:List[DestinationAddress]):Unit = {
+    seqs(length) = seq
+    message_keys(length) = message_key
+    locators(length) = locator
+    sizes(length) = size
+    expirations(length) = expiration
+    deliver_ats(length) = deliver_at
+    redeliveries(length) = redelivery_count
+    sender_ids(length) = intern(sender)
+    length += 1
+  }
+
+  def add(entry:QueueEntry):Unit = {
+    val state = entry.state
+    add(entry.seq, state.message_key, state.message_locator, state.size, state.expiration, state.deliver_at, state.redelivery_count, state.sender)
+  }
+
+  def add(seq:Long, message_key:Long, locator:AtomicReference[Object], size:Int, expiration:Long, deliver_at:Long, redelivery_count:Short, sender:List[DestinationAddress]):Unit = {
+    ensure_capacity(length+1)
+    append(seq, message_key, locator, size, expiration, deliver_at, redelivery_count, sender)
+  }
+
+  def add_all(other:SwappedEntryTable):Unit = {
+    ensure_capacity(length+other.length)
+    var i = 0
+    while( i < other.length ) {
+      append(other.seqs(i), other.message_keys(i), other.locators(i), other.sizes(i), other.expirations(i), other.deliver_ats(i), other.redeliveries(i), other.sender(i))
+      i += 1
+    }
+  }
+
+  def locator(i:Int) = locators(i)
+
+  def sender(i:Int) = senders(sender_ids(i))
+
+  def to_queue_entry_record(queue_key:Long, priority:Byte, i:Int) = {
+    val qer = new QueueEntryRecord
+    qer.queue_key = queue_key
+    qer.entry_seq = seqs(i)
+    qer.message_key = message_keys(i)
+    qer.message_locator = locator(i)
+    qer.size = sizes(i)
+    qer.expiration = expirations(i)
+    qer.deliver_at = deliver_ats(i)
+    qer.redeliveries = redeliveries(i)
+    qer.priority = priority
+    qer.sender = sender(i).map(x=> new UTF8Buffer(x.toString))
+    qer
+  }
+
+}
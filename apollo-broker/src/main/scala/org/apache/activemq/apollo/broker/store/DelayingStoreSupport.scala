@@ -23,13 +23,23 @@ import java.util.concurrent._
 import atomic.AtomicInteger
 import org.apache.activemq.apollo.util._
 import org.fusesource.hawtdispatch.{BaseRetained, ListEventAggregator}
-import org.apache.activemq.apollo.dto.{StoreStatusDTO, TimeMetricDTO, IntMetricDTO}
+import org.apache.activemq.apollo.dto.{StoreDTO, StoreStatusDTO, TimeMetricDTO, IntMetricDTO}
 import org.fusesource.hawtbuf.Buffer
 import java.lang.ref.WeakReference
 import language.implicitConversions
 import java.io.{PrintWriter, StringWriter}
 
-object DelayingStoreSupport extends Log
+object DelayingStoreSupport extends Log {
+
+  /** how often the adaptive flush delay gets tuned in ms */
+  final val FLUSH_DELAY_TUNE_INTERVAL = 1000L
+  /** how many enqueues have to be canceled or flushed before tuning */
+  final val FLUSH_DELAY_TUNE_SAMPLE = 100L
+  /** cancel ratios above this grow the adaptive flush delay */
+  final val HIGH_CANCEL_RATIO = 0.5
+  /** cancel ratios below this shrink the adaptive flush delay */
+  final val LOW_CANCEL_RATIO = 0.1
+}
 
 sealed trait UowState {
   def stage:Int
@@ -87,6 +97,12 @@ trait DelayingStoreSupport extends Store with BaseService {
 
   protected def flush_delay:Long
 
+  /**
+   * The store's configuration, the adaptive flush delay settings get read
+   * from it.
+   */
+  protected def store_config:StoreDTO
+
   protected def get_next_msg_key:Long
 
   protected def store(uows: Seq[DelayableUOW])(callback: =>Unit):Unit
@@ -118,17 +134,108 @@ trait DelayingStoreSupport extends Store with BaseService {
 
       var msg= 0L
       var message_record: MessageRecord = null
-      var enqueues = ListBuffer[QueueEntryRecord]()
-      var dequeues = ListBuffer[QueueEntryRecord]()
+      // The memory held while the message store is pending.
+      var pending_size = 0
+      // Lists so that actions without enqueues or dequeues don't allocate.
+      var enqueues: List[QueueEntryRecord] = Nil
+      var dequeues: List[QueueEntryRecord] = Nil
 
       def uow = DelayableUOW.this
-      def isEmpty() = message_record==null && enqueues==Nil && dequeues==Nil
+      def isEmpty() = message_record==null && enqueues.isEmpty && dequeues.isEmpty
 
       def cancel() = {
         uow.rm(msg)
       }
     }
 
+    /**
+     * The message actions of the unit of work in the order they were added.
+     * Most units of work only have one or two, so they are kept in an array
+     * which only gets a hash index when it grows large.  Removed actions
+     * leave a hole behind so that they can be removed while iterating.
+     */
+    class MessageActionList {
+      private var array = new Array[MessageAction](2)
+      private var count = 0
+      private var live = 0
+      private var index: LongPairHashMap[MessageAction] = null
+
+      def size = live
+      def isEmpty = live == 0
+
+      /**
+       * @return the action of the message or null.
+       */
+      def get(msg:Long):MessageAction = {
+        if( index!=null ) {
+          index.get(msg)
+        } else {
+          var i = 0
+          while( i < count ) {
+            val action = array(i)
+            if( action!=null && action.msg == msg ) {
+              return action
+            }
+            i += 1
+          }
+          null
+        }
+      }
+
+      def add(action:MessageAction) = {
+        if( count == array.length ) {
+          if( live < count ) {
+            // Fill in the holes first.
+            var j = 0
+            for( i <- 0 until count if array(i)!=null ) {
+              array(j) = array(i)
+              j += 1
+            }
+            java.util.Arrays.fill(array.asInstanceOf[Array[AnyRef]], j, count, null)
+            count = j
+          } else {
+            val grown = new Array[MessageAction](count*2)
+            System.arraycopy(array, 0, grown, 0, count)
+            array = grown
+          }
+        }
+        array(count) = action
+        count += 1
+        live += 1
+        if( index!=null ) {
+          index.put(action.msg, action)
+        } else if( live > 8 ) {
+          index = new LongPairHashMap[MessageAction](live*2)
+          foreach(x=> index.put(x.msg, x))
+        }
+      }
+
+      def remove(msg:Long) = {
+        var i = 0
+        while( i < count && (array(i)==null || array(i).msg != msg) ) {
+          i += 1
+        }
+        if( i < count ) {
+          array(i) = null
+          live -= 1
+          if( index!=null ) {
+            index.remove(msg)
+          }
+        }
+      }
+
+      def foreach[U](func:MessageAction=>U):Unit = {
+        var i = 0
+        while( i < count ) {
+          val action = array(i)
+          if( action!=null ) {
+            func(action)
+          }
+          i += 1
+        }
+      }
+    }
+
     val uow_id:Int = next_batch_id.getAndIncrement
     var close_ts:Long = 0
 
@@ -147,9 +254,17 @@ trait DelayingStoreSupport extends Store with BaseService {
       this._state = next
     }
 
-    private var complete_listeners = ListBuffer[(Boolean) => Unit]()
+    // Only allocated when someone listens.
+    private var complete_listeners:ListBuffer[(Boolean) => Unit] = null
 
-    var actions = Map[Long, MessageAction]()
+    private def add_complete_listener(callback: (Boolean)=>Unit) = {
+      if( complete_listeners==null ) {
+        complete_listeners = ListBuffer()
+      }
+      complete_listeners += callback
+    }
+
+    val actions = new MessageActionList
     var map_actions = Map[Buffer, Buffer]()
 
 
@@ -162,7 +277,7 @@ trait DelayingStoreSupport extends Store with BaseService {
         if( state.stage >= UowFlushed.stage ) {
           Some(canceled)
         } else {
-          complete_listeners += callback
+          add_complete_listener(callback)
           None
         }
       }).foreach(callback(_))
@@ -170,14 +285,16 @@ trait DelayingStoreSupport extends Store with BaseService {
 
 
     def on_complete(callback: (Boolean)=>Unit) = {
-      var (completed, value) = this.synchronized {
+      var completed = false
+      var value = false
+      this.synchronized {
         if (state eq UowCompleted) {
-          (true, canceled)
+          completed = true
         } else {
           flush_sync = true
-          complete_listeners += callback
-          (false, canceled)
+          add_complete_listener(callback)
         }
+        value = canceled
       }
       if(completed) {
         callback(value)
@@ -198,10 +315,10 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     var delayable_actions = 0
 
-    def delayable = !flush_asap && delayable_actions>0 && flush_delay>=0
+    def delayable = !flush_asap && delayable_actions>0 && current_flush_delay>=0
 
     def rm(msg:Long) = {
-      actions -= msg
+      actions.remove(msg)
       if( actions.isEmpty && map_actions.isEmpty && state.stage < UowFlushing.stage ) {
         cancel
       }
@@ -219,44 +336,53 @@ trait DelayingStoreSupport extends Store with BaseService {
       val action = new MessageAction
       action.msg = record.key
       action.message_record = record
+      action.pending_size = if( record.buffer!=null ) {
+        record.buffer.length
+      } else if( record.direct_buffer!=null ) {
+        record.direct_buffer.size
+      } else {
+        0
+      }
       on_store_requested(record)
       this.synchronized {
-        actions += record.key -> action
-        pending_stores.put(action.message_record.key, action)
+        actions.add(action)
+        add_pending_store(action)
       }
       delayable_actions += 1
       record.key
     }
 
     def action(msg:Long) = {
-      actions.get(msg) match {
-        case Some(x) => x
-        case None =>
-          val x = new MessageAction
-          x.msg = msg
-          actions += msg->x
-          x
+      var x = actions.get(msg)
+      if( x==null ) {
+        x = new MessageAction
+        x.msg = msg
+        actions.add(x)
       }
+      x
     }
 
     def enqueue(entry: QueueEntryRecord) = {
       assert( !locator_based || entry.message_locator!=null )
-      val a = this.synchronized {
+      this.synchronized {
         val a = action(entry.message_key)
-        a.enqueues += entry
+        a.enqueues = entry :: a.enqueues
         delayable_actions += 1
-        cancelable_enqueue_actions.put(key(entry), a)
+        cancelable_enqueue_actions.synchronized {
+          cancelable_enqueue_actions.put(entry.queue_key, entry.entry_seq, a)
+        }
       }
     }
 
     def dequeue(entry: QueueEntryRecord) = {
       this.synchronized {
-        action(entry.message_key).dequeues += entry
+        val a = action(entry.message_key)
+        a.dequeues = entry :: a.dequeues
       }
     }
     
     def have_locators:Boolean = {
-      actions.values.foreach{ a =>
+      actions.foreach{ a =>
         // There must either be a dequeue or a message record for a enqueue request.
         // if not, then there should be a message locator
         if( a.message_record==null ) {
@@ -289,7 +415,9 @@ trait DelayingStoreSupport extends Store with BaseService {
       if ( state.stage < UowCompleted.stage ) {
         state = UowCompleted
         close_latency_counter += System.nanoTime-close_ts
-        complete_listeners.foreach(_(canceled))
+        if( complete_listeners!=null ) {
+          complete_listeners.foreach(_(canceled))
+        }
         super.dispose
       }
     }
@@ -350,7 +478,11 @@ trait DelayingStoreSupport extends Store with BaseService {
     rc.canceled_enqueue_counter = metric_canceled_enqueue_counter
     rc.flushed_message_counter = metric_flushed_message_counter
     rc.flushed_enqueue_counter = metric_flushed_enqueue_counter
-    rc.pending_stores = pending_stores.size
+    pending_stores.synchronized {
+      rc.pending_stores = pending_stores.size
+      rc.pending_store_size = pending_store_size
+    }
+    rc.flush_delay = current_flush_delay
   }
 
   def detailed_pending_status = {
@@ -361,20 +493,36 @@ trait DelayingStoreSupport extends Store with BaseService {
 
     out.println("--- Pending Stores Details ---")
     out.println("flush_source suspended: "+flush_source.isSuspended)
-    pending_stores.valuesIterator.foreach{ action =>
+    pending_stores.synchronized(pending_stores.values).foreach{ action =>
       out.println("uow: %d, state:%s".format(action.uow.uow_id, action.uow.state))
     }
     writer.toString
   }
 
-  def key(x:QueueEntryRecord) = (x.queue_key, x.entry_seq)
-
   val uow_source = createSource(new ListEventAggregator[DelayableUOW](), dispatch_queue)
   uow_source.setEventHandler(^{drain_uows});
   uow_source.resume
 
-  val pending_stores = new ConcurrentHashMap[Long, DelayableUOW#MessageAction]()
-  var cancelable_enqueue_actions = new ConcurrentHashMap[(Long,Long), DelayableUOW#MessageAction]()
+  // Keyed by primitive longs so that tracking them does not allocate.  Both
+  // get synchronized on, units of work get added from the producer threads.
+  /** the actions storing messages keyed by message key */
+  val pending_stores = new LongPairHashMap[DelayableUOW#MessageAction]()
+  /** the actions with enqueues which can still be canceled keyed by queue key and seq */
+  val cancelable_enqueue_actions = new LongPairHashMap[DelayableUOW#MessageAction]()
+  /** the memory held by the pending stores, guarded by pending_stores */
+  var pending_store_size = 0L
+
+  private def add_pending_store(action:DelayableUOW#MessageAction) = pending_stores.synchronized {
+    pending_stores.put(action.msg, action)
+    pending_store_size += action.pending_size
+  }
+
+  private def remove_pending_store(msg:Long) = pending_stores.synchronized {
+    val action = pending_stores.remove(msg)
+    if( action!=null ) {
+      pending_store_size -= action.pending_size
+    }
+  }
 
   val next_batch_id = new AtomicInteger(1)
 
@@ -390,11 +538,12 @@ trait DelayingStoreSupport extends Store with BaseService {
 
 
       if( uow.state.stage < UowFlushing.stage ) {
-        uow.actions.foreach { case (msg, action) =>
+        uow.actions.foreach { action =>
+          val msg = action.msg
 
           // The UoW may have been canceled.
           if( action.message_record!=null && action.enqueues.isEmpty ) {
-            pending_stores.remove(msg)
+            remove_pending_store(msg)
             action.message_record = null
             uow.delayable_actions -= 1
             metric_canceled_message_counter += 1
@@ -406,8 +555,9 @@ trait DelayingStoreSupport extends Store with BaseService {
           // dequeues can cancel out previous enqueues
           action.dequeues.foreach { entry=>
 
-            val entry_key = key(entry)
-            val prev_action:DelayableUOW#MessageAction = cancelable_enqueue_actions.remove(entry_key)
+            val prev_action:DelayableUOW#MessageAction = cancelable_enqueue_actions.synchronized {
+              cancelable_enqueue_actions.remove(entry.queue_key, entry.entry_seq)
+            }
 
             if( prev_action!=null ) {
               val prev_uow = prev_action.uow
@@ -419,12 +569,12 @@ trait DelayingStoreSupport extends Store with BaseService {
                   metric_canceled_enqueue_counter += 1
 
                   // yay we can cancel out a previous enqueue
-                  prev_action.enqueues = prev_action.enqueues.filterNot( x=> key(x) == entry_key )
+                  prev_action.enqueues = prev_action.enqueues.filterNot( x=> x.queue_key == entry.queue_key && x.entry_seq == entry.entry_seq )
 
                   if( prev_uow.state.stage >= UowDelayed.stage ) {
                     // if the message is not in any queues.. we can gc it..
                     if( prev_action.enqueues.isEmpty && prev_action.message_record !=null ) {
-                      pending_stores.remove(msg)
+                      remove_pending_store(msg)
                       prev_action.message_record = null
                       prev_uow.delayable_actions -= 1
                       metric_canceled_message_counter += 1
@@ -466,7 +616,7 @@ trait DelayingStoreSupport extends Store with BaseService {
   }
 
   def flush_message(message_key: Long)(cb: => Unit) = event_source.merge(^{
-    pending_stores.get(message_key) match {
+    pending_stores.synchronized(pending_stores.get(message_key)) match {
       case null => cb
       case action =>
         val uow = action.uow
@@ -476,7 +626,7 @@ trait DelayingStoreSupport extends Store with BaseService {
   })
 
   private def schedule_flush(ref: WeakReference[DelayableUOW]) {
-    dispatch_queue.executeAfter(flush_delay, TimeUnit.MILLISECONDS, ^ {
+    dispatch_queue.executeAfter(current_flush_delay, TimeUnit.MILLISECONDS, ^ {
       val uow = ref.get();
       if (uow != null) {
         queue_flush(uow)
@@ -498,6 +648,14 @@ trait DelayingStoreSupport extends Store with BaseService {
   val flush_latency_counter = new TimeCounter
   var flush_latency = flush_latency_counter(false)
 
+  /**
+   * How many batches of units of work can be handed to the store before
+   * the first one completes.  Stores which pipeline their writes can allow
+   * more than one, they must still complete the batches in order.
+   */
+  protected def max_flushes_in_flight = 1
+  var flushes_in_flight = 0
+
   def drain_flushes:Unit = {
     dispatch_queue.assertExecuting()
 
@@ -513,9 +671,11 @@ trait DelayingStoreSupport extends Store with BaseService {
         uow.state = UowFlushing
         assert( !locator_based || uow.have_locators )
         // It will not be possible to cancel the UOW anymore..
-        uow.actions.foreach { case (_, action) =>
+        uow.actions.foreach { action =>
           action.enqueues.foreach { queue_entry=>
-            val action = cancelable_enqueue_actions.remove(key(queue_entry))
+            val action = cancelable_enqueue_actions.synchronized {
+              cancelable_enqueue_actions.remove(queue_entry.queue_key, queue_entry.entry_seq)
+            }
             assert(action!=null)
           }
         }
@@ -523,25 +683,32 @@ trait DelayingStoreSupport extends Store with BaseService {
       }
     }
     if( !uows.isEmpty ) {
+      val flush_start = System.nanoTime
       flush_latency_counter.start { end=>
-        flush_source.suspend
+        flushes_in_flight += 1
+        if( flushes_in_flight == max_flushes_in_flight ) {
+          flush_source.suspend
+        }
         store(uows) {
           assert_executing
-          flush_source.resume
+          if( flushes_in_flight == max_flushes_in_flight ) {
+            flush_source.resume
+          }
+          flushes_in_flight -= 1
           store_completed(uows)
           dispatch_queue.assertExecuting()
           uows.foreach { uow=>
-            uow.actions.foreach { case (msg, action) =>
+            uow.actions.foreach { action =>
               if( action.message_record !=null ) {
                 metric_flushed_message_counter += 1
-                pending_stores.remove(msg)
-              }
-              action.enqueues.foreach { queue_entry=>
-                metric_flushed_enqueue_counter += 1
+                remove_pending_store(action.msg)
               }
+              metric_flushed_enqueue_counter += action.enqueues.size
             }
           }
           end()
+          tune_flush_latency_counter += System.nanoTime - flush_start
+          tune_flush_delay
         }
       }
     }
@@ -553,5 +720,83 @@ trait DelayingStoreSupport extends Store with BaseService {
     }
   }
 
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Adaptive flush delay
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def adaptive_flush_delay = OptionSupport(store_config.adaptive_flush_delay).getOrElse(false)
+  def min_flush_delay = OptionSupport(store_config.min_flush_delay).getOrElse(0L)
+  def max_flush_delay = OptionSupport(store_config.max_flush_delay).getOrElse(5000L).max(min_flush_delay)
+  def max_pending_store_size = Option(store_config.max_pending_store_size).map(MemoryPropertyEditor.parse(_)).getOrElse(1024*1024*64L)
+
+  @volatile
+  private var adapted_flush_delay = -1L
+
+  /**
+   * The flush delay in use.  In the adaptive mode it starts at the
+   * configured flush delay and then gets tuned as the flushes complete.
+   */
+  def current_flush_delay:Long = {
+    if( adaptive_flush_delay ) {
+      if( adapted_flush_delay < 0 ) {
+        adapted_flush_delay = flush_delay.max(min_flush_delay).min(max_flush_delay)
+      }
+      adapted_flush_delay
+    } else {
+      flush_delay
+    }
+  }
+
+  private val tune_flush_latency_counter = new TimeCounter
+  private var last_tune_time = 0L
+  private var last_tune_canceled_enqueues = 0L
+  private var last_tune_flushed_enqueues = 0L
+
+  /**
+   * The delay pays off when the enqueues get canceled by their dequeues
+   * before they are flushed, so it grows while most of them do.  When
+   * most don't the consumers are not keeping up and the delay only adds
+   * latency, and the memory held by the pending stores, so it shrinks.
+   * It never shrinks below the flush latency since the units of work
+   * would wait for the flush in progress anyways.
+   */
+  private def tune_flush_delay:Unit = {
+    dispatch_queue.assertExecuting()
+    if( !adaptive_flush_delay ) {
+      return
+    }
+    val now = System.currentTimeMillis()
+    if( now - last_tune_time < FLUSH_DELAY_TUNE_INTERVAL ) {
+      return
+    }
+
+    val canceled = metric_canceled_enqueue_counter - last_tune_canceled_enqueues
+    val flushed = metric_flushed_enqueue_counter - last_tune_flushed_enqueues
+    val over_limit = pending_stores.synchronized(pending_store_size) > max_pending_store_size
+    if( !over_limit && canceled + flushed < FLUSH_DELAY_TUNE_SAMPLE ) {
+      return
+    }
 
+    val flush_latency = TimeUnit.NANOSECONDS.toMillis(tune_flush_latency_counter(true).max)
+    val lower = flush_latency.max(min_flush_delay).min(max_flush_delay)
+    val cancel_ratio = canceled.toDouble / (canceled + flushed).max(1)
+    val delay = current_flush_delay
+    val next = if( over_limit || cancel_ratio < LOW_CANCEL_RATIO ) {
+      delay / 2
+    } else if( cancel_ratio > HIGH_CANCEL_RATIO ) {
+      (delay * 2).max(10)
+    } else {
+      delay
+    }
+    adapted_flush_delay = next.max(lower).min(max_flush_delay)
+    if( adapted_flush_delay != delay ) {
+      debug("%s flush delay changed from %d to %d ms, cancel ratio: %.2f, pending store size: %d", this, delay, adapted_flush_delay, cancel_ratio, pending_store_size)
+    }
+
+    last_tune_time = now
+    last_tune_canceled_enqueues = metric_canceled_enqueue_counter
+    last_tune_flushed_enqueues = metric_flushed_enqueue_counter
+  }
 }
@@ -23,9 +23,10 @@ import org.apache.activemq.apollo.util._
 import java.nio.channels.FileChannel.MapMode
 import java.security.{AccessController, PrivilegedAction}
 import java.nio.{MappedByteBuffer, ByteBuffer}
-import java.util.concurrent.atomic.AtomicInteger
-import java.util.concurrent.{ConcurrentLinkedQueue, ConcurrentHashMap, TimeUnit}
+import java.util.concurrent.atomic.{AtomicReference, AtomicInteger}
+import java.util.concurrent.{ConcurrentHashMap, TimeUnit}
 import java.util.Comparator
+import org.apache.activemq.apollo.dto.HeapBypassStatusDTO
 
 /**
  * <p>Tracks allocated space</p>
@@ -34,6 +35,8 @@ import java.util.Comparator
  */
 case class Allocation(offset:Long, size:Int) {
   var _free_func: (Allocation)=>Unit = _
+  // links the allocations waiting to be freed.
+  var _next: Allocation = _
   def free() = {
     _free_func(this)
   }
@@ -253,6 +256,99 @@ class ActiveAllocator(val range:Range) extends Allocator {
 
 }
 
+object SlabAllocator {
+  /** the smallest size class, 64 bytes */
+  final val MIN_CLASS = 6
+  /** the largest size class, 1 MB */
+  final val MAX_CLASS = 20
+  /** how much space gets carved out for a size class at a time */
+  final val SLAB_SIZE = 1024*1024
+
+  def size_class(size:Int) = {
+    if( size <= (1 << MIN_CLASS) ) {
+      MIN_CLASS
+    } else {
+      32 - Integer.numberOfLeadingZeros(size - 1)
+    }
+  }
+}
+
+/**
+ * <p>
+ * Hands out space in power of two size classes.  Each class keeps a stack
+ * of its free offsets so allocating and freeing is O(1) and does not create
+ * garbage.  The space of a class gets carved out of the tree allocator a
+ * slab at a time and is never given back to it.  Requests larger than the
+ * largest class are passed on to the tree allocator.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SlabAllocator(val tree:TreeAllocator) extends Allocator {
+  import SlabAllocator._
+
+  val free_offsets = new Array[Array[Long]](MAX_CLASS - MIN_CLASS + 1)
+  val free_counts = new Array[Int](MAX_CLASS - MIN_CLASS + 1)
+
+  /** the space carved out for the slabs */
+  var slab_size = 0L
+  /** the space in the slabs which is free */
+  var slab_free_size = 0L
+
+  val free_func = free _
+
+  def alloc(request:Int):Allocation = {
+    val size_class = SlabAllocator.size_class(request)
+    if( size_class > MAX_CLASS ) {
+      return tree.alloc(request)
+    }
+    val i = size_class - MIN_CLASS
+    if( free_counts(i) == 0 && !carve(size_class) ) {
+      return null
+    }
+    free_counts(i) -= 1
+    slab_free_size -= 1 << size_class
+    val allocation = Allocation(free_offsets(i)(free_counts(i)), request)
+    allocation._free_func = free_func
+    allocation
+  }
+
+  def free(allocation:Allocation):Unit = {
+    val size_class = SlabAllocator.size_class(allocation.size)
+    push(size_class - MIN_CLASS, allocation.offset)
+    slab_free_size += 1 << size_class
+  }
+
+  private def push(i:Int, offset:Long) = {
+    var offsets = free_offsets(i)
+    if( offsets == null ) {
+      offsets = new Array[Long](16)
+      free_offsets(i) = offsets
+    } else if( free_counts(i) == offsets.length ) {
+      offsets = java.util.Arrays.copyOf(offsets, offsets.length * 2)
+      free_offsets(i) = offsets
+    }
+    offsets(free_counts(i)) = offset
+    free_counts(i) += 1
+  }
+
+  private def carve(size_class:Int):Boolean = {
+    val item_size = 1 << size_class
+    val slab = tree.alloc(SLAB_SIZE.max(item_size))
+    if( slab == null ) {
+      return false
+    }
+    var offset = slab.offset + slab.size - item_size
+    while( offset >= slab.offset ) {
+      push(size_class - MIN_CLASS, offset)
+      offset -= item_size
+    }
+    slab_size += slab.size
+    slab_free_size += slab.size
+    true
+  }
+}
+
 /**
  * <p>The ByteBufferReleaser allows you to more eagerly deallocate byte buffers.</p>
  *
@@ -314,15 +410,26 @@ object FileDirectBufferAllocator {
   }
 }
 
-class FileDirectBufferAllocator(val file:File) extends DirectBufferAllocator {
+/**
+ * <p>Allocates direct buffers on a file.  Only the owning thread may
+ * allocate, buffers can be disposed from any thread.  Slabs should only be
+ * used for temporary files since the size classes are not tracked by
+ * alloc_at and free.</p>
+ */
+class FileDirectBufferAllocator(val file:File, val use_slabs:Boolean=false) extends DirectBufferAllocator {
   import FileDirectBufferAllocator._
 
   file.getParentFile.mkdirs()
 
   val allocator = new TreeAllocator(Range(0, Long.MaxValue))
+  val slabs = if( use_slabs ) new SlabAllocator(allocator) else null
   val channel:FileChannel = new RandomAccessFile(file, "rw").getChannel
-  val free_queue = new ConcurrentLinkedQueue[Allocation]()
+  // A lock free stack of the allocations disposed by any thread, linked
+  // through the allocations so that queuing them does not allocate.
+  val free_stack = new AtomicReference[Allocation]()
   var current_size = 0L
+  /** the size of the buffers allocated by alloc which are not freed yet */
+  var allocated_size = 0L
   var _mmap:MappedByteBuffer = _
 
   channel.truncate(0);
@@ -382,7 +489,7 @@ class FileDirectBufferAllocator(val file:File) extends DirectBufferAllocator {
     }
 
     override def dispose: Unit = {
-      free_queue.add(allocation)
+      queue_free(allocation)
       if( buffer!=null ) {
         ByteBufferReleaser.release(buffer)
         buffer = null
@@ -496,9 +603,14 @@ class FileDirectBufferAllocator(val file:File) extends DirectBufferAllocator {
 
   def alloc(size: Int) = {
     drain_free_allocations
-    val allocation = allocator.alloc(size)
+    val allocation = if( slabs!=null ) {
+      slabs.alloc(size)
+    } else {
+      allocator.alloc(size)
+    }
     assert(allocation!=null)
     current_size = current_size.max(allocation.offset + allocation.size)
+    allocated_size += size
     new AllocationBuffer(allocation)
   }
 
@@ -514,11 +626,41 @@ class FileDirectBufferAllocator(val file:File) extends DirectBufferAllocator {
     new AllocationBuffer(Allocation(offset, size))
   }
 
+  def queue_free(allocation:Allocation):Unit = {
+    while( true ) {
+      val head = free_stack.get
+      allocation._next = head
+      if( free_stack.compareAndSet(head, allocation) ) {
+        return
+      }
+    }
+  }
+
   def drain_free_allocations = {
-    var allocation = free_queue.poll()
-    while( allocation!=null ) {
-      allocator.free(allocation)
-      allocation = free_queue.poll()
+    if( free_stack.get!=null ) {
+      var allocation = free_stack.getAndSet(null)
+      while( allocation!=null ) {
+        val next = allocation._next
+        allocation._next = null
+        if( allocation._free_func!=null ) {
+          // it came from alloc, free it where it came from.
+          allocated_size -= allocation.size
+          allocation.free()
+        } else {
+          allocator.free(allocation)
+        }
+        allocation = next
+      }
+    }
+  }
+
+  def fill_status(rc:HeapBypassStatusDTO) = {
+    rc.files += 1
+    rc.file_size += current_size
+    rc.allocated_size += allocated_size
+    if( slabs!=null ) {
+      rc.slab_size += slabs.slab_size
+      rc.slab_free_size += slabs.slab_free_size
     }
   }
 
@@ -566,11 +708,22 @@ class ConcurrentFileDirectBufferAllocator(val directory:File) extends DirectBuff
         throw new IllegalStateException("Stopped");
       } else {
         var id = context_counter.incrementAndGet();
-        ctx = new FileDirectBufferAllocator(new File(directory, "zerocp-"+id+".data" ))
+        ctx = new FileDirectBufferAllocator(new File(directory, "zerocp-"+id+".data" ), true)
         contexts.put(thread, ctx);
       }
     }
     ctx.alloc(size)
   }
 
+  /**
+   * The space used by the files.  The numbers are updated by the owning
+   * threads, so they are only approximate.
+   */
+  def status = {
+    import collection.JavaConversions._
+    val rc = new HeapBypassStatusDTO
+    contexts.values().foreach(_.fill_status(rc))
+    rc
+  }
+
 }
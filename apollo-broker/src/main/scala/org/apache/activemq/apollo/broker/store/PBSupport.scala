@@ -2,7 +2,7 @@ package org.apache.activemq.apollo.broker.store
 
 import java.io.{OutputStream, InputStream}
 import org.fusesource.hawtbuf.Buffer
-import org.apache.activemq.apollo.broker.DestinationAddress
+import org.apache.activemq.apollo.broker.{Delivery, DestinationAddress}
 import collection.mutable.ListBuffer
 import language.implicitConversions;
 
@@ -88,6 +88,10 @@ object PBSupport {
       pb.setExpiration(v.expiration)
     if(v.redeliveries!=0)
       pb.setRedeliveries(v.redeliveries)
+    if(v.priority!=Delivery.DEFAULT_PRIORITY)
+      pb.setPriority(v.priority)
+    if(v.deliver_at!=0)
+      pb.setDeliverAt(v.deliver_at)
     if ( v.sender!=null ) {
       v.sender.foreach(pb.addSender(_))
     }
@@ -103,6 +107,10 @@ object PBSupport {
     rc.size = pb.getSize
     rc.expiration = pb.getExpiration
     rc.redeliveries = pb.getRedeliveries.toShort
+    if( pb.hasPriority ) {
+      rc.priority = pb.getPriority.toByte
+    }
+    rc.deliver_at = pb.getDeliverAt
     var senderList = pb.getSenderList
     if( senderList!=null ) {
       rc.sender = senderList.toList
@@ -17,6 +17,8 @@
 
 package org.apache.activemq.apollo.broker.store
 
+import org.apache.activemq.apollo.broker.Delivery
+
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
@@ -25,5 +27,11 @@ class QueueEntryRange {
   var last_entry_seq = 0L
   var count = 0
   var size = 0
+  /** when the earliest entry in the range expires or 0 if none expire */
   var expiration = 0L
+  /** when the last entry in the range expires or 0 if some never expire */
+  var latest_expiration = 0L
+  var priority:Byte = Delivery.DEFAULT_PRIORITY
+  /** when the earliest scheduled entry in the range is due or 0 if the range is not scheduled */
+  var deliver_at = 0L
 }
\ No newline at end of file
@@ -20,6 +20,7 @@ package org.apache.activemq.apollo.broker.store
 
 
 import org.fusesource.hawtbuf.Buffer
+import org.apache.activemq.apollo.broker.Delivery
 import java.util.concurrent.atomic.AtomicReference
 import collection.mutable.ListBuffer
 
@@ -37,5 +38,7 @@ class QueueEntryRecord {
   var expiration = 0L
   var redeliveries:Short = 0
   var sender:List[Buffer] = _
+  var priority:Byte = Delivery.DEFAULT_PRIORITY
+  var deliver_at = 0L
 
 }
@@ -62,12 +62,56 @@ case class ExportStreamManager(target:OutputStream, version:Int) {
   def store_message(value:MessagePB.Getter) = {
     store("msg", value.freeze())
   }
+
+  /**
+   * A map entry without a value records that the entry was removed.
+   */
   def store_map_entry(value:MapEntryPB.Getter) = {
     store("map", value.freeze())
   }
 
+  /**
+   * Records the journal position the exported data is consistent with.  An
+   * incremental export of the changes made since then can be taken later.
+   */
+  def store_position(pos:Long) = {
+    store("pos", new AsciiBuffer(pos.toString))
+  }
+
+  /**
+   * Marks the export as holding only the changes made since the export
+   * taken at the given journal position.  Has to come before the data.
+   */
+  def store_increment_base(pos:Long) = {
+    store("inc", new AsciiBuffer(pos.toString))
+  }
+
+  def store_queue_entry_removal(value:RemovedQueueEntry) = {
+    val record = new QueueEntryPB.Bean
+    record.setQueueKey(value.queue_key)
+    record.setQueueSeq(value.queue_seq)
+    record.setMessageKey(0)
+    store("rqe", record.freeze())
+  }
+
+  def store_queue_removal(value:RemovedQueue) = {
+    val record = new QueuePB.Bean
+    record.setKey(value.queue_key)
+    store("rqu", record.freeze())
+  }
+
 }
 
+/**
+ * A queue entry an incremental export removes.
+ */
+case class RemovedQueueEntry(queue_key:Long, queue_seq:Long)
+
+/**
+ * A queue an incremental export removes along with its entries.
+ */
+case class RemovedQueue(queue_key:Long)
+
 case class ImportStreamManager(source:InputStream) {
   
   val stream = new TarInputStream(new GZIPInputStream(source))
@@ -82,23 +126,64 @@ case class ImportStreamManager(source:InputStream) {
     case e:Throwable => new IOException("Could not determine export format version: "+e)
   }
   
+  /** the journal position the export is consistent with, if the store recorded it */
+  var position:Option[Long] = None
+
+  /** the position of the export this one holds the changes since, if it's incremental */
+  var increment_base:Option[Long] = None
+
+  // The header entries come first, read up to the first data entry.
+  private var pending = read_data_entry
+
+  private def read_data_entry:(String, Buffer) = {
+    while( true ) {
+      var entry = stream.getNextEntry
+      if( entry==null ) {
+        return null
+      }
+      val name = entry.getName
+      val ext = name.substring(name.lastIndexOf('.')+1)
+      ext match {
+        case "pos" => position = Some(read_text(stream).toLong)
+        case "inc" => increment_base = Some(read_text(stream).toLong)
+        case _ => return (ext, new Buffer(read_bytes(stream)))
+      }
+    }
+    null
+  }
+
+  /**
+   * Reads the next entry without decoding it so that the decoding can
+   * be done by other threads.  Returns null at the end of the stream.
+   */
+  def next_entry:(String, Buffer) = {
+    val rc = pending
+    if( rc!=null ) {
+      pending = read_data_entry
+    }
+    rc
+  }
+
+  def decode(ext:String, data:Buffer):AnyRef = ext match {
+    case "qen" => QueueEntryPB.FACTORY.parseFramed(data)
+    case "msg" => MessagePB.FACTORY.parseFramed(data)
+    case "que" => QueuePB.FACTORY.parseFramed(data)
+    case "map" => MapEntryPB.FACTORY.parseFramed(data)
+    case "rqe" =>
+      val record = QueueEntryPB.FACTORY.parseFramed(data)
+      RemovedQueueEntry(record.getQueueKey, record.getQueueSeq)
+    case "rqu" =>
+      RemovedQueue(QueuePB.FACTORY.parseFramed(data).getKey)
+    case _ =>
+      throw new Exception("Unknown entry: ."+ext)
+  }
+
   def getNext:AnyRef = {
-    var entry = stream.getNextEntry
+    val entry = next_entry
     if( entry==null ) {
       return null;
     }
-
-    if( entry.getName.endsWith(".qen") ) {
-      QueueEntryPB.FACTORY.parseFramed(stream)
-    } else if( entry.getName.endsWith(".msg") ) {
-      MessagePB.FACTORY.parseFramed(stream)
-    } else if( entry.getName.endsWith(".que") ) {
-      QueuePB.FACTORY.parseFramed(stream)
-    } else if( entry.getName.endsWith(".map") ) {
-      MapEntryPB.FACTORY.parseFramed(stream)
-    } else {
-      throw new Exception("Unknown entry: "+entry.getName)
-    }
+    decode(entry._1, entry._2)
   }
 }
 
@@ -200,7 +285,17 @@ trait Store extends ServiceTrait {
   def export_data(os:OutputStream, cb:(Option[String])=>Unit):Unit
 
   /**
-   * Imports a previous export from the input stream.
+   * Exports the changes made since a previous export which recorded
+   * the given journal position.  Stores which can't tell what changed
+   * fail the export.
+   */
+  def export_data(os:OutputStream, since:Long, cb:(Option[String])=>Unit):Unit = {
+    cb(Some("The %s store does not support incremental exports".format(kind)))
+  }
+
+  /**
+   * Imports a previous export from the input stream.  An incremental
+   * export gets applied on top of the stored data instead of replacing it.
    */
   def import_data(is:InputStream, cb:(Option[String])=>Unit):Unit
 
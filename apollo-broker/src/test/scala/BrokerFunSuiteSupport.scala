@@ -48,6 +48,14 @@ object BrokerTestSupport {
     }.await()
   }
 
+  def find_queue(broker:Broker, name: String): Queue = {
+    val host = broker.default_virtual_host
+    host.dispatch_queue.future {
+      val router = host.router.asInstanceOf[LocalRouter]
+      router.local_queue_domain.destination_by_id.get(name).get
+    }.await()
+  }
+
   def delete_queue(broker:Broker, name: String) = {
     val host = broker.default_virtual_host
     host.dispatch_queue.future {
@@ -206,6 +214,20 @@ class BrokerFunSuiteSupport extends FunSuiteSupport with Logging { // with Shoul
     }
   }
 
+  /**
+   * Stops the broker and starts a new one on the same test data
+   * directory.  Only works in test classes which don't run their
+   * tests in parallel.
+   */
+  def restart_broker = {
+    ServiceControl.stop(broker)
+    broker = createBroker
+    broker.setTmp(test_data_dir / "tmp")
+    broker.getTmp().mkdirs()
+    ServiceControl.start(broker)
+    port = broker.get_socket_address.asInstanceOf[InetSocketAddress].getPort
+  }
+
   override def afterAll() = {
     if( before_and_after_all_object==null ) {
       ServiceControl.stop(broker)
@@ -262,6 +284,7 @@ class BrokerFunSuiteSupport extends FunSuiteSupport with Logging { // with Shoul
 
   def connector_port(connector: String) = BrokerTestSupport.connector_port(broker, connector)
   def queue_exists(name: String) = BrokerTestSupport.queue_exists(broker, name)
+  def find_queue(name: String) = BrokerTestSupport.find_queue(broker, name)
   def delete_queue(name: String) = BrokerTestSupport.delete_queue(broker, name)
   def topic_exists(name: String) = BrokerTestSupport.topic_exists(broker, name)
   def topic_status(name: String) = BrokerTestSupport.topic_status(broker, name)
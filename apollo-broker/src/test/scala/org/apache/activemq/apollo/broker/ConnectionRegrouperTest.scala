@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtdispatch._
+import ConnectionRegrouper._
+
+/**
+ * <p>
+ * Tests the placement logic of the ConnectionRegrouper.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ConnectionRegrouperTest extends FunSuiteSupport with ShouldMatchers {
+
+  def queues(names:String*) = names.map(createQueue(_))
+
+  def placed(plan:Option[List[(Seq[DispatchQueue], Int)]]) = plan.get.map(x=> (x._1.toSet, x._2))
+
+  test("the queues joined by flows get grouped and the groups kept on separate threads") {
+    val Seq(p1, q1, c1, p2, q2, c2) = queues("p1", "q1", "c1", "p2", "q2", "c2")
+    val flows = List(Flow(p1, q1, 1000), Flow(q1, c1, 1000), Flow(p2, q2, 1000), Flow(q2, c2, 1000))
+    val current = Map(p1->0, q1->0, c1->0, p2->0, q2->0, c2->0)
+
+    val rc = placed(plan(flows, current, 2))
+    rc.map(_._1).toSet should be (Set(Set(p1, q1, c1), Set(p2, q2, c2)))
+    // One of the groups stays where it is.
+    rc.map(_._2).toSet should be (Set(0, 1))
+  }
+
+  test("a group does not grow past the fair share of a thread") {
+    val Seq(p, q, c, x, y) = queues("p", "q", "c", "x", "y")
+    val flows = List(Flow(p, q, 1000), Flow(q, c, 1000), Flow(x, y, 3000))
+    val current = Map(p->0, q->0, c->0, x->0, y->0)
+
+    // x and y together would carry more than half of the total load.
+    val rc = placed(plan(flows, current, 2))
+    rc.map(_._1).toSet should be (Set(Set(p, q, c), Set(x), Set(y)))
+  }
+
+  test("the largest groups get placed first on the least loaded threads") {
+    val Seq(a1, a2, b1, b2, c1, c2) = queues("a1", "a2", "b1", "b2", "c1", "c2")
+    val flows = List(Flow(c1, c2, 1000), Flow(a1, a2, 3000), Flow(b1, b2, 2000))
+
+    // None of the queues are on one of the threads yet.
+    placed(plan(flows, Map(), 2)) should be (List((Set(a1, a2), 0), (Set(b1, b2), 1), (Set(c1, c2), 1)))
+  }
+
+  test("a placement which is not a good deal cheaper does not get applied") {
+    val Seq(p1, q1, p2, q2) = queues("p1", "q1", "p2", "q2")
+    val flows = List(Flow(p1, q1, 1000), Flow(p2, q2, 1000))
+
+    plan(flows, Map(p1->0, q1->0, p2->1, q2->1), 2) should be (None)
+    // Slightly lopsided is still close enough.
+    plan(flows ::: List(Flow(p1, q1, 100)), Map(p1->0, q1->0, p2->1, q2->1), 2) should be (None)
+    plan(flows, Map(p1->0, q1->1, p2->1, q2->0), 2) should not be (None)
+  }
+
+  test("a group moves as a whole or not at all") {
+    val Seq(a, b, c, d) = queues("a", "b", "c", "d")
+    val groups = List((Seq(a, b, c), 1), (Seq(d), 0))
+    val current = Map(a->0, b->0, c->1, d->1)
+    val now = 100000L
+
+    moves(groups, current, Map(), now) should be (List((a, 1), (b, 1), (d, 0)))
+
+    // b moved too recently so a has to stay with it.
+    moves(groups, current, Map(b->(now - 1000)), now) should be (List((d, 0)))
+    moves(groups, current, Map(b->(now - MIN_DWELL)), now) should be (List((a, 1), (b, 1), (d, 0)))
+
+    // c is not moving, so it does not hold the group back.
+    moves(groups, current, Map(c->(now - 1000)), now) should be (List((a, 1), (b, 1), (d, 0)))
+  }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.selector.SelectorParser
+import org.scalatest.matchers.ShouldMatchers
+import org.fusesource.hawtdispatch.BaseRetained
+import SelectorIndex._
+
+/**
+ * <p>
+ * Tests which selectors the SelectorIndex indexes and which subscriptions
+ * it makes candidates for a message.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SelectorIndexTest extends FunSuiteSupport with ShouldMatchers {
+
+  class TestMessage(properties:Map[String, AnyRef]) extends BaseRetained with Message {
+    def codec = null
+    def getBodyAs[T](kind:Class[T]):T = null.asInstanceOf[T]
+    def getProperty(name:String) = properties.getOrElse(name, null)
+    def getLocalConnectionId = null
+  }
+
+  def subscription(selector:String) = new Subscription(null, new AbstractRetainedDeliveryConsumer {
+    val filter = if( selector==null ) null else SelectorParser.parse(selector)
+    override def jms_selector = selector
+    def dispatch_queue = null
+    def is_persistent = false
+    def connect(producer:DeliveryProducer) = null
+    def matches(delivery:Delivery) = filter==null || filter.matches(delivery.message)
+  })
+
+  def delivery(properties:(String, AnyRef)*) = {
+    val rc = new Delivery
+    rc.message = new TestMessage(properties.toMap)
+    rc
+  }
+
+  test("equality, IN and AND selectors get indexed") {
+    index_key("region = 'east'") should be(Some(("region", Set("east"))))
+    index_key("'east' = region") should be(Some(("region", Set("east"))))
+    index_key("region IN ('east', 'west')") should be(Some(("region", Set("east", "west"))))
+    index_key("price > 5 AND region = 'east'") should be(Some(("region", Set("east"))))
+    index_key("region = 'east' AND kind = 'order'") should be(Some(("region", Set("east"))))
+  }
+
+  test("selectors which can't be narrowed to a set of string values are not indexed") {
+    index_key(null:String) should be(None)
+    index_key("region = 'east' OR region = 'west'") should be(None)
+    index_key("region NOT IN ('east', 'west')") should be(None)
+    index_key("region <> 'east'") should be(None)
+    index_key("count = 5") should be(None)
+    index_key("region LIKE 'e%'") should be(None)
+    index_key("this is not a selector") should be(None)
+  }
+
+  test("only the subscriptions that could match a message are candidates") {
+    val index = new SelectorIndex
+    val east = subscription("region = 'east'")
+    val west = subscription("region IN ('west', 'north')")
+    val cheap = subscription("price < 5")
+    val all = subscription(null)
+    List(east, west, cheap, all).foreach(index.add(_))
+
+    val matcher = index.matcher(delivery("region"->"west", "price"->new java.lang.Integer(3)))
+    matcher.could_match(east) should be(false)
+    matcher.could_match(west) should be(true)
+    matcher.could_match(cheap) should be(true)
+    matcher.could_match(all) should be(true)
+    List(east, west, cheap, all).filter(matcher.matches(_)) should be(List(west, cheap, all))
+
+    // A message without the property can't match an indexed selector.
+    index.matcher(delivery()).candidates.contains(west) should be(false)
+
+    index.remove(west)
+    index.matcher(delivery("region"->"west")).candidates.contains(west) should be(false)
+    index.remove(east)
+    index.keys.isEmpty should be(true)
+    index.postings.isEmpty should be(true)
+    // Nothing indexed, so everything is a candidate.
+    index.matcher(delivery("region"->"west")).candidates should be(null)
+  }
+
+  test("indexed subscriptions are candidates for non string property values") {
+    val index = new SelectorIndex
+    val five = subscription("code = '5'")
+    val six = subscription("code = '6'")
+    List(five, six).foreach(index.add(_))
+
+    // Let the selectors decide how to compare the value.
+    val matcher = index.matcher(delivery("code"->new java.lang.Integer(5)))
+    matcher.could_match(five) should be(true)
+    matcher.could_match(six) should be(true)
+  }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.scalatest.matchers.ShouldMatchers
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * <p>
+ * Tests the SwappedEntryTable of compact swapped ranges.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SwappedEntryTableTest extends FunSuiteSupport with ShouldMatchers {
+
+  val sender_a = List[DestinationAddress](SimpleAddress("queue:a"))
+  val sender_b = List[DestinationAddress](SimpleAddress("queue:b"))
+
+  def fill(table:SwappedEntryTable, from:Int, to:Int, sender:(Int)=>List[DestinationAddress]) = {
+    val locators = for( i <- from until to ) yield new AtomicReference[Object]("locator:"+i)
+    for( i <- from until to ) {
+      table.add(i, 1000+i, locators(i-from), 10+i, 5000+i, 6000+i, (i%3).toShort, sender(i))
+    }
+    locators
+  }
+
+  test("entries survive the table growing") {
+    val table = new SwappedEntryTable(2)
+    val locators = fill(table, 0, 100, _ => sender_a)
+    table.length should be(100)
+    for( i <- 0 until 100 ) {
+      table.seqs(i) should be(i)
+      table.message_keys(i) should be(1000+i)
+      table.sizes(i) should be(10+i)
+      table.expirations(i) should be(5000+i)
+      table.deliver_ats(i) should be(6000+i)
+      table.redeliveries(i) should be((i%3).toShort)
+      table.sender(i) should be(sender_a)
+      // The store updates these when it moves a message, so they must be shared.
+      (table.locator(i) eq locators(i)) should be(true)
+    }
+  }
+
+  test("sender lists are interned") {
+    val table = new SwappedEntryTable(16)
+    fill(table, 0, 50, i => if( i%2==0 ) sender_a else List[DestinationAddress](SimpleAddress("queue:b")))
+    table.sender_count should be(2)
+    table.sender(0) should be(sender_a)
+    table.sender(1) should be(sender_b)
+  }
+
+  test("a combined table keeps the order of both tables") {
+    val first = new SwappedEntryTable(16)
+    val second = new SwappedEntryTable(16)
+    fill(first, 0, 20, _ => sender_a)
+    val locators = fill(second, 20, 40, _ => sender_b)
+    first.add_all(second)
+    first.length should be(40)
+    (0 until 40).map(first.seqs(_)) should be((0 until 40).map(_.toLong))
+    first.sender(19) should be(sender_a)
+    first.sender(20) should be(sender_b)
+    (first.locator(39) eq locators(19)) should be(true)
+  }
+
+  test("entries convert to queue entry records") {
+    val table = new SwappedEntryTable(16)
+    val locators = fill(table, 0, 3, _ => sender_a)
+    val record = table.to_queue_entry_record(7, 4, 2)
+    record.queue_key should be(7)
+    record.entry_seq should be(2)
+    record.message_key should be(1002)
+    (record.message_locator eq locators(2)) should be(true)
+    record.size should be(12)
+    record.expiration should be(5002)
+    record.deliver_at should be(6002)
+    record.redeliveries should be(2)
+    record.priority should be(4)
+    record.sender.map(_.toString) should be(sender_a.map(_.toString))
+  }
+
+}
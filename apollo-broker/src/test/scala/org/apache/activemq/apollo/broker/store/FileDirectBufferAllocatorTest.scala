@@ -0,0 +1,64 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store
+
+import org.apache.activemq.apollo.util.FunSuiteSupport
+import org.apache.activemq.apollo.util.FileSupport._
+import org.apache.activemq.apollo.dto.HeapBypassStatusDTO
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class FileDirectBufferAllocatorTest extends FunSuiteSupport {
+
+  test("slab allocations do not overlap and get reused") {
+    val slabs = new SlabAllocator(new TreeAllocator(Range(0, Long.MaxValue)))
+    val sizes = List(1, 64, 65, 1000, 4096, 100000, SlabAllocator.SLAB_SIZE, SlabAllocator.SLAB_SIZE + 1)
+    val allocations = for (i <- 0 until 50; size <- sizes) yield slabs.alloc(size)
+
+    val sorted = allocations.sortBy(_.offset)
+    sorted.zip(sorted.tail).foreach { case (a, b) =>
+      assert(a.offset + a.size <= b.offset)
+    }
+
+    val freed = allocations.filter(_.size == 1000)
+    freed.foreach(_.free())
+    val reused = freed.map(x => slabs.alloc(1000).offset).toSet
+    expect(freed.map(_.offset).toSet)(reused)
+  }
+
+  test("buffers disposed by other threads are freed") {
+    val allocator = new FileDirectBufferAllocator(test_data_dir / "slabs.data", true)
+    try {
+      val buffers = (0 until 100).map(i => allocator.alloc(100 + i))
+      val thread = new Thread() {
+        override def run() = buffers.foreach(_.release())
+      }
+      thread.start()
+      thread.join()
+
+      allocator.drain_free_allocations
+      val status = new HeapBypassStatusDTO
+      allocator.fill_status(status)
+      expect(0)(status.allocated_size)
+      expect(status.slab_size)(status.slab_free_size)
+    } finally {
+      allocator.close()
+    }
+  }
+
+}
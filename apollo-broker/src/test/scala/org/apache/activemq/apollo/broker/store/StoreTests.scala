@@ -116,6 +116,71 @@ abstract class StoreTests extends StoreFunSuiteSupport {
     }
   }
 
+  test("scheduled entries are listed in their own ranges") {
+    val A = add_queue("A")
+    val deliver_at = System.currentTimeMillis + TimeUnit.HOURS.toMillis(1)
+    var batch = store.create_uow
+    val msg_keys = for( seq <- 1L to 4L ) yield {
+      val msg_key = add_message(batch, "message "+seq)
+      val record = entry(A, seq, msg_key)
+      if( seq == 2 || seq == 3 ) {
+        record.deliver_at = deliver_at + seq
+      }
+      batch.enqueue(record)
+      msg_key
+    }
+    val tracker = new TaskTracker("unknown", 0)
+    val task = tracker.task("uow complete")
+    batch.on_complete(task.run)
+    batch.release
+    msg_keys.foreach { msg_key =>
+      store.flush_message(msg_key._1) {}
+    }
+    tracker.await
+
+    val ranges:Seq[QueueEntryRange] = sync_cb( cb=> store.list_queue_entry_ranges(A, 100)(cb) )
+    expect(List((1L,1L,0L), (2L,3L,deliver_at+2), (4L,4L,0L))) {
+      ranges.toList.map(x=> (x.first_entry_seq, x.last_entry_seq, x.deliver_at))
+    }
+
+    val rc:Seq[QueueEntryRecord] = sync_cb( cb=> store.list_queue_entries(A, 0, Long.MaxValue)(cb) )
+    expect(List(0L, deliver_at+2, deliver_at+3, 0L)) {
+      rc.toList.map(_.deliver_at)
+    }
+  }
+
+  test("queue entry ranges track the earliest and latest expiration") {
+    val A = add_queue("A")
+    var batch = store.create_uow
+    val expirations = List(300L, 100L, 200L, 0L)
+    val msg_keys = for( (expiration, seq) <- expirations.zipWithIndex ) yield {
+      val msg_key = add_message(batch, "message "+seq)
+      val record = entry(A, seq+1, msg_key)
+      record.expiration = expiration
+      batch.enqueue(record)
+      msg_key
+    }
+    val tracker = new TaskTracker("unknown", 0)
+    val task = tracker.task("uow complete")
+    batch.on_complete(task.run)
+    batch.release
+    msg_keys.foreach { msg_key =>
+      store.flush_message(msg_key._1) {}
+    }
+    tracker.await
+
+    var ranges:Seq[QueueEntryRange] = sync_cb( cb=> store.list_queue_entry_ranges(A, 3)(cb) )
+    expect(List((100L, 300L), (0L, 0L))) {
+      ranges.toList.map(x=> (x.expiration, x.latest_expiration))
+    }
+
+    // The last entry never expires.
+    ranges = sync_cb( cb=> store.list_queue_entry_ranges(A, 4)(cb) )
+    expect(List((100L, 0L))) {
+      ranges.toList.map(x=> (x.expiration, x.latest_expiration))
+    }
+  }
+
   test("batch completes after a delay") {x}
   def x = {
     val A = add_queue("A")
@@ -23,7 +23,7 @@ import org.apache.activemq.apollo.util._
 import org.apache.felix.service.command.CommandSession
 import org.apache.activemq.apollo.broker.ConfigStore
 import java.io._
-import org.apache.activemq.apollo.broker.store.StoreFactory
+import org.apache.activemq.apollo.broker.store.{ImportStreamManager, StoreFactory}
 
 /**
  * The apollo stop command
@@ -39,6 +39,9 @@ class StoreExport extends Action {
   @option(name = "--virtual-host", description = "The id of the virtual host to export, if not specified, the default virtual host is selected.")
   var host: String = _
 
+  @option(name = "--incremental", description = "A previous export of the store, only the changes made since it was taken get exported.")
+  var previous: File = _
+
   @argument(name = "file", description = "The compressed tar file to hold the exported data", index=0, required=true)
   var file:File = _
 
@@ -71,6 +74,13 @@ class StoreExport extends Action {
         error("The virtual host '%s' does not have a store configured.".format(vh.id))
       }
 
+      // Incremental exports pick up at the position the previous one recorded.
+      val since = Option(previous).map { previous =>
+        using( new BufferedInputStream(new FileInputStream(previous)) ) { is =>
+          ImportStreamManager(is).position.getOrElse(error("The export '%s' did not record its store position.".format(previous)))
+        }
+      }
+
       val store = StoreFactory.create(vh.store)
       if( store==null ) {
         error("Could not create the store.")
@@ -82,7 +92,10 @@ class StoreExport extends Action {
       session.getConsole.println("Exporting... (this might take a while)")
       using( new BufferedOutputStream(new FileOutputStream(file)) ) { os=>
         sync_cb[Option[String]] { cb =>
-          store.export_data(os, cb)
+          since match {
+            case Some(since) => store.export_data(os, since, cb)
+            case None => store.export_data(os, cb)
+          }
         }.foreach(error _)
       }
       ServiceControl.stop(store, "store stop");
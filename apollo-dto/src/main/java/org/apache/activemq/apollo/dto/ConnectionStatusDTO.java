@@ -128,6 +128,12 @@ public class ConnectionStatusDTO extends ServiceStatusDTO {
     @XmlAttribute(name="subscription_count")
 	public int subscription_count;
 
+    /**
+     * The dispatch thread the connection is currently placed on.
+     */
+    @XmlAttribute(name="dispatch_thread")
+	public String dispatch_thread;
+
     /**
      * Holds detailed state data used to debug connections.
      */
@@ -22,7 +22,10 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * <p>
@@ -231,4 +234,11 @@ public class DestMetricsDTO {
     @XmlAttribute(name="swap_in_size_counter")
     public long swap_in_size_counter;
 
+    /**
+     * The queue depth broken down by message priority.  Only
+     * the priorities which currently have messages queued are listed.
+     */
+    @XmlElement(name="priority")
+    public List<PriorityMetricsDTO> priorities = new ArrayList<PriorityMetricsDTO>();
+
 }
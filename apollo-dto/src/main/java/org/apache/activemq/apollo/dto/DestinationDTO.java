@@ -32,7 +32,7 @@ import java.util.List;
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 @XmlType(name = "destination")
-@XmlSeeAlso({QueueDestinationDTO.class, DurableSubscriptionDestinationDTO.class})
+@XmlSeeAlso({QueueDestinationDTO.class, QueuePartitionDestinationDTO.class, DurableSubscriptionDestinationDTO.class})
 @JsonTypeInfo(use = JsonTypeInfo.Id.CUSTOM, include = JsonTypeInfo.As.PROPERTY, property = "@class")
 @JsonTypeIdResolver(ApolloTypeIdResolver.class)
 @JsonIgnoreProperties(ignoreUnknown = true)
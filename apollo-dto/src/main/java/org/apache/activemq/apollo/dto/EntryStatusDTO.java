@@ -39,6 +39,9 @@ public class EntryStatusDTO {
 	@XmlAttribute
 	public long seq;
 
+    @XmlAttribute
+    public int priority;
+
     @XmlAttribute
     public int count;
 
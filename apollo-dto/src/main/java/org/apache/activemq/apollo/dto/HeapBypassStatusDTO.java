@@ -0,0 +1,69 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+
+/**
+ * <p>
+ * The space used by the heap bypass files of a virtual host.  The
+ * occupancy is the allocated size over the file size, the space in the
+ * slabs which is neither free nor allocated is lost to rounding requests
+ * up to their size class.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class HeapBypassStatusDTO {
+
+    /**
+     * The number of heap bypass files.
+     */
+    @XmlAttribute(name="files")
+    public int files;
+
+    /**
+     * The size of the heap bypass files.
+     */
+    @XmlAttribute(name="file_size")
+    public long file_size;
+
+    /**
+     * The size of the buffers which are currently allocated.
+     */
+    @XmlAttribute(name="allocated_size")
+    public long allocated_size;
+
+    /**
+     * The space set aside for the size class slabs.
+     */
+    @XmlAttribute(name="slab_size")
+    public long slab_size;
+
+    /**
+     * The space in the slabs which is free.
+     */
+    @XmlAttribute(name="slab_free_size")
+    public long slab_free_size;
+
+}
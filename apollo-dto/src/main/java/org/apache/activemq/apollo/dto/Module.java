@@ -34,6 +34,7 @@ public class Module implements DtoModule {
                 TopicDestinationDTO.class,
                 DurableSubscriptionDestinationDTO.class,
                 QueueDestinationDTO.class,
+                QueuePartitionDestinationDTO.class,
                 NullStoreDTO.class,
                 SimpleStoreStatusDTO.class,
                 DetectDTO.class,
@@ -0,0 +1,54 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+
+/**
+ * <p>
+ *     The depth of a queue for a single message priority.
+ * </p>
+ */
+@XmlRootElement(name="priority_metrics")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class PriorityMetricsDTO {
+
+    /**
+     * The message priority, 0 is the lowest and 9 the highest.
+     */
+    @XmlAttribute(name="priority")
+    public int priority;
+
+    /**
+     * The total number of messages of this priority that are sitting in the queue.
+     */
+    @XmlAttribute(name="queue_items")
+    public long queue_items;
+
+    /**
+     * The total size in bytes of messages of this priority that are sitting in the queue.
+     */
+    @XmlAttribute(name="queue_size")
+    public long queue_size;
+
+}
@@ -19,6 +19,7 @@ package org.apache.activemq.apollo.dto;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 
 import javax.xml.bind.annotation.*;
+import java.util.List;
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -39,6 +40,18 @@ public class QueueConsumerLinkDTO extends LinkDTO {
     public Double ack_item_rate;
     public Double ack_size_rate;
 
+    /**
+     * The number of message group buckets assigned to the consumer
+     */
+    public Integer message_group_weight;
+
+    /**
+     * A sample of the message groups assigned to the consumer: the groups of
+     * the next loaded messages in dispatch order, at most 1000 groups across all
+     * the consumers.  Groups of swapped out messages are not listed.
+     */
+    public List<String> message_groups;
+
     /**
      * What the consumer is currently waiting on
      */
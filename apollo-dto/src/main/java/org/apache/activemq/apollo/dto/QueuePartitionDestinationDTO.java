@@ -0,0 +1,68 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.dto;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.*;
+
+/**
+ * <p>
+ * Identifies one of the internal partitions of a partitioned queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name = "queue_partition_destination")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class QueuePartitionDestinationDTO extends QueueDestinationDTO {
+
+    /**
+     * The index of the partition.  Partition 0 is the queue itself.
+     */
+    @XmlAttribute(name="partition")
+    public int partition;
+
+    public QueuePartitionDestinationDTO() {
+    }
+
+    public QueuePartitionDestinationDTO(String name, int partition) {
+        super(name);
+        this.partition = partition;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof QueuePartitionDestinationDTO)) return false;
+        if (!super.equals(o)) return false;
+        QueuePartitionDestinationDTO that = (QueuePartitionDestinationDTO) o;
+        return partition == that.partition;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + partition;
+    }
+
+    @Override
+    public String toString() {
+        return "queue:"+name+"#"+partition;
+    }
+
+}
@@ -64,6 +64,14 @@ public class QueueSettingsDTO {
     @XmlAttribute(name="message_group_graceful_handoff")
     public Boolean message_group_graceful_handoff;
 
+    /**
+     * When set to true, the queue will move message group buckets
+     * away from consumers which are not keeping up and give them back
+     * once they do.  Defaults to false.
+     */
+    @XmlAttribute(name="message_group_rebalance")
+    public Boolean message_group_rebalance;
+
     /**
      * Should messages be swapped out of memory if
      * no consumers need the message?
@@ -80,6 +88,23 @@ public class QueueSettingsDTO {
     @XmlAttribute(name="swap_range_size")
     public Integer swap_range_size;
 
+    /**
+     * Should swapped entry ranges hold the metadata of their entries
+     * in compact arrays?  This uses a little more memory per swapped
+     * entry but allows ranges to be loaded without querying the store.
+     * Defaults to false.
+     */
+    @XmlAttribute(name="compact_swap")
+    public Boolean compact_swap;
+
+    /**
+     * The number of partitions the queue is spread across.  Each
+     * partition is dispatched on it's own thread.  Message ordering
+     * is only kept within a message group.  Defaults to 1.
+     */
+    @XmlAttribute(name="partitions")
+    public Integer partitions;
+
     /**
      * The maximum amount of size the queue is allowed
      * to grow to.  If not set then there is no limit.  You can
@@ -197,6 +222,10 @@ public class QueueSettingsDTO {
         if (swap_range_size != null ? !swap_range_size.equals(that.swap_range_size) : that.swap_range_size != null)
             return false;
         if (tail_buffer != null ? !tail_buffer.equals(that.tail_buffer) : that.tail_buffer != null) return false;
+        if (compact_swap != null ? !compact_swap.equals(that.compact_swap) : that.compact_swap != null) return false;
+        if (partitions != null ? !partitions.equals(that.partitions) : that.partitions != null) return false;
+        if (message_group_rebalance != null ? !message_group_rebalance.equals(that.message_group_rebalance) : that.message_group_rebalance != null)
+            return false;
 
         return true;
     }
@@ -207,6 +236,9 @@ public class QueueSettingsDTO {
         result = 31 * result + (persistent != null ? persistent.hashCode() : 0);
         result = 31 * result + (swap != null ? swap.hashCode() : 0);
         result = 31 * result + (swap_range_size != null ? swap_range_size.hashCode() : 0);
+        result = 31 * result + (compact_swap != null ? compact_swap.hashCode() : 0);
+        result = 31 * result + (partitions != null ? partitions.hashCode() : 0);
+        result = 31 * result + (message_group_rebalance != null ? message_group_rebalance.hashCode() : 0);
         result = 31 * result + (quota != null ? quota.hashCode() : 0);
         result = 31 * result + (full_policy != null ? full_policy.hashCode() : 0);
         result = 31 * result + (fast_delivery_rate != null ? fast_delivery_rate.hashCode() : 0);
@@ -62,4 +62,16 @@ public class QueueStatusDTO extends ServiceStatusDTO {
 
     @XmlAttribute(name="max_enqueue_rate")
     public Integer max_enqueue_rate;
+
+    /**
+     * The dispatch thread the queue is currently placed on.
+     */
+    @XmlAttribute(name="dispatch_thread")
+    public String dispatch_thread;
+
+    /**
+     * How many message group buckets have been moved between consumers.
+     */
+    @XmlAttribute(name="message_group_moves")
+    public long message_group_moves;
 }
\ No newline at end of file
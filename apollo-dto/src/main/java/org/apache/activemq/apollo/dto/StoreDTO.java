@@ -42,6 +42,34 @@ public abstract class StoreDTO {
     @XmlAttribute(name="flush_delay", required=false)
     public Long flush_delay;
 
+    /**
+     * If set to true, the store tunes the flush delay based on how many of
+     * the delayed enqueues get canceled by a dequeue before they are flushed,
+     * the memory held by the delayed message stores and the flush latency.
+     * The flush_delay is then only the initial delay.
+     */
+    @XmlAttribute(name="adaptive_flush_delay", required=false)
+    public Boolean adaptive_flush_delay;
+
+    /**
+     * The smallest flush delay the adaptive flush delay will use.
+     */
+    @XmlAttribute(name="min_flush_delay", required=false)
+    public Long min_flush_delay;
+
+    /**
+     * The largest flush delay the adaptive flush delay will use.
+     */
+    @XmlAttribute(name="max_flush_delay", required=false)
+    public Long max_flush_delay;
+
+    /**
+     * The adaptive flush delay shrinks while the messages waiting to be
+     * stored hold more memory than this.
+     */
+    @XmlAttribute(name="max_pending_store_size", required=false)
+    public String max_pending_store_size;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -51,12 +79,25 @@ public abstract class StoreDTO {
 
         if (flush_delay != null ? !flush_delay.equals(storeDTO.flush_delay) : storeDTO.flush_delay != null)
             return false;
+        if (adaptive_flush_delay != null ? !adaptive_flush_delay.equals(storeDTO.adaptive_flush_delay) : storeDTO.adaptive_flush_delay != null)
+            return false;
+        if (min_flush_delay != null ? !min_flush_delay.equals(storeDTO.min_flush_delay) : storeDTO.min_flush_delay != null)
+            return false;
+        if (max_flush_delay != null ? !max_flush_delay.equals(storeDTO.max_flush_delay) : storeDTO.max_flush_delay != null)
+            return false;
+        if (max_pending_store_size != null ? !max_pending_store_size.equals(storeDTO.max_pending_store_size) : storeDTO.max_pending_store_size != null)
+            return false;
 
         return true;
     }
 
     @Override
     public int hashCode() {
-        return flush_delay != null ? flush_delay.hashCode() : 0;
+        int result = flush_delay != null ? flush_delay.hashCode() : 0;
+        result = 31 * result + (adaptive_flush_delay != null ? adaptive_flush_delay.hashCode() : 0);
+        result = 31 * result + (min_flush_delay != null ? min_flush_delay.hashCode() : 0);
+        result = 31 * result + (max_flush_delay != null ? max_flush_delay.hashCode() : 0);
+        result = 31 * result + (max_pending_store_size != null ? max_pending_store_size.hashCode() : 0);
+        return result;
     }
 }
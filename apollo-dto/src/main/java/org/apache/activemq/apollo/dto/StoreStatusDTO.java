@@ -103,4 +103,17 @@ public abstract class StoreStatusDTO {
     @XmlElement(name="pending_stores")
     public int pending_stores;
 
+    /**
+     * The memory held by the messages waiting to be stored.
+     */
+    @XmlElement(name="pending_store_size")
+    public long pending_store_size;
+
+    /**
+     * The flush delay in milliseconds the store is currently using.  It
+     * changes over time when the adaptive flush delay is enabled.
+     */
+    @XmlAttribute(name="flush_delay")
+    public long flush_delay;
+
 }
\ No newline at end of file
@@ -63,4 +63,11 @@ public class VirtualHostStatusDTO extends ServiceStatusDTO {
      */
     @XmlElement(name="host_names")
     public List<String> host_names = new ArrayList<String>();
+
+    /**
+     * The space used by the heap bypass files, not set when heap bypass
+     * is not enabled.
+     */
+    @XmlElement(name="heap_bypass")
+    public HeapBypassStatusDTO heap_bypass;
 }
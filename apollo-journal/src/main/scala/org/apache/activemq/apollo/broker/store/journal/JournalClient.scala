@@ -0,0 +1,753 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.journal
+
+import java.{lang => jl}
+import java.{util => ju}
+import java.io._
+import collection.mutable.{HashMap, ListBuffer}
+import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
+import org.apache.activemq.apollo.broker.Delivery
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.broker.store.leveldb.RecordLog
+import org.apache.activemq.apollo.broker.store.leveldb.LevelDBClient.{create_sequence_file, find_sequence_files}
+import org.apache.activemq.apollo.util._
+import FileSupport._
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object JournalClient extends Log {
+
+  final val LOG_ADD_QUEUE = 1.toByte
+  final val LOG_REMOVE_QUEUE = 2.toByte
+  final val LOG_ADD_MESSAGE = 3.toByte
+  final val LOG_ADD_QUEUE_ENTRY = 5.toByte
+  final val LOG_REMOVE_QUEUE_ENTRY = 6.toByte
+  final val LOG_MAP_ENTRY = 7.toByte
+
+  final val LOG_SUFFIX = ".log"
+  final val CHECKPOINT_SUFFIX = ".checkpoint"
+
+  final val CHECKPOINT_VERSION = 1
+  /** written last so that a truncated checkpoint gets detected */
+  final val CHECKPOINT_END = 0x454e4421
+
+  def encode_long_long(a1: Long, a2: Long) = {
+    val out = new DataByteArrayOutputStream(16)
+    out.writeLong(a1)
+    out.writeLong(a2)
+    out.toBuffer
+  }
+
+  def decode_long_long(value: Buffer): (Long, Long) = {
+    val in = new DataByteArrayInputStream(value)
+    (in.readLong(), in.readLong())
+  }
+}
+
+/**
+ * <p>
+ * Keeps all the data of the store in an append only journal and indexes it
+ * in memory.  The index gets checkpointed to a file once enough journal has
+ * been appended since the last checkpoint, so a recovery only has to load
+ * the checkpoint and replay the journal appended after it.  Journal files
+ * older than the last checkpoint get deleted once none of the messages
+ * stored in them are referenced anymore.
+ * </p>
+ * <p>
+ * Everything but the message loads runs on the store's write thread.  The
+ * read threads only look up the messages index, which is synchronized.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class JournalClient(store: JournalStore) {
+
+  import JournalClient._
+
+  def config = store.config
+
+  def directory = config.directory
+
+  /**
+   * Where a message is stored in the journal, and how many queue entries
+   * reference it.
+   */
+  class MessageIndex(val key: Long, val pos: Long, val len: Int) {
+    var refs = 0
+  }
+
+  var log: RecordLog = _
+
+  val queues = new ju.TreeMap[jl.Long, QueueRecord]()
+  val queue_entries = HashMap[Long, ju.TreeMap[jl.Long, QueueEntryPB.Buffer]]()
+  val messages = new LongPairHashMap[MessageIndex]()
+  val map_entries = new ju.TreeMap[Buffer, Buffer]()
+
+  /** the number of indexed messages stored in each journal file */
+  val log_refs = HashMap[Long, LongCounter]()
+
+  var last_message_key = 0L
+  var last_queue_key = 0L
+
+  var last_checkpoint_pos = 0L
+  var last_checkpoint_time = 0L
+
+  def log_size = Option(config.log_size).map(MemoryPropertyEditor.parse(_)).getOrElse(1024 * 1024 * 100L)
+
+  def checkpoint_size = Option(config.checkpoint_size).map(MemoryPropertyEditor.parse(_)).getOrElse(log_size)
+
+  def checkpoint_interval = OptionSupport(config.checkpoint_interval).getOrElse(5 * 60 * 1000L)
+
+  def temp_checkpoint_file = directory / ("temp" + CHECKPOINT_SUFFIX)
+
+  def start() = {
+    directory.mkdirs()
+    log = RecordLog(directory, LOG_SUFFIX)
+    log.logSize = log_size
+    log.sync = OptionSupport(config.sync).getOrElse(true)
+    log.open
+    recover
+  }
+
+  def stop() = {
+    // So that the next start does not have to replay the journal.
+    checkpoint
+    log.close
+  }
+
+  def purge() = {
+    log.close
+    directory.list_files.foreach(_.recursive_delete)
+    clear_index
+    log.open
+    last_checkpoint_pos = log.appender_limit
+    last_checkpoint_time = System.currentTimeMillis()
+  }
+
+  def clear_index = {
+    queues.clear()
+    queue_entries.clear()
+    messages.synchronized {
+      messages.clear()
+    }
+    map_entries.clear()
+    log_refs.clear()
+    last_message_key = 0
+    last_queue_key = 0
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Index updates, the journal records get applied with these both when
+  // they are first stored and when they are replayed.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def log_file(pos: Long) = log.log_info(pos).map(_.position).getOrElse(pos)
+
+  def index_add_queue(record: QueueRecord) = {
+    queues.put(record.key, record)
+    if (!queue_entries.contains(record.key)) {
+      queue_entries.put(record.key, new ju.TreeMap[jl.Long, QueueEntryPB.Buffer]())
+    }
+    last_queue_key = last_queue_key.max(record.key)
+  }
+
+  def index_remove_queue(queue_key: Long) = {
+    import collection.JavaConversions._
+    queues.remove(queue_key)
+    queue_entries.remove(queue_key).foreach { entries =>
+      entries.values.foreach(x => message_release(x.getMessageKey))
+    }
+  }
+
+  def index_add_message(key: Long, pos: Long, len: Int) = {
+    val rc = new MessageIndex(key, pos, len)
+    val previous = messages.synchronized {
+      messages.put(key, rc)
+    }
+    if (previous != null) {
+      log_refs.get(log_file(previous.pos)).foreach(_.decrementAndGet())
+    }
+    log_refs.getOrElseUpdate(log_file(pos), new LongCounter()).incrementAndGet()
+    last_message_key = last_message_key.max(key)
+    rc
+  }
+
+  def index_remove_message(message: MessageIndex) = {
+    messages.synchronized {
+      messages.remove(message.key)
+    }
+    log_refs.get(log_file(message.pos)).foreach(_.decrementAndGet())
+  }
+
+  def message_retain(key: Long) = {
+    val message = messages.get(key)
+    if (message != null) {
+      message.refs += 1
+    }
+  }
+
+  def message_release(key: Long) = {
+    val message = messages.get(key)
+    if (message != null) {
+      message.refs -= 1
+      if (message.refs <= 0) {
+        index_remove_message(message)
+      }
+    }
+  }
+
+  /**
+   * Drops the messages stored in a unit of work which did not end up
+   * being referenced by any queue.
+   */
+  def drop_unreferenced(added: ListBuffer[MessageIndex]) = {
+    added.foreach { message =>
+      if (message.refs <= 0 && (messages.get(message.key) eq message)) {
+        index_remove_message(message)
+      }
+    }
+    added.clear()
+  }
+
+  def index_add_entry(record: QueueEntryPB.Buffer) = {
+    // Entries of removed queues are ignored.
+    queue_entries.get(record.getQueueKey).foreach { entries =>
+      message_retain(record.getMessageKey)
+      val previous = entries.put(record.getQueueSeq, record)
+      if (previous != null) {
+        message_release(previous.getMessageKey)
+      }
+    }
+  }
+
+  def index_remove_entry(queue_key: Long, seq: Long) = {
+    queue_entries.get(queue_key).foreach { entries =>
+      val previous = entries.remove(seq)
+      if (previous != null) {
+        message_release(previous.getMessageKey)
+      }
+    }
+  }
+
+  def index_put_map_entry(key: Buffer, value: Buffer) = {
+    if (value == null) {
+      map_entries.remove(key)
+    } else {
+      map_entries.put(key, value)
+    }
+  }
+
+  def apply_record(kind: Byte, data: Buffer, pos: Long, added: ListBuffer[MessageIndex]) = kind match {
+    case LOG_ADD_QUEUE =>
+      index_add_queue(PBSupport.from_pb(QueuePB.FACTORY.parseFramed(data)))
+    case LOG_REMOVE_QUEUE =>
+      index_remove_queue(RecordLog.decode_long(data))
+    case LOG_ADD_MESSAGE =>
+      val header = MessagePB.FACTORY.parseFramed(new DataByteArrayInputStream(data))
+      added += index_add_message(header.getMessageKey, pos, data.length)
+    case LOG_ADD_QUEUE_ENTRY =>
+      index_add_entry(QueueEntryPB.FACTORY.parseFramed(data))
+    case LOG_REMOVE_QUEUE_ENTRY =>
+      val (queue_key, seq) = decode_long_long(data)
+      index_remove_entry(queue_key, seq)
+    case LOG_MAP_ENTRY =>
+      val entry = MapEntryPB.FACTORY.parseFramed(data)
+      index_put_map_entry(entry.getKey, if (entry.hasValue) entry.getValue else null)
+    case _ =>
+      // Skip records we don't know about.
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Recovery and checkpoints
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def recover = {
+    clear_index
+    val start = find_sequence_files(directory, CHECKPOINT_SUFFIX).lastOption match {
+      case Some((_, file)) =>
+        load_checkpoint(file)
+      case None =>
+        Option(log.log_infos.firstEntry()).map(_.getKey.toLong).getOrElse(0L)
+    }
+    last_checkpoint_pos = start
+    last_checkpoint_time = System.currentTimeMillis()
+    val replayed = replay(start)
+    info("Recovered %d queue(s) and %d message(s), replayed %d bytes of the journal", queues.size, messages.size, replayed)
+  }
+
+  /**
+   * Applies the complete units of work found in the journal after the
+   * given position to the index.
+   */
+  def replay(start: Long) = {
+    val limit = log.appender_limit
+    val uow = ListBuffer[(Byte, Buffer, Long)]()
+    val added = ListBuffer[MessageIndex]()
+    var pos = start
+    while (pos < limit) {
+      log.read(pos) match {
+        case Some((kind, data, next)) =>
+          if (kind == RecordLog.UOW_END_RECORD) {
+            uow.foreach {
+              case (kind, data, pos) => apply_record(kind, data, pos, added)
+            }
+            uow.clear()
+            drop_unreferenced(added)
+          } else {
+            uow += ((kind, data, pos))
+          }
+          pos = next
+        case None =>
+          // Not in any of the journal files.
+          pos = limit
+      }
+    }
+    limit - start
+  }
+
+  /**
+   * Writes the whole index to a new checkpoint file.  Only the journal
+   * appended after the checkpoint's position has to get replayed on
+   * recovery from then on.
+   */
+  def checkpoint: Unit = {
+    import collection.JavaConversions._
+    val pos = log.appender_limit
+    if (pos == last_checkpoint_pos) {
+      return
+    }
+
+    // The journal the checkpoint covers has to be on disk first.
+    log.current_appender.force
+
+    val tmp = temp_checkpoint_file
+    using(new FileOutputStream(tmp)) { fos =>
+      val os = new DataOutputStream(new BufferedOutputStream(fos))
+      os.writeInt(CHECKPOINT_VERSION)
+      os.writeLong(pos)
+      os.writeLong(last_message_key)
+      os.writeLong(last_queue_key)
+
+      // The messages go first so that loading the queue entries
+      // rebuilds the message reference counts.
+      val message_list = messages.values
+      os.writeInt(message_list.size)
+      for (message <- message_list) {
+        os.writeLong(message.key)
+        os.writeLong(message.pos)
+        os.writeInt(message.len)
+      }
+
+      os.writeInt(queues.size)
+      for (record <- queues.values) {
+        PBSupport.to_pb(record).freeze().writeFramed(os)
+        val entries = queue_entries(record.key)
+        os.writeInt(entries.size)
+        for (entry <- entries.values) {
+          entry.writeFramed(os)
+        }
+      }
+
+      os.writeInt(map_entries.size)
+      for ((key, value) <- map_entries) {
+        os.writeInt(key.length)
+        os.write(key.data, key.offset, key.length)
+        os.writeInt(value.length)
+        os.write(value.data, value.offset, value.length)
+      }
+
+      os.writeInt(CHECKPOINT_END)
+      os.flush()
+      fos.getFD.sync()
+    }
+
+    val file = create_sequence_file(directory, pos, CHECKPOINT_SUFFIX)
+    if (!tmp.renameTo(file)) {
+      throw new IOException("Could not rename the checkpoint " + tmp + " to " + file)
+    }
+    for ((id, previous) <- find_sequence_files(directory, CHECKPOINT_SUFFIX); if id != pos) {
+      previous.delete()
+    }
+    last_checkpoint_pos = pos
+    last_checkpoint_time = System.currentTimeMillis()
+    debug("Checkpointed the index at journal position %d", pos)
+  }
+
+  /**
+   * Loads a checkpoint into the index, returns the journal position the
+   * replay has to start at.
+   */
+  def load_checkpoint(file: File): Long = {
+    using(new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) { is =>
+      val version = is.readInt()
+      if (version != CHECKPOINT_VERSION) {
+        throw new IOException("Unsupported checkpoint version %d in: %s".format(version, file))
+      }
+      val pos = is.readLong()
+      val message_key = is.readLong()
+      val queue_key = is.readLong()
+
+      for (i <- 0 until is.readInt()) {
+        val key = is.readLong()
+        val message_pos = is.readLong()
+        index_add_message(key, message_pos, is.readInt())
+      }
+
+      for (i <- 0 until is.readInt()) {
+        index_add_queue(PBSupport.from_pb(QueuePB.FACTORY.parseFramed(is)))
+        for (j <- 0 until is.readInt()) {
+          index_add_entry(QueueEntryPB.FACTORY.parseFramed(is))
+        }
+      }
+
+      def read_buffer = {
+        val rc = new Buffer(is.readInt())
+        is.readFully(rc.data)
+        rc
+      }
+      for (i <- 0 until is.readInt()) {
+        map_entries.put(read_buffer, read_buffer)
+      }
+
+      if (is.readInt() != CHECKPOINT_END) {
+        throw new IOException("The checkpoint is truncated: " + file)
+      }
+
+      // Include the keys of the messages and queues that were removed.
+      last_message_key = last_message_key.max(message_key)
+      last_queue_key = last_queue_key.max(queue_key)
+      pos
+    }
+  }
+
+  /**
+   * Checkpoints the index if enough journal was appended since the last
+   * checkpoint, then deletes the journal files which are not needed
+   * anymore.
+   */
+  def gc: Unit = {
+    val pos = log.appender_limit
+    if (pos - last_checkpoint_pos >= checkpoint_size ||
+        (pos != last_checkpoint_pos && System.currentTimeMillis() - last_checkpoint_time >= checkpoint_interval)) {
+      checkpoint
+    }
+
+    // A journal file ends where the next one starts, the last one is
+    // still being appended to.
+    val positions = log.log_file_positions
+    for ((position, limit) <- positions.zip(positions.drop(1))) {
+      if (limit <= last_checkpoint_pos && log_refs.get(position).map(_.get).getOrElse(0L) <= 0) {
+        debug("Deleting journal file at position: %d", position)
+        log.delete(position)
+        log_refs.remove(position)
+      }
+    }
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Store operations
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  def add_queue(record: QueueRecord) = {
+    log.appender { appender =>
+      appender.append(LOG_ADD_QUEUE, PBSupport.to_pb(record).freeze().toFramedBuffer)
+    }
+    index_add_queue(record)
+  }
+
+  def remove_queue(queue_key: Long) = {
+    log.appender { appender =>
+      appender.append(LOG_REMOVE_QUEUE, RecordLog.encode_long(queue_key))
+    }
+    index_remove_queue(queue_key)
+  }
+
+  /**
+   * Appends the units of work to the journal as a single journal unit of
+   * work and applies them to the index.  The journal only gets forced
+   * if one of them asked to be synced.
+   */
+  def store(uows: Seq[JournalStore#DelayableUOW]) = {
+    var sync_needed = false
+    val added = ListBuffer[MessageIndex]()
+    val appender = log.appender { appender =>
+      uows.foreach { uow =>
+        for ((key, value) <- uow.map_actions) {
+          val entry = new MapEntryPB.Bean
+          entry.setKey(key)
+          if (value != null) {
+            entry.setValue(value)
+          }
+          appender.append(LOG_MAP_ENTRY, entry.freeze().toFramedBuffer)
+          index_put_map_entry(key, value)
+        }
+
+        uow.actions.foreach { action =>
+          val message_record = action.message_record
+          if (message_record != null) {
+            val header = new MessagePB.Bean
+            header.setMessageKey(action.msg)
+            header.setCodec(message_record.codec)
+            val framed = header.freeze().toFramedBuffer
+            val (pos, _) = appender.append(LOG_ADD_MESSAGE, framed, message_record.buffer)
+            added += index_add_message(action.msg, pos, framed.length + message_record.buffer.length)
+          }
+
+          // Enqueue first so that moving a message between queues does
+          // not drop it.
+          action.enqueues.foreach { entry =>
+            val record = PBSupport.to_pb(entry).freeze()
+            appender.append(LOG_ADD_QUEUE_ENTRY, record.toFramedBuffer)
+            index_add_entry(record)
+          }
+          action.dequeues.foreach { entry =>
+            appender.append(LOG_REMOVE_QUEUE_ENTRY, encode_long_long(entry.queue_key, entry.entry_seq))
+            index_remove_entry(entry.queue_key, entry.entry_seq)
+          }
+        }
+        if (uow.flush_sync) {
+          sync_needed = true
+        }
+      }
+      // Keep it open so it can be forced even if the log rotated.
+      appender.retain()
+      appender
+    }
+    drop_unreferenced(added)
+    try {
+      if (sync_needed) {
+        appender.force_flushed
+      }
+    } finally {
+      appender.release()
+    }
+  }
+
+  def loadMessages(requests: ListBuffer[(Long, (Option[MessageRecord]) => Unit)]): Unit = {
+    requests.foreach {
+      case (key, callback) =>
+        val message = messages.synchronized {
+          messages.get(key)
+        }
+        val record = if (message == null) {
+          None
+        } else {
+          try {
+            log.read(message.pos, message.len).map(decode_message_record(_))
+          } catch {
+            case e: Throwable =>
+              // The journal file got deleted since the message was dequeued.
+              debug(e, "Could not load message %d", key)
+              None
+          }
+        }
+        callback(record)
+    }
+  }
+
+  def decode_message_record(data: Buffer) = {
+    val is = new DataByteArrayInputStream(data)
+    val rc = PBSupport.from_pb(MessagePB.FACTORY.parseFramed(is))
+    rc.buffer = is.readBuffer(is.available())
+    rc
+  }
+
+  def get_queue(queue_key: Long): Option[QueueRecord] = Option(queues.get(queue_key))
+
+  def list_queues: Seq[Long] = {
+    import collection.JavaConversions._
+    queues.keySet.toSeq.map(_.longValue)
+  }
+
+  def get_last_queue_key = last_queue_key
+
+  def getLastMessageKey = last_message_key
+
+  def get(key: Buffer): Option[Buffer] = Option(map_entries.get(key))
+
+  def get_prefixed_map_entries(prefix: Buffer): Seq[(Buffer, Buffer)] = {
+    import collection.JavaConversions._
+    map_entries.tailMap(prefix).iterator.takeWhile(_._1.startsWith(prefix)).toList
+  }
+
+  def listQueueEntryGroups(queue_key: Long, limit: Int): Seq[QueueEntryRange] = {
+    import collection.JavaConversions._
+    val rc = ListBuffer[QueueEntryRange]()
+    val now = System.currentTimeMillis
+    var group: QueueEntryRange = null
+    for (entries <- queue_entries.get(queue_key); (current_key, entry) <- entries) {
+      val priority = if (entry.hasPriority) entry.getPriority.toByte else Delivery.DEFAULT_PRIORITY
+      val deliver_at = if (entry.getDeliverAt > now) entry.getDeliverAt else 0L
+
+      // Ranges only hold entries of a single priority which are
+      // either all scheduled or all ready for delivery.
+      if (group != null && (group.priority != priority || (group.deliver_at == 0) != (deliver_at == 0))) {
+        rc += group
+        group = null
+      }
+      if (group == null) {
+        group = new QueueEntryRange
+        group.first_entry_seq = current_key
+        group.priority = priority
+        group.deliver_at = deliver_at
+      }
+      group.deliver_at = deliver_at.min(group.deliver_at)
+
+      group.last_entry_seq = current_key
+      group.count += 1
+      group.size += entry.getSize
+
+      if (group.expiration == 0) {
+        group.expiration = entry.getExpiration
+      } else {
+        if (entry.getExpiration != 0) {
+          group.expiration = entry.getExpiration.min(group.expiration)
+        }
+      }
+      if (group.count == 1) {
+        group.latest_expiration = entry.getExpiration
+      } else if (group.latest_expiration != 0) {
+        group.latest_expiration = if (entry.getExpiration == 0) 0 else entry.getExpiration.max(group.latest_expiration)
+      }
+
+      if (group.count == limit) {
+        rc += group
+        group = null
+      }
+    }
+    if (group != null) {
+      rc += group
+    }
+    rc
+  }
+
+  def getQueueEntries(queue_key: Long, firstSeq: Long, lastSeq: Long): Seq[QueueEntryRecord] = {
+    import collection.JavaConversions._
+    val rc = ListBuffer[QueueEntryRecord]()
+    for (entries <- queue_entries.get(queue_key); entry <- entries.subMap(firstSeq, true, lastSeq, true).values) {
+      rc += PBSupport.from_pb(entry)
+    }
+    rc
+  }
+
+  def export_data(os: OutputStream): Option[String] = {
+    import collection.JavaConversions._
+    try {
+      val manager = ExportStreamManager(os, 1)
+
+      for (message <- messages.values) {
+        log.read(message.pos, message.len).foreach { data =>
+          val record = PBSupport.to_pb(decode_message_record(data))
+          manager.store_message(record)
+        }
+      }
+      for (entries <- queue_entries.values; entry <- entries.values) {
+        manager.store_queue_entry(entry)
+      }
+      for (record <- queues.values) {
+        manager.store_queue(PBSupport.to_pb(record))
+      }
+      for ((key, value) <- map_entries) {
+        val record = new MapEntryPB.Bean
+        record.setKey(key)
+        record.setValue(value)
+        manager.store_map_entry(record)
+      }
+
+      manager.finish
+      None
+    } catch {
+      case x: Exception =>
+        debug(x, "Export failed")
+        Some(x.getMessage)
+    }
+  }
+
+  def import_data(is: InputStream): Option[String] = {
+    try {
+      val manager = ImportStreamManager(is)
+      if (manager.version != 1) {
+        return Some("Cannot import from an export file of version: " + manager.version)
+      }
+      if (manager.increment_base.isDefined) {
+        return Some("Cannot import an incremental export")
+      }
+
+      purge
+
+      // The queue entries can come before the messages and queues they
+      // reference, so they get appended and indexed last.
+      val entries = ListBuffer[QueueEntryPB.Buffer]()
+      val added = ListBuffer[MessageIndex]()
+      log.appender { appender =>
+        while (manager.getNext match {
+
+          case record: MessagePB.Buffer =>
+            val header = new MessagePB.Bean
+            header.setMessageKey(record.getMessageKey)
+            header.setCodec(record.getCodec)
+            val framed = header.freeze().toFramedBuffer
+            val (pos, _) = appender.append(LOG_ADD_MESSAGE, framed, record.getValue)
+            added += index_add_message(record.getMessageKey, pos, framed.length + record.getValue.length)
+            true
+
+          case record: QueueEntryPB.Buffer =>
+            entries += record
+            true
+
+          case record: QueuePB.Buffer =>
+            appender.append(LOG_ADD_QUEUE, record.toFramedBuffer)
+            index_add_queue(PBSupport.from_pb(record))
+            true
+
+          case record: MapEntryPB.Buffer =>
+            appender.append(LOG_MAP_ENTRY, record.toFramedBuffer)
+            index_put_map_entry(record.getKey, record.getValue)
+            true
+
+          case null =>
+            false
+        }) {
+          // keep looping
+        }
+
+        entries.foreach { record =>
+          appender.append(LOG_ADD_QUEUE_ENTRY, record.toFramedBuffer)
+          index_add_entry(record)
+        }
+      }
+      drop_unreferenced(added)
+
+      // So that the next start does not have to replay the import.
+      checkpoint
+      None
+
+    } catch {
+      case x: Exception =>
+        debug(x, "Import failed")
+        Some(x.getMessage)
+    }
+  }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.journal.dto;
+
+import org.apache.activemq.apollo.dto.StoreDTO;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.File;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+@XmlRootElement(name="journal_store")
+@XmlAccessorType(XmlAccessType.FIELD)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class JournalStoreDTO extends StoreDTO {
+
+    @XmlAttribute
+    public File directory;
+
+    @XmlAttribute(name="read_threads")
+    public Integer read_threads;
+
+    @XmlAttribute(name="sync")
+    public Boolean sync;
+
+    @XmlAttribute(name="log_size")
+    public String log_size;
+
+    /**
+     * How many bytes can be appended to the journal before the index
+     * gets checkpointed.  Recovery replays at most about this much.
+     */
+    @XmlAttribute(name="checkpoint_size")
+    public String checkpoint_size;
+
+    /**
+     * The longest time in milliseconds between index checkpoints while
+     * the journal is being appended to.
+     */
+    @XmlAttribute(name="checkpoint_interval")
+    public Long checkpoint_interval;
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        if (!super.equals(o)) return false;
+
+        JournalStoreDTO that = (JournalStoreDTO) o;
+
+        if (directory != null ? !directory.equals(that.directory) : that.directory != null) return false;
+        if (read_threads != null ? !read_threads.equals(that.read_threads) : that.read_threads != null) return false;
+        if (sync != null ? !sync.equals(that.sync) : that.sync != null) return false;
+        if (log_size != null ? !log_size.equals(that.log_size) : that.log_size != null) return false;
+        if (checkpoint_size != null ? !checkpoint_size.equals(that.checkpoint_size) : that.checkpoint_size != null) return false;
+        if (checkpoint_interval != null ? !checkpoint_interval.equals(that.checkpoint_interval) : that.checkpoint_interval != null) return false;
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = super.hashCode();
+        result = 31 * result + (directory != null ? directory.hashCode() : 0);
+        result = 31 * result + (read_threads != null ? read_threads.hashCode() : 0);
+        result = 31 * result + (sync != null ? sync.hashCode() : 0);
+        result = 31 * result + (log_size != null ? log_size.hashCode() : 0);
+        result = 31 * result + (checkpoint_size != null ? checkpoint_size.hashCode() : 0);
+        result = 31 * result + (checkpoint_interval != null ? checkpoint_interval.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,107 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.journal
+
+import dto.JournalStoreDTO
+import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store.leveldb.LevelDBStore
+import org.apache.activemq.apollo.broker.store.leveldb.dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.util.LoggingTracker
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtdispatch.TaskTracker
+
+/**
+ * <p>
+ * Compares how fast messages get enqueued and then dequeued again with
+ * the journal store and with the LevelDB store.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class JournalStoreBenchmark extends StoreFunSuiteSupport {
+
+  // Keep the timings free of other test classes.
+  override def is_parallel_test_class = false
+
+  val BATCHES = 200
+  val BATCH_SIZE = 100
+  val MESSAGE_SIZE = 1024
+
+  def create_store(flushDelay: Long): Store = {
+    new JournalStore({
+      val rc = new JournalStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc
+    })
+  }
+
+  def measure(name: String) = {
+    val queue_key = add_queue("benchmark")
+    val body = "x" * MESSAGE_SIZE
+
+    var start = System.nanoTime()
+    val entries = (0 until BATCHES).flatMap { batch =>
+      populate(queue_key, (0 until BATCH_SIZE).map(i => body).toList, batch * BATCH_SIZE + 1)
+    }
+    val enqueue_rate = BATCHES * BATCH_SIZE * 1000000000L / (System.nanoTime() - start)
+
+    start = System.nanoTime()
+    entries.grouped(BATCH_SIZE).foreach { batch =>
+      val uow = store.create_uow
+      batch.foreach { case (key, locator, seq) =>
+        uow.dequeue(entry(queue_key, seq, (key, locator)))
+      }
+      val tracker = new TaskTracker("dequeue", 0)
+      val task = tracker.task("uow complete")
+      uow.on_complete(task.run)
+      uow.release
+      tracker.await
+    }
+    val dequeue_rate = BATCHES * BATCH_SIZE * 1000000000L / (System.nanoTime() - start)
+
+    println("%s: enqueued %,d msg/s, dequeued %,d msg/s".format(name, enqueue_rate, dequeue_rate))
+  }
+
+  test("journal store") {
+    measure("journal")
+  }
+
+  test("leveldb store") {
+    val journal_store = store
+    val leveldb_dir = test_data_dir / "leveldb"
+    leveldb_dir.recursive_delete
+    store = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = leveldb_dir
+      rc.flush_delay = get_flush_delay()
+      rc
+    })
+    val tracker = new LoggingTracker("leveldb store startup")
+    tracker.start(store)
+    tracker.await
+    try {
+      measure("leveldb")
+    } finally {
+      val tracker = new LoggingTracker("leveldb store stop")
+      tracker.stop(store)
+      tracker.await
+      store = journal_store
+    }
+  }
+
+}
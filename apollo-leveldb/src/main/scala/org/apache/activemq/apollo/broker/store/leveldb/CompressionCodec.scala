@@ -0,0 +1,118 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException
+import org.fusesource.hawtbuf.{AbstractVarIntSupport, DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
+import net.jpountz.lz4.LZ4Factory
+
+/**
+ * <p>
+ * A compression algorithm used for the data logs.  The id gets stored with
+ * the compressed data so that it can be uncompressed by the same codec
+ * even if the store has since been configured to use another one.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+trait CompressionCodec {
+  def id: Int
+  def name: String
+  def compress(input: Buffer): Buffer
+  def uncompress(input: Buffer): Buffer
+}
+
+object CompressionCodec {
+
+  final val SNAPPY_ID = 1
+  final val LZ4_ID = 2
+
+  /**
+   * The LZ4 library is an optional dependency, only touch the class if
+   * it can be loaded.
+   */
+  lazy val LZ4 = try {
+    val rc = Thread.currentThread().getContextClassLoader().loadClass("org.apache.activemq.apollo.broker.store.leveldb.LZ4Codec").newInstance().asInstanceOf[CompressionCodec]
+    rc.compress(new Buffer("test".getBytes("UTF-8")))
+    rc
+  } catch {
+    case _: Throwable => null
+  }
+
+  lazy val SNAPPY = if (Snappy != null) new SnappyCodec else null
+
+  /**
+   * Gets the codec with the given name, or null if it's not available.
+   */
+  def apply(name: String): CompressionCodec = name.toLowerCase match {
+    case "snappy" => SNAPPY
+    case "lz4" => LZ4
+    case _ => null
+  }
+
+  /**
+   * Gets the codec which compressed data with the given id.
+   */
+  def apply(id: Int): CompressionCodec = {
+    val rc = id match {
+      case SNAPPY_ID => SNAPPY
+      case LZ4_ID => LZ4
+      case _ => null
+    }
+    if (rc == null) {
+      throw new IOException("The compression codec with id %d is not available".format(id))
+    }
+    rc
+  }
+}
+
+class SnappyCodec extends CompressionCodec {
+  def id = CompressionCodec.SNAPPY_ID
+  def name = "snappy"
+  def compress(input: Buffer) = Snappy.compress(input)
+  def uncompress(input: Buffer) = Snappy.uncompress(input)
+}
+
+/**
+ * LZ4 does not record the uncompressed length so we prefix it.
+ */
+class LZ4Codec extends CompressionCodec {
+  val factory = LZ4Factory.fastestInstance()
+  val compressor = factory.fastCompressor()
+  val decompressor = factory.fastDecompressor()
+
+  def id = CompressionCodec.LZ4_ID
+  def name = "lz4"
+
+  def compress(input: Buffer) = {
+    val out = new DataByteArrayOutputStream(5 + compressor.maxCompressedLength(input.length))
+    out.writeVarInt(input.length)
+    val offset = out.position()
+    val rc = out.getData
+    val length = compressor.compress(input.data, input.offset, input.length, rc, offset, rc.length - offset)
+    new Buffer(rc, 0, offset + length)
+  }
+
+  def uncompress(input: Buffer) = {
+    val in = new DataByteArrayInputStream(input)
+    val length = in.readVarInt()
+    val rc = new Buffer(length)
+    decompressor.decompress(input.data, input.offset + AbstractVarIntSupport.computeVarIntSize(length), rc.data, 0, length)
+    rc
+  }
+}
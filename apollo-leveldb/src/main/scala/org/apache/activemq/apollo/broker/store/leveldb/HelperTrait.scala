@@ -169,6 +169,14 @@ object HelperTrait {
       }
     }
 
+    def compact_range(start: Array[Byte], end: Array[Byte]) = {
+      db match {
+        case db:JniDB =>
+          db.compactRange(start, end)
+        case _ =>
+      }
+    }
+
     private def might_trigger_compaction[T](func: => T): T = {
       val start = System.nanoTime()
       try {
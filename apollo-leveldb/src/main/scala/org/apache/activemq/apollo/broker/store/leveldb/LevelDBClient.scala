@@ -23,21 +23,22 @@ import java.{util => ju}
 import org.fusesource.hawtdispatch._
 import org.apache.activemq.apollo.broker.store._
 import java.io._
-import java.util.concurrent.TimeUnit
+import java.util.concurrent.{ArrayBlockingQueue, Callable, ExecutionException, Executors, ExecutorService, Future, ThreadFactory, TimeUnit}
 import org.apache.activemq.apollo.util._
 import java.util.concurrent.locks.ReentrantReadWriteLock
 import org.apache.activemq.apollo.util.{TreeMap => ApolloTreeMap}
 import collection.immutable.TreeMap
 import org.fusesource.leveldbjni.internal.Util
-import org.apache.activemq.apollo.broker.Broker
+import org.apache.activemq.apollo.broker.{Broker, Delivery}
 import org.apache.activemq.apollo.util.ProcessSupport._
-import collection.mutable.{HashMap, ListBuffer}
+import collection.mutable.{ArrayBuffer, HashMap, HashSet, ListBuffer}
 import org.apache.activemq.apollo.dto.JsonCodec
 import org.iq80.leveldb._
 import org.apache.activemq.apollo.broker.store.leveldb.RecordLog.LogInfo
 import org.apache.activemq.apollo.broker.store.PBSupport
-import java.util.concurrent.atomic.AtomicReference
-import org.fusesource.hawtbuf.{DataByteArrayInputStream, Buffer}
+import java.util.concurrent.atomic.{AtomicLong, AtomicReference}
+import java.util.concurrent.ConcurrentHashMap
+import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import language.implicitConversions;
 
 /**
@@ -52,13 +53,17 @@ object LevelDBClient extends Log {
   final val queue_entry_prefix = 'e'.toByte
   final val map_prefix = 'p'.toByte
   final val tmp_prefix = 't'.toByte
+  final val relocation_prefix = 'r'.toByte
 
   final val queue_prefix_array = Array(queue_prefix)
   final val map_prefix_array = Array(map_prefix)
   final val queue_entry_prefix_array = Array(queue_entry_prefix)
+  final val relocation_prefix_array = Array(relocation_prefix)
 
   final val dirty_index_key = bytes(":dirty")
   final val log_refs_index_key = bytes(":log-refs")
+  final val queue_log_refs_index_key = bytes(":queue-log-refs")
+  final val removed_queues_index_key = bytes(":removed-queues")
   final val logs_index_key = bytes(":logs")
   final val TRUE = bytes("true")
   final val FALSE = bytes("false")
@@ -69,13 +74,61 @@ object LevelDBClient extends Log {
   final val LOG_ADD_QUEUE_ENTRY = 5.toByte
   final val LOG_REMOVE_QUEUE_ENTRY = 6.toByte
   final val LOG_MAP_ENTRY = 7.toByte
+  final val LOG_ADD_MESSAGE_BLOCK = 8.toByte
+  final val LOG_REMOVE_QUEUE_ENTRY_RANGE = 9.toByte
 
   final val LOG_SUFFIX = ".log"
   final val INDEX_SUFFIX = ".index"
   var auto_compaction_ratio = 100
 
+  /** how much message data a single log compaction step moves */
+  final val LOG_COMPACTION_CHUNK_SIZE = 1024 * 1024
+  /** the pause between log compaction steps, so foreground writes get ahead */
+  final val LOG_COMPACTION_CHUNK_DELAY = 100L
+  /** how often the index gets scanned for sparse log files */
+  final val LOG_COMPACTION_SCAN_INTERVAL = 60 * 1000L
+  /** how many index entries one step of the scan for a log compaction reads */
+  final val LOG_COMPACTION_SCAN_CHUNK_SIZE = 10000
+
+  /** how many index entries of a removed queue get deleted in one step */
+  final val QUEUE_CLEANUP_CHUNK_SIZE = 10000
+  /** the pause between the steps deleting the entries of removed queues */
+  final val QUEUE_CLEANUP_CHUNK_DELAY = 10L
+
+  /** how many decompressed message blocks are kept around for reads */
+  final val MESSAGE_BLOCK_CACHE_SIZE = 256
+
+  /** how many index updates a log replay writes to the index in one batch */
+  final val REPLAY_BATCH_SIZE = 10000
+  /** the log replay rate in bytes per second assumed until a recovery measures it */
+  final val DEFAULT_REPLAY_RATE = 20 * 1024 * 1024L
+  /** recoveries replaying less log than this don't update the replay rate */
+  final val REPLAY_RATE_SAMPLE_SIZE = 10 * 1024 * 1024L
+
+  /** how many records an export thread reads from the index before handing them over */
+  final val EXPORT_BATCH_SIZE = 1000
+  /** how many entries of an import get decoded together by an import thread */
+  final val IMPORT_BATCH_SIZE = 1000
+
   def bytes(value: String) = value.getBytes("UTF-8")
 
+  /**
+   * Encodes the queue entries with the sequences from first_seq to last_seq
+   * of a queue, which a LOG_REMOVE_QUEUE_ENTRY_RANGE record removes.
+   */
+  def encode_entry_range(queue_key: Long, first_seq: Long, last_seq: Long): Array[Byte] = {
+    val out = new DataByteArrayOutputStream(24)
+    out.writeLong(queue_key)
+    out.writeLong(first_seq)
+    out.writeLong(last_seq)
+    out.toBuffer.toByteArray
+  }
+
+  def decode_entry_range(data: Buffer): (Long, Long, Long) = {
+    val in = new DataByteArrayInputStream(data)
+    (in.readLong(), in.readLong(), in.readLong())
+  }
+
   import FileSupport._
 
   def create_sequence_file(directory: File, id: Long, suffix: String) = directory / ("%016x%s".format(id, suffix))
@@ -188,6 +241,7 @@ class LevelDBClient(store: LevelDBStore) {
   import HelperTrait._
   import LevelDBClient._
   import FileSupport._
+  import SenderDictionary._
 
   def dispatchQueue = store.dispatch_queue
 
@@ -216,16 +270,42 @@ class LevelDBClient(store: LevelDBStore) {
 
   var log: RecordLog = _
 
-  var snappy_compress_logs = false
+  /** the codec the log data gets compressed with, null if it's not compressed */
+  var log_codec: CompressionCodec = null
+  /** messages smaller than this get compressed together in blocks */
+  var log_block_size = 0
+  var recovery_threads = 1
+  /** in ms, how long replaying the log written since the last index snapshot may take */
+  var max_recovery_time = 0L
+  /** bytes of log replayed per second, as measured by the last recovery */
+  var replay_rate = DEFAULT_REPLAY_RATE
   var index: RichDB = _
   var index_options: Options = _
 
   var last_index_snapshot_ts = System.currentTimeMillis()
   var last_index_snapshot_pos: Long = _
+
+  /** when set, synced units of work wait for the log to be replicated instead of forced */
+  var replicated = false
+  /** set while the store is a replication standby, its index then trails the log */
+  var replica = false
+  /** the log position a standby's index has been replayed up to */
+  var replica_index_pos = 0L
+
+  /**
+   * The log position the index is up to date with.
+   */
+  def index_limit = if (replica) replica_index_pos else log.appender_limit
+
   val snapshot_rw_lock = new ReentrantReadWriteLock(true)
 
   var factory: DBFactory = _
   val log_refs = HashMap[Long, LongCounter]()
+  /** queue key -> log file -> how many of the queue's entries reference the log file */
+  val queue_log_refs = HashMap[Long, HashMap[Long, LongCounter]]()
+  /** removed queues whose index entries have not been deleted yet */
+  var removed_queues = Set[Long]()
+  val senders = new SenderDictionary(this)
   var recovery_logs:java.util.TreeMap[Long, Void] = _
 
   def dirty_index_file = directory / ("dirty" + INDEX_SUFFIX)
@@ -272,6 +352,9 @@ class LevelDBClient(store: LevelDBStore) {
 
 
     auto_compaction_ratio = OptionSupport(config.auto_compaction_ratio).getOrElse(100)
+    log_compaction_ratio = OptionSupport(config.log_compaction_ratio).getOrElse(10)
+    recovery_threads = OptionSupport(config.recovery_threads).getOrElse(Runtime.getRuntime.availableProcessors().min(8)).max(1)
+    max_recovery_time = OptionSupport(config.max_recovery_time).getOrElse(5 * 60 * 1000L)
     config.index_max_open_files.foreach(index_options.maxOpenFiles(_))
     config.index_block_restart_interval.foreach(index_options.blockRestartInterval(_))
     index_options.paranoidChecks(paranoid_checks)
@@ -283,9 +366,14 @@ class LevelDBClient(store: LevelDBStore) {
       case _ => CompressionType.SNAPPY
     }))
 
-    if (Option(config.log_compression).map(_.toLowerCase).getOrElse("snappy") == "snappy" && Snappy != null) {
-      snappy_compress_logs = true
+    val log_compression = Option(config.log_compression).map(_.toLowerCase).getOrElse("snappy")
+    if (log_compression != "none") {
+      log_codec = CompressionCodec(log_compression)
+      if (log_codec == null) {
+        warn("The '%s' log compression is not available, the data logs will not be compressed.", log_compression)
+      }
     }
+    log_block_size = Option(config.log_compression_block_size).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(32 * 1024)
 
     index_options.cacheSize(Option(config.index_cache_size).map(MemoryPropertyEditor.parse(_).toLong).getOrElse(1024 * 1024 * 256L))
     index_options.logger(new Logger() {
@@ -296,6 +384,7 @@ class LevelDBClient(store: LevelDBStore) {
     log.sync = sync
     log.logSize = log_size
     log.verify_checksums = verify_checksums
+    log.mmap_reads = config.log_mmap_reads.getOrElse(false)
     log.on_log_rotate = () => {
       // lets queue a request to checkpoint when
       // the logs rotate.. queue it on the GC thread since GC's lock
@@ -350,6 +439,7 @@ class LevelDBClient(store: LevelDBStore) {
     // Only keep the last snapshot..
     snapshots.filterNot(_._1 == last_index_snapshot_pos).foreach(_._2.recursive_delete)
     temp_index_file.recursive_delete // usually does not exist.
+    directory.list_files.filter(_.getName.startsWith("export-")).foreach(_.recursive_delete)
 
     var reportedFailure:Throwable = null
     retry {
@@ -380,17 +470,20 @@ class LevelDBClient(store: LevelDBStore) {
         index.put(dirty_index_key, TRUE)
 
         load_log_refs
+        senders.load
 
         if (paranoid_checks) {
           check_index_integrity(index)
         }
 
         // Update the index /w what was stored on the logs..
-        var pos = last_index_snapshot_pos;
+        val replay_start = last_index_snapshot_pos
+        val replay_limit = log.appender_limit
+        var pos = replay_start
 
         var last_reported_at = System.currentTimeMillis();
         var showing_progress = false
-        var last_reported_pos = 0L
+        var last_reported_pos = replay_start
 
         def remaining(eta: Double) = {
           if (eta > 60 * 60) {
@@ -404,89 +497,45 @@ class LevelDBClient(store: LevelDBStore) {
 
         var replay_operations = 0
         val log_replay_duration = time {
-          while (pos < log.appender_limit) {
-
-            val now = System.currentTimeMillis();
-            if (now > last_reported_at + 1000) {
-              val at = pos - last_index_snapshot_pos
-              val total = log.appender_limit - last_index_snapshot_pos
-              val rate = (pos - last_reported_pos) * 1000.0 / (now - last_reported_at)
-              val eta = (total - at) / rate
-
-              System.out.print("Replaying recovery log: %.2f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
-                at * 100.0 / total, at, total, rate / 1024, remaining(eta)))
-              showing_progress = true;
-              last_reported_at = now
-              last_reported_pos = pos
-            }
-
-            log.read(pos).map {
-              case (kind, data, next_pos) =>
-                kind match {
-                  case LOG_ADD_QUEUE_ENTRY =>
-                    replay_operations += 1
-                    val record = QueueEntryPB.FACTORY.parseUnframed(data)
-
-                    val index_record = record.copy()
-                    index_record.clearQueueKey()
-                    index_record.clearQueueSeq()
-                    index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), index_record.freeze().toUnframedBuffer)
-
-                    log_ref_increment(decode_vlong(record.getMessageLocator))
-
-                  case LOG_REMOVE_QUEUE_ENTRY =>
-                    replay_operations += 1
-                    index.get(data, new ReadOptions).foreach {
-                      value =>
-                        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                        val pos = decode_vlong(record.getMessageLocator)
-                        pos.foreach(log_ref_decrement(_))
-                        index.delete(data)
-                    }
-
-                  case LOG_ADD_QUEUE =>
-                    replay_operations += 1
-                    val record = QueuePB.FACTORY.parseUnframed(data)
-                    index.put(encode_key(queue_prefix, record.getKey), data)
-
-                  case LOG_REMOVE_QUEUE =>
-                    replay_operations += 1
-                    val ro = new ReadOptions
-                    ro.fillCache(false)
-                    ro.verifyChecksums(verify_checksums)
-                    val queue_key = decode_vlong(data)
-                    index.delete(encode_key(queue_prefix, queue_key))
-                    index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
-                      (key, value) =>
-                        index.delete(key)
-
-                        // Figure out what log file that message entry was in so we can,
-                        // decrement the log file reference.
-                        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                        val pos = decode_vlong(record.getMessageLocator)
-                        log_ref_decrement(pos)
-                        true
-                    }
+          val batch = new ReplayBatch
+          try {
+            replay_log(replay_start, replay_limit) { (records, end) =>
+
+              val now = System.currentTimeMillis();
+              if (now > last_reported_at + 1000) {
+                val at = pos - replay_start
+                val total = replay_limit - replay_start
+                val rate = (pos - last_reported_pos) * 1000.0 / (now - last_reported_at)
+                val eta = (total - at) / rate
+
+                System.out.print("Replaying recovery log: %.2f%% done (%,d/%,d bytes) @ %,.2f kb/s, %s remaining.     \r".format(
+                  at * 100.0 / total, at, total, rate / 1024, remaining(eta)))
+                showing_progress = true;
+                last_reported_at = now
+                last_reported_pos = pos
+              }
 
-                  case LOG_MAP_ENTRY =>
-                    replay_operations += 1
-                    val entry = MapEntryPB.FACTORY.parseUnframed(data)
-                    if (entry.getValue == null) {
-                      index.delete(encode_key(map_prefix, entry.getKey))
-                    } else {
-                      index.put(encode_key(map_prefix, entry.getKey), entry.getValue.toByteArray)
-                    }
-                  case _ =>
-                  // Skip records which don't require index updates.
-                }
-                pos = next_pos
+              replay_operations += records.size
+              replay_records(records, batch)
+              pos = end
             }
-          }
-          if (replay_operations > 0) {
-            snapshot_index
+            batch.flush
+          } finally {
+            batch.close
           }
         }
 
+        // A standby's index is now as far as the log it received.
+        replica_index_pos = replay_limit.max(last_index_snapshot_pos)
+
+        // Remember how fast we replay so we know when to snapshot the index.
+        if (replay_limit - replay_start > REPLAY_RATE_SAMPLE_SIZE) {
+          replay_rate = ((replay_limit - replay_start) * TimeUnit.SECONDS.toNanos(1) / log_replay_duration.max(1)).max(1)
+        }
+        if (replay_operations > 0) {
+          snapshot_index
+        }
+
         if (showing_progress) {
           System.out.println("Replaying recovery log: done. %d operations recovered in %s".format(replay_operations, log_replay_duration.toDouble / TimeUnit.SECONDS.toNanos(1)));
         }
@@ -495,8 +544,11 @@ class LevelDBClient(store: LevelDBStore) {
         for( queue <- list_queues.lastOption ) {
           listQueueEntryGroups(queue, 100000)
         }
+        delete_relocation_records
+
         // delete obsolete files..
         gc
+        schedule_removed_queue_cleanup
       }
 
       try {
@@ -536,12 +588,15 @@ class LevelDBClient(store: LevelDBStore) {
     index.cursor_prefixed(queue_entry_prefix_array) { (key, value) =>
       try {
         val (_, queue_key, seq_key) = decode_long_long_key(key)
-        val record = QueueEntryPB.FACTORY.parseUnframed(value)
-        val (pos, len) = decode_locator(record.getMessageLocator)
-        for( key <- log_ref_key(pos) ) {
-          actual_log_refs.getOrElseUpdate(key, new LongCounter()).incrementAndGet()
+        // The entries of removed queues get deleted in the background.
+        if( !removed_queues.contains(queue_key) ) {
+          val record = QueueEntryPB.FACTORY.parseUnframed(value)
+          val (pos, len) = decode_locator(record.getMessageLocator)
+          for( key <- log_ref_key(pos) ) {
+            actual_log_refs.getOrElseUpdate(key, new LongCounter()).incrementAndGet()
+          }
+          referenced_queues += queue_key
         }
-        referenced_queues += queue_key
       } catch {
         case e:Throwable =>
           warn(e, "invalid queue entry record: %s, error: %s", new Buffer(key), e)
@@ -597,6 +652,7 @@ class LevelDBClient(store: LevelDBStore) {
       debug("expected != actual log references. expected: %s, actual %s", log_refs, actual_log_refs)
       log_refs.clear()
       log_refs ++= actual_log_refs
+      rebuild_queue_log_refs
     }
 
     if (fixed_records > 0) {
@@ -624,6 +680,9 @@ class LevelDBClient(store: LevelDBStore) {
   private def store_log_refs = {
     import collection.JavaConversions.mapAsJavaMap
     index.put(log_refs_index_key, JsonCodec.encode(mapAsJavaMap(log_refs.mapValues(_.get()))).toByteArray)
+    index.put(queue_log_refs_index_key, JsonCodec.encode(mapAsJavaMap(queue_log_refs.map {
+      case (queue_key, refs) => queue_key.toString -> mapAsJavaMap(refs.map(x => x._1.toString -> x._2.get()))
+    })).toByteArray)
     index.put(logs_index_key, JsonCodec.encode(log.log_file_positions).toByteArray)
   }
 
@@ -642,12 +701,65 @@ class LevelDBClient(store: LevelDBStore) {
       for( v <- JsonCodec.decode(new Buffer(value), classOf[java.util.List[Object]]) ) {
         recovery_logs.put(v.asInstanceOf[Number].longValue(), null)
       }
+      // The log files started after the snapshot hold the records being replayed.
+      for( v <- log.log_file_positions ) {
+        recovery_logs.put(v, null)
+      }
+    }
+
+    removed_queues = Set()
+    index.get(removed_queues_index_key, new ReadOptions).foreach { value =>
+      for( v <- JsonCodec.decode(new Buffer(value), classOf[java.util.List[Object]]) ) {
+        removed_queues += v.asInstanceOf[Number].longValue()
+      }
+    }
+
+    queue_log_refs.clear()
+    index.get(queue_log_refs_index_key, new ReadOptions) match {
+      case Some(value) =>
+        for( (queue_key, refs) <- JsonCodec.decode(new Buffer(value), classOf[java.util.Map[String, Object]]) ) {
+          val counters = HashMap[Long, LongCounter]()
+          for( (k, v) <- refs.asInstanceOf[java.util.Map[String, Object]] ) {
+            counters.put(k.toLong, new LongCounter(v.asInstanceOf[Number].longValue()))
+          }
+          queue_log_refs.put(queue_key.toLong, counters)
+        }
+      case None =>
+        // Stores created before the summaries existed.
+        if( !log_refs.isEmpty ) {
+          rebuild_queue_log_refs
+        }
+    }
+  }
+
+  private def store_removed_queues = {
+    import collection.JavaConversions._
+    index.put(removed_queues_index_key, JsonCodec.encode(seqAsJavaList(removed_queues.toSeq)).toByteArray)
+  }
+
+  /**
+   * Recounts the per queue log file references from the index.
+   */
+  def rebuild_queue_log_refs = {
+    queue_log_refs.clear()
+    val ro = new ReadOptions
+    ro.fillCache(false)
+    index.cursor_prefixed(queue_entry_prefix_array, ro) { (key, value) =>
+      val (_, queue_key, _) = decode_long_long_key(key)
+      if( !removed_queues.contains(queue_key) ) {
+        val record = QueueEntryPB.FACTORY.parseUnframed(value)
+        for( log <- log_ref_key(decode_vlong(record.getMessageLocator)) ) {
+          queue_log_refs.getOrElseUpdate(queue_key, HashMap()).getOrElseUpdate(log, new LongCounter()).incrementAndGet()
+        }
+      }
+      true
     }
   }
 
   def stop() = {
     // this blocks until all io completes..
     snapshot_rw_lock.writeLock().lock()
+    abort_exports
     store_log_refs
     index.put(dirty_index_key, FALSE, new WriteOptions().sync(true))
     index.close
@@ -698,7 +810,7 @@ class LevelDBClient(store: LevelDBStore) {
   }
 
   def copy_dirty_index_to_snapshot {
-    if (log.appender_limit == last_index_snapshot_pos) {
+    if (index_limit == last_index_snapshot_pos) {
       // no need to snapshot again...
       return
     }
@@ -714,7 +826,7 @@ class LevelDBClient(store: LevelDBStore) {
       copy_index(dirty_index_file, tmp_dir)
 
       // Rename to signal that the snapshot is complete.
-      val new_snapshot_index_pos = log.appender_limit
+      val new_snapshot_index_pos = index_limit
       tmp_dir.renameTo(snapshot_index_file(new_snapshot_index_pos))
 
       snapshot_index_file(last_index_snapshot_pos).recursive_delete
@@ -731,7 +843,7 @@ class LevelDBClient(store: LevelDBStore) {
   }
 
   def snapshot_index: Unit = {
-    if (log.appender_limit == last_index_snapshot_pos) {
+    if (index_limit == last_index_snapshot_pos) {
       // no need to snapshot again...
       return
     }
@@ -746,6 +858,231 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
+  /**
+   * Snapshots the index once replaying the log written since the last
+   * snapshot would take more than half of the max_recovery_time.  The
+   * other half is left for opening the store and copying the snapshot.
+   */
+  def snapshot_index_if_recovery_slow = {
+    if (max_recovery_time > 0 && index_limit > last_index_snapshot_pos) {
+      val replay_time = (index_limit - last_index_snapshot_pos) * 1000 / replay_rate
+      if (replay_time > max_recovery_time / 2) {
+        debug("Replaying the log would take about %d ms, snapshotting the index", replay_time)
+        snapshot_index
+      }
+    }
+  }
+
+  /**
+   * Replays the log records in the [start, limit) range which update the
+   * index.  The records of each log file get read, checksummed and decoded
+   * on a pool of recovery threads and are handed to func in log order,
+   * along with the log position they end at.
+   */
+  def replay_log(start: Long, limit: Long)(func: (Seq[(Byte, AnyRef)], Long) => Unit) = {
+    val positions = log.log_file_positions.filter(_ < limit)
+    val chunks = positions.zipWithIndex.map {
+      case (position, i) =>
+        (position.max(start), if (i + 1 < positions.length) positions(i + 1) else limit)
+    }.filter(x => x._1 < x._2)
+
+    val executor = Executors.newFixedThreadPool(recovery_threads, new ThreadFactory() {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "leveldb store recovery")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    try {
+      // Only decode a few log files ahead so we don't hold too much in memory.
+      val pending = new ju.LinkedList[(Future[Seq[(Byte, AnyRef)]], Long)]()
+      var next = 0
+      def fill = {
+        while (next < chunks.length && pending.size < recovery_threads * 2) {
+          val (chunk_start, chunk_end) = chunks(next)
+          pending.add((executor.submit(new Callable[Seq[(Byte, AnyRef)]] {
+            def call = decode_log_records(chunk_start, chunk_end)
+          }), chunk_end))
+          next += 1
+        }
+      }
+      fill
+      while (!pending.isEmpty) {
+        val (future, end) = pending.removeFirst()
+        fill
+        val records = try {
+          future.get()
+        } catch {
+          case e: ExecutionException => throw e.getCause
+        }
+        func(records, end)
+      }
+    } finally {
+      executor.shutdownNow()
+    }
+  }
+
+  /**
+   * Reads and decodes the log records in the [start, end) range which
+   * update the index.
+   */
+  def decode_log_records(start: Long, end: Long): Seq[(Byte, AnyRef)] = {
+    val rc = ArrayBuffer[(Byte, AnyRef)]()
+    var pos = start
+    while (pos < end) {
+      val (kind, data, next_pos) = log.read(pos).getOrElse(throw new IOException("No log file at position: " + pos))
+      kind match {
+        case LOG_ADD_QUEUE_ENTRY =>
+          val record = QueueEntryPB.FACTORY.parseUnframed(data)
+          record.getQueueKey // forces the decode
+          rc += ((kind, record))
+        case LOG_MAP_ENTRY =>
+          val entry = MapEntryPB.FACTORY.parseUnframed(data)
+          entry.getKey
+          rc += ((kind, entry))
+        case LOG_REMOVE_QUEUE_ENTRY | LOG_REMOVE_QUEUE_ENTRY_RANGE | LOG_ADD_QUEUE | LOG_REMOVE_QUEUE =>
+          rc += ((kind, data))
+        case _ =>
+        // Skip records which don't require index updates.
+      }
+      pos = next_pos
+    }
+    rc
+  }
+
+  /**
+   * Applies decoded log records to the index through the replay batch.
+   */
+  def replay_records(records: Seq[(Byte, AnyRef)], batch: ReplayBatch) = {
+    records.foreach {
+      case (kind, value) =>
+        kind match {
+          case LOG_ADD_QUEUE_ENTRY =>
+            val record = value.asInstanceOf[QueueEntryPB.Getter]
+            val index_record = copy_entry_fields(record, new QueueEntryPB.Bean)
+            senders.add_ids(senders.decode(record), index_record, batch.batch)
+            batch.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), index_record.freeze().toUnframedBuffer)
+
+            log_ref_increment(record.getQueueKey, decode_vlong(record.getMessageLocator))
+
+          case LOG_REMOVE_QUEUE_ENTRY =>
+            remove_entry(value.asInstanceOf[Buffer].toByteArray, batch)
+
+          case LOG_REMOVE_QUEUE_ENTRY_RANGE =>
+            val (queue_key, first_seq, last_seq) = decode_entry_range(value.asInstanceOf[Buffer])
+            for (seq <- first_seq to last_seq) {
+              remove_entry(encode_key(queue_entry_prefix, queue_key, seq), batch)
+            }
+
+          case LOG_ADD_QUEUE =>
+            val record = QueuePB.FACTORY.parseUnframed(value.asInstanceOf[Buffer])
+            batch.put(encode_key(queue_prefix, record.getKey), value.asInstanceOf[Buffer].toByteArray)
+
+          case LOG_REMOVE_QUEUE =>
+            // The queue's entries get deleted in the background
+            // once the recovery is done.
+            val queue_key = decode_vlong(value.asInstanceOf[Buffer])
+            batch.delete(encode_key(queue_prefix, queue_key))
+            remove_queue_entries(queue_key)
+
+          case LOG_MAP_ENTRY =>
+            val entry = value.asInstanceOf[MapEntryPB.Getter]
+            if (entry.getValue == null) {
+              batch.delete(encode_key(map_prefix, entry.getKey))
+            } else {
+              batch.put(encode_key(map_prefix, entry.getKey), entry.getValue.toByteArray)
+            }
+        }
+    }
+  }
+
+  /**
+   * Deletes a queue entry from the index, if it's there, through the
+   * replay batch.
+   */
+  def remove_entry(key: Array[Byte], batch: ReplayBatch) = {
+    batch.get(key).foreach {
+      existing =>
+        val record = QueueEntryPB.FACTORY.parseUnframed(existing)
+        val pos = decode_vlong(record.getMessageLocator)
+        log_ref_decrement(decode_long_long_key(key)._2, pos)
+        batch.delete(key)
+    }
+  }
+
+  /**
+   * Replays the log a standby received from the replication master into
+   * the index, up to limit which has to be the end of a unit of work.
+   */
+  def replay_replicated(limit: Long) = {
+    if (limit > replica_index_pos) {
+      retry_using_index {
+        val batch = new ReplayBatch
+        try {
+          replay_records(decode_log_records(replica_index_pos, limit), batch)
+          batch.flush
+        } finally {
+          batch.close
+        }
+      }
+      replica_index_pos = limit
+    }
+  }
+
+  /**
+   * Turns a standby into a store which can be written to.  The tail of the
+   * log might be a partial unit of work if the master failed while
+   * shipping it, re-opening the log truncates it.
+   */
+  def takeover = {
+    log.close
+    log.open
+    replay_replicated(log.appender_limit)
+    replica = false
+  }
+
+  /**
+   * Buffers the index updates of a log replay so that they get written
+   * in large batches.  Reads see the buffered updates.
+   */
+  class ReplayBatch {
+    var batch = index.db.createWriteBatch()
+    val updates = HashMap[Buffer, Option[Array[Byte]]]()
+
+    def get(key: Array[Byte]): Option[Array[Byte]] = {
+      updates.get(new Buffer(key)).getOrElse(index.get(key, new ReadOptions))
+    }
+
+    def put(key: Array[Byte], value: Array[Byte]) = {
+      batch.put(key, value)
+      updated(key, Some(value))
+    }
+
+    def delete(key: Array[Byte]) = {
+      batch.delete(key)
+      updated(key, None)
+    }
+
+    private def updated(key: Array[Byte], value: Option[Array[Byte]]) = {
+      updates.put(new Buffer(key), value)
+      if (updates.size >= REPLAY_BATCH_SIZE) {
+        flush
+      }
+    }
+
+    def flush = {
+      if (!updates.isEmpty) {
+        index.db.write(batch)
+        senders.commit
+        batch.close()
+        batch = index.db.createWriteBatch()
+        updates.clear()
+      }
+    }
+
+    def close = batch.close()
+  }
+
   def retry[T](func: => T): T = {
     var error: Throwable = null
     var rc: Option[T] = None
@@ -782,10 +1119,11 @@ class LevelDBClient(store: LevelDBStore) {
   def purge() = {
     snapshot_rw_lock.writeLock().lock()
     try {
+      abort_exports
       log.close
       index.close
       directory.list_files.foreach(_.recursive_delete)
-      log_refs.clear()
+      clear_state
     } finally {
       retry {
         index = new RichDB(factory.open(dirty_index_file, index_options))
@@ -795,6 +1133,39 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
+  /**
+   * Forgets the in memory state derived from the index and the log.
+   */
+  def clear_state = {
+    log_refs.clear()
+    queue_log_refs.clear()
+    removed_queues = Set()
+    senders.clear
+    message_block_cache.synchronized {
+      message_block_cache.clear()
+    }
+    end_compaction
+    compacted_logs = Set()
+    relocated_messages.clear()
+    relocation_records = false
+  }
+
+  /**
+   * Throws away the index and the log of a standby so that it can start
+   * over from the master's index snapshot, which got copied to
+   * snapshot_dir.  The snapshot covers the log up to pos.
+   */
+  def reset_replica(snapshot_dir: File, pos: Long) = {
+    stop()
+    snapshot_rw_lock.writeLock().unlock()
+    directory.list_files.filterNot(_ == snapshot_dir).foreach(_.recursive_delete)
+    clear_state
+    if (snapshot_dir.exists()) {
+      snapshot_dir.renameTo(snapshot_index_file(pos))
+    }
+    start()
+  }
+
   def add_queue(record: QueueRecord, callback: Runnable) = {
     retry_using_index {
       log.appender {
@@ -807,19 +1178,33 @@ class LevelDBClient(store: LevelDBStore) {
     callback.run
   }
 
-  def log_ref_decrement(pos: Long, log_info: LogInfo = null) = this.synchronized {
-    for( key <- log_ref_key(pos, log_info) ) {
-      for( counter<- log_refs.get(key) ) {
-        if (counter.decrementAndGet() == 0) {
-          log_refs.remove(key)
+  def log_ref_decrement(queue_key: Long, pos: Long, log_info: LogInfo = null) = this.synchronized {
+    // The references of removed queues were already dropped in bulk.
+    if( !removed_queues.contains(queue_key) ) {
+      for( key <- log_ref_key(pos, log_info) ) {
+        for( counter<- log_refs.get(key) ) {
+          if (counter.decrementAndGet() == 0) {
+            log_refs.remove(key)
+          }
+        }
+        for( refs <- queue_log_refs.get(queue_key); counter <- refs.get(key) ) {
+          if (counter.decrementAndGet() == 0) {
+            refs.remove(key)
+            if (refs.isEmpty) {
+              queue_log_refs.remove(queue_key)
+            }
+          }
         }
       }
     }
   }
 
-  def log_ref_increment(pos: Long, log_info: LogInfo = null) = this.synchronized {
-    for( key <- log_ref_key(pos, log_info) ) {
-      log_refs.getOrElseUpdate(key, new LongCounter()).incrementAndGet()
+  def log_ref_increment(queue_key: Long, pos: Long, log_info: LogInfo = null) = this.synchronized {
+    if( !removed_queues.contains(queue_key) ) {
+      for( key <- log_ref_key(pos, log_info) ) {
+        log_refs.getOrElseUpdate(key, new LongCounter()).incrementAndGet()
+        queue_log_refs.getOrElseUpdate(queue_key, HashMap()).getOrElseUpdate(key, new LongCounter()).incrementAndGet()
+      }
     }
   }
 
@@ -844,106 +1229,359 @@ class LevelDBClient(store: LevelDBStore) {
     retry_using_index {
       log.appender {
         appender =>
-          val ro = new ReadOptions
-          ro.fillCache(false)
-          ro.verifyChecksums(verify_checksums)
           appender.append(LOG_REMOVE_QUEUE, encode_vlong(queue_key))
           index.delete(encode_key(queue_prefix, queue_key))
-          index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
-            (key, value) =>
-              index.delete(key)
+          remove_queue_entries(queue_key)
+      }
+    }
+    callback.run
+  }
 
-              // Figure out what log file that message entry was in so we can,
-              // decrement the log file reference.
-              val record = QueueEntryPB.FACTORY.parseUnframed(value)
-              val pos = decode_vlong(record.getMessageLocator)
-              log_ref_decrement(pos)
-              true
+  /**
+   * Drops the log file references of a removed queue's entries using the
+   * queue's reference summary and leaves deleting the entries from the
+   * index to a background task.
+   */
+  def remove_queue_entries(queue_key: Long) = {
+    this.synchronized {
+      for( refs <- queue_log_refs.remove(queue_key); (key, count) <- refs; counter <- log_refs.get(key) ) {
+        if (counter.addAndGet(-count.get()) <= 0) {
+          log_refs.remove(key)
+        }
+      }
+      removed_queues += queue_key
+    }
+    store_removed_queues
+    schedule_removed_queue_cleanup
+  }
+
+  var removed_queue_cleanup_scheduled = false
+  /** the last deleted index key of the removed queue being cleaned up */
+  var removed_queue_cleanup_pos: Array[Byte] = null
+
+  def schedule_removed_queue_cleanup: Unit = {
+    if (!removed_queue_cleanup_scheduled && !removed_queues.isEmpty) {
+      removed_queue_cleanup_scheduled = true
+      dispatchQueue.after(QUEUE_CLEANUP_CHUNK_DELAY, TimeUnit.MILLISECONDS) {
+        if (store.service_state.is_starting_or_started) {
+          store.write_executor {
+            cleanup_removed_queue
           }
+        }
       }
     }
-    callback.run
   }
 
-  def store(uows: Seq[LevelDBStore#DelayableUOW]) {
+  /**
+   * Deletes the next chunk of index entries of a removed queue.  Runs on
+   * the write thread between foreground writes.  Once all of the queue's
+   * entries are deleted, the range gets compacted so that LevelDB drops
+   * the deletion markers.
+   */
+  def cleanup_removed_queue: Unit = {
+    removed_queue_cleanup_scheduled = false
+    if (removed_queues.isEmpty) {
+      return
+    }
+    val queue_key = removed_queues.min
+    val start = encode_key(queue_entry_prefix, queue_key)
+    val end = encode_key(queue_entry_prefix, queue_key + 1)
+    if (removed_queue_cleanup_pos == null || !removed_queue_cleanup_pos.startsWith(start)) {
+      removed_queue_cleanup_pos = start
+    }
+    try {
+      using_index {
+        val ro = new ReadOptions
+        ro.fillCache(false)
+        var deleted = 0
+        index.write() { batch =>
+          // Resume after the last deleted key so we don't walk over the
+          // deletion markers again.
+          index.cursor_range_keys(removed_queue_cleanup_pos, end, ro) { key =>
+            batch.delete(key)
+            removed_queue_cleanup_pos = key :+ 0.toByte
+            deleted += 1
+            deleted < QUEUE_CLEANUP_CHUNK_SIZE
+          }
+        }
+        if (deleted < QUEUE_CLEANUP_CHUNK_SIZE) {
+          index.compact_range(start, end)
+          this.synchronized {
+            removed_queues -= queue_key
+          }
+          store_removed_queues
+          removed_queue_cleanup_pos = null
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        warn(e, "Could not delete the entries of removed queue %d: %s", queue_key, e)
+    }
+    schedule_removed_queue_cleanup
+  }
+
+  /**
+   * The parts of a unit of work which can be encoded before we know
+   * where in the journal it gets appended.
+   */
+  class EncodedUOW(val uow: LevelDBStore#DelayableUOW) {
+    /** the index key, value and log record of each map update */
+    val map_entries = ListBuffer[(Array[Byte], Array[Byte], Buffer)]()
+    /** the framed header of each message being stored */
+    val message_headers = HashMap[Long, Buffer]()
+  }
+
+  val metric_journal_append_counter = new TimeCounter
+  var metric_journal_append = metric_journal_append_counter(false)
+  val metric_index_update_counter = new TimeCounter
+  var metric_index_update = metric_index_update_counter(false)
+
+  /**
+   * <p>
+   * The small messages of a store batch which get compressed together and
+   * appended as a single log record.  This gets a lot more out of the
+   * compression than compressing each message on its own.
+   * </p>
+   *
+   * <p>
+   * The record holds the codec id, the length of the compressed data and
+   * the compressed data.  Uncompressed, the data holds the number of
+   * messages, their lengths and then the messages, each one framed like
+   * the data of a LOG_ADD_MESSAGE record.  The locator of the n-th message
+   * of a block at position p is (p + n, -(n + 1)), so every message still
+   * has its own position in the log.
+   * </p>
+   */
+  class MessageBlock {
+    /** the key, header and body of each message in the block */
+    val messages = ListBuffer[(Long, Buffer, Buffer)]()
+    var size = 0
+    var record: Buffer = null
+
+    def add(msg: Long, header: Buffer, body: Buffer) = {
+      messages += ((msg, header, body))
+      size += header.length + body.length
+    }
+
+    def finish = {
+      val data = new DataByteArrayOutputStream(size + 5 * (messages.size + 1))
+      data.writeVarInt(messages.size)
+      for ((_, header, body) <- messages) {
+        data.writeVarInt(header.length + body.length)
+      }
+      for ((_, header, body) <- messages) {
+        data.write(header.data, header.offset, header.length)
+        data.write(body.data, body.offset, body.length)
+      }
+      val compressed = log_codec.compress(data.toBuffer)
+      val out = new DataByteArrayOutputStream(compressed.length + 10 + messages.size)
+      out.writeVarInt(log_codec.id)
+      out.writeVarInt(compressed.length)
+      out.write(compressed.data, compressed.offset, compressed.length)
+      // Make sure the positions of all the messages fall inside the record.
+      while (out.position() < messages.size) {
+        out.writeByte(0)
+      }
+      record = out.toBuffer
+    }
+  }
+
+  def decode_message_block(data: Buffer): Array[Buffer] = {
+    val in = new DataByteArrayInputStream(data)
+    val codec = CompressionCodec(in.readVarInt())
+    val compressed = in.readBuffer(in.readVarInt())
+    val block = new DataByteArrayInputStream(codec.uncompress(compressed))
+    val lengths = Array.fill(block.readVarInt())(block.readVarInt())
+    lengths.map(block.readBuffer(_))
+  }
+
+  /**
+   * The encoded units of work of a store batch along with the message
+   * blocks their small messages got packed into.
+   */
+  class EncodedBatch(val uows: Seq[EncodedUOW], val blocks: Seq[MessageBlock])
+
+  /**
+   * Encodes the map entries and message headers of the units of work and
+   * compresses the message blocks.  Does not touch the log or index so it
+   * can run while a previous batch is still being appended.
+   */
+  def encode(uows: Seq[LevelDBStore#DelayableUOW]) = {
+    val blocks = ListBuffer[MessageBlock]()
+    val encoded = uows.map { uow =>
+      encode_uow(uow, blocks)
+    }
+    blocks.foreach(_.finish)
+    new EncodedBatch(encoded, blocks)
+  }
+
+  def encode_uow(uow: LevelDBStore#DelayableUOW, blocks: ListBuffer[MessageBlock]) = {
+    val rc = new EncodedUOW(uow)
+    for ((key, value) <- uow.map_actions) {
+      val entry = new MapEntryPB.Bean()
+      entry.setKey(key)
+      if (value == null) {
+        rc.map_entries += ((encode_key(map_prefix, key), null, entry.freeze().toUnframedBuffer))
+      } else {
+        entry.setValue(value)
+        rc.map_entries += ((encode_key(map_prefix, key), value.toByteArray, entry.freeze().toUnframedBuffer))
+      }
+    }
+    uow.actions.foreach {
+      action =>
+        val msg = action.msg
+        val message_record = action.message_record
+        if (message_record != null) {
+          val pb = new MessagePB.Bean
+          pb.setCodec(message_record.codec)
+          if(message_record.compressed!=null) {
+            pb.setCompression(log_codec.id)
+          }
+          val header = pb.freeze().toFramedBuffer
+          rc.message_headers.put(msg, header)
+
+          val size = header.length + message_record.buffer.length
+          if (log_codec != null && message_record.compressed == null && size < log_block_size) {
+            if (blocks.isEmpty || blocks.last.size + size > log_block_size) {
+              blocks += new MessageBlock
+            }
+            blocks.last.add(msg, header, message_record.buffer)
+          }
+        }
+    }
+    rc
+  }
+
+  /**
+   * Appends the encoded units of work to the journal and applies them to
+   * the index.  The log is flushed but not forced, the returned appender
+   * is retained so the caller can force it and then release it.  Also
+   * returns if any of the units of work asked to be synced.
+   */
+  def store(encoded_batch: EncodedBatch):(RecordLog#LogAppender, Boolean) = {
     retry_using_index {
       log.appender {
         appender =>
 
           var sync_needed = false
+          val started = System.nanoTime
+          var appended = 0L
           index.write() {
             batch =>
-              uows.foreach {
-                uow =>
+              // Forget the senders added by a previous failed attempt.
+              senders.rollback
+
+              // Runs of dequeues of contiguous entries of a queue get logged
+              // as one range record.  The pending run gets logged before
+              // anything else is, so the log keeps the order of the updates.
+              var run_queue = 0L
+              var run_first = 0L
+              var run_last = -1L
+              def log_dequeues = {
+                if (run_last == run_first) {
+                  appender.append(LOG_REMOVE_QUEUE_ENTRY, encode_key(queue_entry_prefix, run_queue, run_first))
+                } else if (run_last > run_first) {
+                  appender.append(LOG_REMOVE_QUEUE_ENTRY_RANGE, encode_entry_range(run_queue, run_first, run_last))
+                }
+                run_first = 0L
+                run_last = -1L
+              }
+
+              // The message blocks go first since the queue entries
+              // reference their messages.
+              val block_locators = HashMap[Long, (Long, Int)]()
+              for (block <- encoded_batch.blocks) {
+                val (pos, _) = appender.append(LOG_ADD_MESSAGE_BLOCK, block.record)
+                for (((msg, _, _), i) <- block.messages.zipWithIndex) {
+                  block_locators.put(msg, (pos + i, -(i + 1)))
+                }
+              }
 
-                  for ((key, value) <- uow.map_actions) {
-                    val entry = new MapEntryPB.Bean()
-                    entry.setKey(key)
+              encoded_batch.uows.foreach {
+                encoded =>
+                  val uow = encoded.uow
+
+                  for ((key, value, log_data) <- encoded.map_entries) {
                     if (value == null) {
-                      batch.delete(encode_key(map_prefix, key))
+                      batch.delete(key)
                     } else {
-                      entry.setValue(value)
-                      batch.put(encode_key(map_prefix, key), value.toByteArray)
+                      batch.put(key, value)
                     }
-                    var log_data = entry.freeze().toUnframedBuffer
-
+                    log_dequeues
                     appender.append(LOG_MAP_ENTRY, log_data)
                   }
 
                   uow.actions.foreach {
-                    case (msg, action) =>
+                    action =>
+                      val msg = action.msg
                       val message_record = action.message_record
                       var locator: (Long, Int) = null
                       var log_info: LogInfo = null
 
                       if (message_record != null) {
+                        locator = block_locators.get(msg).getOrElse {
+                          val body = if(message_record.compressed!=null) {
+                            message_record.compressed
+                          } else {
+                            message_record.buffer
+                          }
+                          var header = encoded.message_headers(msg)
 
-                        val pb = new MessagePB.Bean
-                        pb.setCodec(message_record.codec)
-
-                        val body = if(message_record.compressed!=null) {
-                          pb.setCompression(1)
-                          message_record.compressed
-                        } else {
-                          message_record.buffer
+                          log_dequeues
+                          val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
+                          (pos, header.length + body.length)
                         }
-                        var header = pb.freeze().toFramedBuffer
-
-                        val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
-                        locator = (pos, header.length + body.length)
                         message_record.locator.set(locator);
                       }
 
                       action.dequeues.foreach {
                         entry =>
+                          val key = encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq)
                           if (locator == null) {
-                            locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
+                            locator = relocate(entry.message_locator)
                           }
                           assert(locator != null)
                           val (pos, len) = locator
-                          val key = encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq)
+                          if (compacting != null) {
+                            compaction_dequeue(pos, entry.queue_key, entry.entry_seq)
+                          }
 
-                          appender.append(LOG_REMOVE_QUEUE_ENTRY, key)
+                          if (run_last >= run_first && run_queue == entry.queue_key && run_last + 1 == entry.entry_seq) {
+                            run_last = entry.entry_seq
+                          } else {
+                            log_dequeues
+                            run_queue = entry.queue_key
+                            run_first = entry.entry_seq
+                            run_last = entry.entry_seq
+                          }
                           batch.delete(key)
-                          log_ref_decrement(pos, log_info)
+                          log_ref_decrement(entry.queue_key, pos, log_info)
                       }
 
                       var locator_buffer: Buffer = null
-                      action.enqueues.foreach {
+                      // Entries enqueued to removed queues would never get deleted.
+                      val enqueues = if (removed_queues.isEmpty) {
+                        action.enqueues
+                      } else {
+                        action.enqueues.filterNot(x => removed_queues.contains(x.queue_key))
+                      }
+                      enqueues.foreach {
                         entry =>
                           if (locator == null) {
-                            locator = entry.message_locator.get().asInstanceOf[(Long, Int)]
+                            locator = relocate(entry.message_locator)
                           }
                           assert(locator != null)
                           val (pos, len) = locator
                           if (locator_buffer == null) {
                             locator_buffer = encode_locator(pos, len)
                           }
+                          if (compacting != null) {
+                            compaction_enqueue(pos, len, entry.queue_key, entry.entry_seq)
+                          }
 
                           entry.message_locator.set(locator)
 
                           val log_record = new QueueEntryPB.Bean
-                          // TODO: perhaps we should normalize the sender to make the index entries more compact.
                           if( entry.sender!=null ) {
                             entry.sender.foreach(log_record.addSender(_))
                           }
@@ -955,18 +1593,22 @@ class LevelDBClient(store: LevelDBStore) {
                             log_record.setExpiration(entry.expiration)
                           if (entry.redeliveries != 0)
                             log_record.setRedeliveries(entry.redeliveries)
+                          if (entry.priority != Delivery.DEFAULT_PRIORITY)
+                            log_record.setPriority(entry.priority)
+                          if (entry.deliver_at != 0)
+                            log_record.setDeliverAt(entry.deliver_at)
 
+                          log_dequeues
                           appender.append(LOG_ADD_QUEUE_ENTRY, log_record.freeze().toUnframedBuffer)
 
                           // Slim down the index record, the smaller it is the cheaper the compactions
                           // will be and the more we can cache in mem.
-                          val index_record = log_record.copy()
-                          index_record.clearQueueKey()
-                          index_record.clearQueueSeq()
+                          val index_record = copy_entry_fields(log_record, new QueueEntryPB.Bean)
+                          senders.add_ids(entry.sender, index_record, batch)
                           batch.put(encode_key(queue_entry_prefix, entry.queue_key, entry.entry_seq), index_record.freeze().toUnframedBuffer)
 
                           // Increment it.
-                          log_ref_increment(pos, log_info)
+                          log_ref_increment(entry.queue_key, pos, log_info)
 
                       }
                   }
@@ -974,11 +1616,17 @@ class LevelDBClient(store: LevelDBStore) {
                     sync_needed = true
                   }
               }
+              log_dequeues
+              appended = System.nanoTime
           }
-          if (sync_needed && sync) {
-            appender.flush
-            appender.force
-          }
+          senders.commit
+          metric_journal_append_counter += appended - started
+          metric_index_update_counter += System.nanoTime - appended
+
+          // Keep the appender open until the caller forces it, even if
+          // the log gets rotated in the mean time.
+          appender.retain()
+          (appender, sync_needed && (sync || replicated))
       }
     }
   }
@@ -1000,16 +1648,10 @@ class LevelDBClient(store: LevelDBStore) {
             x =>
               val (_, locator, callback) = x
               val record = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data =>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
+                val (pos, len) = relocate(locator)
+                read_message(pos, len).map { data =>
+                  val rc = decode_message_record(data)
                   rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
                   rc
                 }
               }
@@ -1036,16 +1678,10 @@ class LevelDBClient(store: LevelDBStore) {
             x =>
               val (_, locator, callback) = x
               val record: Option[MessageRecord] = metric_load_from_index_counter.time {
-                val (pos, len) = locator.get().asInstanceOf[(Long, Int)]
-                log.read(pos, len).map { data=>
-                  val is = new DataByteArrayInputStream(data)
-                  val pb = MessagePB.FACTORY.parseFramed(is)
-                  val rc = PBSupport.from_pb(pb)
-                  rc.buffer = is.readBuffer(is.available())
+                val (pos, len) = relocate(locator)
+                read_message(pos, len).map { data=>
+                  val rc = decode_message_record(data)
                   rc.locator = locator
-                  if(pb.getCompression == 1) {
-                    rc.buffer = Snappy.uncompress(rc.buffer)
-                  }
                   rc
                 }
               }
@@ -1055,20 +1691,84 @@ class LevelDBClient(store: LevelDBStore) {
     }
   }
 
-  def list_queues: Seq[Long] = {
-    val rc = ListBuffer[Long]()
-    using_index {
-      val ro = new ReadOptions
-      ro.verifyChecksums(verify_checksums)
-      ro.fillCache(false)
-      index.cursor_keys_prefixed(queue_prefix_array, ro) {
-        key =>
-          rc += decode_long_key(key)._2
-          true // to continue cursoring.
-      }
-    }
-    rc
-  }
+  val message_block_cache = new LRUCache[Long, Array[Buffer]](MESSAGE_BLOCK_CACHE_SIZE)
+
+  /**
+   * Reads the data of the message at the locator, uncompressing the
+   * message block it's in if needed.
+   */
+  def read_message(pos: Long, len: Int): Option[Buffer] = {
+    if (len >= 0) {
+      log.read(pos, len)
+    } else {
+      val i = -len - 1
+      val block_pos = pos - i
+      val cached = message_block_cache.synchronized {
+        message_block_cache.get(block_pos)
+      }
+      val block = if (cached != null) {
+        Some(cached)
+      } else {
+        log.read(block_pos).map {
+          case (kind, data, _) =>
+            if (kind != LOG_ADD_MESSAGE_BLOCK) {
+              throw new IOException("No message block at position: " + block_pos)
+            }
+            val rc = decode_message_block(data)
+            message_block_cache.synchronized {
+              message_block_cache.put(block_pos, rc)
+            }
+            rc
+        }
+      }
+      block.map(_(i))
+    }
+  }
+
+  def decode_message_record(data: Buffer) = {
+    val is = new DataByteArrayInputStream(data)
+    val pb = MessagePB.FACTORY.parseFramed(is)
+    val rc = PBSupport.from_pb(pb)
+    rc.buffer = is.readBuffer(is.available())
+    if (pb.getCompression != 0) {
+      rc.buffer = CompressionCodec(pb.getCompression).uncompress(rc.buffer)
+    }
+    rc
+  }
+
+  /**
+   * Compresses the body of a message read out of a message block so it
+   * can be stored on its own.  Returns the header and body.
+   */
+  def compress_message_data(data: Buffer): (Buffer, Buffer) = {
+    val is = new DataByteArrayInputStream(data)
+    val pb = MessagePB.FACTORY.parseFramed(is).copy()
+    val header_length = data.length - is.available()
+    val body = is.readBuffer(is.available())
+    if (log_codec != null && pb.getCompression == 0) {
+      val compressed = log_codec.compress(body)
+      if (compressed.length < body.length) {
+        pb.setCompression(log_codec.id)
+        return (pb.freeze().toFramedBuffer, compressed)
+      }
+    }
+    (new Buffer(data.data, data.offset, header_length), body)
+  }
+
+  def list_queues: Seq[Long] = {
+    val rc = ListBuffer[Long]()
+    using_index {
+      val ro = new ReadOptions
+      ro.verifyChecksums(verify_checksums)
+      ro.fillCache(false)
+      index.cursor_keys_prefixed(queue_prefix_array, ro) {
+        key =>
+          rc += decode_long_key(key)._2
+          true // to continue cursoring.
+      }
+    }
+    rc
+  }
 
   def get_queue(queue_key: Long): Option[QueueRecord] = {
     retry_using_index {
@@ -1092,18 +1792,29 @@ class LevelDBClient(store: LevelDBStore) {
         snapshot =>
           ro.snapshot(snapshot)
 
+          val now = System.currentTimeMillis
           var group: QueueEntryRange = null
           index.cursor_prefixed(encode_key(queue_entry_prefix, queue_key), ro) {
             (key, value) =>
 
               val (_, _, current_key) = decode_long_long_key(key)
+              val entry = QueueEntryPB.FACTORY.parseUnframed(value)
+              val priority = if (entry.hasPriority) entry.getPriority.toByte else Delivery.DEFAULT_PRIORITY
+              val deliver_at = if (entry.getDeliverAt > now) entry.getDeliverAt else 0L
+
+              // Ranges only hold entries of a single priority which are
+              // either all scheduled or all ready for delivery.
+              if (group != null && (group.priority != priority || (group.deliver_at == 0) != (deliver_at == 0))) {
+                rc += group
+                group = null
+              }
               if (group == null) {
                 group = new QueueEntryRange
                 group.first_entry_seq = current_key
+                group.priority = priority
+                group.deliver_at = deliver_at
               }
-
-              val entry = QueueEntryPB.FACTORY.parseUnframed(value)
-              val pos = decode_vlong(entry.getMessageLocator)
+              group.deliver_at = deliver_at.min(group.deliver_at)
 
               group.last_entry_seq = current_key
               group.count += 1
@@ -1116,6 +1827,11 @@ class LevelDBClient(store: LevelDBStore) {
                   group.expiration = entry.getExpiration.min(group.expiration)
                 }
               }
+              if (group.count == 1) {
+                group.latest_expiration = entry.getExpiration
+              } else if (group.latest_expiration != 0) {
+                group.latest_expiration = if (entry.getExpiration == 0) 0 else entry.getExpiration.max(group.latest_expiration)
+              }
 
               if (group.count == limit) {
                 rc += group
@@ -1148,6 +1864,7 @@ class LevelDBClient(store: LevelDBStore) {
               val (_, _, queue_seq) = decode_long_long_key(key)
               val record = QueueEntryPB.FACTORY.parseUnframed(value)
               val entry = PBSupport.from_pb(record)
+              entry.sender = senders.decode(record)
               entry.queue_key = queue_key
               entry.entry_seq = queue_seq
               entry.message_locator = new AtomicReference[Object](decode_locator(record.getMessageLocator))
@@ -1181,7 +1898,9 @@ class LevelDBClient(store: LevelDBStore) {
 
   def get_last_queue_key: Long = {
     retry_using_index {
-      index.last_key(queue_prefix_array).map(decode_long_key(_)._2).getOrElse(0)
+      // Don't hand out the keys of removed queues still being cleaned up.
+      index.last_key(queue_prefix_array).map(decode_long_key(_)._2).getOrElse(0L).max(
+        if (removed_queues.isEmpty) 0L else removed_queues.max)
     }
   }
 
@@ -1226,12 +1945,9 @@ class LevelDBClient(store: LevelDBStore) {
   }
 
   def gc: Unit = {
-
-    // TODO:
-    // Perhaps we should snapshot_index if the current snapshot is old.
-    //
     import collection.JavaConversions._
 
+    snapshot_index_if_recovery_slow
     detect_if_compact_needed
 
     // Lets compact the leveldb index if it looks like we need to.
@@ -1249,12 +1965,426 @@ class LevelDBClient(store: LevelDBStore) {
     val delete_limit = log_ref_key(last_index_snapshot_pos).
       getOrElse(last_index_snapshot_pos).min(log.appender_start)
 
+    // Running exports might still read any of the log files.
+    if (exporting) {
+      return
+    }
+
     empty_journals.foreach {
       id =>
         if (id < delete_limit) {
+          if (compacted_logs.contains(id)) {
+            compacted_logs -= id
+            log.log_info(id).foreach { info =>
+              log_compaction_reclaimed += info.file.length()
+              forget_relocations(info)
+            }
+          }
           log.delete(id)
         }
     }
+
+    schedule_log_compaction(delete_limit)
+  }
+
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Log compaction: A single long lived message can keep a whole log
+  // file from being deleted.  So the messages still referenced from
+  // sparse log files get copied to the current appender and the index
+  // entries which reference them get updated.  Once the index has been
+  // snapshot'ed, gc deletes the old log file.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  /** the percentage of a log file which has to be live for it to be left alone */
+  var log_compaction_ratio = 10
+
+  /**
+   * the new locators of moved messages keyed by their old position, for the
+   * compacted log files which have not been deleted yet
+   */
+  val relocated_messages = new ConcurrentHashMap[Long, (Long, Int)]()
+
+  /**
+   * if the index holds relocation records, which keep track of where the
+   * messages of deleted log files went for the locators handed out before
+   */
+  @volatile
+  var relocation_records = false
+
+  class CompactedMessage(val pos: Long, val len: Int) {
+    /** the (queue key, queue seq) of the entries referencing the message */
+    val entries = HashSet[(Long, Long)]()
+  }
+
+  /** the log file being compacted */
+  @volatile
+  var compacting: LogInfo = null
+  /** the messages that still need to be moved out of the log file being compacted */
+  val compaction_plan = new ju.TreeMap[Long, CompactedMessage]()
+  /** changes whenever a compaction ends so the steps of an older one stop */
+  @volatile
+  var compaction_id = 0L
+  /** where the scan of the index for the entries of the log file being compacted is at */
+  var compaction_scan_pos: Array[Byte] = null
+  /** the live data the scan found in the log file being compacted */
+  var compaction_live = 0L
+  /** the appenders the moved messages went to, they get forced once the compaction is done */
+  val compaction_appenders = ListBuffer[RecordLog#LogAppender]()
+  /** the compacted log files which have not been deleted yet */
+  var compacted_logs = Set[Long]()
+  /** the reference counts of the log files which were too dense to compact on the last scan */
+  var dense_logs = Map[Long, Long]()
+  var last_compaction_scan = 0L
+
+  var log_compactions = 0L
+  var log_compaction_read = 0L
+  var log_compaction_written = 0L
+  var log_compaction_reclaimed = 0L
+
+  /**
+   * Returns the locator a message reference points at, following the
+   * message if it was moved by a log compaction.  Updates the reference
+   * so the next lookup does not need to follow it.
+   */
+  def relocate(ref: AtomicReference[Object]): (Long, Int) = {
+    val locator = ref.get().asInstanceOf[(Long, Int)]
+    if (locator == null || (relocated_messages.isEmpty && !relocation_records)) {
+      locator
+    } else {
+      var rc = locator
+      var next = relocation(rc._1)
+      while (next != null) {
+        rc = next
+        next = relocation(rc._1)
+      }
+      if (rc ne locator) {
+        ref.set(rc)
+      }
+      rc
+    }
+  }
+
+  /**
+   * Gets where the message at pos was moved to or null if it was not moved.
+   * Once the compacted log file is deleted, that's in the index.
+   */
+  private def relocation(pos: Long): (Long, Int) = {
+    val rc = relocated_messages.get(pos)
+    if (rc != null || !relocation_records || log.log_file_range(pos).isDefined) {
+      rc
+    } else {
+      index.get(encode_key(relocation_prefix, pos)).map(decode_locator(_)).orNull
+    }
+  }
+
+  /**
+   * Drops the in memory relocations of the messages which were moved out
+   * of a compacted log file that is getting deleted, the relocation records
+   * in the index still have them.
+   */
+  def forget_relocations(info: LogInfo) = {
+    val i = relocated_messages.keySet().iterator()
+    while (i.hasNext) {
+      val pos = i.next()
+      if (pos >= info.position && pos < info.limit) {
+        i.remove()
+      }
+    }
+  }
+
+  /**
+   * Deletes the relocation records.  Only done when the store starts since
+   * all the locators get loaded from the index after that.
+   */
+  def delete_relocation_records = {
+    val ro = new ReadOptions
+    ro.fillCache(false)
+    index.write() { batch =>
+      index.cursor_keys_prefixed(relocation_prefix_array, ro) { key =>
+        batch.delete(key)
+        true
+      }
+    }
+    relocation_records = false
+  }
+
+  private def compacting_contains(pos: Long) = {
+    val info = compacting
+    info != null && pos >= info.position && pos < info.limit
+  }
+
+  // Keep the plan in sync with the entries the foreground writes add and
+  // remove, the scan of the index adds to it from the compaction thread.
+  def compaction_enqueue(pos: Long, len: Int, queue_key: Long, seq: Long) = compaction_plan.synchronized {
+    if (compacting_contains(pos)) {
+      var message = compaction_plan.get(pos)
+      if (message == null) {
+        message = new CompactedMessage(pos, len)
+        compaction_plan.put(pos, message)
+      }
+      message.entries += ((queue_key, seq))
+    }
+  }
+
+  def compaction_dequeue(pos: Long, queue_key: Long, seq: Long) = compaction_plan.synchronized {
+    if (compacting_contains(pos)) {
+      val message = compaction_plan.get(pos)
+      if (message != null) {
+        message.entries -= ((queue_key, seq))
+      }
+    }
+  }
+
+  /**
+   * Picks the log file with the fewest references for its size and starts
+   * scanning the index for the entries referencing it.  Only the log_refs
+   * get looked at here, the scan runs in steps on the compaction thread so
+   * it does not hold up the foreground writes.
+   */
+  def schedule_log_compaction(delete_limit: Long): Unit = {
+    import collection.JavaConversions._
+    if (log_compaction_ratio <= 0 || compacting != null || !store.service_state.is_started) {
+      return
+    }
+    val now = System.currentTimeMillis()
+    if (now - last_compaction_scan < LOG_COMPACTION_SCAN_INTERVAL) {
+      return
+    }
+
+    var candidate: LogInfo = null
+    var candidate_density = Double.MaxValue
+    log.log_mutex.synchronized {
+      dense_logs = dense_logs.filter(x => log.log_infos.containsKey(x._1))
+      for ((id, info) <- log.log_infos if id < delete_limit && info.length > 0) {
+        for (refs <- log_refs.get(id) if dense_logs.get(id) != Some(refs.get())) {
+          val density = refs.get().toDouble / info.length
+          if (density < candidate_density) {
+            candidate = info
+            candidate_density = density
+          }
+        }
+      }
+    }
+    if (candidate == null) {
+      return
+    }
+    last_compaction_scan = now
+    compacting = candidate
+    compaction_scan_pos = queue_entry_prefix_array
+    compaction_live = 0L
+    schedule_compaction_scan(compaction_id)
+  }
+
+  def schedule_compaction_scan(id: Long) = {
+    dispatchQueue.after(LOG_COMPACTION_CHUNK_DELAY, TimeUnit.MILLISECONDS) {
+      if (store.service_state.is_started && id == compaction_id) {
+        store.compaction_executor {
+          compaction_scan_step(id)
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the next chunk of the queue entry index, adding the entries which
+   * reference messages in the log file being compacted to the plan.  Runs
+   * on the compaction thread.
+   */
+  def compaction_scan_step(id: Long): Unit = {
+    val info = compacting
+    var last: Array[Byte] = null
+    var scanned = 0
+    try {
+      using_index {
+        if (id == compaction_id) {
+          val ro = new ReadOptions
+          ro.fillCache(false)
+          ro.verifyChecksums(verify_checksums)
+          index.cursor_range(compaction_scan_pos, Array((queue_entry_prefix + 1).toByte), ro) {
+            (key, value) =>
+              last = key
+              scanned += 1
+              val (_, queue_key, seq) = decode_long_long_key(key)
+              if (!removed_queues.contains(queue_key)) {
+                val record = QueueEntryPB.FACTORY.parseUnframed(value)
+                val (pos, len) = decode_locator(record.getMessageLocator)
+                if (pos >= info.position && pos < info.limit) {
+                  // We don't know the compressed size of messages stored in blocks.
+                  compaction_live += (if (len >= 0) len else record.getSize)
+                  compaction_enqueue(pos, len, queue_key, seq)
+                }
+              }
+              scanned < LOG_COMPACTION_SCAN_CHUNK_SIZE
+          }
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        warn(e, "Scanning the index for the compaction of %s failed: %s", info.file, e)
+        scanned = -1
+    }
+    if (store.service_state.is_started && id == compaction_id) {
+      if (scanned == LOG_COMPACTION_SCAN_CHUNK_SIZE) {
+        compaction_scan_pos = last :+ 0.toByte
+        schedule_compaction_scan(id)
+      } else {
+        store.write_executor {
+          if (id == compaction_id) {
+            if (scanned < 0) {
+              end_compaction
+            } else {
+              start_compaction_moves
+            }
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Starts moving the messages out of the log file being compacted once
+   * the scan is done, if the file is sparse enough.  Runs on the write
+   * thread.
+   */
+  def start_compaction_moves = {
+    val ratio = compaction_live * 100.0 / compacting.length
+    if (ratio < log_compaction_ratio) {
+      debug("Compacting log file %s, %.2f%% of it is live", compacting.file, ratio)
+      compact_log_chunk
+    } else {
+      dense_logs += compacting.position -> log_refs.get(compacting.position).map(_.get()).getOrElse(0L)
+      end_compaction
+    }
+  }
+
+  def end_compaction = {
+    compaction_id += 1
+    compaction_scan_pos = null
+    compaction_plan.synchronized {
+      compacting = null
+      compaction_plan.clear()
+    }
+    compaction_appenders.foreach(_.release())
+    compaction_appenders.clear()
+  }
+
+  def schedule_compact_log_chunk = {
+    val id = compaction_id
+    dispatchQueue.after(LOG_COMPACTION_CHUNK_DELAY, TimeUnit.MILLISECONDS) {
+      if (store.service_state.is_started) {
+        store.write_executor {
+          if (id == compaction_id) {
+            compact_log_chunk
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Moves the next chunk of messages out of the log file being compacted.
+   * Runs on the write thread between foreground writes.  The log only gets
+   * forced once all the messages are moved, the old log file stays around
+   * until then.
+   */
+  def compact_log_chunk: Unit = {
+    if (compacting == null) {
+      return
+    }
+    val relocations = ListBuffer[(Long, (Long, Int))]()
+    val ref_moves = ListBuffer[(Long, Long, Long, LogInfo)]()
+    var moved = 0L
+    try {
+      using_index {
+        log.appender {
+          appender =>
+            if (!compaction_appenders.exists(_ eq appender)) {
+              appender.retain()
+              compaction_appenders += appender
+            }
+            index.write() {
+              batch =>
+                while (moved < LOG_COMPACTION_CHUNK_SIZE && !compaction_plan.isEmpty) {
+                  val message = compaction_plan.synchronized {
+                    compaction_plan.remove(compaction_plan.firstKey())
+                  }
+                  // Skip the entries which got removed since the scan read them.
+                  val entries = message.entries.toSeq.flatMap { case (queue_key, seq) =>
+                    val key = encode_key(queue_entry_prefix, queue_key, seq)
+                    index.get(key).map(value => (queue_key, seq, key, value))
+                  }
+                  if (!entries.isEmpty) {
+                    for (data <- read_message(message.pos, message.len)) {
+                      // Messages get moved out of their blocks one at a time.
+                      val parts = if (message.len >= 0) {
+                        Seq(data)
+                      } else {
+                        val (header, body) = compress_message_data(data)
+                        Seq(header, body)
+                      }
+                      val len = parts.map(_.length).sum
+                      val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, parts: _*)
+                      val locator_buffer = new Buffer(encode_locator(pos, len))
+                      for ((queue_key, seq, key, value) <- entries) {
+                        val record = QueueEntryPB.FACTORY.parseUnframed(value).copy()
+                        record.setMessageLocator(locator_buffer)
+                        batch.put(key, record.freeze().toUnframedBuffer)
+
+                        // Journal the move so that a recovery replays it.
+                        appender.append(LOG_REMOVE_QUEUE_ENTRY, key)
+                        appender.append(LOG_ADD_QUEUE_ENTRY, senders.expand(queue_key, seq, record).freeze().toUnframedBuffer)
+                        ref_moves += ((queue_key, message.pos, pos, log_info))
+                      }
+                      relocations += ((message.pos, (pos, len)))
+                      batch.put(encode_key(relocation_prefix, message.pos), locator_buffer.toByteArray)
+                      relocation_records = true
+                      moved += len
+                    }
+                  }
+                }
+            }
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        warn(e, "Log compaction of %s failed: %s", compacting.file, e)
+        end_compaction
+        return
+    }
+
+    // Only redirect the in-memory references once the index has been updated.
+    for ((queue_key, from, to, log_info) <- ref_moves) {
+      log_ref_decrement(queue_key, from, compacting)
+      log_ref_increment(queue_key, to, log_info)
+    }
+    for ((pos, locator) <- relocations) {
+      relocated_messages.put(pos, locator)
+    }
+    log_compaction_read += moved
+    log_compaction_written += moved
+
+    if (compaction_plan.isEmpty) {
+      try {
+        // The moved data has to be on disk before the old log file can go.
+        compaction_appenders.foreach(_.force)
+      } catch {
+        case e: Throwable =>
+          warn(e, "Log compaction of %s failed: %s", compacting.file, e)
+          end_compaction
+          return
+      }
+      debug("Compacted log file %s", compacting.file)
+      compacted_logs += compacting.position
+      log_compactions += 1
+      end_compaction
+      // gc can delete the old log file once the index snapshot
+      // has the new locators.
+      snapshot_index
+    } else {
+      schedule_compact_log_chunk
+    }
   }
 
   case class UsageCounter(info: LogInfo) {
@@ -1327,101 +2457,341 @@ class LevelDBClient(store: LevelDBStore) {
   //  }
 
 
-  def export_data(os: OutputStream): Option[String] = {
-    try {
-      val manager = ExportStreamManager(os, 1)
+  /////////////////////////////////////////////////////////////////////
+  //
+  // Exports read a snapshot of the index from export threads so that
+  // the store keeps writing meanwhile.  The index lock only gets held
+  // while reading a chunk, and exports fail once the store gets stopped
+  // or purged.
+  //
+  /////////////////////////////////////////////////////////////////////
 
-      retry_using_index {
+  /**
+   * A consistent view of the index to export from, the log position it
+   * is up to date with and a copy of the in memory state the export needs.
+   */
+  class ExportView(val snapshot: Snapshot, val pos: Long, val removed_queues: Set[Long], val senders: collection.Map[Int, Buffer]) {
+    @volatile var aborted = false
 
-        // Delete all the tmp keys..
-        index.cursor_keys_prefixed(Array(tmp_prefix)) {
-          key =>
-            index.delete(key)
-            true
+    val read_options = new ReadOptions
+    read_options.snapshot(snapshot)
+    read_options.verifyChecksums(verify_checksums)
+    read_options.fillCache(false)
+  }
+
+  /**
+   * What an incremental export has to look at: the queue entries, queues
+   * and map entries touched by the log written since the base export.
+   */
+  class ExportChanges {
+    val entries = HashMap[Long, HashSet[Long]]()
+    val queues = HashSet[Long]()
+    val map_entries = HashSet[Buffer]()
+
+    def entry(queue_key: Long, queue_seq: Long) = entries.getOrElseUpdate(queue_key, HashSet()).add(queue_seq)
+  }
+
+  /** the views of the running exports, gc leaves the log files alone while there are any */
+  val export_views = HashSet[ExportView]()
+  val next_export_id = new AtomicLong()
+
+  def exporting = export_views.synchronized(!export_views.isEmpty)
+
+  /**
+   * Has to be called on the write thread, between units of work.
+   */
+  def open_export_view = using_index {
+    val rc = new ExportView(index.db.getSnapshot, index_limit, removed_queues, senders.senders.clone())
+    export_views.synchronized {
+      export_views += rc
+    }
+    rc
+  }
+
+  def close_export_view(view: ExportView) = export_views.synchronized {
+    if (export_views.remove(view)) {
+      view.snapshot.close()
+    }
+  }
+
+  /**
+   * Called with the index write locked before it gets closed.  The running
+   * exports fail the next time they read from it.
+   */
+  def abort_exports = export_views.synchronized {
+    export_views.foreach { view =>
+      view.aborted = true
+      view.snapshot.close()
+    }
+    export_views.clear()
+  }
+
+  def using_export_view[T](view: ExportView)(func: => T): T = {
+    val lock = snapshot_rw_lock.readLock()
+    // Stopping the store keeps the index write locked for good.
+    while (!lock.tryLock(100, TimeUnit.MILLISECONDS)) {
+      if (view.aborted) {
+        throw new IOException("The store was stopped or purged during the export")
+      }
+    }
+    try {
+      if (view.aborted) {
+        throw new IOException("The store was stopped or purged during the export")
+      }
+      func
+    } finally {
+      lock.unlock()
+    }
+  }
+
+  /**
+   * Hands the [start, end) range of the export view to func in chunks.
+   */
+  def cursor_export_range(view: ExportView, start: Array[Byte], end: Array[Byte])(func: Seq[(Array[Byte], Array[Byte])] => Unit) = {
+    var from = start
+    var more = true
+    while (more) {
+      val chunk = ArrayBuffer[(Array[Byte], Array[Byte])]()
+      using_export_view(view) {
+        index.cursor_range(from, end, view.read_options) { (key, value) =>
+          chunk += ((key, value))
+          chunk.size < EXPORT_BATCH_SIZE
         }
+      }
+      more = chunk.size >= EXPORT_BATCH_SIZE
+      if (!chunk.isEmpty) {
+        from = chunk.last._1 :+ 0.toByte
+        func(chunk)
+      }
+    }
+  }
 
-        index.snapshot {
-          snapshot =>
-            val nocache = new ReadOptions
-            nocache.snapshot(snapshot)
-            nocache.verifyChecksums(verify_checksums)
-            nocache.fillCache(false)
-
-            val cache = new ReadOptions
-            nocache.snapshot(snapshot)
-            nocache.verifyChecksums(false)
-            nocache.fillCache(false)
-
-            // Build a temp table of all references messages by the queues
-            // Remember 2 queues could reference the same message.
-            index.cursor_prefixed(queue_entry_prefix_array, cache) {
-              (_, value) =>
-                val record = QueueEntryPB.FACTORY.parseUnframed(value)
-                val (pos, len) = decode_locator(record.getMessageLocator)
-                index.put(encode_key(tmp_prefix, pos), encode_vlong(len))
-                true
+  /**
+   * Hands the index entries of a queue which get exported to func in
+   * chunks.  For an incremental export those are the touched entries,
+   * the ones which were removed have a null value.
+   */
+  def export_queue_entries(view: ExportView, changes: Option[ExportChanges], queue_key: Long)(func: Seq[(Array[Byte], Array[Byte])] => Unit) = {
+    changes match {
+      case None =>
+        cursor_export_range(view, encode_key(queue_entry_prefix, queue_key), encode_key(queue_entry_prefix, queue_key + 1))(func)
+      case Some(changes) =>
+        changes.entries.getOrElse(queue_key, HashSet[Long]()).toSeq.sorted.grouped(EXPORT_BATCH_SIZE).foreach { seqs =>
+          func(using_export_view(view) {
+            seqs.map { seq =>
+              val key = encode_key(queue_entry_prefix, queue_key, seq)
+              (key, index.get(key, view.read_options).orNull)
             }
+          })
+        }
+    }
+  }
 
-            // Use the temp table to export all the referenced messages. Use
-            // the log position as the message key.
-            index.cursor_prefixed(Array(tmp_prefix)) {
-              (key, value) =>
-                val (_, pos) = decode_long_key(key)
-                val len = decode_vlong(value).toInt
-                log.read(pos, len).foreach { data =>
-                  val is = new DataByteArrayInputStream(data)
-                  val record = MessagePB.FACTORY.parseFramed(is).copy()
-                  var buffer = is.readBuffer(is.available())
-                  if(record.getCompression == 1) {
-                    buffer = Snappy.uncompress(buffer)
-                  }
-                  record.setMessageKey(pos)
-                  record.setValue(buffer)
-                  manager.store_message(record)
-                }
-                true
-            }
+  /**
+   * Finds what the log written in the [start, end) range changed.  All
+   * of the range has to still be around.
+   */
+  def changes_since(start: Long, end: Long) = {
+    if (start > end) {
+      throw new IOException("The export position %d is past the end of the store's log".format(start))
+    }
+    var pos = start
+    while (pos < end) {
+      log.log_file_range(pos) match {
+        case Some((_, file_end)) => pos = file_end
+        case None => throw new IOException("The log written since the export position %d was already deleted, a full export is needed".format(start))
+      }
+    }
+    val rc = new ExportChanges
+    replay_log(start, end) { (records, _) =>
+      records.foreach {
+        case (LOG_ADD_QUEUE_ENTRY, record: QueueEntryPB.Getter) =>
+          rc.entry(record.getQueueKey, record.getQueueSeq)
+        case (LOG_REMOVE_QUEUE_ENTRY, key: Buffer) =>
+          val (_, queue_key, queue_seq) = decode_long_long_key(key.toByteArray)
+          rc.entry(queue_key, queue_seq)
+        case (LOG_REMOVE_QUEUE_ENTRY_RANGE, data: Buffer) =>
+          val (queue_key, first_seq, last_seq) = decode_entry_range(data)
+          for (seq <- first_seq to last_seq) {
+            rc.entry(queue_key, seq)
+          }
+        case (LOG_ADD_QUEUE, data: Buffer) =>
+          rc.queues += QueuePB.FACTORY.parseUnframed(data).getKey
+        case (LOG_REMOVE_QUEUE, data: Buffer) =>
+          rc.queues += decode_vlong(data.toByteArray)
+        case (LOG_MAP_ENTRY, entry: MapEntryPB.Getter) =>
+          // The sender dictionary gets rebuilt on import.
+          if (!is_sender_key(entry.getKey)) {
+            rc.map_entries += entry.getKey
+          }
+        case _ =>
+      }
+    }
+    rc
+  }
 
-            // Now export the queue entries
-            index.cursor_prefixed(queue_entry_prefix_array, nocache) {
-              (key, value) =>
-                val (_, queue_key, queue_seq) = decode_long_long_key(key)
-                val record = QueueEntryPB.FACTORY.parseUnframed(value).copy()
-                val (pos, len) = decode_locator(record.getMessageLocator)
-                record.setQueueKey(queue_key)
-                record.setQueueSeq(queue_seq)
-                record.setMessageKey(pos)
-                manager.store_queue_entry(record)
-                true
-            }
+  /**
+   * Runs the producers on the export threads.  The batches of records they
+   * produce get handed to func on the calling thread, which is the only one
+   * writing the export stream.  Producers block once they get too far ahead.
+   */
+  def export_in_parallel[T](executor: ExecutorService, producers: Seq[(Seq[T] => Unit) => Unit])(func: T => Unit) = {
+    val batches = new ArrayBlockingQueue[Seq[T]](recovery_threads * 2)
+    val futures = producers.map { producer =>
+      executor.submit(new Callable[Unit] {
+        def call = producer(batch => batches.put(batch))
+      })
+    }
+    while (!futures.forall(_.isDone) || !batches.isEmpty) {
+      val batch = batches.poll(100, TimeUnit.MILLISECONDS)
+      if (batch != null) {
+        batch.foreach(func)
+      }
+    }
+    futures.foreach { future =>
+      try {
+        future.get()
+      } catch {
+        case e: ExecutionException => throw e.getCause
+      }
+    }
+  }
 
-            index.cursor_prefixed(queue_prefix_array) {
-              (_, value) =>
-                val record = QueuePB.FACTORY.parseUnframed(value)
-                manager.store_queue(record)
-                true
-            }
+  def export_message(pos: Long, data: Buffer) = {
+    val is = new DataByteArrayInputStream(data)
+    val record = MessagePB.FACTORY.parseFramed(is).copy()
+    var buffer = is.readBuffer(is.available())
+    if (record.getCompression != 0) {
+      buffer = CompressionCodec(record.getCompression).uncompress(buffer)
+    }
+    record.setMessageKey(pos)
+    record.setValue(buffer)
+    record
+  }
 
-            index.cursor_prefixed(map_prefix_array, nocache) {
-              (key, value) =>
-                val key_buffer = new Buffer(key)
-                key_buffer.moveHead(1)
-                val record = new MapEntryPB.Bean
-                record.setKey(key_buffer)
-                record.setValue(new Buffer(value))
-                manager.store_map_entry(record)
-                true
-            }
+  /**
+   * Exports the index view, or only what changed since the since log
+   * position when it's set.  The reading gets split by queue and by log
+   * file across the export threads.
+   */
+  def export_data(os: OutputStream, view: ExportView, since: Option[Long]): Option[String] = {
+    val executor = Executors.newFixedThreadPool(recovery_threads, new ThreadFactory() {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "leveldb store export")
+        rc.setDaemon(true)
+        rc
+      }
+    })
+    // Sorts the log positions of the exported messages, and keeps the
+    // messages several queues reference from getting exported twice.
+    val scratch_file = directory / ("export-" + next_export_id.incrementAndGet() + ".tmp")
+    var scratch: RichDB = null
+    try {
+      val manager = ExportStreamManager(os, 1)
+      manager.store_position(view.pos)
+      val changes = since.map { base =>
+        manager.store_increment_base(base)
+        changes_since(base, view.pos)
+      }
 
+      val queues = ArrayBuffer[(Long, Array[Byte])]()
+      if (changes.isEmpty) {
+        cursor_export_range(view, queue_prefix_array, Array((queue_prefix + 1).toByte)) { chunk =>
+          for ((key, value) <- chunk) {
+            queues += ((decode_long_key(key)._2, value))
+          }
         }
+      }
+      val queue_keys = changes.map(_.entries.keys.toSeq).getOrElse(queues.map(_._1)).filterNot(view.removed_queues.contains(_))
+
+      scratch = new RichDB(factory.open(scratch_file, new Options().createIfMissing(true)))
+      export_in_parallel[Nothing](executor, queue_keys.map { queue_key => (emit: Seq[Nothing] => Unit) =>
+        export_queue_entries(view, changes, queue_key) { chunk =>
+          scratch.write() { batch =>
+            for ((_, value) <- chunk if value != null) {
+              val (pos, len) = decode_locator(QueueEntryPB.FACTORY.parseUnframed(value).getMessageLocator)
+              batch.put(encode_key(tmp_prefix, pos), encode_vlong(len))
+            }
+          }
+        }
+      })(x => ())
+
+      // Export the messages using their log position as the message key.
+      val positions = log.log_file_positions
+      export_in_parallel[MessagePB.Bean](executor, positions.indices.map { i => (emit: Seq[MessagePB.Bean] => Unit) =>
+        val end = if (i + 1 < positions.length) encode_key(tmp_prefix, positions(i + 1)) else Array((tmp_prefix + 1).toByte)
+        var from = encode_key(tmp_prefix, positions(i))
+        var more = true
+        while (more) {
+          val chunk = ArrayBuffer[(Long, Int)]()
+          scratch.cursor_range(from, end) { (key, value) =>
+            chunk += ((decode_long_key(key)._2, decode_vlong(value).toInt))
+            chunk.size < EXPORT_BATCH_SIZE
+          }
+          more = chunk.size >= EXPORT_BATCH_SIZE
+          if (!chunk.isEmpty) {
+            from = encode_key(tmp_prefix, chunk.last._1 + 1)
+            val messages = using_export_view(view) {
+              chunk.flatMap { case (pos, len) => read_message(pos, len).map((pos, _)) }
+            }
+            emit(messages.map { case (pos, data) => export_message(pos, data) })
+          }
+        }
+      })(manager.store_message(_))
+
+      export_in_parallel[AnyRef](executor, queue_keys.map { queue_key => (emit: Seq[AnyRef] => Unit) =>
+        export_queue_entries(view, changes, queue_key) { chunk =>
+          emit(chunk.map { case (key, value) =>
+            val (_, _, queue_seq) = decode_long_long_key(key)
+            if (value == null) {
+              RemovedQueueEntry(queue_key, queue_seq)
+            } else {
+              val record = senders.expand(queue_key, queue_seq, QueueEntryPB.FACTORY.parseUnframed(value), view.senders)
+              record.setMessageKey(decode_locator(record.getMessageLocator)._1)
+              record
+            }
+          })
+        }
+      }) {
+        case record: RemovedQueueEntry => manager.store_queue_entry_removal(record)
+        case record: QueueEntryPB.Bean => manager.store_queue_entry(record)
+      }
 
-        // Delete all the tmp keys..
-        index.cursor_keys_prefixed(Array(tmp_prefix)) {
-          key =>
-            index.delete(key)
-            true
+      def store_map_entry(key: Array[Byte], value: Array[Byte]) = {
+        val key_buffer = new Buffer(key)
+        key_buffer.moveHead(1)
+        // The sender dictionary gets rebuilt on import.
+        if (!is_sender_key(key_buffer)) {
+          val record = new MapEntryPB.Bean
+          record.setKey(key_buffer)
+          if (value != null) {
+            record.setValue(new Buffer(value))
+          }
+          manager.store_map_entry(record)
         }
+      }
 
+      changes match {
+        case None =>
+          for ((_, value) <- queues) {
+            manager.store_queue(QueuePB.FACTORY.parseUnframed(value))
+          }
+          cursor_export_range(view, map_prefix_array, Array((map_prefix + 1).toByte)) { chunk =>
+            for ((key, value) <- chunk) {
+              store_map_entry(key, value)
+            }
+          }
+        case Some(changes) =>
+          for (queue_key <- changes.queues.toSeq.sorted) {
+            using_export_view(view)(index.get(encode_key(queue_prefix, queue_key), view.read_options)) match {
+              case Some(value) => manager.store_queue(QueuePB.FACTORY.parseUnframed(value))
+              case None => manager.store_queue_removal(RemovedQueue(queue_key))
+            }
+          }
+          for (key <- changes.map_entries) {
+            val index_key = encode_key(map_prefix, key)
+            store_map_entry(index_key, using_export_view(view)(index.get(index_key, view.read_options)).orNull)
+          }
       }
       manager.finish
 
@@ -1429,83 +2799,160 @@ class LevelDBClient(store: LevelDBStore) {
     } catch {
       case x: Exception =>
         debug(x, "Export failed")
-        x.printStackTrace()
         Some(x.getMessage)
+    } finally {
+      executor.shutdownNow()
+      if (scratch != null) {
+        scratch.close
+      }
+      scratch_file.recursive_delete
+    }
+  }
+
+  /**
+   * A message of an import, compressed for the log by an import thread.
+   */
+  case class ImportedMessage(key: Long, header: Buffer, body: Buffer)
+
+  def decode_import_entry(manager: ImportStreamManager, ext: String, data: Buffer): AnyRef = {
+    manager.decode(ext, data) match {
+      case record: MessagePB.Buffer =>
+        val pb = new MessagePB.Bean
+        pb.setCodec(record.getCodec)
+        val body = if (log_codec != null) {
+          val compressed = log_codec.compress(record.getValue)
+          if (compressed.length < record.getValue.length) {
+            pb.setCompression(log_codec.id)
+            compressed
+          } else {
+            record.getValue
+          }
+        } else {
+          record.getValue
+        }
+        ImportedMessage(record.getMessageKey, pb.freeze().toFramedBuffer, body)
+      case record =>
+        record
+    }
+  }
+
+  /**
+   * Reads the entries of an import on the calling thread and decodes them
+   * on the import threads.  The decoded entries get handed to func in
+   * stream order.
+   */
+  def decode_import(manager: ImportStreamManager, executor: ExecutorService)(func: AnyRef => Unit) = {
+    // Only decode a few batches ahead so we don't hold too much in memory.
+    val pending = new ju.LinkedList[Future[Seq[AnyRef]]]()
+    var done = false
+    def fill = {
+      while (!done && pending.size < recovery_threads * 2) {
+        val entries = ArrayBuffer[(String, Buffer)]()
+        while (!done && entries.size < IMPORT_BATCH_SIZE) {
+          val entry = manager.next_entry
+          if (entry == null) {
+            done = true
+          } else {
+            entries += entry
+          }
+        }
+        if (!entries.isEmpty) {
+          pending.add(executor.submit(new Callable[Seq[AnyRef]] {
+            def call = entries.map { case (ext, data) => decode_import_entry(manager, ext, data) }
+          }))
+        }
+      }
+    }
+    fill
+    while (!pending.isEmpty) {
+      val future = pending.removeFirst()
+      fill
+      val records = try {
+        future.get()
+      } catch {
+        case e: ExecutionException => throw e.getCause
+      }
+      records.foreach(func)
     }
   }
 
   def import_data(is: InputStream): Option[String] = {
+    val executor = Executors.newFixedThreadPool(recovery_threads, new ThreadFactory() {
+      def newThread(r: Runnable) = {
+        val rc = new Thread(r, "leveldb store import")
+        rc.setDaemon(true)
+        rc
+      }
+    })
     try {
       val manager = ImportStreamManager(is)
       if (manager.version != 1) {
         return Some("Cannot import from an export file of version: " + manager.version)
       }
 
-      purge
+      // An incremental export gets applied on top of the stored data.
+      val incremental = manager.increment_base.isDefined
+      if (!incremental) {
+        purge
+      }
 
-      retry_using_index {
-        log.appender {
-          appender =>
-            while (manager.getNext match {
-
-              case record: MessagePB.Buffer =>
-                val pb = new MessagePB.Bean
-                pb.setCodec(record.getCodec)
-                val body = if(snappy_compress_logs) {
-                  val compressed = Snappy.compress(record.getValue)
-                  if (compressed.length < record.getValue.length) {
-                    pb.setCompression(1)
-                    compressed
-                  } else {
-                    record.getValue
+      using_index {
+        val batch = new ReplayBatch
+        try {
+          log.appender {
+            appender =>
+              decode_import(manager, executor) {
+
+                case ImportedMessage(key, header, body) =>
+                  val (pos, _) = appender.append(LOG_ADD_MESSAGE, header, body)
+                  batch.put(encode_key(tmp_prefix, key), encode_locator(pos, header.length + body.length))
+
+                case record: QueueEntryPB.Buffer =>
+                  batch.get(encode_key(tmp_prefix, record.getMessageKey)) match {
+                    case Some(locator) =>
+                      val key = encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq)
+                      if (incremental) {
+                        remove_entry(key, batch)
+                      }
+                      val copy = copy_entry_fields(record, new QueueEntryPB.Bean)
+                      copy.setMessageLocator(locator)
+                      senders.add_ids(senders.decode(record), copy, batch.batch)
+                      batch.put(key, copy.freeze().toUnframedBuffer)
+                      log_ref_increment(record.getQueueKey, decode_locator(locator)._1)
+                    case None =>
+                      println("Invalid queue entry, references message that was not in the export: " + record.getMessageKey)
                   }
-                } else {
-                  record.getValue
-                }
-                var header = pb.freeze().toFramedBuffer
-                val (pos, log_info) = appender.append(LOG_ADD_MESSAGE, header, body)
-                index.put(encode_key(tmp_prefix, record.getMessageKey), encode_locator(pos, header.length+body.length))
-                true
-
-              case record: QueueEntryPB.Buffer =>
-                val copy = record.copy();
-                var original_msg_key: Long = record.getMessageKey
-                index.get(encode_key(tmp_prefix, original_msg_key)) match {
-                  case Some(locator) =>
-                    val (pos, len) = decode_locator(locator)
-                    copy.setMessageLocator(locator)
-                    index.put(encode_key(queue_entry_prefix, record.getQueueKey, record.getQueueSeq), copy.freeze().toUnframedBuffer)
-                    for(key <- log_ref_key(pos)) {
-                      log_refs.getOrElseUpdate(key, new LongCounter()).incrementAndGet()
-                    }
-                  case None =>
-                    println("Invalid queue entry, references message that was not in the export: " + original_msg_key)
-                }
-                true
 
-              case record: QueuePB.Buffer =>
-                index.put(encode_key(queue_prefix, record.getKey), record.toUnframedBuffer)
-                true
+                case RemovedQueueEntry(queue_key, queue_seq) =>
+                  remove_entry(encode_key(queue_entry_prefix, queue_key, queue_seq), batch)
 
-              case record: MapEntryPB.Buffer =>
-                index.put(encode_key(map_prefix, record.getKey), record.getValue)
-                true
+                case record: QueuePB.Buffer =>
+                  batch.put(encode_key(queue_prefix, record.getKey), record.toUnframedBuffer)
 
-              case null =>
-                false
-            }) {
-              // keep looping
-            }
+                case RemovedQueue(queue_key) =>
+                  batch.delete(encode_key(queue_prefix, queue_key))
+                  remove_queue_entries(queue_key)
 
+                case record: MapEntryPB.Buffer =>
+                  if (record.getValue == null) {
+                    batch.delete(encode_key(map_prefix, record.getKey))
+                  } else {
+                    batch.put(encode_key(map_prefix, record.getKey), record.getValue)
+                  }
+              }
+          }
+          batch.flush
+        } finally {
+          batch.close
         }
-      }
 
-      store_log_refs
-      // Delete all the tmp keys..
-      index.cursor_keys_prefixed(Array(tmp_prefix)) {
-        key =>
-          index.delete(key)
-          true
+        store_log_refs
+        // Delete all the tmp keys..
+        index.cursor_keys_prefixed(Array(tmp_prefix)) {
+          key =>
+            index.delete(key)
+            true
+        }
       }
 
       snapshot_index
@@ -1515,6 +2962,8 @@ class LevelDBClient(store: LevelDBStore) {
       case x: Exception =>
         debug(x, "Import failed")
         Some(x.getMessage)
+    } finally {
+      executor.shutdownNow()
     }
   }
 }
@@ -33,6 +33,7 @@ import org.fusesource.hawtbuf.Buffer
 import FileSupport._
 import org.apache.activemq.apollo.broker.store.leveldb.LevelDBClient._
 import org.apache.activemq.apollo.broker.store.QueueRecord
+import collection.mutable.ListBuffer
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
@@ -49,11 +50,19 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   var next_queue_key = new AtomicLong(1)
   var next_msg_key = new AtomicLong(1)
 
+  var encode_executor: ExecutorService = _
   var write_executor: ExecutorService = _
+  var sync_executor: ExecutorService = _
   var read_executor: ExecutorService = _
+  var compaction_executor: ExecutorService = _
 
   var client: LevelDBClient = _
 
+  /** set when the log gets replicated to standbys */
+  var replication_master: ReplicationMaster = _
+  /** set while the store is a standby of a replication master */
+  var replication_slave: ReplicationSlave = _
+
   def create_client = new LevelDBClient(this)
 
 
@@ -65,27 +74,126 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
 
   def flush_delay = config.flush_delay.getOrElse(500)
 
+  protected def store_config = config
+
   protected def get_next_msg_key = next_msg_key.getAndIncrement
 
 
   override def on_store_requested(mr: MessageRecord) = {
-    if( client.snappy_compress_logs && mr.compressed==null ) {
-      val compressed = Snappy.compress(mr.buffer)
+    // Smaller messages get compressed in blocks by the encode stage.
+    if( client.log_codec!=null && mr.compressed==null && mr.buffer.length >= client.log_block_size ) {
+      val compressed = client.log_codec.compress(mr.buffer)
       if (compressed.length < mr.buffer.length) {
         mr.compressed = compressed
       }
     }
   }
 
-  protected def store(uows: Seq[DelayableUOW])(callback: => Unit) = write_executor {
+  /////////////////////////////////////////////////////////////////////
+  //
+  // The write path is a pipeline: the encode thread encodes the units of
+  // work, the write thread appends them to the journal and updates the
+  // index, and the sync thread forces the journal.  Each stage runs on a
+  // single thread so batches stay in order, and batches that arrive while
+  // the sync thread is forcing the journal share the next force.  When
+  // the journal is replicated, the sync thread completes the batches
+  // once a quorum of the standbys received them instead.
+  //
+  /////////////////////////////////////////////////////////////////////
+
+  override protected def max_flushes_in_flight = 4
+
+  case class PendingSync(appender:RecordLog#LogAppender, sync_needed:Boolean, end_pos:Long, callback:()=>Unit)
+  val pending_syncs = new ConcurrentLinkedQueue[PendingSync]()
+
+  val encode_latency_counter = new TimeCounter
+  var encode_latency = encode_latency_counter(false)
+  val sync_latency_counter = new TimeCounter
+  var sync_latency = sync_latency_counter(false)
+  val sync_batch_size_counter = new IntMetricCounter
+  var sync_batch_size = sync_batch_size_counter(false)
+
+  protected def store(uows: Seq[DelayableUOW])(callback: => Unit) = encode_executor {
+    val encoded = try {
+      encode_latency_counter.time {
+        client.encode(uows)
+      }
+    } catch {
+      case e:Throwable =>
+        warn(e, "Failure occured while encoding units of work: "+e)
+        null
+    }
+    write_executor {
+      var appender:RecordLog#LogAppender = null
+      var sync_needed = false
+      if( encoded!=null ) {
+        try {
+          val rc = client.store(encoded)
+          appender = rc._1
+          sync_needed = rc._2
+        } catch {
+          case e:Throwable =>
+          warn(e, "Failure occured while storing units of work: "+e)
+        }
+      }
+      // Failed batches go through the sync stage too so that the
+      // callbacks still run in order.
+      pending_syncs.add(PendingSync(appender, sync_needed, client.log.appender_limit, ()=> callback))
+      sync_executor {
+        drain_syncs
+      }
+    }
+  }
+
+  def drain_syncs:Unit = {
+    val batch = ListBuffer[PendingSync]()
+    var next = pending_syncs.poll()
+    while( next!=null ) {
+      batch += next
+      next = pending_syncs.poll()
+    }
+    if( !batch.isEmpty ) {
+      sync_batch_size_counter += batch.size
+    }
+    if( replication_master!=null ) {
+      // Also called when the standbys acknowledge, with an empty batch.
+      replication_master.drain(batch)
+    } else if( !batch.isEmpty ) {
+      // A previous drain may have already picked up our batch.
+      complete_syncs(batch, true)
+    }
+  }
+
+  /**
+   * Releases the appenders of the batches and runs their callbacks, after
+   * forcing the journal if force is set.
+   */
+  def complete_syncs(batch:Seq[LevelDBStore#PendingSync], force:Boolean) = {
     try {
-      client.store(uows)
+      if( force ) {
+        sync_latency_counter.time {
+          // One force covers all the batches appended to the same log file.
+          // A replicated store which lost its quorum has to force the log
+          // even when it does not sync, nothing else makes the batches durable.
+          val appenders = batch.filter(_.sync_needed).map(_.appender).distinct
+          if( client.replicated ) {
+            appenders.foreach(_.force_flushed_data)
+          } else {
+            appenders.foreach(_.force_flushed)
+          }
+        }
+      }
     } catch {
-      case e =>
-      warn(e, "Failure occured while storing units of work: "+e)
+      case e:Throwable =>
+      warn(e, "Failure occured while syncing the journal: "+e)
     } finally {
+      batch.foreach { x=>
+        if( x.appender!=null ) {
+          x.appender.release()
+        }
+      }
       dispatch_queue {
-        callback
+        batch.foreach(_.callback())
       }
     }
   }
@@ -93,6 +201,13 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   protected def _start(on_completed: Task) = {
     try {
       client = create_client
+      encode_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+        def newThread(r: Runnable) = {
+          val rc = new Thread(r, store_kind + " store encode")
+          rc.setDaemon(true)
+          rc
+        }
+      })
       write_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
         def newThread(r: Runnable) = {
           val rc = new Thread(r, store_kind + " store io write")
@@ -100,6 +215,13 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
           rc
         }
       })
+      sync_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+        def newThread(r: Runnable) = {
+          val rc = new Thread(r, store_kind + " store io sync")
+          rc.setDaemon(true)
+          rc
+        }
+      })
       read_executor = Executors.newFixedThreadPool(config.read_threads.getOrElse(10), new ThreadFactory() {
         def newThread(r: Runnable) = {
           val rc = new Thread(r, store_kind + " store io read")
@@ -107,6 +229,14 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
           rc
         }
       })
+      compaction_executor = Executors.newFixedThreadPool(1, new ThreadFactory() {
+        def newThread(r: Runnable) = {
+          val rc = new Thread(r, store_kind + " store compaction")
+          rc.setDaemon(true)
+          rc.setPriority(Thread.MIN_PRIORITY)
+          rc
+        }
+      })
       schedule_reoccurring(1, TimeUnit.SECONDS) {
         poll_stats
       }
@@ -116,16 +246,30 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
         }
       }
       write_executor {
+        var standby = false
         try {
+          if( config.replication_bind!=null ) {
+            client.replica = true
+          }
           client.start()
-          next_msg_key.set(client.getLastMessageKey + 1)
-          next_queue_key.set(client.get_last_queue_key + 1)
+          if( client.replica ) {
+            // Finish starting once we take over from the master.
+            replication_slave = new ReplicationSlave(this, ()=> write_executor {
+              takeover(on_completed)
+            }, ()=> on_completed.run)
+            replication_slave.start()
+            standby = true
+          } else {
+            started
+          }
         } catch {
           case e: Throwable =>
             _service_failure = e
             LevelDBStore.error(e, "Store startup failure: " + e)
         } finally {
-          on_completed.run
+          if( !standby ) {
+            on_completed.run
+          }
         }
       }
     }
@@ -136,12 +280,76 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
     }
   }
 
+  /**
+   * Gets the store ready for use once the index is up to date.  Runs on
+   * the write thread.
+   */
+  def started = {
+    next_msg_key.set(client.getLastMessageKey + 1)
+    next_queue_key.set(client.get_last_queue_key + 1)
+    if( config.replicate_to!=null ) {
+      replication_master = new ReplicationMaster(this)
+      replication_master.start
+    }
+  }
+
+  /**
+   * Turns the standby into a store which can be used once the replication
+   * master is gone.  Runs on the write thread.
+   */
+  def takeover(on_completed: Task) = {
+    try {
+      replication_slave = null
+      client.takeover
+      started
+      info("The standby took over as '%s'", toString)
+    } catch {
+      case e: Throwable =>
+        _service_failure = e
+        LevelDBStore.error(e, "Store takeover failure: " + e)
+    } finally {
+      on_completed.run
+    }
+  }
+
+  override def stop(on_completed: Task) = {
+    // The store keeps starting while it's a standby, closing the standby
+    // completes the start so that the stop can proceed.
+    val slave = replication_slave
+    if( slave!=null ) {
+      slave.close
+    }
+    super.stop(on_completed)
+  }
+
   protected def _stop(on_completed: Task) = {
     new Thread() {
       override def run = {
+        if( replication_slave!=null ) {
+          replication_slave.close
+          replication_slave.join(60 * 1000)
+          replication_slave = null
+        }
+        // Shutdown the write pipeline stages in order.
+        compaction_executor.shutdown
+        compaction_executor.awaitTermination(60, TimeUnit.SECONDS)
+        compaction_executor = null
+        encode_executor.shutdown
+        encode_executor.awaitTermination(60, TimeUnit.SECONDS)
+        encode_executor = null
         write_executor.shutdown
         write_executor.awaitTermination(60, TimeUnit.SECONDS)
         write_executor = null
+        if( replication_master!=null ) {
+          // The batches still waiting on the standbys get forced.
+          replication_master.stop
+          sync_executor {
+            drain_syncs
+          }
+        }
+        sync_executor.shutdown
+        sync_executor.awaitTermination(60, TimeUnit.SECONDS)
+        sync_executor = null
         read_executor.shutdown
         read_executor.awaitTermination(60, TimeUnit.SECONDS)
         read_executor = null
@@ -168,6 +376,10 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   def purge(callback: => Unit) = {
     write_executor {
       client.purge()
+      if( replication_master!=null ) {
+        // Makes the standbys start over.
+        replication_master.replicate(client.log.appender_limit)
+      }
       next_queue_key.set(1)
       next_msg_key.set(1)
       callback
@@ -265,8 +477,14 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
   def poll_stats: Unit = {
     flush_latency = flush_latency_counter(true)
     message_load_latency = message_load_latency_counter(true)
-    //        client.metric_journal_append = client.metric_journal_append_counter(true)
-    //        client.metric_index_update = client.metric_index_update_counter(true)
+    encode_latency = encode_latency_counter(true)
+    client.metric_journal_append = client.metric_journal_append_counter(true)
+    client.metric_index_update = client.metric_index_update_counter(true)
+    sync_latency = sync_latency_counter(true)
+    sync_batch_size = sync_batch_size_counter(true)
+    if( replication_master!=null ) {
+      replication_master.ack_latency = replication_master.ack_latency_counter(true)
+    }
     close_latency = close_latency_counter(true)
     message_load_batch_size = message_load_batch_size_counter(true)
   }
@@ -283,6 +501,19 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
       }
     }
     rc.message_load_batch_size = message_load_batch_size
+    rc.encode_latency = encode_latency
+    rc.journal_append_latency = client.metric_journal_append
+    rc.index_update_latency = client.metric_index_update
+    rc.sync_latency = sync_latency
+    rc.sync_batch_size = sync_batch_size
+    if( replication_master!=null ) {
+      rc.replication_role = "master"
+      rc.replicas_in_sync = replication_master.replicas_in_sync
+      rc.replication_lag = replication_master.lag
+      rc.replication_ack_latency = replication_master.ack_latency
+    } else if( replication_slave!=null ) {
+      rc.replication_role = "standby"
+    }
     import collection.JavaConversions._
     val pending_status = detailed_pending_status
     write_executor {
@@ -290,6 +521,10 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
         rc.index_stats = client.index.getProperty("leveldb.stats")
         rc.log_append_pos = client.log.appender_limit
         rc.index_snapshot_pos = client.last_index_snapshot_pos
+        rc.log_compactions = client.log_compactions
+        rc.log_compaction_read = client.log_compaction_read
+        rc.log_compaction_written = client.log_compaction_written
+        rc.log_compaction_reclaimed = client.log_compaction_reclaimed
         rc.log_stats = {
           import collection.JavaConversions._
           var row_layout = "%-20s | %-10s | %-10s\n"
@@ -322,13 +557,35 @@ class LevelDBStore(val config: LevelDBStoreDTO) extends DelayingStoreSupport {
    * Exports the contents of the store to the provided streams.  Each stream should contain
    * a list of framed protobuf objects with the corresponding object types.
    */
-  def export_data(os: OutputStream, cb: (Option[String]) => Unit) = write_executor {
-    cb(client.export_data(os))
+  def export_data(os: OutputStream, cb: (Option[String]) => Unit) = start_export(os, None, cb)
+
+  /**
+   * Exports the changes made since the export taken at the since log position.
+   */
+  override def export_data(os: OutputStream, since: Long, cb: (Option[String]) => Unit) = start_export(os, Some(since), cb)
+
+  /**
+   * Opens a consistent view of the index on the write thread and exports
+   * it from an export thread, so the store keeps writing meanwhile.
+   */
+  def start_export(os: OutputStream, since: Option[Long], cb: (Option[String]) => Unit) = write_executor {
+    val view = client.open_export_view
+    val thread = new Thread("leveldb store export") {
+      override def run() = {
+        try {
+          cb(client.export_data(os, view, since))
+        } finally {
+          client.close_export_view(view)
+        }
+      }
+    }
+    thread.setDaemon(true)
+    thread.start()
   }
 
   /**
    * Imports a previously exported set of streams.  This deletes any previous data
-   * in the store.
+   * in the store, unless it's an incremental export.
    */
   def import_data(is: InputStream, cb: (Option[String]) => Unit) = write_executor {
     cb(client.import_data(is))
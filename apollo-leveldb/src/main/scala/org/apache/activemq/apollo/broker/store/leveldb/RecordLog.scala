@@ -29,6 +29,8 @@ import org.apache.activemq.apollo.util.{Log, LRUCache}
 import org.fusesource.hawtdispatch.BaseRetained
 import org.fusesource.hawtbuf.{DataByteArrayInputStream, DataByteArrayOutputStream, Buffer}
 import java.util.TreeMap
+import java.nio.channels.FileChannel.MapMode
+import org.apache.activemq.apollo.broker.store.ByteBufferReleaser
 
 object RecordLog extends Log {
 
@@ -77,6 +79,12 @@ case class RecordLog(directory: File, logSuffix: String) {
   var verify_checksums = false
   var sync = false
 
+  /**
+   * When enabled, the log files which are no longer being appended to
+   * get read through a memory mapping instead of file channel reads.
+   */
+  var mmap_reads = false
+
 
   val log_infos = new TreeMap[Long, LogInfo]()
 
@@ -88,6 +96,9 @@ case class RecordLog(directory: File, logSuffix: String) {
       if (current_appender.position != id) {
         Option(log_infos.get(id)).foreach {
           info =>
+            reader_cache.synchronized {
+              Option(reader_cache.remove(info.file)).foreach(_.release())
+            }
             onDelete(info.file)
             log_infos.remove(id)
         }
@@ -144,6 +155,23 @@ case class RecordLog(directory: File, logSuffix: String) {
       }
     }
 
+    /**
+     * Forces the data that has already been flushed to disk.  Unlike force
+     * it leaves the write buffer alone, so it can be called from another
+     * thread while appends continue.
+     */
+    def force_flushed = {
+      if (sync) {
+        force_flushed_data
+      }
+    }
+
+    /**
+     * Like force_flushed, but forces the data even when the log does not
+     * sync its writes.
+     */
+    def force_flushed_data = channel.force(append_offset > logSize)
+
     /**
      * returns the offset position of the data record.
      */
@@ -153,36 +181,41 @@ case class RecordLog(directory: File, logSuffix: String) {
       data.foreach(data_length += _.length)
       val total_length = LOG_HEADER_SIZE + data_length
 
-      if (write_buffer.position() + total_length > BUFFER_SIZE) {
-        flush
-      }
-
       val cs: Int = checksum(data:_*)
       //      trace("Writing at: "+record_position+" len: "+data_length+" with checksum: "+cs)
 
-//      if (false && total_length > BYPASS_BUFFER_SIZE) {
-//
-//        // Write the header and flush..
-//        write_buffer.writeByte(LOG_HEADER_PREFIX)
-//        write_buffer.writeByte(id)
-//        write_buffer.writeInt(cs)
-//        write_buffer.writeInt(data_length)
-//
-//        append_offset += LOG_HEADER_SIZE
-//        flush
-//
-//        // Directly write the data to the channel since it's large.
-//        val buffer = data.toByteBuffer
-//        val pos = append_offset + LOG_HEADER_SIZE
-//        val remaining = buffer.remaining
-//        channel.write(buffer, pos)
-//        if (buffer.hasRemaining) {
-//          throw new IOException("Short write")
-//        }
-//        flushed_offset.addAndGet(remaining)
-//        append_offset += data_length
-//
-//      } else {
+      if (total_length > BYPASS_BUFFER_SIZE) {
+
+        // Write out what's buffered so that the record lands after it.
+        flush
+
+        // Large records skip the write buffer, the header and the data
+        // get gather written straight to the channel.
+        val header = new DataByteArrayOutputStream(LOG_HEADER_SIZE)
+        header.writeByte(LOG_HEADER_PREFIX)
+        header.writeByte(id)
+        header.writeInt(cs)
+        header.writeInt(data_length)
+
+        val buffers = (header.toBuffer +: data).map(_.toByteBuffer).toArray
+        channel.position(append_offset)
+        var remaining = total_length.toLong
+        while (remaining > 0) {
+          val count = channel.write(buffers)
+          if (count <= 0) {
+            throw new IOException("Short write")
+          }
+          remaining -= count
+        }
+        flushed_offset.addAndGet(total_length)
+        append_offset += total_length
+
+      } else {
+
+        if (write_buffer.position() + total_length > BUFFER_SIZE) {
+          flush
+        }
+
         write_buffer.writeByte(LOG_HEADER_PREFIX)
         write_buffer.writeByte(id)
         write_buffer.writeInt(cs)
@@ -192,10 +225,40 @@ case class RecordLog(directory: File, logSuffix: String) {
         }
 
         append_offset += total_length
-//      }
+      }
       (record_position, info)
     }
 
+    /**
+     * Appends data which already is a sequence of log records, as shipped
+     * by a replication master.
+     */
+    def append_raw(data: Buffer) = this.synchronized {
+      flush
+      val buffer = data.toByteBuffer
+      var pos = append_offset
+      while (buffer.hasRemaining) {
+        val count = channel.write(buffer, pos)
+        if (count <= 0) {
+          throw new IOException("Short write")
+        }
+        pos += count
+      }
+      flushed_offset.addAndGet(data.length)
+      append_offset += data.length
+    }
+
+    /**
+     * Drops the space preallocated past the end of the data, so that the
+     * file length tells where the data of a rotated log file ends.
+     */
+    def trim = this.synchronized {
+      flush
+      if (channel.size() > append_offset) {
+        channel.truncate(append_offset)
+      }
+    }
+
     def flush = this.synchronized {
       if (write_buffer.position() > 0) {
         val buffer = write_buffer.toBuffer.toByteBuffer
@@ -233,7 +296,7 @@ case class RecordLog(directory: File, logSuffix: String) {
 
     def check_read_flush(end_offset: Long) = {}
 
-    private def read_buffer(data:Buffer, offset:Long) = {
+    protected def read_buffer(data:Buffer, offset:Long):Unit = {
       var bb = data.toByteBuffer
       var position = offset
       while( bb.hasRemaining  ) {
@@ -300,10 +363,21 @@ case class RecordLog(directory: File, logSuffix: String) {
       }
     }
 
+    /**
+     * Reads the log data in a range without decoding it into records.
+     */
+    def read_raw(start: Long, length: Int) = {
+      val offset = start - position
+      check_read_flush(offset + length)
+      val data = new Buffer(length)
+      read_buffer(data, offset)
+      data
+    }
+
     def read(record_position: Long) = {
       val offset = record_position - position
       val header = new Buffer(LOG_HEADER_SIZE)
-      channel.read(header.toByteBuffer, offset)
+      read_buffer(header, offset)
       val is = header.bigEndianEditor();
       val prefix = is.readByte()
       if (prefix != LOG_HEADER_PREFIX) {
@@ -314,10 +388,7 @@ case class RecordLog(directory: File, logSuffix: String) {
       val expectedChecksum = is.readInt()
       val length = is.readInt()
       val data = new Buffer(length)
-
-      if (channel.read(data.toByteBuffer, offset + LOG_HEADER_SIZE) != length) {
-        throw new IOException("short record")
-      }
+      read_buffer(data, offset + LOG_HEADER_SIZE)
 
       if (verify_checksums) {
         if (expectedChecksum != checksum(data)) {
@@ -394,6 +465,31 @@ case class RecordLog(directory: File, logSuffix: String) {
     }
   }
 
+  /**
+   * Reads a log file which is no longer being appended to through a read
+   * only memory mapping of the file.  A read is a copy out of the mapping,
+   * it does not need a system call.
+   */
+  class MappedLogReader(file: File, position: Long) extends LogReader(file, position) {
+
+    val mapping = channel.map(MapMode.READ_ONLY, 0, channel.size())
+
+    override def dispose() {
+      // Only called once no reads are using the reader.
+      ByteBufferReleaser.release(mapping)
+      super.dispose()
+    }
+
+    override protected def read_buffer(data:Buffer, offset:Long):Unit = {
+      if( offset + data.length > mapping.capacity() ) {
+        throw new EOFException("File '%s' offset: %d".format(file, offset))
+      }
+      val bb = mapping.duplicate()
+      bb.position(offset.toInt)
+      bb.get(data.data, data.offset, data.length)
+    }
+  }
+
   def create_log_appender(position: Long) = {
     new LogAppender(next_log(position), position)
   }
@@ -469,11 +565,49 @@ case class RecordLog(directory: File, logSuffix: String) {
           create_appender(current_appender.append_position)
         }
       }
+      on_appended(current_appender.append_position)
     }
   }
 
   var on_log_rotate: () => Unit = () => {}
 
+  /**
+   * Called with the log limit after each unit of work got appended and
+   * flushed.
+   */
+  var on_appended: (Long) => Unit = (limit) => {}
+
+  /**
+   * Appends log data shipped by a replication master.  The data lands at
+   * the same position and in the same log file as on the master, so the
+   * log gets rotated whenever the master started a new log file.
+   */
+  def append_replicated(file_pos: Long, pos: Long, data: Buffer) = {
+    log_mutex.synchronized {
+      if (file_pos != current_appender.position) {
+        if (current_appender.append_offset == 0) {
+          // Nothing got appended yet, start the log where the master's is.
+          log_infos.remove(current_appender.position)
+          current_appender.release()
+          onDelete(current_appender.file)
+          current_appender = null
+          create_appender(file_pos)
+        } else if (file_pos == appender_limit) {
+          current_appender.trim
+          current_appender.release()
+          on_log_rotate()
+          create_appender(file_pos)
+        } else {
+          throw new IOException("Replicated log file at %d does not follow the log file at %d".format(file_pos, current_appender.position))
+        }
+      }
+    }
+    if (pos != appender_limit) {
+      throw new IOException("Replicated log data at %d does not follow the log limit %d".format(pos, appender_limit))
+    }
+    current_appender.append_raw(data)
+  }
+
   private val reader_cache = new LRUCache[File, LogReader](100) {
     protected override def onCacheEviction(entry: Entry[File, LogReader]) = {
       entry.getValue.release()
@@ -484,6 +618,22 @@ case class RecordLog(directory: File, logSuffix: String) {
     Option(log_infos.floorEntry(pos)).map(_.getValue)
   }
 
+  /**
+   * Gets the position of the log file holding the data at pos and the
+   * position that file's data ends at.
+   */
+  def log_file_range(pos: Long) = log_mutex.synchronized {
+    log_info(pos).flatMap { info =>
+      val end = if (info.position == current_appender.position) {
+        appender_limit
+      } else {
+        // A rotated log file has no space preallocated past its data.
+        info.position + info.file.length()
+      }
+      if (pos < end) Some((info.position, end)) else None
+    }
+  }
+
   def log_file_positions = log_mutex.synchronized {
     import collection.JavaConversions._
     log_infos.map(_._2.position).toArray
@@ -514,7 +664,11 @@ case class RecordLog(directory: File, logSuffix: String) {
           reader_cache.synchronized {
             var reader = reader_cache.get(info.file)
             if (reader == null) {
-              reader = LogReader(info.file, info.position)
+              reader = if (mmap_reads && info.file.length() <= Int.MaxValue) {
+                new MappedLogReader(info.file, info.position)
+              } else {
+                LogReader(info.file, info.position)
+              }
               reader_cache.put(info.file, reader)
             }
             reader.retain()
@@ -538,4 +692,8 @@ case class RecordLog(directory: File, logSuffix: String) {
     get_reader(pos)(_.read(pos, length))
   }
 
+  def read_raw(pos: Long, length: Int) = {
+    get_reader(pos)(_.read_raw(pos, length))
+  }
+
 }
@@ -0,0 +1,409 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.{util => ju}
+import java.io._
+import java.net.{Socket, InetSocketAddress}
+import java.util.concurrent.{RejectedExecutionException, Callable}
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.util.FileSupport._
+import org.apache.activemq.apollo.util.OptionSupport._
+import org.fusesource.hawtdispatch._
+import collection.mutable.ListBuffer
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object ReplicationMaster extends Log {
+
+  // The replication protocol is a sequence of frames, each one starts
+  // with its kind.
+  //
+  // A standby sends:
+  //   HELLO      : file_pos: int64, limit: int64  // the log it already has
+  //   ACK        : limit: int64                   // the log it received
+  //
+  // The master sends:
+  //   LOG_DATA   : file_pos: int64, pos: int64, uow_end: bool, length: int32, data
+  //   RESET      :                                // the standby has to start over
+  //   INDEX_FILE : name: utf8, length: int64, data
+  //   INDEX_DONE : snapshot_pos: int64            // the index snapshot is complete
+  //   PING       :                                // sent when there is no log to ship
+
+  final val HELLO = 1.toByte
+  final val ACK = 2.toByte
+  final val LOG_DATA = 10.toByte
+  final val RESET = 11.toByte
+  final val INDEX_FILE = 12.toByte
+  final val INDEX_DONE = 13.toByte
+  final val PING = 14.toByte
+
+  final val MAX_LOG_DATA_SIZE = 1024 * 1024
+  final val HEARTBEAT_INTERVAL = 1000
+  final val READ_TIMEOUT = 10 * HEARTBEAT_INTERVAL
+  final val RECONNECT_DELAY = 1000L
+
+  def parse_address(value: String) = {
+    val at = value.lastIndexOf(':')
+    if (at < 0) {
+      throw new IllegalArgumentException("Expected a host:port replication address, not: " + value)
+    }
+    new InetSocketAddress(value.substring(0, at), value.substring(at + 1).toInt)
+  }
+}
+
+/**
+ * <p>
+ * Streams the record log of a LevelDB store to its standbys.  Each standby
+ * gets its own connection with a thread which ships the log and a thread
+ * which reads the standby's acknowledgements.  A synced unit of work
+ * completes once a quorum of the standbys acknowledged it, if there is no
+ * such quorum it falls back to forcing the log.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReplicationMaster(store: LevelDBStore) {
+
+  import ReplicationMaster._
+
+  def client = store.client
+
+  val quorum = store.config.replication_quorum.getOrElse(1).max(1)
+  val standbys = store.config.replicate_to.split(",").map(_.trim).filter(!_.isEmpty).map {
+    address => new StandbyConnection(parse_address(address))
+  }
+
+  @volatile var stopped = false
+
+  /** the log position up to which there are complete units of work to ship */
+  @volatile var ship_limit = 0L
+  object ship_mutex
+
+  /** batches waiting for the quorum and when they started waiting, only used on the sync thread */
+  val waiting = new ju.ArrayDeque[(LevelDBStore#PendingSync, Long)]()
+
+  val ack_latency_counter = new TimeCounter
+  var ack_latency = ack_latency_counter(false)
+
+  /**
+   * Starts shipping the log.  Runs on the write thread.
+   */
+  def start = {
+    ship_limit = client.log.appender_limit
+    client.replicated = true
+    client.log.on_appended = replicate _
+    // Left behind by a master which failed while sending a snapshot.
+    client.directory.list_files.filter(_.getName.startsWith("replica-")).foreach(_.recursive_delete)
+    standbys.foreach(_.start())
+  }
+
+  def stop = {
+    stopped = true
+    ship_mutex.synchronized {
+      ship_mutex.notifyAll()
+    }
+    standbys.foreach(_.close)
+    standbys.foreach(_.join(READ_TIMEOUT))
+  }
+
+  /**
+   * Called by the write thread once the log holds complete units of
+   * work up to limit.
+   */
+  def replicate(limit: Long) = ship_mutex.synchronized {
+    ship_limit = limit
+    ship_mutex.notifyAll()
+  }
+
+  def wait_for_ship(pos: Long) = ship_mutex.synchronized {
+    if (ship_limit == pos && !stopped) {
+      ship_mutex.wait(HEARTBEAT_INTERVAL)
+    }
+    ship_limit
+  }
+
+  /**
+   * The log position a quorum of the standbys acknowledged, or -1 if not
+   * enough standbys are connected.
+   */
+  def quorum_limit = {
+    val acked = connected_acks
+    if (acked.size >= quorum) acked(quorum - 1) else -1L
+  }
+
+  def connected_acks = standbys.filter(_.connected).map(_.acked_limit).sortWith(_ > _)
+
+  /**
+   * How many bytes of the log the quorum, or as many standbys as there are
+   * if that's not enough, has not acknowledged yet.
+   */
+  def lag = {
+    val acked = connected_acks
+    val at = if (acked.isEmpty) 0L else acked((quorum - 1).min(acked.size - 1))
+    (ship_limit - at).max(0)
+  }
+
+  def replicas_in_sync = standbys.count(x => x.connected && x.caught_up)
+
+  /**
+   * Completes the synced batches once the quorum has acknowledged them,
+   * the other batches complete in order behind them.  Without a quorum
+   * the batches complete after a local force of the log so they don't
+   * wait on standbys which are gone.  Runs on the sync thread.
+   */
+  def drain(batch: Seq[LevelDBStore#PendingSync]) = {
+    val now = System.nanoTime()
+    batch.foreach(x => waiting.add((x, now)))
+    val limit = if (stopped) -1L else quorum_limit
+    val done = ListBuffer[LevelDBStore#PendingSync]()
+    while (!waiting.isEmpty && (limit < 0 || !waiting.peek()._1.sync_needed || waiting.peek()._1.end_pos <= limit)) {
+      val (next, started) = waiting.poll()
+      if (limit >= 0 && next.sync_needed) {
+        ack_latency_counter += now - started
+      }
+      done += next
+    }
+    if (!done.isEmpty) {
+      store.complete_syncs(done, limit < 0)
+    }
+  }
+
+  /**
+   * Has the sync thread complete the batches acknowledged by the standbys.
+   */
+  def schedule_drain = {
+    if (!stopped) {
+      try {
+        store.sync_executor {
+          store.drain_syncs
+        }
+      } catch {
+        case e: RejectedExecutionException => // the store is stopping.
+      }
+    }
+  }
+
+  /**
+   * Can a standby which has the log up to limit, in the log file at
+   * file_pos, continue from there?  It can't if the log it has is not
+   * part of our log anymore.
+   */
+  def can_resume(file_pos: Long, limit: Long) = {
+    val log = client.log
+    log.log_mutex.synchronized {
+      if (limit > ship_limit) {
+        false
+      } else {
+        log.log_file_range(limit) match {
+          case Some((position, _)) => position == file_pos || position == limit
+          case None =>
+            limit == log.appender_limit && (log.appender_start == file_pos || log.appender_start == limit)
+        }
+      }
+    }
+  }
+
+  /**
+   * Sends the last index snapshot to a standby which has to start over.
+   * Returns the position of the snapshot, the log gets shipped from the
+   * first log file on.
+   */
+  def send_snapshot(out: DataOutputStream, dir: File) = {
+    out.writeByte(RESET)
+    // Copy it on the write thread so that a new snapshot does not replace it while we copy.
+    val (snapshot_pos, first_pos) = store.write_executor.submit(new Callable[(Long, Long)] {
+      def call = {
+        dir.recursive_delete
+        dir.mkdirs()
+        val snapshot = client.snapshot_index_file(client.last_index_snapshot_pos)
+        val snapshot_pos = if (snapshot.exists()) {
+          client.copy_index(snapshot, dir)
+          client.last_index_snapshot_pos
+        } else {
+          // Without a snapshot the whole log gets replayed.
+          0L
+        }
+        (snapshot_pos, client.log.log_file_positions.head)
+      }
+    }).get()
+    try {
+      for (file <- dir.list_files) {
+        out.writeByte(INDEX_FILE)
+        out.writeUTF(file.getName)
+        out.writeLong(file.length())
+        using(new FileInputStream(file)) {
+          in => copy(in, out)
+        }
+      }
+      out.writeByte(INDEX_DONE)
+      out.writeLong(snapshot_pos)
+      out.flush()
+    } finally {
+      dir.recursive_delete
+    }
+    (snapshot_pos, first_pos)
+  }
+
+  /**
+   * The connection to one standby.  Reconnects until the master is
+   * stopped.
+   */
+  class StandbyConnection(address: InetSocketAddress) extends Thread("leveldb store replication to " + address) {
+
+    setDaemon(true)
+
+    @volatile var socket: Socket = null
+    @volatile var connected = false
+    /** set once everything shipped got acknowledged after connecting */
+    @volatile var caught_up = false
+    @volatile var acked_limit = 0L
+
+    def close = {
+      val s = socket
+      if (s != null) {
+        s.close()
+      }
+    }
+
+    override def run() = {
+      var reported = false
+      while (!stopped) {
+        try {
+          socket = new Socket()
+          socket.connect(address, READ_TIMEOUT)
+          socket.setSoTimeout(READ_TIMEOUT)
+          socket.setTcpNoDelay(true)
+          if (stopped) {
+            throw new IOException("Stopped")
+          }
+          info("Replicating the store to standby %s", address)
+          reported = false
+          ship(new DataInputStream(new BufferedInputStream(socket.getInputStream)),
+            new DataOutputStream(new BufferedOutputStream(socket.getOutputStream, MAX_LOG_DATA_SIZE)))
+        } catch {
+          case e: Throwable =>
+            if (!stopped) {
+              if (!reported) {
+                warn("Not replicating to standby %s: %s", address, e)
+                reported = true
+              } else {
+                debug("Not replicating to standby %s: %s", address, e)
+              }
+            }
+        } finally {
+          close
+          if (connected) {
+            connected = false
+            caught_up = false
+            // Might have lost the quorum.
+            schedule_drain
+          }
+        }
+        if (!stopped) {
+          Thread.sleep(RECONNECT_DELAY)
+        }
+      }
+    }
+
+    def ship(in: DataInputStream, out: DataOutputStream) = {
+      if (in.readByte() != HELLO) {
+        throw new IOException("Expected a hello from the standby")
+      }
+      val file_pos = in.readLong()
+      var pos = in.readLong()
+
+      // Up to where we might have to ship holes in the log.
+      var snapshot_pos = -1L
+      if (!can_resume(file_pos, pos)) {
+        info("Standby %s can't resume at %d, sending it the index snapshot", address, pos)
+        val rc = send_snapshot(out, client.directory / ("replica-" + getId + ".index"))
+        snapshot_pos = rc._1
+        pos = rc._2
+      }
+      acked_limit = pos
+      connected = true
+
+      val ack_reader = new Thread("leveldb store replication acks from " + address) {
+        setDaemon(true)
+        override def run() = {
+          try {
+            while (true) {
+              if (in.readByte() != ACK) {
+                throw new IOException("Expected an ack from the standby")
+              }
+              acked_limit = in.readLong()
+              schedule_drain
+            }
+          } catch {
+            case e: Throwable =>
+              // Unblocks the shipping.
+              close
+          }
+        }
+      }
+      ack_reader.start()
+
+      try {
+        while (!stopped) {
+          val limit = wait_for_ship(pos)
+          if (limit < pos) {
+            throw new IOException("The log got reset")
+          }
+          if (limit == pos) {
+            if (acked_limit == pos) {
+              caught_up = true
+            }
+            out.writeByte(PING)
+            out.flush()
+          } else {
+            val log = client.log
+            val (log_file_pos, log_file_end) = log.log_file_range(pos) match {
+              case Some(range) => range
+              case None if pos < snapshot_pos =>
+                // The log file got deleted, the index snapshot does not need it.
+                val next = log.log_file_positions.find(_ > pos).getOrElse(throw new IOException("The log at %d is gone".format(pos)))
+                pos = next
+                log.log_file_range(pos).getOrElse(throw new IOException("The log at %d is gone".format(pos)))
+              case None =>
+                throw new IOException("The log at %d is gone".format(pos))
+            }
+            val end = log_file_end.min(limit).min(pos + MAX_LOG_DATA_SIZE)
+            val data = log.read_raw(pos, (end - pos).toInt).getOrElse(throw new IOException("The log at %d is gone".format(pos)))
+            out.writeByte(LOG_DATA)
+            out.writeLong(log_file_pos)
+            out.writeLong(pos)
+            // Log files get rotated at the end of a unit of work.
+            out.writeBoolean(end == limit || end == log_file_end)
+            out.writeInt(data.length)
+            out.write(data.data, data.offset, data.length)
+            pos = end
+            if (pos == limit) {
+              out.flush()
+            }
+          }
+        }
+      } finally {
+        close
+        ack_reader.join(READ_TIMEOUT)
+      }
+    }
+  }
+
+}
@@ -0,0 +1,228 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io._
+import java.net.{SocketTimeoutException, ServerSocket, Socket}
+import java.util.concurrent.Callable
+import org.apache.activemq.apollo.util._
+import org.apache.activemq.apollo.util.FileSupport._
+import org.apache.activemq.apollo.util.OptionSupport._
+import org.fusesource.hawtbuf.Buffer
+import ReplicationMaster._
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+object ReplicationSlave extends Log
+
+/**
+ * <p>
+ * Keeps a LevelDB store a standby of a replication master.  It appends
+ * the log the master ships to the store's log and replays it into the
+ * store's index as it arrives, so taking over only has to replay the
+ * last few units of work.  If a takeover delay is configured and the
+ * master is gone for longer than that, on_takeover gets called, if the
+ * standby gets closed before that on_closed does.  Nothing keeps a master
+ * which is only cut off from the standby from writing on, so taking over
+ * automatically is opt-in.  Otherwise the standby gets promoted by
+ * restarting it without replication_bind.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class ReplicationSlave(store: LevelDBStore, on_takeover: () => Unit, on_closed: () => Unit) extends Thread("leveldb store replication standby") {
+
+  import ReplicationSlave._
+
+  setDaemon(true)
+
+  def client = store.client
+
+  /** how long the master has to be gone before taking over, None if the standby never does on its own */
+  val takeover_delay = Option(store.config.replication_takeover_delay).map(_.longValue)
+  val server = new ServerSocket()
+  server.setReuseAddress(true)
+  server.bind(parse_address(store.config.replication_bind))
+
+  @volatile var stopped = false
+  @volatile var socket: Socket = null
+
+  /** the log position the index replay has been requested up to */
+  var replay_limit = 0L
+  var replay_scheduled = false
+  object replay_mutex
+
+  def port = server.getLocalPort
+
+  def close = {
+    stopped = true
+    server.close()
+    val s = socket
+    if (s != null) {
+      s.close()
+    }
+  }
+
+  override def run() = {
+    info("Waiting for the replication master on %s", server.getLocalSocketAddress)
+    var master_lost_at = System.currentTimeMillis()
+    var took_over = false
+    try {
+      while (!stopped) {
+        // Don't wait past the takeover delay for the master to reconnect.
+        val remaining = takeover_delay.map(_ - (System.currentTimeMillis() - master_lost_at))
+        if (remaining.exists(_ <= 0)) {
+          info("The replication master is gone, taking over")
+          server.close()
+          stopped = true
+          took_over = true
+          on_takeover()
+        } else {
+          // Without a takeover delay, wait for the master for good.
+          server.setSoTimeout(remaining.map(_.toInt).getOrElse(0))
+          try {
+            socket = server.accept()
+            replicate(socket)
+          } catch {
+            case e: SocketTimeoutException =>
+            case e: Throwable =>
+              if (!stopped) {
+                warn("Replication from the master failed: %s", e)
+              }
+          } finally {
+            if (socket != null) {
+              socket.close()
+              socket = null
+              master_lost_at = System.currentTimeMillis()
+            }
+          }
+        }
+      }
+    } catch {
+      case e: Throwable =>
+        if (!stopped) {
+          error(e, "Replication standby failure: %s", e)
+        }
+    } finally {
+      if (!took_over) {
+        on_closed()
+      }
+    }
+  }
+
+  /**
+   * Runs func on the store's write thread and waits for it.
+   */
+  def on_write_thread[T](func: => T): T = {
+    store.write_executor.submit(new Callable[T] {
+      def call = func
+    }).get()
+  }
+
+  def replicate(socket: Socket) = {
+    socket.setSoTimeout(READ_TIMEOUT)
+    socket.setTcpNoDelay(true)
+    info("Replicating from master %s", socket.getRemoteSocketAddress)
+    val in = new DataInputStream(new BufferedInputStream(socket.getInputStream, MAX_LOG_DATA_SIZE))
+    val out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream))
+
+    val (file_pos, limit) = on_write_thread {
+      (client.log.appender_start, client.log.appender_limit)
+    }
+    out.writeByte(HELLO)
+    out.writeLong(file_pos)
+    out.writeLong(limit)
+    out.flush()
+
+    val snapshot_dir = client.directory / "replica.index"
+    while (!stopped) {
+      in.readByte() match {
+        case LOG_DATA =>
+          val file_pos = in.readLong()
+          val pos = in.readLong()
+          val uow_end = in.readBoolean()
+          val data = new Buffer(in.readInt())
+          in.readFully(data.data, data.offset, data.length)
+          client.log.append_replicated(file_pos, pos, data)
+          if (uow_end) {
+            schedule_replay(pos + data.length)
+          }
+        case PING =>
+        case RESET =>
+          snapshot_dir.recursive_delete
+          snapshot_dir.mkdirs()
+        case INDEX_FILE =>
+          val name = in.readUTF()
+          var remaining = in.readLong()
+          using(new FileOutputStream(snapshot_dir / name)) { os =>
+            val buffer = new Array[Byte](1024 * 64)
+            while (remaining > 0) {
+              val count = in.read(buffer, 0, remaining.min(buffer.length).toInt)
+              if (count < 0) {
+                throw new EOFException()
+              }
+              os.write(buffer, 0, count)
+              remaining -= count
+            }
+          }
+        case INDEX_DONE =>
+          val snapshot_pos = in.readLong()
+          info("Starting over from the master's index snapshot at %d", snapshot_pos)
+          on_write_thread {
+            client.reset_replica(snapshot_dir, snapshot_pos)
+          }
+        case kind =>
+          throw new IOException("Unexpected replication frame: " + kind)
+      }
+      // Acknowledge once we caught up with what the master sent.
+      if (in.available() == 0) {
+        out.writeByte(ACK)
+        out.writeLong(client.log.appender_limit)
+        out.flush()
+      }
+    }
+  }
+
+  /**
+   * Has the write thread replay the received log into the index.  Only
+   * one replay is queued at a time, it catches up with all the units of
+   * work received until it runs.
+   */
+  def schedule_replay(limit: Long) = replay_mutex.synchronized {
+    replay_limit = limit
+    if (!replay_scheduled) {
+      replay_scheduled = true
+      store.write_executor.execute(new Runnable {
+        def run = {
+          val limit = replay_mutex.synchronized {
+            replay_scheduled = false
+            replay_limit
+          }
+          try {
+            client.replay_replicated(limit)
+          } catch {
+            case e: Throwable =>
+              warn(e, "Could not replay the replicated log: %s", e)
+          }
+        }
+      })
+    }
+  }
+
+}
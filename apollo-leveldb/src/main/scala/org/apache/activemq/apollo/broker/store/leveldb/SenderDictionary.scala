@@ -0,0 +1,187 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.fusesource.hawtbuf.{DataByteArrayOutputStream, DataByteArrayInputStream, Buffer}
+import org.iq80.leveldb.WriteBatch
+import collection.mutable.{HashMap, ListBuffer}
+import org.apache.activemq.apollo.broker.store.QueueEntryPB
+import HelperTrait._
+
+object SenderDictionary {
+
+  /** the map key prefix the dictionary entries are stored under */
+  final val SENDER_KEY_PREFIX = new Buffer(LevelDBClient.bytes(":sender:"))
+
+  def encode_sender_key(id: Int): Array[Byte] = {
+    val out = new DataByteArrayOutputStream(1 + SENDER_KEY_PREFIX.length + 4)
+    out.writeByte(LevelDBClient.map_prefix)
+    out.write(SENDER_KEY_PREFIX.data, SENDER_KEY_PREFIX.offset, SENDER_KEY_PREFIX.length)
+    out.writeInt(id)
+    out.toBuffer.toByteArray
+  }
+
+  def decode_sender_key(key: Array[Byte]): Int = {
+    val in = new DataByteArrayInputStream(key)
+    in.skipBytes(1 + SENDER_KEY_PREFIX.length)
+    in.readInt()
+  }
+
+  def is_sender_key(key: Buffer) = key.startsWith(SENDER_KEY_PREFIX)
+
+  /**
+   * Copies the fields of a queue entry record other than the queue key,
+   * seq and senders.
+   */
+  def copy_entry_fields(from: QueueEntryPB.Getter, to: QueueEntryPB.Bean) = {
+    to.setMessageLocator(from.getMessageLocator)
+    if (from.hasSize)
+      to.setSize(from.getSize)
+    if (from.hasExpiration)
+      to.setExpiration(from.getExpiration)
+    if (from.hasRedeliveries)
+      to.setRedeliveries(from.getRedeliveries)
+    if (from.hasPriority)
+      to.setPriority(from.getPriority)
+    if (from.hasDeliverAt)
+      to.setDeliverAt(from.getDeliverAt)
+    to
+  }
+}
+
+/**
+ * <p>
+ * Assigns small integer ids to the sender addresses of queue entries so
+ * that the queue entry index records don't have to repeat them.  The
+ * dictionary is stored in the index under the map prefix.  The log records
+ * keep the full sender addresses so that recovery does not depend on the
+ * dictionary, index records written before the dictionary existed keep
+ * theirs too.  Only used from the store's write thread.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class SenderDictionary(client: LevelDBClient) {
+  import SenderDictionary._
+
+  val ids = HashMap[Buffer, Int]()
+  val senders = HashMap[Int, Buffer]()
+  var next_id = 1
+
+  /** the senders added since the last commit */
+  val uncommitted = ListBuffer[Buffer]()
+
+  def clear = {
+    ids.clear()
+    senders.clear()
+    uncommitted.clear()
+    next_id = 1
+  }
+
+  def load = {
+    clear
+    client.index.cursor_prefixed(encode_key(LevelDBClient.map_prefix, SENDER_KEY_PREFIX)) {
+      (key, value) =>
+        val id = decode_sender_key(key)
+        val sender = new Buffer(value)
+        ids.put(sender, id)
+        senders.put(id, sender)
+        next_id = next_id.max(id + 1)
+        true
+    }
+  }
+
+  /**
+   * Gets the id of a sender, adding it to the dictionary if needed.  New
+   * entries get written with the batch, or straight to the index when
+   * there is no batch.
+   */
+  def id(sender: Buffer, batch: WriteBatch): Int = {
+    ids.get(sender) match {
+      case Some(id) => id
+      case None =>
+        val copy = sender.deepCopy()
+        val id = next_id
+        next_id += 1
+        ids.put(copy, id)
+        senders.put(id, copy)
+        if (batch != null) {
+          batch.put(encode_sender_key(id), copy.toByteArray)
+          uncommitted += copy
+        } else {
+          client.index.put(encode_sender_key(id), copy.toByteArray)
+        }
+        id
+    }
+  }
+
+  /**
+   * The batch holding the new entries was written.
+   */
+  def commit = uncommitted.clear()
+
+  /**
+   * The batch holding the new entries failed, forget them.
+   */
+  def rollback = {
+    for (sender <- uncommitted; id <- ids.remove(sender)) {
+      senders.remove(id)
+      next_id = next_id.min(id)
+    }
+    uncommitted.clear()
+  }
+
+  def add_ids(sender: Iterable[Buffer], to: QueueEntryPB.Bean, batch: WriteBatch) = {
+    if (sender != null) {
+      sender.foreach(x => to.addSenderId(id(x, batch)))
+    }
+    to
+  }
+
+  /**
+   * Gets the sender addresses of an index record in either encoding.  Threads
+   * other than the write thread have to pass in a copy of the senders table.
+   */
+  def decode(record: QueueEntryPB.Getter, table: collection.Map[Int, Buffer] = senders): List[Buffer] = {
+    import collection.JavaConversions._
+    val sender_ids = record.getSenderIdList
+    val sender = record.getSenderList
+    if (sender_ids != null && !sender_ids.isEmpty) {
+      sender_ids.toList.map { id =>
+        table.get(id.intValue).getOrElse(throw new IllegalStateException("Unknown sender id: " + id))
+      }
+    } else if (sender != null) {
+      sender.toList
+    } else {
+      List()
+    }
+  }
+
+  /**
+   * Converts an index record to a log or export record which holds the
+   * full sender addresses.
+   */
+  def expand(queue_key: Long, seq: Long, record: QueueEntryPB.Getter, table: collection.Map[Int, Buffer] = senders) = {
+    val rc = copy_entry_fields(record, new QueueEntryPB.Bean)
+    rc.setQueueKey(queue_key)
+    rc.setQueueSeq(seq)
+    decode(record, table).foreach(rc.addSender(_))
+    rc
+  }
+
+}
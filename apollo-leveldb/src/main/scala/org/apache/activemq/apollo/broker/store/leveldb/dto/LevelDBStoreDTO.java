@@ -54,6 +54,9 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="log_size")
     public String log_size;
 
+    @XmlAttribute(name="log_mmap_reads")
+    public Boolean log_mmap_reads;
+
     @XmlAttribute(name="index_max_open_files")
     public Integer index_max_open_files;
 
@@ -75,12 +78,36 @@ public class LevelDBStoreDTO extends StoreDTO {
     @XmlAttribute(name="log_compression")
     public String log_compression;
 
+    @XmlAttribute(name="log_compression_block_size")
+    public String log_compression_block_size;
+
     @XmlAttribute(name="index_factory")
     public String index_factory;
 
     @XmlAttribute(name="auto_compaction_ratio")
     public Integer auto_compaction_ratio;
 
+    @XmlAttribute(name="log_compaction_ratio")
+    public Integer log_compaction_ratio;
+
+    @XmlAttribute(name="recovery_threads")
+    public Integer recovery_threads;
+
+    @XmlAttribute(name="max_recovery_time")
+    public Long max_recovery_time;
+
+    @XmlAttribute(name="replicate_to")
+    public String replicate_to;
+
+    @XmlAttribute(name="replication_quorum")
+    public Integer replication_quorum;
+
+    @XmlAttribute(name="replication_bind")
+    public String replication_bind;
+
+    @XmlAttribute(name="replication_takeover_delay")
+    public Long replication_takeover_delay;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -104,9 +131,26 @@ public class LevelDBStoreDTO extends StoreDTO {
             return false;
         if (index_factory != null ? !index_factory.equals(that.index_factory) : that.index_factory != null) return false;
         if (log_size != null ? !log_size.equals(that.log_size) : that.log_size != null) return false;
+        if (log_compression_block_size != null ? !log_compression_block_size.equals(that.log_compression_block_size) : that.log_compression_block_size != null)
+            return false;
+        if (log_compaction_ratio != null ? !log_compaction_ratio.equals(that.log_compaction_ratio) : that.log_compaction_ratio != null)
+            return false;
+        if (log_mmap_reads != null ? !log_mmap_reads.equals(that.log_mmap_reads) : that.log_mmap_reads != null)
+            return false;
+        if (max_recovery_time != null ? !max_recovery_time.equals(that.max_recovery_time) : that.max_recovery_time != null)
+            return false;
         if (paranoid_checks != null ? !paranoid_checks.equals(that.paranoid_checks) : that.paranoid_checks != null)
             return false;
         if (read_threads != null ? !read_threads.equals(that.read_threads) : that.read_threads != null) return false;
+        if (replicate_to != null ? !replicate_to.equals(that.replicate_to) : that.replicate_to != null) return false;
+        if (replication_bind != null ? !replication_bind.equals(that.replication_bind) : that.replication_bind != null)
+            return false;
+        if (replication_quorum != null ? !replication_quorum.equals(that.replication_quorum) : that.replication_quorum != null)
+            return false;
+        if (replication_takeover_delay != null ? !replication_takeover_delay.equals(that.replication_takeover_delay) : that.replication_takeover_delay != null)
+            return false;
+        if (recovery_threads != null ? !recovery_threads.equals(that.recovery_threads) : that.recovery_threads != null)
+            return false;
         if (sync != null ? !sync.equals(that.sync) : that.sync != null) return false;
         if (verify_checksums != null ? !verify_checksums.equals(that.verify_checksums) : that.verify_checksums != null)
             return false;
@@ -124,12 +168,21 @@ public class LevelDBStoreDTO extends StoreDTO {
         result = 31 * result + (paranoid_checks != null ? paranoid_checks.hashCode() : 0);
         result = 31 * result + (verify_checksums != null ? verify_checksums.hashCode() : 0);
         result = 31 * result + (log_size != null ? log_size.hashCode() : 0);
+        result = 31 * result + (log_compression_block_size != null ? log_compression_block_size.hashCode() : 0);
+        result = 31 * result + (log_compaction_ratio != null ? log_compaction_ratio.hashCode() : 0);
+        result = 31 * result + (log_mmap_reads != null ? log_mmap_reads.hashCode() : 0);
+        result = 31 * result + (recovery_threads != null ? recovery_threads.hashCode() : 0);
+        result = 31 * result + (max_recovery_time != null ? max_recovery_time.hashCode() : 0);
         result = 31 * result + (index_max_open_files != null ? index_max_open_files.hashCode() : 0);
         result = 31 * result + (index_block_restart_interval != null ? index_block_restart_interval.hashCode() : 0);
         result = 31 * result + (index_write_buffer_size != null ? index_write_buffer_size.hashCode() : 0);
         result = 31 * result + (index_block_size != null ? index_block_size.hashCode() : 0);
         result = 31 * result + (index_cache_size != null ? index_cache_size.hashCode() : 0);
         result = 31 * result + (index_compression != null ? index_compression.hashCode() : 0);
+        result = 31 * result + (replicate_to != null ? replicate_to.hashCode() : 0);
+        result = 31 * result + (replication_quorum != null ? replication_quorum.hashCode() : 0);
+        result = 31 * result + (replication_bind != null ? replication_bind.hashCode() : 0);
+        result = 31 * result + (replication_takeover_delay != null ? replication_takeover_delay.hashCode() : 0);
         return result;
     }
 }
@@ -35,12 +35,21 @@ import javax.xml.bind.annotation.XmlRootElement;
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class LevelDBStoreStatusDTO extends StoreStatusDTO {
 
+    @XmlElement(name="encode_latency")
+    public TimeMetricDTO encode_latency;
+
     @XmlElement(name="journal_append_latency")
     public TimeMetricDTO journal_append_latency;
 
     @XmlElement(name="index_update_latency")
     public TimeMetricDTO index_update_latency;
 
+    @XmlElement(name="sync_latency")
+    public TimeMetricDTO sync_latency;
+
+    @XmlElement(name="sync_batch_size")
+    public IntMetricDTO sync_batch_size;
+
     @XmlElement(name="message_load_batch_size")
     public IntMetricDTO message_load_batch_size;
 
@@ -56,4 +65,28 @@ public class LevelDBStoreStatusDTO extends StoreStatusDTO {
     @XmlElement(name="log_stats")
     public String log_stats;
 
+    @XmlElement(name="log_compactions")
+    public long log_compactions;
+
+    @XmlElement(name="log_compaction_read")
+    public long log_compaction_read;
+
+    @XmlElement(name="log_compaction_written")
+    public long log_compaction_written;
+
+    @XmlElement(name="log_compaction_reclaimed")
+    public long log_compaction_reclaimed;
+
+    @XmlElement(name="replication_role")
+    public String replication_role;
+
+    @XmlElement(name="replicas_in_sync")
+    public int replicas_in_sync;
+
+    @XmlElement(name="replication_lag")
+    public long replication_lag;
+
+    @XmlElement(name="replication_ack_latency")
+    public TimeMetricDTO replication_ack_latency;
+
 }
@@ -0,0 +1,121 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.leveldb
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{MessageRecord, Store}
+import org.apache.activemq.apollo.util.{FunSuiteSupport, LoggingTracker}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.{AsciiBuffer, Buffer}
+import org.fusesource.hawtdispatch.TaskTracker
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.{TimeUnit, CountDownLatch}
+import java.util.Random
+
+/**
+ * <p>
+ * Compares the message load throughput of file channel reads and memory
+ * mapped reads of the LevelDB store's data logs for small and large
+ * messages.  Large messages also exercise the appender's write buffer
+ * bypass.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LevelDBLoadBenchmark extends FunSuiteSupport {
+
+  // Keep the timings free of other test classes.
+  override def is_parallel_test_class = false
+
+  def create_store(directory:java.io.File, mmap_reads:Boolean): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = directory
+      rc.flush_delay = 0L
+      rc.log_size = "8m"
+      rc.log_compression = "none"
+      rc.log_mmap_reads = mmap_reads
+      rc
+    })
+  }
+
+  def load_rate(mmap_reads:Boolean, message_size:Int, message_count:Int) = {
+    val directory = test_data_dir / ("load-"+mmap_reads+"-"+message_size)
+    directory.recursive_delete
+    val store = create_store(directory, mmap_reads)
+    val tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+
+    try {
+      val payload = new Buffer(message_size)
+      new Random(0).nextBytes(payload.data)
+
+      // Store the messages in 1MB batches so that the logs rotate and most
+      // of the messages get read from sealed log files.
+      val batch_size = (1024*1024 / message_size) max 1
+      val locators = (0 until message_count).grouped(batch_size).flatMap { batch =>
+        val uow = store.create_uow
+        val rc = batch.map { i =>
+          val message = new MessageRecord
+          message.codec = new AsciiBuffer("test-protocol")
+          message.buffer = payload
+          message.locator = new AtomicReference[Object]()
+          (uow.store(message), message.locator)
+        }
+        val stored = new TaskTracker("stored", 0)
+        uow.on_complete(stored.task("uow complete").run)
+        uow.release
+        rc.foreach(x=> store.flush_message(x._1) {})
+        stored.await
+        rc
+      }.toList
+
+      // Load them all back.
+      val start = System.nanoTime()
+      val loaded = new CountDownLatch(message_count)
+      locators.foreach { case (key, locator) =>
+        store.load_message(key, locator) { record =>
+          expect(message_size)(record.get.buffer.length)
+          loaded.countDown()
+        }
+      }
+      assert(loaded.await(5, TimeUnit.MINUTES))
+      val elapsed = System.nanoTime() - start
+      message_count * 1000000000L / elapsed
+    } finally {
+      val tracker = new LoggingTracker("store stop")
+      tracker.stop(store)
+      tracker.await
+    }
+  }
+
+  def compare(message_size:Int, message_count:Int) = {
+    val read = load_rate(false, message_size, message_count)
+    val mmap = load_rate(true, message_size, message_count)
+    println("%,d byte message load rate, file reads: %,d msg/s, mmap reads: %,d msg/s".format(message_size, read, mmap))
+  }
+
+  test("load 1KB messages") {
+    compare(1024, 20000)
+  }
+
+  test("load 1MB messages") {
+    compare(1024*1024, 100)
+  }
+
+}
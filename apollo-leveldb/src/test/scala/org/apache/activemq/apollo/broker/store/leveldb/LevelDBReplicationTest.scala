@@ -0,0 +1,120 @@
+package org.apache.activemq.apollo.broker.store.leveldb
+
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import dto.{LevelDBStoreStatusDTO, LevelDBStoreDTO}
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.dto.StoreStatusDTO
+import org.apache.activemq.apollo.util.{sync_cb, LoggingTracker}
+import org.apache.activemq.apollo.util.FileSupport._
+import java.net.ServerSocket
+
+/**
+ * <p>
+ * Replicates a LevelDB store to a standby store on localhost and checks
+ * that the standby takes over with the replicated data once the master
+ * is gone.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class LevelDBReplicationTest extends StoreFunSuiteSupport {
+
+  val port = {
+    val socket = new ServerSocket(0)
+    try {
+      socket.getLocalPort
+    } finally {
+      socket.close()
+    }
+  }
+
+  var standby: LevelDBStore = _
+  var standby_started: LoggingTracker = _
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc.replicate_to = "127.0.0.1:" + port
+      rc
+    })
+  }
+
+  override protected def beforeAll() = {
+    (test_data_dir / "standby").recursive_delete
+    standby = new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = test_data_dir / "standby"
+      rc.replication_bind = "127.0.0.1:" + port
+      rc.replication_takeover_delay = 2000L
+      rc
+    })
+    // Only completes once the standby takes over.
+    standby_started = new LoggingTracker("standby startup")
+    standby_started.start(standby)
+    super.beforeAll()
+  }
+
+  def status(store: Store) = sync_cb[StoreStatusDTO](cb => store.get_store_status(cb)).asInstanceOf[LevelDBStoreStatusDTO]
+
+  def within(timeout: Long)(condition: => Boolean) = {
+    val deadline = System.currentTimeMillis() + timeout
+    while (!condition && System.currentTimeMillis() < deadline) {
+      Thread.sleep(100)
+    }
+    assert(condition)
+  }
+
+  test("the standby takes over with the replicated data") {
+    within(10 * 1000) {
+      status(store).replicas_in_sync == 1
+    }
+
+    val queue = add_queue("A")
+    val messages = (0 until 100).map("message " + _).toList
+    val keys = populate(queue, messages)
+
+    val master_status = status(store)
+    expect("master")(master_status.replication_role)
+    expect(0L)(master_status.replication_lag)
+
+    // Failover to the standby.
+    val tracker = new LoggingTracker("master stop")
+    tracker.stop(store)
+    tracker.await
+    store = standby
+    standby_started.await
+
+    expect(Seq(queue)) {
+      sync_cb[Seq[Long]](cb => store.list_queues(cb))
+    }
+    val entries = sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(queue, 0, Long.MaxValue)(cb))
+    expect(keys.map(_._3).toList)(entries.map(_.entry_seq).toList)
+    for ((entry, message) <- entries.zip(messages)) {
+      val record = sync_cb[Option[MessageRecord]](cb => store.load_message(entry.message_key, entry.message_locator)(cb))
+      expect(message)(record.get.buffer.ascii().toString)
+    }
+
+    // It can be written to.
+    val next = add_queue("B")
+    populate(next, List("after the takeover"))
+  }
+
+}
@@ -18,20 +18,345 @@ package org.apache.activemq.apollo.broker.store.leveldb
  */
 
 import dto.LevelDBStoreDTO
-import org.apache.activemq.apollo.broker.store.{StoreTests, Store, StoreFunSuiteSupport}
+import org.apache.activemq.apollo.broker.store._
+import org.apache.activemq.apollo.util.{sync_cb, LoggingTracker}
+import org.apache.activemq.apollo.util.FileSupport._
+import org.fusesource.hawtbuf.AsciiBuffer._
+import HelperTrait._
+import org.fusesource.hawtdispatch.TaskTracker
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicReference
+import java.io.{File, FileInputStream, BufferedInputStream, FileOutputStream, BufferedOutputStream}
 
 /**
  * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
  */
 class LevelDBStoreTest extends StoreTests {
 
+  /** customizes the configuration of the stores the tests create */
+  var configure = (config: LevelDBStoreDTO) => {}
+
   def create_store(flushDelay: Long): Store = {
     new LevelDBStore({
       val rc = new LevelDBStoreDTO
       rc.directory = data_directory
       rc.flush_delay = flushDelay
+      configure(rc)
       rc
     })
   }
 
+  def export(file: File, since: Option[Long]) = {
+    using(new BufferedOutputStream(new FileOutputStream(file))) { os =>
+      expect(None) {
+        sync_cb[Option[String]] { cb =>
+          since match {
+            case Some(since) => store.export_data(os, since, cb)
+            case None => store.export_data(os, cb)
+          }
+        }
+      }
+    }
+    using(new BufferedInputStream(new FileInputStream(file))) { is =>
+      ImportStreamManager(is).position.get
+    }
+  }
+
+  def client = store.asInstanceOf[LevelDBStore].client
+
+  def index_snapshots = LevelDBClient.find_sequence_files(data_directory, LevelDBClient.INDEX_SUFFIX)
+
+  /**
+   * Restarts the store.  When given an index snapshot saved earlier, the
+   * store recovers from it by replaying the log written since, like it
+   * would after a crash.
+   */
+  def restart(saved_index: Option[File] = None) = {
+    var tracker = new LoggingTracker("store stop")
+    tracker.stop(store)
+    tracker.await
+    for (saved <- saved_index) {
+      index_snapshots.values.foreach(_.recursive_delete)
+      saved.recursive_copy_to(data_directory / saved.getName)
+    }
+    store = create_store(get_flush_delay())
+    tracker = new LoggingTracker("store startup")
+    tracker.start(store)
+    tracker.await
+  }
+
+  /**
+   * Restarts the store so that its index gets snapshot'ed and saves a copy
+   * of the snapshot.
+   */
+  def save_index = {
+    restart()
+    val saved = test_data_dir / "saved-index"
+    saved.recursive_delete
+    val snapshot = index_snapshots.last._2
+    snapshot.recursive_copy_to(saved / snapshot.getName)
+    saved / snapshot.getName
+  }
+
+  def with_config(func: LevelDBStoreDTO => Unit)(body: => Unit) = {
+    configure = func
+    restart()
+    try {
+      body
+    } finally {
+      configure = (config: LevelDBStoreDTO) => {}
+      restart()
+    }
+  }
+
+  def position(entry: QueueEntryRecord) = entry.message_locator.get.asInstanceOf[(Long, Int)]._1
+
+  def compact = sync_cb[Unit](cb => store.compact(cb(())))
+
+  def load_message(key: Long, locator: AtomicReference[Object]) = {
+    sync_cb[Option[MessageRecord]](cb => store.load_message(key, locator)(cb)).map(_.buffer.ascii().toString)
+  }
+
+  def complete(uow: StoreUOW) = {
+    uow.complete_asap()
+    val tracker = new TaskTracker("uow")
+    val task = tracker.task("uow complete")
+    uow.on_complete(task.run)
+    uow.release
+    tracker.await
+  }
+
+  def dequeue(entries: Seq[QueueEntryRecord]) = {
+    val uow = store.create_uow
+    entries.foreach(uow.dequeue(_))
+    complete(uow)
+  }
+
+  def entries(queue_key: Long, msg_keys: Seq[(Long, AtomicReference[Object], Long)]) = {
+    msg_keys.map(x => entry(queue_key, x._3, (x._1, x._2)))
+  }
+
+  def list_entries(queue_key: Long) = {
+    sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(queue_key, 0, Long.MaxValue)(cb))
+  }
+
+  def load(file: File) = {
+    using(new BufferedInputStream(new FileInputStream(file))) { is =>
+      expect(None) {
+        sync_cb[Option[String]] { cb =>
+          store.import_data(is, cb)
+        }
+      }
+    }
+  }
+
+  test("incremental export and import") {
+    test_data_dir.mkdirs()
+    val A = add_queue("A")
+    populate(A, "message 1" :: "message 2" :: Nil)
+    val full = test_data_dir / "full.tgz"
+    val position = export(full, None)
+
+    val B = add_queue("B")
+    populate(B, "message 3" :: Nil)
+    expect(true) {
+      sync_cb[Boolean](cb => store.remove_queue(A)(cb))
+    }
+    val increment = test_data_dir / "increment.tgz"
+    export(increment, Some(position))
+
+    purge
+    load(full)
+    expect(Seq(A)) {
+      sync_cb[Seq[Long]](cb => store.list_queues(cb))
+    }
+    load(increment)
+    expect(Seq(B)) {
+      sync_cb[Seq[Long]](cb => store.list_queues(cb))
+    }
+    val entries = sync_cb[Seq[QueueEntryRecord]](cb => store.list_queue_entries(B, 0, Long.MaxValue)(cb))
+    expect(1)(entries.size)
+    val record = sync_cb[Option[MessageRecord]](cb => store.load_message(entries.head.message_key, entries.head.message_locator)(cb))
+    expect("message 3")(record.get.buffer.ascii().toString)
+  }
+
+  test("contiguous dequeues are replayed as a range") {
+    val A = add_queue("A")
+    val B = add_queue("B")
+    val a_keys = populate(A, (1 to 6).map("message " + _).toList)
+    val b_keys = populate(B, "message 7" :: "message 8" :: Nil)
+    val saved = save_index
+
+    // Seqs 1 to 3 and 5 of A make a range and a single removal.
+    dequeue(entries(A, a_keys.take(3)) ++ entries(A, a_keys.slice(4, 5)) ++ entries(B, b_keys.take(1)))
+    restart(Some(saved))
+
+    expect(Seq(4L, 6L))(list_entries(A).map(_.entry_seq))
+    expect(Seq(2L))(list_entries(B).map(_.entry_seq))
+  }
+
+  test("log compaction moves the live messages out of a sparse log file") {
+    with_config { config =>
+      config.log_size = "16k"
+      config.log_compression = "none"
+    } {
+      val A = add_queue("A")
+      val keys = (1 to 40).flatMap(i => populate(A, ("message " + i + " ").padTo(1024, 'x') :: Nil, i))
+      val first_log = client.log.log_file_positions.head
+      val (key, stale_locator, _) = keys.head
+      val old_locator = stale_locator.get
+
+      // Only the first message is left in the first log file.
+      dequeue(entries(A, keys.slice(1, 30)))
+      val saved = save_index
+
+      compact
+      // The index gets scanned and the messages moved in the background.
+      within(30, TimeUnit.SECONDS) {
+        expect(true)(client.compacted_logs.contains(first_log))
+      }
+      val moved = list_entries(A).head.message_locator.get
+      expect(false)(moved == old_locator)
+      // The moved message can still be loaded with its old locator.
+      expect(Some(("message 1 ").padTo(1024, 'x')))(load_message(key, new AtomicReference[Object](old_locator)))
+
+      // Deleting the compacted log file drops its relocations from memory,
+      // the old locator still works through the index.
+      compact
+      expect(false)(client.log.log_file_positions.contains(first_log))
+      expect(true)(client.relocated_messages.isEmpty)
+      expect(Some(("message 1 ").padTo(1024, 'x')))(load_message(key, new AtomicReference[Object](old_locator)))
+
+      // Moving the message to another queue with its old locator references
+      // where the message is now.
+      val B = add_queue("B")
+      val uow = store.create_uow
+      uow.enqueue(entry(B, 1, (key, stale_locator)))
+      complete(uow)
+      expect(moved)(stale_locator.get)
+      expect(moved)(list_entries(B).head.message_locator.get)
+
+      // Recovering from the index snapshot taken before the compaction
+      // replays the move.
+      restart(Some(saved))
+      expect(1L +: (31L to 40L))(list_entries(A).map(_.entry_seq))
+      expect(moved)(list_entries(A).head.message_locator.get)
+      expect(moved)(list_entries(B).head.message_locator.get)
+      expect(Some(("message 1 ").padTo(1024, 'x')))(load_message(key, list_entries(A).head.message_locator))
+      expect(false)(client.relocation_records)
+    }
+  }
+
+  for (codec <- List("snappy", "lz4")) {
+    test("messages packed into " + codec + " blocks load after a restart and after a log compaction") {
+      with_config { config =>
+        config.log_size = "16k"
+        config.log_compression = codec
+        config.log_compression_block_size = "1k"
+      } {
+        val A = add_queue("A")
+        val keys = populate(A, (1 to 10).map("message " + _).toList)
+        // Every message of the block has its own position.
+        expect(true)(keys.forall(_._2.get.asInstanceOf[(Long, Int)]._2 < 0))
+
+        // Messages bigger than the block size get their own records.
+        def filler(i: Int) = ("filler " + i + " ").padTo(2048, 'x')
+        (1 to 20).foreach(i => populate(A, filler(i) :: Nil, 10 + i))
+
+        val texts = ((1 to 10).map(i => (i.toLong, "message " + i)) ++ (1 to 20).map(i => ((10 + i).toLong, filler(i)))).toMap
+        def check = for (entry <- list_entries(A)) {
+          expect(Some(texts(entry.entry_seq)))(load_message(entry.message_key, entry.message_locator))
+        }
+        check
+        restart()
+        check
+
+        // Only the 5th message of the block is left in the first log file.
+        val first_log = client.log.log_file_positions.head
+        val second_log = client.log.log_file_positions(1)
+        dequeue(list_entries(A).filter(x => position(x) < second_log && x.entry_seq != 5))
+        restart()
+
+        compact
+        within(30, TimeUnit.SECONDS) {
+          expect(true)(client.compacted_logs.contains(first_log))
+        }
+        val moved = list_entries(A).head
+        expect(5L)(moved.entry_seq)
+        expect(true)(position(moved) >= second_log)
+        expect(true)(moved.message_locator.get.asInstanceOf[(Long, Int)]._2 >= 0)
+        check
+        restart()
+        check
+      }
+    }
+  }
+
+  test("recovery replays a log spanning several files with a queue removal in it") {
+    with_config { config =>
+      config.log_size = "64k"
+      config.log_compaction_ratio = 0
+    } {
+      val A = add_queue("A")
+      val B = add_queue("B")
+      val saved = save_index
+
+      // Enough updates for the replay to flush its batch several times.
+      for (i <- 0 until 12) {
+        populate(A, (1 to 500).map("message " + _).toList, i * 500 + 1)
+        populate(B, (1 to 500).map("message " + _).toList, i * 500 + 1)
+      }
+      dequeue(list_entries(A).take(3000))
+      expect(true)(sync_cb[Boolean](cb => store.remove_queue(B)(cb)))
+      val C = add_queue("C")
+      populate(C, (1 to 100).map("message " + _).toList)
+      expect(true)(client.log.log_file_positions.size > 2)
+
+      def log_refs = client.synchronized {
+        client.log_refs.map(x => (x._1, x._2.get())).toMap
+      }
+      def live_log_refs = (list_entries(A) ++ list_entries(C)).groupBy(x => client.log_ref_key(position(x)).get).map(x => (x._1, x._2.size.toLong))
+      val expected = log_refs
+      expect(live_log_refs)(expected)
+
+      restart(Some(saved))
+      expect(Seq(A, C))(sync_cb[Seq[Long]](cb => store.list_queues(cb)))
+      expect(3001L to 6000L)(list_entries(A).map(_.entry_seq))
+      expect(1L to 100L)(list_entries(C).map(_.entry_seq))
+      expect(expected)(log_refs)
+      expect(live_log_refs)(log_refs)
+    }
+  }
+
+  test("a queue removed right before a restart gets cleaned up after it") {
+    val A = add_queue("A")
+    val B = add_queue("B")
+    populate(A, "message 1" :: Nil)
+    // More entries than one cleanup chunk deletes.
+    for (i <- 0 until 3) {
+      populate(B, (1 to 5000).map("message " + _).toList, i * 5000 + 1)
+    }
+    def list_queues = sync_cb[Seq[Long]](cb => store.list_queues(cb))
+    def last_queue_key = sync_cb[Option[Long]](cb => store.get_last_queue_key(cb))
+
+    // Keep the cleanup from running before the restart.
+    client.removed_queue_cleanup_scheduled = true
+    expect(true)(sync_cb[Boolean](cb => store.remove_queue(B)(cb)))
+    expect(Seq(A))(list_queues)
+    // The key of the removed queue does not get handed out again while
+    // its entries are still in the index.
+    expect(Some(B))(last_queue_key)
+
+    restart()
+    expect(Seq(A))(list_queues)
+    expect(true)(store.asInstanceOf[LevelDBStore].next_queue_key.get > B)
+
+    within(30, TimeUnit.SECONDS) {
+      expect(true)(client.removed_queues.isEmpty)
+    }
+    expect(Seq())(list_entries(B))
+    expect(Some(A))(last_queue_key)
+    expect(Seq(1L))(list_entries(A).map(_.entry_seq))
+  }
+
 }
@@ -0,0 +1,71 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.broker.store.leveldb
+
+import dto.LevelDBStoreDTO
+import org.apache.activemq.apollo.broker.store.{Store, StoreFunSuiteSupport}
+import java.lang.management.ManagementFactory
+
+/**
+ * <p>
+ * Measures how many bytes get allocated, across all the threads, for each
+ * persistent message sent through the store's unit of work pipeline.  Each
+ * message gets its own unit of work with a single enqueue which is the
+ * common case for a producer sending to a queue.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+class UOWAllocationBenchmark extends StoreFunSuiteSupport {
+
+  // Keep the measurement free of other test classes.
+  override def is_parallel_test_class = false
+
+  def create_store(flushDelay: Long): Store = {
+    new LevelDBStore({
+      val rc = new LevelDBStoreDTO
+      rc.directory = data_directory
+      rc.flush_delay = flushDelay
+      rc
+    })
+  }
+
+  def allocated_bytes = {
+    val bean = ManagementFactory.getThreadMXBean.asInstanceOf[com.sun.management.ThreadMXBean]
+    bean.getThreadAllocatedBytes(bean.getAllThreadIds).filter(_ > 0).sum
+  }
+
+  def store_messages(queue_key: Long, first_seq: Long, count: Int) = {
+    for (i <- 0 until count) {
+      populate(queue_key, List("message " + i), first_seq + i)
+    }
+  }
+
+  test("allocations per stored message") {
+    val queue_key = add_queue("A")
+    val count = 20000
+
+    // Warm up so that the JIT and the store caches settle.
+    store_messages(queue_key, 1, count)
+
+    val start = allocated_bytes
+    store_messages(queue_key, count + 1, count)
+    val allocated = allocated_bytes - start
+    println("allocated %,d bytes per stored message".format(allocated / count))
+  }
+
+}
@@ -67,6 +67,9 @@ object OpenwireProtocolHandler extends Log {
 
   val WAITING_ON_CLIENT_REQUEST = ()=> "client request"
 
+  // The message property ActiveMQ clients use to delay a delivery.
+  val AMQ_SCHEDULED_DELAY = "AMQ_SCHEDULED_DELAY"
+
   object SessionDeliverySizer extends Sizer[(Session[Delivery], Delivery)] {
     def size(value: (Session[Delivery], Delivery)) = Delivery.size(value._2)
   }
@@ -714,6 +717,12 @@ class OpenwireProtocolHandler extends ProtocolHandler {
     val delivery = new Delivery
     delivery.message = new OpenwireMessage(message)
     delivery.expiration = message.getExpiration
+    delivery.priority = Delivery.priority(message.getPriority)
+    message.getProperty(AMQ_SCHEDULED_DELAY) match {
+      case delay:java.lang.Number if delay.longValue > 0 =>
+        delivery.deliver_at = System.currentTimeMillis + delay.longValue
+      case _ =>
+    }
     delivery.persistent = message.isPersistent
     delivery.size = {
       val rc = message.getEncodedSize
@@ -1203,11 +1212,8 @@ class OpenwireProtocolHandler extends ProtocolHandler {
             acked
           }
 
-          acked.foreach{case (id, delivery)=>
-            if( delivery.ack!=null ) {
-              delivery.ack(consumed, uow)
-            }
-          }
+          // Cumulative acks get processed as one batch per queue.
+          DeliveryAcks.ack_all(acked.map(_._2.ack), consumed, uow)
         }
 
       }
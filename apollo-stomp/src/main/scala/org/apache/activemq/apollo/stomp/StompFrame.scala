@@ -55,6 +55,12 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
    */
   var expiration: Long = 0;
 
+  /**
+   * a positive value indicates when the message should be delivered
+   * to consumers.
+   */
+  var deliver_at: Long = 0;
+
   /**
    * true if the delivery is persistent
    */
@@ -71,6 +77,8 @@ case class StompFrameMessage(frame:StompFrame) extends Message {
         priority = java.lang.Integer.parseInt(value).toByte
       case (EXPIRES, value) =>
         expiration = java.lang.Long.parseLong(value)
+      case (DELIVER_AT, value) =>
+        deliver_at = java.lang.Long.parseLong(value)
       case (PERSISTENT, value) =>
         persistent = java.lang.Boolean.parseBoolean(value)
       case (MESSAGE_GROUP, value) =>
@@ -394,6 +402,7 @@ object Stomp {
   val CORRELATION_ID = ascii("correlation-id")
   val REPLY_TO = ascii("reply-to")
   val EXPIRES = ascii("expires")
+  val DELIVER_AT = ascii("deliver_at")
   val PRIORITY = ascii("priority")
   val TYPE = ascii("type")
   val PERSISTENT = ascii("persistent")
@@ -60,6 +60,9 @@ object StompProtocolHandler extends Log {
   // can get the resulting error message.
   val DEFAULT_DIE_DELAY = 5*1000L
 
+  // How far into the future a message can be scheduled for delivery.
+  val DEFAULT_MAX_DELIVER_DELAY = 365*24*60*60*1000L
+
     // How often we can send heartbeats of the connection is idle.
   val DEFAULT_OUTBOUND_HEARTBEAT = 100L
   var outbound_heartbeat = DEFAULT_OUTBOUND_HEARTBEAT
@@ -74,6 +77,19 @@ object StompProtocolHandler extends Log {
     def size(value: (Session[Delivery], Delivery)) = Delivery.size(value._2)
   }
 
+  /**
+   * Clamps the deliver_at time a client asked for to the broker's clock.
+   * Times which have already passed deliver the message right away.
+   */
+  def deliver_at(requested:Long, max_delay:Long) = {
+    val now = Broker.now
+    if( requested <= now ) {
+      0L
+    } else {
+      requested.min(now + max_delay)
+    }
+  }
+
   def get(headers:HeaderMap, name:AsciiBuffer):Option[AsciiBuffer] = {
     val i = headers.iterator
     while( i.hasNext ) {
@@ -305,7 +321,7 @@ class StompProtocolHandler extends ProtocolHandler {
           }
         } else {
           if( ack!=null ) {
-            ack(Consumed, null)
+            ack_batcher.ack(ack, Consumed, null)
           }
           if( !dead ) {
             credit_window_source.merge((1, size))
@@ -329,11 +345,7 @@ class StompProtocolHandler extends ProtocolHandler {
 
       def close = {
         queue.assertExecuting()
-        consumer_acks.foreach { case(_, tack) =>
-          if( tack.ack !=null ) {
-            tack.ack(Delivered, null)
-          }
-        }
+        DeliveryAcks.ack_all(consumer_acks.map(_._2.ack), Delivered, null)
         consumer_acks = null
       }
 
@@ -414,11 +426,8 @@ class StompProtocolHandler extends ProtocolHandler {
           acked
         }
 
-        acked.foreach{case (id, delivery)=>
-          if( delivery.ack!=null ) {
-            delivery.ack(consumed, uow)
-          }
-        }
+        // Cumulative acks get processed as one batch per queue.
+        DeliveryAcks.ack_all(acked.map(_._2.ack), consumed, uow)
 
         if( protocol_version eq V1_0 ) {
           connection_ack_handlers.remove(msgid)
@@ -712,6 +721,7 @@ class StompProtocolHandler extends ProtocolHandler {
   var host:VirtualHost = null
 
   private def queue = connection.dispatch_queue
+  lazy val ack_batcher = new DeliveryAckBatcher(queue)
 
   // uses by STOMP 1.0 and 1.2 clients
   var connection_ack_handlers = HashMap[AsciiBuffer, StompConsumer#AckHandler]()
@@ -755,6 +765,11 @@ class StompProtocolHandler extends ProtocolHandler {
     config.die_delay.getOrElse(DEFAULT_DIE_DELAY)
   }
 
+  def max_deliver_delay = {
+    import OptionSupport._
+    config.max_deliver_delay.getOrElse(DEFAULT_MAX_DELIVER_DELAY)
+  }
+
   lazy val buffer_size = Option(config.buffer_size).map(MemoryPropertyEditor.parse(_).toInt).getOrElse(broker.auto_tuned_send_receiver_buffer_size*10)
 
   override def set_connection(connection: BrokerConnection) = {
@@ -1465,6 +1480,8 @@ class StompProtocolHandler extends ProtocolHandler {
     val delivery = new Delivery
     delivery.message = message
     delivery.expiration = message.expiration
+    delivery.deliver_at = StompProtocolHandler.deliver_at(message.deliver_at, max_deliver_delay)
+    delivery.priority = Delivery.priority(message.priority)
     delivery.persistent = message.persistent
     delivery.size = message.frame.size
     delivery.uow = uow
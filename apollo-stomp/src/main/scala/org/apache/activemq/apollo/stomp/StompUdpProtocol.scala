@@ -43,12 +43,14 @@ class StompUdpProtocol extends UdpProtocol {
     var protocol_filters = List[ProtocolFilter3]()
     var message_id_counter = 0L
     var default_virtual_host:VirtualHost = _
+    var max_deliver_delay = StompProtocolHandler.DEFAULT_MAX_DELIVER_DELAY
 
     override def configure(c: Option[ConfigTypeDTO]) = {
       config = c.getOrElse(new ConfigTypeDTO)
       import collection.JavaConversions._
       default_virtual_host = broker.default_virtual_host
       protocol_filters = ProtocolFilter3.create_filters(config.protocol_filters.toList, this)
+      Option(config.max_deliver_delay).foreach( max_deliver_delay = _ )
 
 
 //      Option(config.max_data_length).map(MemoryPropertyEditor.parse(_).toInt).foreach( codec.max_data_length = _ )
@@ -159,6 +161,8 @@ class StompUdpProtocol extends UdpProtocol {
             delivery.size = updated_frame.size
             delivery.message = message
             delivery.expiration = message.expiration
+            delivery.deliver_at = StompProtocolHandler.deliver_at(message.deliver_at, max_deliver_delay)
+            delivery.priority = Delivery.priority(message.priority)
             delivery.persistent = message.persistent
             get(updated_frame.headers, RETAIN).foreach { retain =>
               delivery.retain = retain match {
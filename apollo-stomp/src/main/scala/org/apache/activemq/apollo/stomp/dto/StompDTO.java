@@ -107,6 +107,13 @@ public class StompDTO extends ProtocolDTO {
     @XmlAttribute(name="buffer_size")
     public String buffer_size;
 
+    /**
+     * The furthest into the future in milliseconds that a message
+     * can be scheduled for delivery with the deliver_at header.
+     */
+    @XmlAttribute(name="max_deliver_delay")
+    public Long max_deliver_delay;
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
@@ -132,6 +139,8 @@ public class StompDTO extends ProtocolDTO {
         if (destination_separator != null ? !destination_separator.equals(stompDTO.destination_separator) : stompDTO.destination_separator != null)
             return false;
         if (die_delay != null ? !die_delay.equals(stompDTO.die_delay) : stompDTO.die_delay != null) return false;
+        if (max_deliver_delay != null ? !max_deliver_delay.equals(stompDTO.max_deliver_delay) : stompDTO.max_deliver_delay != null)
+            return false;
         if (max_data_length != null ? !max_data_length.equals(stompDTO.max_data_length) : stompDTO.max_data_length != null)
             return false;
         if (max_header_length != null ? !max_header_length.equals(stompDTO.max_header_length) : stompDTO.max_header_length != null)
@@ -181,6 +190,7 @@ public class StompDTO extends ProtocolDTO {
         result = 31 * result + (regex_wildcard_end != null ? regex_wildcard_end.hashCode() : 0);
         result = 31 * result + (die_delay != null ? die_delay.hashCode() : 0);
         result = 31 * result + (buffer_size != null ? buffer_size.hashCode() : 0);
+        result = 31 * result + (max_deliver_delay != null ? max_deliver_delay.hashCode() : 0);
         return result;
     }
 }
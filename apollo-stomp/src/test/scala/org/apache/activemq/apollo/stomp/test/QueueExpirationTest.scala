@@ -0,0 +1,97 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.TimeUnit._
+
+/**
+ * Checks that messages expire from their queue's expiration index without
+ * a subscription having to look at them, whether they are swapped out or
+ * loaded, and that they go to the dead letter queue if one is configured.
+ */
+class QueueExpirationTest extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  def send_expiring(dest:String) = {
+    val expires = "expires:"+(System.currentTimeMillis + 5000)+"\n"
+    for( i <- 1 to 10 ) {
+      async_send(dest, "expiring:"+i, expires)
+    }
+    sync_send(dest, "kept")
+  }
+
+  def loaded_entries(name:String) = {
+    val queue = find_queue(name)
+    queue.dispatch_queue.future {
+      queue.loaded_entries.size
+    }.await()
+  }
+
+  def assert_expired(name:String) = {
+    within(20, SECONDS) {
+      val metrics = queue_status(name).metrics
+      (metrics.queue_items, metrics.expired_item_counter) should be ((1L, 10L))
+    }
+  }
+
+  test("messages expire while swapped out") {
+    connect("1.1")
+    val name = next_id("expiration.swapped.")
+    send_expiring("/queue/"+name)
+
+    // With no consumers the messages get swapped out before they expire.
+    within(4, SECONDS) {
+      loaded_entries(name) should be (0)
+    }
+    assert_expired(name)
+
+    subscribe("0", "/queue/"+name)
+    assert_received("kept", "0")
+  }
+
+  test("messages expire while loaded") {
+    connect("1.1")
+    // These queues don't swap.
+    val name = next_id("pending_stores.expiration.")
+    send_expiring("/queue/"+name)
+
+    loaded_entries(name) should be (11)
+    assert_expired(name)
+
+    subscribe("0", "/queue/"+name)
+    assert_received("kept", "0")
+  }
+
+  test("expired messages go to the dead letter queue") {
+    connect("1.1")
+    val name = next_id("nacker.expiration.")
+    send_expiring("/queue/"+name)
+
+    within(20, SECONDS) {
+      queue_status("dlq."+name).metrics.queue_items should be (10)
+    }
+    queue_status(name).metrics.queue_items should be (1)
+
+    subscribe("0", "/queue/dlq."+name)
+    for( i <- 1 to 10 ) {
+      assert_received("expiring:"+i, "0")
+    }
+  }
+
+}
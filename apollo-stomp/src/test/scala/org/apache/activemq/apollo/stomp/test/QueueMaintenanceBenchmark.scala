@@ -0,0 +1,61 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.broker._
+import org.fusesource.hawtdispatch._
+
+/**
+ * Reports what the periodic swap pass of a queue costs as the queue gets
+ * deeper.  QueueMaintenanceTest checks how many entries a pass visits.
+ */
+class QueueMaintenanceBenchmark extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  // Keep the timings free of other test classes.
+  override def is_parallel_test_class = false
+
+  def swap_cost(queue:Queue, iterations:Int) = {
+    queue.dispatch_queue.future {
+      val visits = queue.swap_visits
+      val start = System.nanoTime()
+      for( i <- 0 until iterations ) {
+        queue.swap_messages
+      }
+      ((System.nanoTime() - start) / iterations, (queue.swap_visits - visits) / iterations)
+    }.await()
+  }
+
+  test("queue swap cost as the queue grows") {
+    connect("1.1")
+    for( depth <- List(10000, 100000, 1000000) ) {
+      val dest = next_id("maintenance.")
+      for( i <- 1 to depth ) {
+        async_send("/queue/"+dest, "message:"+i)
+      }
+      sync_send("/queue/"+dest, "last")
+
+      // Give the queue a few maintenance cycles to swap out.
+      Thread.sleep(3000)
+
+      val (cost, visits) = swap_cost(find_queue(dest), 100)
+      println("queue depth: %,d, swap cost: %,d ns, entries visited: %,d".format(depth+1, cost, visits))
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.broker._
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.TimeUnit._
+
+/**
+ * Checks that the periodic swap pass of a queue only visits the entries
+ * it tracks and not the whole queue, and that the compact swapped ranges
+ * load and expire their entries.
+ */
+class QueueMaintenanceTest extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  test("swap passes only visit the loaded and individually swapped entries") {
+    connect("1.1")
+    val dest = next_id("maintenance.")
+    for( i <- 1 to 12000 ) {
+      async_send("/queue/"+dest, "message:"+i)
+    }
+    sync_send("/queue/"+dest, "last")
+
+    // With no consumers the entries get swapped out and combined into ranges.
+    val queue = find_queue(dest)
+    within(30, SECONDS) {
+      queue.dispatch_queue.future {
+        queue.loaded_entries.size + queue.swapped_entries.size
+      }.await() should be < 1000
+    }
+
+    val (items, tracked, visits, combine_visits) = queue.dispatch_queue.future {
+      val loaded = queue.loaded_entries.size
+      var start = queue.swap_visits
+      queue.swap_messages
+      val visits = queue.swap_visits - start
+
+      val swapped = queue.swapped_entries.size
+      start = queue.swap_visits
+      queue.combine_swapped_entries
+      (queue.queue_items, (loaded, swapped), visits, queue.swap_visits - start)
+    }.await()
+
+    items should be (12001)
+    visits should be (tracked._1)
+    combine_visits should be (tracked._2)
+  }
+
+  def compact_ranges(queue:Queue) = queue.dispatch_queue.future {
+    var rc = 0
+    var cur = queue.entries.getHead
+    while( cur!=null ) {
+      if( cur.is_swapped_range && cur.as_swapped_range.entries!=null ) {
+        rc += 1
+      }
+      cur = cur.getNext
+    }
+    rc
+  }.await()
+
+  test("compact swapped ranges load their entries in order") {
+    connect("1.1")
+    val dest = next_id("compact.")
+    for( i <- 1 to 12000 ) {
+      async_send("/queue/"+dest, "message:"+i)
+    }
+    sync_send("/queue/"+dest, "last")
+
+    val queue = find_queue(dest)
+    within(30, SECONDS) {
+      compact_ranges(queue) should be > 0
+    }
+
+    subscribe("0", "/queue/"+dest)
+    for( i <- 1 to 12000 ) {
+      assert_received("message:"+i, "0")
+    }
+    assert_received("last", "0")
+  }
+
+  test("expired compact swapped ranges get dropped") {
+    connect("1.1")
+    val dest = next_id("compact.")
+    val expires = "expires:"+(System.currentTimeMillis + 15000)+"\n"
+    for( i <- 1 to 12000 ) {
+      async_send("/queue/"+dest, "message:"+i, expires)
+    }
+    sync_send("/queue/"+dest, "last", expires)
+
+    // The ranges have to get packed before the messages expire.
+    val queue = find_queue(dest)
+    within(10, SECONDS) {
+      compact_ranges(queue) should be > 0
+    }
+
+    within(30, SECONDS) {
+      queue.dispatch_queue.future {
+        (queue.queue_items, queue.expired_item_counter)
+      }.await() should be ((0L, 12001L))
+    }
+  }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.TimeUnit._
+import collection.JavaConversions._
+
+/**
+ * Checks that queues deliver the higher priority messages first, and that
+ * the priorities survive swapping and a broker restart.  The tests don't
+ * run in parallel since one of them restarts the broker.
+ */
+class QueuePriorityTest extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  override def is_parallel_test_class = false
+
+  val priorities = Seq(1, 4, 8)
+
+  def priority(i:Int) = priorities(i % priorities.size)
+
+  // Highest priority first, in send order within a priority.
+  val expected_order = (1 to 30).sortBy(i => (-priority(i), i))
+
+  def send_mixed(dest:String) = {
+    for( i <- 1 to 29 ) {
+      async_send(dest, i, "persistent:true\npriority:"+priority(i)+"\n")
+    }
+    sync_send(dest, 30, "persistent:true\npriority:"+priority(30)+"\n")
+  }
+
+  def receive_in_order(dest:String) = {
+    subscribe("0", dest)
+    for( i <- expected_order ) {
+      assert_received(i, "0")
+    }
+  }
+
+  test("messages of mixed priorities get delivered highest priority first") {
+    connect("1.1")
+    val dest = next_id("/queue/priority.mixed.")
+    send_mixed(dest)
+
+    val metrics = queue_status(dest.stripPrefix("/queue/")).metrics
+    metrics.queue_items should be (30)
+    metrics.priorities.map(x => (x.priority, x.queue_items)).toList should be (List((8, 10L), (4, 10L), (1, 10L)))
+    metrics.priorities.map(_.queue_size).sum should be (metrics.queue_size)
+
+    receive_in_order(dest)
+    within(10, SECONDS) {
+      queue_status(dest.stripPrefix("/queue/")).metrics.priorities.toList should be (Nil)
+    }
+  }
+
+  test("message priorities survive the messages getting swapped out and back in") {
+    connect("1.1")
+    val dest = next_id("/queue/priority.swapped.")
+    send_mixed(dest)
+
+    // With no consumers the messages get swapped out.
+    val queue = find_queue(dest.stripPrefix("/queue/"))
+    within(30, SECONDS) {
+      queue.dispatch_queue.future {
+        queue.swap_messages
+        queue.loaded_entries.size
+      }.await() should be (0)
+    }
+    queue_status(dest.stripPrefix("/queue/")).metrics.priorities.map(x => (x.priority, x.queue_items)).toList should be (List((8, 10L), (4, 10L), (1, 10L)))
+
+    receive_in_order(dest)
+  }
+
+  test("message priorities survive a broker restart") {
+    connect("1.1")
+    val dest = next_id("/queue/priority.restart.")
+    send_mixed(dest)
+    disconnect()
+
+    restart_broker
+    client = new StompClient
+    connect("1.1")
+    within(10, SECONDS) {
+      queue_status(dest.stripPrefix("/queue/")).metrics.priorities.map(x => (x.priority, x.queue_items)).toList should be (List((8, 10L), (4, 10L), (1, 10L)))
+    }
+    receive_in_order(dest)
+  }
+
+}
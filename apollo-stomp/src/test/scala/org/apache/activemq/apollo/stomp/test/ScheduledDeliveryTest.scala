@@ -0,0 +1,93 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.fusesource.hawtdispatch._
+import org.apache.activemq.apollo.stomp.StompProtocolHandler
+import java.net.SocketTimeoutException
+
+/**
+ * Checks that messages sent with a deliver_at header are held back from
+ * the consumers until they are due, and that they keep their schedule
+ * across a broker restart.  The tests don't run in parallel since one of
+ * them restarts the broker.
+ */
+class ScheduledDeliveryTest extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  override def is_parallel_test_class = false
+
+  def deliver_at(delay:Long) = System.currentTimeMillis + delay
+
+  def assert_nothing_received = intercept[SocketTimeoutException] {
+    client.receive(1000)
+  }
+
+  test("a scheduled message is held back until it's due") {
+    connect("1.1")
+    val dest = next_id("/queue/scheduled.held.")
+    val at = deliver_at(4000)
+    async_send(dest, "later", "deliver_at:"+at+"\n")
+    sync_send(dest, "now")
+
+    subscribe("0", dest)
+    assert_received("now", "0")
+    assert_nothing_received
+    assert_received("later", "0")
+    System.currentTimeMillis should be >= (at)
+  }
+
+  test("a scheduled message keeps its schedule across a broker restart") {
+    connect("1.1")
+    val dest = next_id("/queue/scheduled.restart.")
+    val at = deliver_at(10000)
+    sync_send(dest, "later", "persistent:true\ndeliver_at:"+at+"\n")
+    disconnect()
+
+    restart_broker
+    client = new StompClient
+    connect("1.1")
+    subscribe("0", dest)
+    assert_nothing_received
+    assert_received("later", "0")
+    System.currentTimeMillis should be >= (at)
+  }
+
+  test("a deliver_at time that has passed delivers right away") {
+    connect("1.1")
+    val dest = next_id("/queue/scheduled.passed.")
+    sync_send(dest, "late", "deliver_at:"+deliver_at(-60000)+"\n")
+    subscribe("0", dest)
+    assert_received("late", "0")
+  }
+
+  test("a deliver_at time past the max delay gets pulled in") {
+    connect("1.1")
+    val name = next_id("scheduled.far.")
+    val before = System.currentTimeMillis
+    sync_send("/queue/"+name, "far", "deliver_at:"+Long.MaxValue+"\n")
+
+    val queue = find_queue(name)
+    val scheduled = queue.dispatch_queue.future {
+      queue.head_entry.getNext.deliver_at
+    }.await()
+    scheduled should be >= (before)
+    scheduled should be <= (System.currentTimeMillis + StompProtocolHandler.DEFAULT_MAX_DELIVER_DELAY)
+  }
+
+}
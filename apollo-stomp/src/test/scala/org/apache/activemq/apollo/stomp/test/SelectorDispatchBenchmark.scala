@@ -0,0 +1,66 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+/**
+ * Measures dispatch to a queue with 1000 selector based subscriptions.  The
+ * `region = 'X'` selectors get indexed while the `region LIKE 'X'` ones get
+ * evaluated against every message.  SelectorIndexTest checks the indexing.
+ */
+class SelectorDispatchBenchmark extends StompTestSupport {
+
+  // Keep the timings free of other test classes.
+  override def is_parallel_test_class = false
+
+  val consumers = 1000
+  val messages = 20000
+
+  def dispatch_rate(dest:String, operator:String) = {
+    for( i <- 0 until consumers ) {
+      subscribe(""+i, "/queue/"+dest, headers="selector:region "+operator+" 'r"+i+"'\n", sync = (i == consumers-1))
+    }
+
+    val start = System.nanoTime()
+    for( i <- 0 until messages ) {
+      async_send("/queue/"+dest, i, "region:r"+(i%consumers)+"\n")
+    }
+    // Each sub should get every message for it's region in order.
+    val received = new Array[Int](consumers)
+    val sub_regex = """(?s).*\nsubscription:([^\n]+)\n.*""".r
+    for( i <- 0 until messages ) {
+      val (frame, _) = receive_message()
+      val sub_regex(sub) = frame
+      val id = sub.toInt
+      frame should endWith("\n\n"+(id + received(id)*consumers))
+      received(id) += 1
+    }
+    val elapsed = System.nanoTime() - start
+
+    for( i <- 0 until consumers ) {
+      unsubscribe(""+i)
+    }
+    messages * 1000000000L / elapsed
+  }
+
+  test("dispatch to 1000 selector subscriptions") {
+    connect("1.1")
+    val unindexed = dispatch_rate("selected.like", "LIKE")
+    val indexed = dispatch_rate("selected.equal", "=")
+    println("selector dispatch rate, unindexed: %,d msg/s, indexed: %,d msg/s".format(unindexed, indexed))
+  }
+
+}
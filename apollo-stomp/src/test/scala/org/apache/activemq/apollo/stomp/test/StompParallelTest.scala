@@ -595,6 +595,43 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
     sub1_counter should be(4)
   }
 
+  test("A consumer drains all the partitions of a partitioned queue") {
+    val dest = next_id("/queue/partitioned.test")
+    connect("1.1")
+    subscribe("1", dest)
+
+    // The messages get spread across all the partitions.
+    for (i <- 0 until 20) {
+      async_send(dest, "message:" + i)
+    }
+
+    var received = Set[String]()
+    for (i <- 0 until 20) {
+      val (frame, ack) = receive_message()
+      received += frame.substring(frame.indexOf("\n\n")+2)
+    }
+    received should be((0 until 20).map("message:" + _).toSet)
+  }
+
+  test("A browser sees all the partitions of a partitioned queue") {
+    val dest = next_id("/queue/partitioned.test")
+    connect("1.1")
+    for (i <- 0 until 20) {
+      sync_send(dest, "message:" + i)
+    }
+
+    // The browse only ends once every partition has been browsed.
+    subscribe("1", dest, "auto", false, "browser:true\n")
+    var received = Set[String]()
+    for (i <- 0 until 20) {
+      val (frame, ack) = receive_message()
+      frame.contains("browser:end") should be(false)
+      received += frame.substring(frame.indexOf("\n\n")+2)
+    }
+    received should be((0 until 20).map("message:" + _).toSet)
+    client.receive() should include("browser:end\n")
+  }
+
   test("Message groups are sticky to a consumer") {
 
     val dest = next_id("/queue/msggroups")
@@ -653,6 +690,46 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
   }
 
 
+  test("Reweighting a subscription hands its message groups over gracefully") {
+    val dest = next_id("/queue/msggroups.reweight")
+    connect("1.1")
+    subscribe("1", dest, "client")
+    subscribe("2", dest, "client")
+
+    def send_receive = {
+      for (i <- 0 until 26 ) { async_send(dest, "data", "message_group:"+('a'+i).toChar+"\n") }
+      (0 until 26).map { i =>
+        val (frame, ack) = receive_message()
+        (frame.contains("subscription:1\n"), ack)
+      }
+    }
+    val acks = send_receive
+
+    // Lower the weight of a subscription which has messages in flight.
+    val queue = find_queue(dest.stripPrefix("/queue/"))
+    def subs = queue.all_subscriptions.values.toList
+    val (handoffs, moves, suspended) = queue.dispatch_queue.future {
+      val sub = subs.find(!_.acquired.isEmpty).get
+      sub.reweight_message_groups(1)
+      (queue.message_group_handoffs, queue.message_group_moves, subs.map(_.suspend_count > 0))
+    }.await()
+    handoffs should be > (0)
+    moves should be > (0L)
+    // Both subscriptions wait for the moved groups to drain.
+    suspended should be (List(true, true))
+
+    acks.foreach(_._2(true))
+    within(10, SECONDS) {
+      queue.dispatch_queue.future {
+        (queue.message_group_handoffs, subs.map(_.suspend_count > 0))
+      }.await() should be ((0, List(false, false)))
+    }
+
+    // The subscription now only owns one bucket of the ring.
+    val groups = send_receive.map(_._1)
+    groups.count(x=>x) min groups.count(x=> !x) should be < (3)
+  }
+
   test("Queues do NOT load balance across exclusive subscribers") {
     connect("1.1")
 
@@ -1023,6 +1100,20 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
     get("3")
   }
 
+  test("Messages expire without a subscriber on a host without a store") {
+    skip_if_using_store
+    connect("1.1")
+
+    val dest = next_id("/queue/expire.unconsumed")
+    async_send(dest, "1", "expires:" + (System.currentTimeMillis() + 500) + "\n")
+    // Gives the expiration timer time to fire while nothing is subscribed.
+    Thread.sleep(2000)
+    sync_send(dest, "2")
+
+    subscribe("0", dest)
+    assert_received("2", "0")
+  }
+
   test("Expired message sent to DLQ") {
     connect("1.1")
 
@@ -1248,6 +1339,33 @@ class StompParallelTest extends StompTestSupport with BrokerParallelTestExecutio
   }
 
 
+  test("ack:client acks a batch of messages spanning priorities") {
+    connect("1.1")
+
+    val dest = next_id("/queue/ackmode-client-batch")
+    for (i <- 1 to 10) {
+      async_send(dest, i)
+    }
+    for (i <- 11 to 19) {
+      async_send(dest, i, "priority:9\n")
+    }
+    sync_send(dest, 20, "priority:9\n")
+
+    subscribe("0", dest, "client")
+    // The higher priority messages get dispatched first.
+    val acks = ((11 to 20) ++ (1 to 10)).map(i => assert_received(i, "0"))
+
+    // Acks the first 15 deliveries as one batch.
+    acks(14)(true)
+    disconnect()
+
+    connect("1.1")
+    subscribe("0", dest, "client")
+    for (i <- 6 to 10) {
+      assert_received(i, "0")
+    }
+  }
+
   test("ack:client-individual redelivers on client disconnect") {
     connect("1.1")
 
@@ -0,0 +1,89 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.stomp.test
+
+import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.store.QueueEntryRecord
+import org.fusesource.hawtdispatch._
+import java.util.concurrent.atomic.AtomicReference
+
+/**
+ * Reports the heap a swapped message costs at 10M messages, as an
+ * individually swapped entry and in a compact swapped range.  Needs a
+ * heap of about 4GB.
+ */
+class SwapHeapBenchmark extends StompTestSupport {
+
+  override def broker_config_uri: String = "xml:classpath:apollo-stomp-leveldb.xml"
+
+  // Keep the measurements free of other test classes.
+  override def is_parallel_test_class = false
+
+  val MESSAGES = 10*1000*1000
+
+  def used_heap = {
+    for( i <- 0 until 3 ) {
+      System.gc()
+    }
+    val runtime = Runtime.getRuntime
+    runtime.totalMemory - runtime.freeMemory
+  }
+
+  def report(kind:String, bytes:Long) = {
+    println("%s: %,d bytes for %,d messages, %,d bytes per message".format(kind, bytes, MESSAGES, bytes / MESSAGES))
+  }
+
+  test("heap per swapped message") {
+    connect("1.1")
+    val dest = next_id("compact.")
+    sync_send("/queue/"+dest, "first")
+    val queue = find_queue(dest)
+    val sender = List[DestinationAddress](queue.address)
+
+    // Everything runs in one task so that the queue's maintenance does
+    // not see the entries, which are not linked into the queue.
+    queue.dispatch_queue.future {
+      // Seqs past the queue's own so the swapped entry set keeps them apart.
+      val base = 1L << 40
+      var start = used_heap
+      var entries = new Array[QueueEntry](MESSAGES)
+      for( i <- 0 until MESSAGES ) {
+        val record = new QueueEntryRecord
+        record.entry_seq = base+i
+        record.message_key = i+1
+        record.message_locator = new AtomicReference[Object]()
+        record.size = 100
+        record.sender = Nil
+        entries(i) = new QueueEntry(queue, base+i).init(record)
+      }
+      // The array holding the entries is not part of what a swapped entry costs.
+      report("individually swapped", used_heap - start - 4L * MESSAGES)
+      entries.foreach(queue.swapped_entries.remove(_))
+      queue.individual_swapped_items -= MESSAGES
+      entries = null
+
+      start = used_heap
+      val table = new SwappedEntryTable(MESSAGES)
+      for( i <- 0 until MESSAGES ) {
+        table.add(base+i, i+1, new AtomicReference[Object](), 100, 0, 0, 0, sender)
+      }
+      report("compact range", used_heap - start)
+      table.length
+    }.await()
+  }
+
+}
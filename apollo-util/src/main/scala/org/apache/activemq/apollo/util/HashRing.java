@@ -20,6 +20,7 @@ import org.apache.activemq.apollo.util.TreeMap;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -57,6 +58,8 @@ public class HashRing<Node, Resource> {
     private static class Wrapper<N> {
         private N node;
         private int weight;
+        // When nodes collide on the ring, the one added last owns the position.
+        private int order;
 
         public Wrapper(N node, int weight) {
             this.node = node;
@@ -72,6 +75,9 @@ public class HashRing<Node, Resource> {
     private final Hasher hasher;
     private final TreeMap<Integer, Wrapper<Node>> ring = new TreeMap<Integer, Wrapper<Node>>();
     private final LinkedHashMap<Node, Wrapper<Node>> nodes = new LinkedHashMap<Node, Wrapper<Node>>();
+    // All the nodes at the ring positions more than one node hashed to.
+    private final HashMap<Integer, ArrayList<Wrapper<Node>>> collisions = new HashMap<Integer, ArrayList<Wrapper<Node>>>();
+    private int added;
 
     /**
      * Constructs a <tt>HashRing</tt> which uses the OBJECT_HASHER to hash the nodes and values.
@@ -136,11 +142,12 @@ public class HashRing<Node, Resource> {
         }
 
         Wrapper<Node> wrapper = new Wrapper<Node>(node, weight);
+        wrapper.order = added++;
         nodes.put(node, wrapper);
         int positions[] = new int[wrapper.weight];
         for (int i = 0; i < wrapper.weight; i++) {
             positions[i] = hasher.hashNode(node, i);
-            ring.put(positions[i], wrapper);
+            place(positions[i], wrapper);
         }
 
         ArrayList<Iterator<Node>> rc = new ArrayList<Iterator<Node>>();
@@ -166,19 +173,101 @@ public class HashRing<Node, Resource> {
         // nodes hashes may collide and last node added takes over the
         // the previously added node.  Order matters.
         ring.clear();
+        collisions.clear();
         for (Wrapper<Node> w : nodes.values()) {
+            w.order = added++;
             for (int i = 0; i < w.weight; i++) {
-                ring.put(hasher.hashNode(w.node, i), w);
+                place(hasher.hashNode(w.node, i), w);
             }
         }
         return true;
     }
 
+    private void place(int position, Wrapper<Node> wrapper) {
+        Wrapper<Node> owner = ring.get(position);
+        if( owner == null ) {
+            ring.put(position, wrapper);
+            return;
+        }
+        ArrayList<Wrapper<Node>> colliding = collisions.get(position);
+        if( colliding == null ) {
+            colliding = new ArrayList<Wrapper<Node>>();
+            colliding.add(owner);
+            collisions.put(position, colliding);
+        }
+        colliding.add(wrapper);
+        if( wrapper.order > owner.order ) {
+            ring.put(position, wrapper);
+        }
+    }
+
+    private void displace(int position, Wrapper<Node> wrapper) {
+        ArrayList<Wrapper<Node>> colliding = collisions.get(position);
+        if( colliding == null ) {
+            ring.remove(position);
+            return;
+        }
+        colliding.remove(wrapper);
+        Wrapper<Node> owner = colliding.get(0);
+        for (Wrapper<Node> w : colliding) {
+            if( w.order > owner.order ) {
+                owner = w;
+            }
+        }
+        if( colliding.size() == 1 ) {
+            collisions.remove(position);
+        }
+        ring.put(position, owner);
+    }
+
+    /**
+     * Changes the weight of a previously added node.  Lowering the weight
+     * hands the resources at the dropped positions over to the nodes which
+     * follow them on the ring, raising it takes over the resources at the
+     * new positions.
+     *
+     * @param node the node to re-weight
+     * @param weight the new number of hash replicas of the node
+     * @return iterators starting at each position which changed owner, or null if the node was not previously added
+     * @throws IllegalArgumentException if the weight is less than 1
+     */
+    public ArrayList<Iterator<Node>> setWeight(Node node, int weight) {
+        if( weight < 1 ) {
+            throw new IllegalArgumentException("weight must be 1 or greater");
+        }
+        Wrapper<Node> wrapper  = nodes.get(node);
+        if( wrapper == null ) {
+            return null;
+        }
+        int previous = wrapper.weight;
+        wrapper.weight = weight;
+
+        // Only the added or dropped positions of the node change owner.
+        ArrayList<Iterator<Node>> rc = new ArrayList<Iterator<Node>>();
+        for (int i = previous; i < weight; i++) {
+            int position = hasher.hashNode(node, i);
+            place(position, wrapper);
+            if( ring.get(position) == wrapper ) {
+                rc.add(iterator(getFirstEntry(position)));
+            }
+        }
+        for (int i = weight; i < previous; i++) {
+            int position = hasher.hashNode(node, i);
+            boolean owned = ring.get(position) == wrapper;
+            displace(position, wrapper);
+            if( owned ) {
+                rc.add(iterator(getFirstEntry(position)));
+            }
+        }
+        return rc;
+    }
+
     /**
      * Removes all previously added nodes.
      */
     public void clear() {
         ring.clear();
+        collisions.clear();
         nodes.clear();
     }
 
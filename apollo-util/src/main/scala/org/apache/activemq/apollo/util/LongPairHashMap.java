@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * A hash map keyed by a pair of primitive longs, or by a single long when
+ * the second key is left at 0.  It uses open addressing so that adding and
+ * removing entries does not allocate, unless the table has to grow.  It is
+ * not thread safe and does not allow null values.
+ * </p>
+ *
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class LongPairHashMap<V> {
+
+    private long[] keys1;
+    private long[] keys2;
+    private Object[] values;
+    private int size;
+    private int mask;
+
+    public LongPairHashMap() {
+        this(16);
+    }
+
+    public LongPairHashMap(int capacity) {
+        int length = 4;
+        while (length < capacity * 2) {
+            length <<= 1;
+        }
+        allocate(length);
+    }
+
+    private void allocate(int length) {
+        keys1 = new long[length];
+        keys2 = new long[length];
+        values = new Object[length];
+        mask = length - 1;
+    }
+
+    private int slot(long key1, long key2) {
+        long h = key1 * 0x9E3779B97F4A7C15L + key2;
+        h ^= (h >>> 32);
+        h *= 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 29)) & mask;
+    }
+
+    private int find(long key1, long key2) {
+        int i = slot(key1, key2);
+        while (values[i] != null) {
+            if (keys1[i] == key1 && keys2[i] == key2) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public V get(long key) {
+        return get(key, 0);
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key1, long key2) {
+        int i = find(key1, key2);
+        return i < 0 ? null : (V) values[i];
+    }
+
+    public V put(long key, V value) {
+        return put(key, 0, value);
+    }
+
+    /**
+     * @return the previous value of the key or null.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key1, long key2, V value) {
+        if (value == null) {
+            throw new IllegalArgumentException("null values are not supported");
+        }
+        int i = slot(key1, key2);
+        while (values[i] != null) {
+            if (keys1[i] == key1 && keys2[i] == key2) {
+                V rc = (V) values[i];
+                values[i] = value;
+                return rc;
+            }
+            i = (i + 1) & mask;
+        }
+        keys1[i] = key1;
+        keys2[i] = key2;
+        values[i] = value;
+        size++;
+        // Keep the table at most half full.
+        if (size * 2 > mask + 1) {
+            rehash((mask + 1) << 1);
+        }
+        return null;
+    }
+
+    public V remove(long key) {
+        return remove(key, 0);
+    }
+
+    /**
+     * @return the removed value or null if the key was not in the map.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key1, long key2) {
+        int i = find(key1, key2);
+        if (i < 0) {
+            return null;
+        }
+        V rc = (V) values[i];
+        values[i] = null;
+        size--;
+
+        // Shift back the entries which probed past the freed slot.
+        int free = i;
+        i = (i + 1) & mask;
+        while (values[i] != null) {
+            int home = slot(keys1[i], keys2[i]);
+            if (((i - home) & mask) >= ((i - free) & mask)) {
+                keys1[free] = keys1[i];
+                keys2[free] = keys2[i];
+                values[free] = values[i];
+                values[i] = null;
+                free = i;
+            }
+            i = (i + 1) & mask;
+        }
+        return rc;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(values, null);
+        size = 0;
+    }
+
+    /**
+     * @return a copy of the values.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        ArrayList<V> rc = new ArrayList<V>(size);
+        for (Object value : values) {
+            if (value != null) {
+                rc.add((V) value);
+            }
+        }
+        return rc;
+    }
+
+    private void rehash(int length) {
+        long[] old_keys1 = keys1;
+        long[] old_keys2 = keys2;
+        Object[] old_values = values;
+        allocate(length);
+        for (int i = 0; i < old_values.length; i++) {
+            if (old_values[i] != null) {
+                int j = slot(old_keys1[i], old_keys2[i]);
+                while (values[j] != null) {
+                    j = (j + 1) & mask;
+                }
+                keys1[j] = old_keys1[i];
+                keys2[j] = old_keys2[i];
+                values[j] = old_values[i];
+            }
+        }
+    }
+}
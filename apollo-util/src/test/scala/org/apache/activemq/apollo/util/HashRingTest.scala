@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util
+
+import org.scalatest.matchers.ShouldMatchers
+import collection.JavaConversions._
+
+class HashRingTest extends FunSuiteSupport with ShouldMatchers {
+
+  val resources = (0 until 10000).map("resource:" + _)
+
+  def ring(weights:(String, Int)*):HashRing[String, String] = add(new HashRing[String, String](), weights)
+
+  def ring(hasher:Hasher[String, String], weights:(String, Int)*):HashRing[String, String] = add(new HashRing[String, String](hasher), weights)
+
+  def add(ring:HashRing[String, String], weights:Seq[(String, Int)]) = {
+    weights.foreach(x => ring.add(x._1, x._2))
+    ring
+  }
+
+  def mapping(ring:HashRing[String, String]) = resources.map(ring.get(_))
+
+  test("re-weighting a node maps resources like adding it with the new weight") {
+    val reweighted = ring("a" -> 200, "b" -> 200, "c" -> 200)
+    val before = mapping(reweighted)
+
+    val lowered = reweighted.setWeight("b", 50)
+    mapping(reweighted) should be (mapping(ring("a" -> 200, "b" -> 50, "c" -> 200)))
+    // Only b's resources moved.
+    before.zip(mapping(reweighted)).forall(x => x._1 == x._2 || x._1 == "b") should be (true)
+    lowered.size should be (150)
+
+    val raised = reweighted.setWeight("b", 300)
+    mapping(reweighted) should be (mapping(ring("a" -> 200, "b" -> 300, "c" -> 200)))
+    raised.size should be (250)
+    raised.forall(_.next == "b") should be (true)
+
+    reweighted.setWeight("d", 10) should be (null)
+  }
+
+  test("re-weighting a node keeps the ring consistent when nodes collide") {
+    // Every node hashes to the same positions, the node added last owns them.
+    val colliding = new Hasher[String, String] {
+      def hashNode(node:String, i:Int) = i * 1000
+      def hashKey(value:String) = value.hashCode
+    }
+    val reweighted = ring(colliding, "a" -> 10, "b" -> 5)
+    resources.map(reweighted.get(_)).toSet should be (Set("a", "b"))
+
+    // b owns the first 5 positions of a, so only the other 5 change owner.
+    reweighted.setWeight("a", 5).size should be (5)
+    resources.map(reweighted.get(_)).toSet should be (Set("b"))
+
+    // Lowering b hands its dropped positions back to a.
+    val lowered = reweighted.setWeight("b", 2)
+    lowered.size should be (3)
+    lowered.forall(_.next == "a") should be (true)
+    mapping(reweighted) should be (mapping(ring(colliding, "a" -> 5, "b" -> 2)))
+
+    // Raising a onto positions b owns does not take them from b.
+    reweighted.setWeight("a", 1)
+    reweighted.setWeight("a", 5).size should be (3)
+    mapping(reweighted) should be (mapping(ring(colliding, "a" -> 5, "b" -> 2)))
+  }
+
+}
@@ -0,0 +1,78 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.activemq.apollo.util;
+
+import java.util.HashMap;
+import java.util.Random;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author <a href="http://hiramchirino.com">Hiram Chirino</a>
+ */
+public class LongPairHashMapTest {
+
+    @Test()
+    public void testAgainstHashMap() {
+        LongPairHashMap<Long> testMap = new LongPairHashMap<Long>(2);
+        HashMap<String, Long> refMap = new HashMap<String, Long>();
+        Random random = new Random(0);
+
+        for (int i = 0; i < 100000; i++) {
+            // Use a small key space so that we get lots of collisions and removes.
+            long key1 = random.nextInt(50);
+            long key2 = random.nextInt(50);
+            String ref = key1 + ":" + key2;
+            switch (random.nextInt(3)) {
+                case 0:
+                    assertEquals(refMap.put(ref, (long) i), testMap.put(key1, key2, (long) i));
+                    break;
+                case 1:
+                    assertEquals(refMap.remove(ref), testMap.remove(key1, key2));
+                    break;
+                default:
+                    assertEquals(refMap.get(ref), testMap.get(key1, key2));
+            }
+            assertEquals(refMap.size(), testMap.size());
+        }
+
+        assertEquals(refMap.size(), testMap.values().size());
+        for (String ref : refMap.keySet()) {
+            String[] parts = ref.split(":");
+            assertEquals(refMap.get(ref), testMap.get(Long.parseLong(parts[0]), Long.parseLong(parts[1])));
+        }
+
+        testMap.clear();
+        assertTrue(testMap.isEmpty());
+        assertNull(testMap.get(1, 1));
+    }
+
+    @Test()
+    public void testSingleKey() {
+        LongPairHashMap<String> testMap = new LongPairHashMap<String>();
+        for (long i = 0; i < 1000; i++) {
+            testMap.put(i, "v" + i);
+        }
+        assertEquals(1000, testMap.size());
+        assertEquals("v500", testMap.get(500));
+        assertEquals("v500", testMap.remove(500));
+        assertNull(testMap.get(500));
+        assertEquals(999, testMap.size());
+    }
+}
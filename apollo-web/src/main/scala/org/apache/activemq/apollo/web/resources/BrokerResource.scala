@@ -31,6 +31,7 @@ import org.josql.{QueryResults, Query}
 import java.util.regex.Pattern
 import java.util.{Collections, ArrayList}
 import org.apache.activemq.apollo.broker._
+import org.apache.activemq.apollo.broker.store.ConcurrentFileDirectBufferAllocator
 import org.apache.activemq.apollo.dto._
 import javax.ws.rs.core.MediaType._
 import javax.servlet.http.HttpServletResponse
@@ -346,6 +347,10 @@ class BrokerResource() extends Resource {
     result.state_since = host.service_state.since
     result.store = host.store != null
     result.host_names = host.config.host_names
+    host.direct_buffer_allocator match {
+      case x:ConcurrentFileDirectBufferAllocator => result.heap_bypass = x.status
+      case _ =>
+    }
 
     val router: LocalRouter = host
 